@@ -0,0 +1,162 @@
+package com.performetriks.performator.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.client5.http.DnsResolver;
+
+import com.performetriks.performator.http.PFRHttp.PFRAddressSelection;
+
+/***************************************************************************
+ *
+ * Decorator for DnsResolver that spreads new connections across all the
+ * addresses a host resolves to. The clients connect to the first address
+ * returned, the other addresses are used if the connect fails. This
+ * resolver moves the selected address to the first position, the others
+ * keep their order.
+ *
+ * The selection is defined with PFRHttp.defaultAddressSelection().
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRAddressSpreader implements DnsResolver {
+
+	private final DnsResolver delegate;
+
+	private final ConcurrentHashMap<String, HostState> hostStates = new ConcurrentHashMap<>();
+
+	/***************************************************************************
+	 * Selection state of a single host.
+	 ***************************************************************************/
+	private static class HostState {
+
+		final AtomicInteger roundRobin = new AtomicInteger(0);
+
+		// current weights for smooth weighted round robin
+		final HashMap<String, Integer> currentWeights = new HashMap<>();
+	}
+
+	public PFRAddressSpreader(DnsResolver delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+
+		InetAddress[] addresses = delegate.resolve(host);
+
+		PFRAddressSelection selection = PFRHttp.defaultAddressSelection();
+
+		if(addresses == null
+		|| addresses.length < 2
+		|| selection == PFRAddressSelection.SYSTEM) {
+			return addresses;
+		}
+
+		HostState state = hostStates.computeIfAbsent(host, k -> new HostState());
+
+		int selected;
+		switch(selection) {
+			case LEAST_CONNECTIONS:	selected = selectLeastConnections(state, addresses); break;
+			case WEIGHTED:			selected = selectWeighted(state, addresses); break;
+			default:				selected = selectRoundRobin(state, addresses); break;
+		}
+
+		return moveToFirst(addresses, selected);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static int selectRoundRobin(HostState state, InetAddress[] addresses) {
+		return Math.floorMod(state.roundRobin.getAndIncrement(), addresses.length);
+	}
+
+	/***************************************************************************
+	 * Selects the address with the least open connections, starts the search
+	 * at the next round robin position to spread ties.
+	 ***************************************************************************/
+	private static int selectLeastConnections(HostState state, InetAddress[] addresses) {
+
+		int start = selectRoundRobin(state, addresses);
+		int selected = start;
+		int least = Integer.MAX_VALUE;
+
+		for(int i = 0; i < addresses.length; i++) {
+			int index = (start + i) % addresses.length;
+			int open = PFRAddressStats.getOpenConnections(addresses[index]);
+
+			if(open < least) {
+				least = open;
+				selected = index;
+			}
+		}
+
+		return selected;
+	}
+
+	/***************************************************************************
+	 * Smooth weighted round robin: every address gains its weight, the one
+	 * with the highest current weight is selected and loses the total weight.
+	 ***************************************************************************/
+	private static int selectWeighted(HostState state, InetAddress[] addresses) {
+
+		synchronized (state) {
+
+			int selected = 0;
+			int best = Integer.MIN_VALUE;
+			int total = 0;
+
+			for(int i = 0; i < addresses.length; i++) {
+				String address = addresses[i].getHostAddress();
+				int weight = PFRHttp.addressWeight(address);
+				total += weight;
+
+				int current = state.currentWeights.getOrDefault(address, 0) + weight;
+				state.currentWeights.put(address, current);
+
+				if(current > best) {
+					best = current;
+					selected = i;
+				}
+			}
+
+			String selectedAddress = addresses[selected].getHostAddress();
+			state.currentWeights.put(selectedAddress, best - total);
+
+			return selected;
+		}
+	}
+
+	/***************************************************************************
+	 * Returns a copy of the array with the selected address at the first
+	 * position.
+	 ***************************************************************************/
+	private static InetAddress[] moveToFirst(InetAddress[] addresses, int selected) {
+
+		if(selected == 0) {
+			return addresses;
+		}
+
+		InetAddress[] result = new InetAddress[addresses.length];
+		result[0] = addresses[selected];
+
+		int target = 1;
+		for(int i = 0; i < addresses.length; i++) {
+			if(i != selected) {
+				result[target++] = addresses[i];
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public String resolveCanonicalHostname(String host) throws UnknownHostException {
+		return delegate.resolveCanonicalHostname(host);
+	}
+}
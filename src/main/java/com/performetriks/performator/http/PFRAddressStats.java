@@ -0,0 +1,199 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.reactor.IOSessionListener;
+
+import com.xresch.hsr.base.HSR;
+
+/***************************************************************************
+ *
+ * Keeps count of the open connections and errors per IP address. Used by
+ * PFRAddressSpreader for the least connections selection and to find
+ * misbehaving nodes behind a host name.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRAddressStats {
+
+	private static final ConcurrentHashMap<String, PFRAddressStats> statsPerAddress = new ConcurrentHashMap<>();
+
+	private final AtomicInteger openConnections = new AtomicInteger(0);
+	private final LongAdder openedConnections = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	/***************************************************************************
+	 * Returns the stats of the given address.
+	 ***************************************************************************/
+	static PFRAddressStats of(String address) {
+		return statsPerAddress.computeIfAbsent(address, k -> new PFRAddressStats());
+	}
+
+	/***************************************************************************
+	 * Returns the stats of the given address.
+	 ***************************************************************************/
+	static PFRAddressStats of(InetAddress address) {
+		return of(address.getHostAddress());
+	}
+
+	/***************************************************************************
+	 * Returns the IP address of a socket address, or null.
+	 ***************************************************************************/
+	static String getAddress(SocketAddress socketAddress) {
+
+		if(socketAddress instanceof InetSocketAddress) {
+			InetAddress address = ((InetSocketAddress)socketAddress).getAddress();
+			if(address != null) {
+				return address.getHostAddress();
+			}
+		}
+
+		return null;
+	}
+
+	/***************************************************************************
+	 * Counts an opened connection.
+	 ***************************************************************************/
+	void connectionOpened() {
+		openConnections.incrementAndGet();
+		openedConnections.increment();
+	}
+
+	/***************************************************************************
+	 * Counts a closed connection.
+	 ***************************************************************************/
+	void connectionClosed() {
+		openConnections.decrementAndGet();
+	}
+
+	/***************************************************************************
+	 * Counts a failed connect or a failed request.
+	 ***************************************************************************/
+	void error() {
+		errors.increment();
+	}
+
+	/***************************************************************************
+	 * Returns the number of connections currently open to the address.
+	 ***************************************************************************/
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	/***************************************************************************
+	 * Returns the total number of connections opened to the address.
+	 ***************************************************************************/
+	public long getOpenedConnections() {
+		return openedConnections.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of errors of the address.
+	 ***************************************************************************/
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of connections currently open to the address.
+	 ***************************************************************************/
+	static int getOpenConnections(InetAddress address) {
+		PFRAddressStats stats = statsPerAddress.get(address.getHostAddress());
+		return (stats != null) ? stats.getOpenConnections() : 0;
+	}
+
+	/***************************************************************************
+	 * Reports the open connections, opened connections and errors per IP
+	 * address as HSR gauges.
+	 ***************************************************************************/
+	public static void reportGauges() {
+
+		for(Entry<String, PFRAddressStats> entry : statsPerAddress.entrySet()) {
+			PFRAddressStats stats = entry.getValue();
+			HSR.addGauge("PFRHttp-IP-OpenConnections " + entry.getKey(), BigDecimal.valueOf(stats.getOpenConnections()));
+			HSR.addGauge("PFRHttp-IP-OpenedConnections " + entry.getKey(), BigDecimal.valueOf(stats.getOpenedConnections()));
+			HSR.addGauge("PFRHttp-IP-Errors " + entry.getKey(), BigDecimal.valueOf(stats.getErrors()));
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 * Session listener counting the connections of the non-blocking engines.
+	 * A session is counted with its first I/O event, as not every session
+	 * reports connected().
+	 *
+	 ***************************************************************************/
+	static class SessionListener implements IOSessionListener {
+
+		private final ConcurrentHashMap<String, PFRAddressStats> openSessions = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String, PFRAddressStats> openSourceSessions = new ConcurrentHashMap<>();
+
+		private void opened(IOSession session) {
+
+			if(openSessions.containsKey(session.getId())) {
+				return;
+			}
+
+			String address = getAddress(session.getRemoteAddress());
+
+			if(address != null) {
+				PFRAddressStats stats = of(address);
+				if(openSessions.putIfAbsent(session.getId(), stats) == null) {
+					stats.connectionOpened();
+					
+					String source = getAddress(session.getLocalAddress());
+					if(source != null) {
+						PFRAddressStats sourceStats = PFRSourceAddresses.of(source);
+						openSourceSessions.put(session.getId(), sourceStats);
+						sourceStats.connectionOpened();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void connected(IOSession session) { opened(session); }
+
+		@Override
+		public void startTls(IOSession session) { opened(session); }
+
+		@Override
+		public void inputReady(IOSession session) { opened(session); }
+
+		@Override
+		public void outputReady(IOSession session) { opened(session); }
+
+		@Override
+		public void timeout(IOSession session) { /* nothing to count */ }
+
+		@Override
+		public void exception(IOSession session, Exception ex) {
+			String address = getAddress(session.getRemoteAddress());
+			if(address != null) {
+				of(address).error();
+			}
+		}
+
+		@Override
+		public void disconnected(IOSession session) {
+			PFRAddressStats stats = openSessions.remove(session.getId());
+			if(stats != null) {
+				stats.connectionClosed();
+			}
+			
+			PFRAddressStats sourceStats = openSourceSessions.remove(session.getId());
+			if(sourceStats != null) {
+				sourceStats.connectionClosed();
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package com.performetriks.performator.http;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.Future;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.nio.AsyncConnectionEndpoint;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.config.Lookup;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
+import org.apache.hc.core5.pool.PoolReusePolicy;
+import org.apache.hc.core5.reactor.ConnectionInitiator;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+/***************************************************************************
+ *
+ * Connection manager used by the non-blocking engine, measures the time a
+ * request waits for a connection of the pool and the connect time of new
+ * connections in the PFRHttpTiming of the request. The TLS handshake time
+ * is measured by PFRTlsStrategy. New connections are bound to the source
+ * addresses, see PFRSourceAddresses.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRAsyncConnectionManager extends PoolingAsyncClientConnectionManager {
+
+	public PFRAsyncConnectionManager(Lookup<TlsStrategy> tlsStrategyLookup) {
+		super(tlsStrategyLookup);
+	}
+
+	public PFRAsyncConnectionManager(Lookup<TlsStrategy> tlsStrategyLookup, DnsResolver dnsResolver) {
+		super(tlsStrategyLookup
+			, PoolConcurrencyPolicy.STRICT
+			, PoolReusePolicy.LIFO
+			, TimeValue.NEG_ONE_MILLISECOND
+			, null
+			, dnsResolver
+			);
+	}
+
+	public PFRAsyncConnectionManager() {
+		super();
+	}
+
+	@Override
+	public Future<AsyncConnectionEndpoint> lease(String id, HttpRoute route, Object state, Timeout requestTimeout,
+			FutureCallback<AsyncConnectionEndpoint> callback) {
+
+		PFRHttpTiming timing = PFRHttpTiming.current();
+
+		if (timing == null || !PFRHttp.defaultMeasureLeaseWait()) {
+			return super.lease(id, route, state, requestTimeout, callback);
+		}
+
+		timing.leaseStarted();
+
+		return super.lease(id, route, state, requestTimeout, new FutureCallback<AsyncConnectionEndpoint>() {
+
+			@Override
+			public void completed(AsyncConnectionEndpoint endpoint) {
+				timing.leaseEnded();
+				if(callback != null) { callback.completed(endpoint); }
+			}
+
+			@Override
+			public void failed(Exception e) {
+				if(callback != null) { callback.failed(e); }
+			}
+
+			@Override
+			public void cancelled() {
+				if(callback != null) { callback.cancelled(); }
+			}
+		});
+	}
+
+	@Override
+	public Future<AsyncConnectionEndpoint> connect(AsyncConnectionEndpoint endpoint, ConnectionInitiator connectionInitiator,
+			Timeout timeout, Object attachment, HttpContext context, FutureCallback<AsyncConnectionEndpoint> callback) {
+
+		if(PFRSourceAddresses.isEnabled()) {
+			connectionInitiator = new SourceConnectionInitiator(connectionInitiator, context);
+		}
+		
+		PFRHttpTiming timing = PFRHttpTiming.of(context);
+
+		if (timing == null || !(PFRHttp.defaultMeasureConnect() || PFRHttp.defaultMeasureTls()) ) {
+			return super.connect(endpoint, connectionInitiator, timeout, attachment, context, callback);
+		}
+
+		return super.connect(endpoint, new TimingConnectionInitiator(connectionInitiator, timing), timeout, attachment, context, callback);
+	}
+
+	/***************************************************************************
+	 *
+	 * Binds the sessions to a source address of the same family as the
+	 * resolved remote address, see PFRSourceAddresses. The connect might run
+	 * on an I/O thread, the virtual user is taken from the context.
+	 *
+	 ***************************************************************************/
+	static class SourceConnectionInitiator implements ConnectionInitiator {
+
+		private final ConnectionInitiator delegate;
+		private final HttpContext context;
+
+		SourceConnectionInitiator(ConnectionInitiator delegate, HttpContext context) {
+			this.delegate = delegate;
+			this.context = context;
+		}
+
+		@Override
+		public Future<IOSession> connect(NamedEndpoint remoteEndpoint, SocketAddress remoteAddress, SocketAddress localAddress,
+				Timeout timeout, Object attachment, FutureCallback<IOSession> callback) {
+
+			if(localAddress != null || !(remoteAddress instanceof InetSocketAddress)) {
+				return delegate.connect(remoteEndpoint, remoteAddress, localAddress, timeout, attachment, callback);
+			}
+
+			InetSocketAddress source = PFRSourceAddresses.selectSocketAddress(((InetSocketAddress)remoteAddress).getAddress(), context);
+
+			return delegate.connect(remoteEndpoint, remoteAddress, source, timeout, attachment, new FutureCallback<IOSession>() {
+
+				@Override
+				public void completed(IOSession session) {
+					if(callback != null) { callback.completed(session); }
+				}
+
+				@Override
+				public void failed(Exception e) {
+					PFRSourceAddresses.connectFailed(source);
+					if(callback != null) { callback.failed(e); }
+				}
+
+				@Override
+				public void cancelled() {
+					if(callback != null) { callback.cancelled(); }
+				}
+			});
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 * Records the connect time of the sessions opened for one connect
+	 * attempt, and sets the timing for PFRTlsStrategy while the session is
+	 * handed over, as the TLS handshake is started on the same thread.
+	 *
+	 ***************************************************************************/
+	private static class TimingConnectionInitiator implements ConnectionInitiator {
+
+		private final ConnectionInitiator delegate;
+		private final PFRHttpTiming timing;
+
+		TimingConnectionInitiator(ConnectionInitiator delegate, PFRHttpTiming timing) {
+			this.delegate = delegate;
+			this.timing = timing;
+		}
+
+		@Override
+		public Future<IOSession> connect(NamedEndpoint remoteEndpoint, SocketAddress remoteAddress, SocketAddress localAddress,
+				Timeout timeout, Object attachment, FutureCallback<IOSession> callback) {
+
+			timing.connectStarted();
+
+			return delegate.connect(remoteEndpoint, remoteAddress, localAddress, timeout, attachment, new FutureCallback<IOSession>() {
+
+				@Override
+				public void completed(IOSession session) {
+					timing.connectEnded();
+
+					PFRTlsStrategy.connecting(timing);
+					try {
+						if(callback != null) { callback.completed(session); }
+					}finally {
+						PFRTlsStrategy.connecting(null);
+					}
+				}
+
+				@Override
+				public void failed(Exception e) {
+					if(callback != null) { callback.failed(e); }
+				}
+
+				@Override
+				public void cancelled() {
+					if(callback != null) { callback.cancelled(); }
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.performetriks.performator.http;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.xresch.xrutils.utils.XRText.CheckType;
+
+/***************************************************************************
+ *
+ * Evaluates a body check on the characters of the body while it is read,
+ * without keeping the body in memory. Used for the checks of requests that
+ * discard the body or capture only the start of it.
+ *
+ * <ul>
+ * <li>CONTAINS, DOES_NOT_CONTAIN: Knuth-Morris-Pratt matcher, finds the
+ * value across chunk boundaries without buffering.</li>
+ * <li>EQUALS: compares the characters with the expected value while they
+ * are read, stops at the first difference.</li>
+ * <li>MATCH_REGEX: searches the pattern in a window of the last
+ * REGEX_WINDOW characters. Matches longer than the window are not found.
+ * The REGEX_CONTEXT characters before the window are visible to
+ * lookbehinds and word boundaries, but are not searched, the start of the
+ * window is not treated as the start of the body. Matches reaching the end
+ * of the characters read so far are only accepted once more characters
+ * have been read, as "$" or a lookahead could fail with them.</li>
+ * </ul>
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public abstract class PFRBodyMatcher {
+
+	// the longest match a streamed regex check can find
+	static final int REGEX_WINDOW = 16384;
+	
+	// characters kept before the window for lookbehinds
+	static final int REGEX_CONTEXT = 1024;
+
+	/***************************************************************************
+	 * Returns a matcher for the check type, or null if the type cannot be
+	 * evaluated on a stream. An invalid regex returns null as well, the
+	 * check then fails when evaluated on the body.
+	 ***************************************************************************/
+	static PFRBodyMatcher create(CheckType checkType, String value) {
+
+		if(checkType == null || value == null) {
+			return null;
+		}
+
+		switch(checkType) {
+			case CONTAINS:			return new Contains(value, false);
+			case DOES_NOT_CONTAIN:	return new Contains(value, true);
+			case EQUALS:			return new Equals(value);
+			case MATCH_REGEX:		return createRegex(value);
+			default:				return null;
+		}
+	}
+
+	/***************************************************************************
+	 * Compiles the regex the way PFRHttpCheck does.
+	 ***************************************************************************/
+	private static PFRBodyMatcher createRegex(String regex) {
+		try {
+			return new Regex(PFRPatternCache.get(regex, PFRHttpCheck.REGEX_FLAGS));
+		}catch(PatternSyntaxException e) {
+			return null;
+		}
+	}
+
+	/***************************************************************************
+	 * Processes the next characters of the body.
+	 ***************************************************************************/
+	abstract void feed(char[] chars, int offset, int length);
+
+	/***************************************************************************
+	 * Called after the last characters have been fed.
+	 ***************************************************************************/
+	void end() {
+		// nothing to do by default
+	}
+
+	/***************************************************************************
+	 * Returns true if the result is known and no more characters are needed.
+	 ***************************************************************************/
+	abstract boolean isDone();
+
+	/***************************************************************************
+	 * Returns the result of the check, valid after end() was called.
+	 ***************************************************************************/
+	abstract boolean result();
+
+	/***************************************************************************
+	 *
+	 * Knuth-Morris-Pratt search for a fixed value.
+	 *
+	 ***************************************************************************/
+	private static class Contains extends PFRBodyMatcher {
+
+		private final char[] value;
+		private final int[] failure;
+		private final boolean negate;
+
+		private int matched = 0;
+		private boolean found = false;
+
+		Contains(String value, boolean negate) {
+			this.value = value.toCharArray();
+			this.negate = negate;
+			this.failure = new int[this.value.length];
+
+			// length of the longest proper prefix that is also a suffix
+			for(int i = 1, k = 0; i < this.value.length; i++) {
+				while(k > 0 && this.value[i] != this.value[k]) {
+					k = failure[k - 1];
+				}
+				if(this.value[i] == this.value[k]) {
+					k++;
+				}
+				failure[i] = k;
+			}
+
+			found = (this.value.length == 0);
+		}
+
+		@Override
+		void feed(char[] chars, int offset, int length) {
+
+			for(int i = offset; i < offset + length && !found; i++) {
+				char c = chars[i];
+
+				while(matched > 0 && c != value[matched]) {
+					matched = failure[matched - 1];
+				}
+
+				if(c == value[matched]) {
+					matched++;
+					if(matched == value.length) {
+						found = true;
+					}
+				}
+			}
+		}
+
+		@Override boolean isDone() { return found; }
+		@Override boolean result() { return found != negate; }
+	}
+
+	/***************************************************************************
+	 *
+	 * Compares the body with the expected value.
+	 *
+	 ***************************************************************************/
+	private static class Equals extends PFRBodyMatcher {
+
+		private final String value;
+
+		private int position = 0;
+		private boolean different = false;
+
+		Equals(String value) {
+			this.value = value;
+		}
+
+		@Override
+		void feed(char[] chars, int offset, int length) {
+
+			for(int i = offset; i < offset + length && !different; i++) {
+				if(position >= value.length() || chars[i] != value.charAt(position)) {
+					different = true;
+				}
+				position++;
+			}
+		}
+
+		@Override
+		void end() {
+			if(position != value.length()) {
+				different = true;
+			}
+		}
+
+		@Override boolean isDone() { return different; }
+		@Override boolean result() { return !different; }
+	}
+
+	/***************************************************************************
+	 *
+	 * Searches a pattern in a window over the last characters.
+	 *
+	 ***************************************************************************/
+	private static class Regex extends PFRBodyMatcher {
+
+		private final Matcher matcher;
+		private final StringBuilder window = new StringBuilder();
+
+		private int searchFrom = 0;
+		private boolean found = false;
+
+		Regex(Pattern pattern) {
+			this.matcher = pattern.matcher("");
+
+			// the characters before the region are visible, but the region start is not the start of the input
+			matcher.useTransparentBounds(true);
+			matcher.useAnchoringBounds(false);
+		}
+
+		@Override
+		void feed(char[] chars, int offset, int length) {
+
+			int end = offset + length;
+
+			while(offset < end && !found) {
+
+				int count = Math.min(end - offset, REGEX_WINDOW);
+				window.append(chars, offset, count);
+				offset += count;
+
+				found = search(false);
+
+				// keep the tail and the context before it, a match might start in the tail
+				if(!found && window.length() > REGEX_WINDOW + REGEX_CONTEXT) {
+					window.delete(0, window.length() - REGEX_WINDOW - REGEX_CONTEXT);
+					searchFrom = REGEX_CONTEXT;
+				}
+			}
+		}
+
+		@Override
+		void end() {
+			// also searches an empty body
+			if(!found) {
+				found = search(true);
+			}
+		}
+
+		/***************************************************************************
+		 * Searches the window after the context. Before the end of the body, a
+		 * match that hit the end of the window could change with the next
+		 * characters and is not accepted yet.
+		 ***************************************************************************/
+		private boolean search(boolean atEnd) {
+
+			matcher.reset(window);
+			matcher.region(searchFrom, window.length());
+
+			return matcher.find() && (atEnd || !matcher.hitEnd());
+		}
+
+		@Override boolean isDone() { return found; }
+		@Override boolean result() { return found; }
+	}
+}
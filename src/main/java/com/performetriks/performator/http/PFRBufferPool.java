@@ -0,0 +1,195 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Inflater;
+
+import com.xresch.hsr.base.HSR;
+
+/***************************************************************************
+ *
+ * Pools the buffers used to read response bodies and the Inflaters used to
+ * decompress gzip and deflate content, shared by all threads.
+ *
+ * The pools are striped arrays of slots: a thread starts looking for a free
+ * slot at a position derived from its id, so concurrent threads rarely
+ * compete for the same slot, and no thread-local buffers are kept for every
+ * virtual user. If no pooled instance is found a new one is created, if a
+ * pool is full a released instance is dropped (Inflaters are ended).
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRBufferPool {
+
+	static final int BUFFER_SIZE = 8192;
+
+	private static final int SLOTS = Math.max(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 8) << 1);
+	private static final int PROBES = 8;
+
+	private static final Pool<byte[]> byteBuffers = new Pool<>(SLOTS);
+	private static final Pool<char[]> charBuffers = new Pool<>(SLOTS);
+	private static final Pool<Inflater> inflatersGzip = new Pool<>(SLOTS);
+	private static final Pool<Inflater> inflatersDeflate = new Pool<>(SLOTS);
+
+	/***************************************************************************
+	 *
+	 * Striped array of pooled instances.
+	 *
+	 ***************************************************************************/
+	private static class Pool<T> {
+
+		private final AtomicReferenceArray<T> slots;
+		private final int mask;
+
+		final LongAdder hits = new LongAdder();
+		final LongAdder misses = new LongAdder();
+
+		Pool(int size) {
+			this.slots = new AtomicReferenceArray<>(size);
+			this.mask = size - 1;
+		}
+
+		/***************************************************************************
+		 * Returns a pooled instance or null.
+		 ***************************************************************************/
+		T acquire() {
+
+			int start = stripe();
+			for(int i = 0; i < PROBES; i++) {
+				T pooled = slots.getAndSet( (start + i) & mask, null);
+				if(pooled != null) {
+					hits.increment();
+					return pooled;
+				}
+			}
+
+			misses.increment();
+			return null;
+		}
+
+		/***************************************************************************
+		 * Returns false if no free slot was found.
+		 ***************************************************************************/
+		boolean release(T instance) {
+
+			int start = stripe();
+			for(int i = 0; i < PROBES; i++) {
+				if(slots.compareAndSet( (start + i) & mask, null, instance)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/***************************************************************************
+		 *
+		 ***************************************************************************/
+		@SuppressWarnings("deprecation")
+		private static int stripe() {
+			long id = Thread.currentThread().getId();
+			return (int)(id * 0x9E3779B97F4A7C15L >>> 32);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns a byte buffer of BUFFER_SIZE bytes.
+	 ***************************************************************************/
+	static byte[] acquireBytes() {
+		byte[] buffer = byteBuffers.acquire();
+		return (buffer != null) ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	/***************************************************************************
+	 * Returns a byte buffer to the pool.
+	 ***************************************************************************/
+	static void release(byte[] buffer) {
+		if(buffer != null && buffer.length == BUFFER_SIZE) {
+			byteBuffers.release(buffer);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns a char buffer of BUFFER_SIZE chars.
+	 ***************************************************************************/
+	static char[] acquireChars() {
+		char[] buffer = charBuffers.acquire();
+		return (buffer != null) ? buffer : new char[BUFFER_SIZE];
+	}
+
+	/***************************************************************************
+	 * Returns a char buffer to the pool.
+	 ***************************************************************************/
+	static void release(char[] buffer) {
+		if(buffer != null && buffer.length == BUFFER_SIZE) {
+			charBuffers.release(buffer);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns an Inflater.
+	 *
+	 * @param nowrap true for gzip content (raw deflate data), false for
+	 * deflate content (zlib format)
+	 ***************************************************************************/
+	static Inflater acquireInflater(boolean nowrap) {
+		Inflater inflater = (nowrap ? inflatersGzip : inflatersDeflate).acquire();
+		return (inflater != null) ? inflater : new Inflater(nowrap);
+	}
+
+	/***************************************************************************
+	 * Resets the Inflater and returns it to the pool, ends it if the pool is
+	 * full.
+	 ***************************************************************************/
+	static void release(Inflater inflater, boolean nowrap) {
+
+		if(inflater == null) {
+			return;
+		}
+
+		inflater.reset();
+		if( !(nowrap ? inflatersGzip : inflatersDeflate).release(inflater) ) {
+			inflater.end();
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the number of buffers taken from the pool.
+	 ***************************************************************************/
+	public static long getBufferHits() {
+		return byteBuffers.hits.sum() + charBuffers.hits.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of buffers that had to be created.
+	 ***************************************************************************/
+	public static long getBufferMisses() {
+		return byteBuffers.misses.sum() + charBuffers.misses.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of Inflaters taken from the pool.
+	 ***************************************************************************/
+	public static long getInflaterHits() {
+		return inflatersGzip.hits.sum() + inflatersDeflate.hits.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of Inflaters that had to be created.
+	 ***************************************************************************/
+	public static long getInflaterMisses() {
+		return inflatersGzip.misses.sum() + inflatersDeflate.misses.sum();
+	}
+
+	/***************************************************************************
+	 * Reports the hits and misses of the pools as HSR gauges.
+	 ***************************************************************************/
+	public static void reportGauges() {
+		HSR.addGauge("PFRHttp-BufferPool-Hits", BigDecimal.valueOf(getBufferHits()));
+		HSR.addGauge("PFRHttp-BufferPool-Misses", BigDecimal.valueOf(getBufferMisses()));
+		HSR.addGauge("PFRHttp-InflaterPool-Hits", BigDecimal.valueOf(getInflaterHits()));
+		HSR.addGauge("PFRHttp-InflaterPool-Misses", BigDecimal.valueOf(getInflaterMisses()));
+	}
+}
@@ -0,0 +1,270 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+
+import com.xresch.hsr.base.HSR;
+
+/***************************************************************************
+ *
+ * DnsResolver caching the resolved addresses. Expired entries are still
+ * returned while they are refreshed in the background, so only the first
+ * lookup of a host has to wait for the resolver. Concurrent lookups of the
+ * same host wait for a single call of the resolver. After a failed refresh
+ * no new refresh is started for PFRHttp.defaultDnsCacheRetryBackoff().
+ *
+ * The system resolver does not expose the TTL of the DNS records, therefore
+ * the TTL is taken from PFRHttp.defaultDnsCacheTtl(), which defaults to the
+ * JVM setting "networkaddress.cache.ttl", and is bounded by the min and max
+ * TTL settings.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRCachingDnsResolver implements DnsResolver {
+
+	private final DnsResolver delegate;
+
+	private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, CompletableFuture<InetAddress[]>> inFlight = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder refreshFailures = new LongAdder();
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static class CacheEntry {
+
+		final InetAddress[] addresses;
+		final long expiresAtMillis;
+		final AtomicBoolean refreshing = new AtomicBoolean(false);
+		
+		// set after a failed refresh, no new refresh is started before
+		volatile long retryAtMillis = 0;
+
+		CacheEntry(InetAddress[] addresses, long expiresAtMillis) {
+			this.addresses = addresses;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+	}
+
+	public PFRCachingDnsResolver() {
+		this(SystemDefaultDnsResolver.INSTANCE);
+	}
+
+	public PFRCachingDnsResolver(DnsResolver delegate) {
+		this.delegate = delegate;
+	}
+
+	/***************************************************************************
+	 * Returns the TTL configured for the JVM with the security property
+	 * "networkaddress.cache.ttl" in milliseconds, 30 seconds if not set.
+	 ***************************************************************************/
+	static long getJvmTtlMillis() {
+
+		try {
+			String ttl = Security.getProperty("networkaddress.cache.ttl");
+			if(ttl != null) {
+				long seconds = Long.parseLong(ttl.trim());
+				return (seconds < 0) ? Long.MAX_VALUE : seconds * 1000;
+			}
+		}catch(Exception e) {
+			// use default
+		}
+
+		return 30000;
+	}
+
+	/***************************************************************************
+	 * Returns the TTL applied to new entries.
+	 ***************************************************************************/
+	private static long getTtlMillis() {
+
+		long ttl = PFRHttp.defaultDnsCacheTtl();
+		ttl = Math.max(ttl, PFRHttp.defaultDnsCacheMinTtl());
+		ttl = Math.min(ttl, PFRHttp.defaultDnsCacheMaxTtl());
+
+		return ttl;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static long expiresAt(long ttlMillis) {
+		long now = System.currentTimeMillis();
+		return (ttlMillis >= Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + ttlMillis;
+	}
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+
+		if( !PFRHttp.defaultDnsCache() ) {
+			return delegate.resolve(host);
+		}
+
+		CacheEntry entry = cache.get(host);
+
+		//--------------------------
+		// Miss
+		if(entry == null) {
+			misses.increment();
+			return lookupOnce(host);
+		}
+
+		//--------------------------
+		// Hit
+		long now = System.currentTimeMillis();
+		if(now < entry.expiresAtMillis) {
+			hits.increment();
+			return entry.addresses;
+		}
+
+		//--------------------------
+		// Stale: serve while refreshing
+		staleHits.increment();
+
+		if(now >= entry.retryAtMillis
+		&& entry.refreshing.compareAndSet(false, true)
+		){
+			PFRHttp.runAsync(() -> {
+				try {
+					lookupOnce(host);
+				}catch(Exception e) {
+					refreshFailures.increment();
+					PFRHttp.logger.debug("DNS refresh of host '"+host+"' failed, keep serving the cached addresses: "+e.getMessage());
+					entry.retryAtMillis = System.currentTimeMillis() + PFRHttp.defaultDnsCacheRetryBackoff();
+					entry.refreshing.set(false);
+				}
+			});
+		}
+
+		return entry.addresses;
+	}
+
+	/***************************************************************************
+	 * Resolves the host once for all threads waiting for it.
+	 ***************************************************************************/
+	private InetAddress[] lookupOnce(String host) throws UnknownHostException {
+
+		CompletableFuture<InetAddress[]> created = new CompletableFuture<>();
+		CompletableFuture<InetAddress[]> running = inFlight.putIfAbsent(host, created);
+
+		if(running != null) {
+			return await(running, host);
+		}
+
+		try {
+			InetAddress[] addresses = lookup(host).addresses;
+			created.complete(addresses);
+			return addresses;
+
+		}catch(Throwable e) {
+			created.completeExceptionally(e);
+			throw e;
+		}finally {
+			inFlight.remove(host, created);
+		}
+	}
+
+	/***************************************************************************
+	 * Waits for the lookup of another thread and throws its exception.
+	 ***************************************************************************/
+	private static InetAddress[] await(CompletableFuture<InetAddress[]> running, String host) throws UnknownHostException {
+
+		try {
+			return running.join();
+		}catch(CompletionException e) {
+
+			Throwable cause = e.getCause();
+
+			if(cause instanceof UnknownHostException) {
+				UnknownHostException unknown = new UnknownHostException(cause.getMessage());
+				unknown.initCause(cause);
+				throw unknown;
+			}
+
+			if(cause instanceof RuntimeException) { throw (RuntimeException)cause; }
+			if(cause instanceof Error) { throw (Error)cause; }
+
+			throw e;
+		}
+	}
+
+	/***************************************************************************
+	 * Resolves the host with the delegate and caches the result.
+	 ***************************************************************************/
+	private CacheEntry lookup(String host) throws UnknownHostException {
+
+		InetAddress[] addresses = delegate.resolve(host);
+
+		CacheEntry entry = new CacheEntry(addresses, expiresAt(getTtlMillis()));
+		cache.put(host, entry);
+
+		return entry;
+	}
+
+	@Override
+	public String resolveCanonicalHostname(String host) throws UnknownHostException {
+		return delegate.resolveCanonicalHostname(host);
+	}
+
+	/***************************************************************************
+	 * Removes all entries from the cache.
+	 ***************************************************************************/
+	public void clear() {
+		cache.clear();
+	}
+
+	/***************************************************************************
+	 * Returns the number of lookups answered by a valid cache entry.
+	 ***************************************************************************/
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of lookups answered by an expired cache entry
+	 * while the entry was refreshed.
+	 ***************************************************************************/
+	public long getStaleHits() {
+		return staleHits.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of lookups that had to wait for the resolver.
+	 ***************************************************************************/
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of failed refreshes of expired entries.
+	 ***************************************************************************/
+	public long getRefreshFailures() {
+		return refreshFailures.sum();
+	}
+
+	/***************************************************************************
+	 * Reports the hit, stale hit, miss and refresh failure counters as HSR 
+	 * gauges.
+	 ***************************************************************************/
+	public void reportGauges() {
+		HSR.addGauge("PFRHttp-DnsCache-Hits", BigDecimal.valueOf(getHits()));
+		HSR.addGauge("PFRHttp-DnsCache-StaleHits", BigDecimal.valueOf(getStaleHits()));
+		HSR.addGauge("PFRHttp-DnsCache-Misses", BigDecimal.valueOf(getMisses()));
+		HSR.addGauge("PFRHttp-DnsCache-RefreshFailures", BigDecimal.valueOf(getRefreshFailures()));
+	}
+}
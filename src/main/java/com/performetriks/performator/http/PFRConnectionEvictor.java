@@ -0,0 +1,240 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.RouteInfo;
+import org.apache.hc.core5.pool.ConnPoolControl;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+
+import com.xresch.hsr.base.HSR;
+
+/***************************************************************************
+ *
+ * Background thread closing expired and idle connections of the connection
+ * pools, keeps count of evicted connections and of stale connection failures
+ * per route.
+ *
+ * The evicted connections of the blocking pool are counted when they are
+ * closed, see PFRConnectionFactory. The connections of the non-blocking
+ * pool are created by HttpClient, there the evicted connections are
+ * estimated by how much the pool shrinks during the eviction, which is
+ * approximate as other threads might open or close connections at the same
+ * time.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRConnectionEvictor {
+
+	private static final Object SYNC_LOCK = new Object();
+	private static ScheduledExecutorService evictor = null;
+
+	private static final ConcurrentHashMap<String, LongAdder> evictedPerRoute = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, LongAdder> staleFailuresPerRoute = new ConcurrentHashMap<>();
+
+	// set while the evictor closes the connections of the blocking pool
+	private static final ThreadLocal<Boolean> evicting = new ThreadLocal<>();
+
+	/***************************************************************************
+	 * Starts the eviction thread, or restarts it to apply a new interval.
+	 * Does nothing if the interval is 0 or less.
+	 ***************************************************************************/
+	static void start() {
+
+		synchronized (SYNC_LOCK) {
+
+			stop();
+
+			long interval = PFRHttp.defaultConnectionEvictionInterval();
+
+			if(interval <= 0) {
+				return;
+			}
+
+			evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "PFRHttp-ConnectionEvictor");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			evictor.scheduleWithFixedDelay(() -> {
+				try {
+					evict();
+				}catch(Throwable e) {
+					PFRHttp.logger.warn("Error while evicting connections: "+e.getMessage(), e);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/***************************************************************************
+	 * Stops the eviction thread if it is running.
+	 ***************************************************************************/
+	static void stop() {
+
+		synchronized (SYNC_LOCK) {
+			if(evictor != null) {
+				evictor.shutdownNow();
+				evictor = null;
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * Returns true if the eviction thread is running.
+	 ***************************************************************************/
+	static boolean isRunning() {
+		synchronized (SYNC_LOCK) {
+			return evictor != null;
+		}
+	}
+
+	/***************************************************************************
+	 * Closes expired and idle connections of the connection pools that
+	 * have been created.
+	 ***************************************************************************/
+	static void evict() {
+
+		ConnPoolControl<HttpRoute> pool = PFRHttp.getConnectionManagerIfCreated();
+		if(pool != null) {
+			evicting.set(Boolean.TRUE);
+			try {
+				closeConnections(pool);
+			}finally {
+				evicting.remove();
+			}
+		}
+
+		ConnPoolControl<HttpRoute> asyncPool = PFRHttp.getAsyncConnectionManagerIfCreated();
+		if(asyncPool != null) { evictEstimated(asyncPool); }
+	}
+
+	/***************************************************************************
+	 * Closes expired and idle connections of the pool.
+	 ***************************************************************************/
+	private static void closeConnections(ConnPoolControl<HttpRoute> pool) {
+
+		pool.closeExpired();
+
+		long maxIdle = PFRHttp.defaultConnectionMaxIdle();
+		if(maxIdle > 0) {
+			pool.closeIdle(TimeValue.ofMilliseconds(maxIdle));
+		}
+	}
+
+	/***************************************************************************
+	 * Closes expired and idle connections of the pool, and counts the
+	 * evicted connections by the number of connections of each route that
+	 * are gone afterwards.
+	 ***************************************************************************/
+	private static void evictEstimated(ConnPoolControl<HttpRoute> pool) {
+
+		//--------------------------
+		// Connections before
+		HashMap<HttpRoute, Integer> connectionsBefore = new HashMap<>();
+		for(HttpRoute route : pool.getRoutes()) {
+			connectionsBefore.put(route, countConnections(pool, route));
+		}
+
+		//--------------------------
+		// Evict
+		closeConnections(pool);
+
+		//--------------------------
+		// Count
+		for(Entry<HttpRoute, Integer> entry : connectionsBefore.entrySet()) {
+
+			int evicted = entry.getValue() - countConnections(pool, entry.getKey());
+
+			if(evicted > 0) {
+				counter(evictedPerRoute, entry.getKey()).add(evicted);
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the open connections of the route, leases move connections
+	 * between leased and available without changing this number.
+	 ***************************************************************************/
+	private static int countConnections(ConnPoolControl<HttpRoute> pool, HttpRoute route) {
+		PoolStats stats = pool.getStats(route);
+		return stats.getLeased() + stats.getAvailable();
+	}
+
+	/***************************************************************************
+	 * Counts a connection of the blocking pool that has been closed, if it
+	 * was closed by the evictor.
+	 ***************************************************************************/
+	static void connectionClosed(RouteInfo route) {
+		if(evicting.get() != null) {
+			counter(evictedPerRoute, route).increment();
+		}
+	}
+
+	/***************************************************************************
+	 * Counts a request that failed because the connection was closed by the
+	 * server while it was idle in the pool.
+	 ***************************************************************************/
+	static void countStaleFailure(RouteInfo route) {
+		counter(staleFailuresPerRoute, route).increment();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static LongAdder counter(ConcurrentHashMap<String, LongAdder> counters, RouteInfo route) {
+		String key = (route != null) ? route.getTargetHost().toURI() : "unknown";
+		return counters.computeIfAbsent(key, k -> new LongAdder());
+	}
+
+	/***************************************************************************
+	 * Returns the number of evicted connections per route. Counted for the
+	 * blocking pool, estimated for the non-blocking pool.
+	 ***************************************************************************/
+	public static HashMap<String, Long> getEvictedConnections() {
+		return toMap(evictedPerRoute);
+	}
+
+	/***************************************************************************
+	 * Returns the number of stale connection failures per route.
+	 ***************************************************************************/
+	public static HashMap<String, Long> getStaleConnectionFailures() {
+		return toMap(staleFailuresPerRoute);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static HashMap<String, Long> toMap(ConcurrentHashMap<String, LongAdder> counters) {
+
+		HashMap<String, Long> result = new HashMap<>();
+		for(Entry<String, LongAdder> entry : counters.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return result;
+	}
+
+	/***************************************************************************
+	 * Reports the number of evicted connections and stale connection
+	 * failures per route as HSR gauges.
+	 ***************************************************************************/
+	public static void reportGauges() {
+
+		for(Entry<String, LongAdder> entry : evictedPerRoute.entrySet()) {
+			HSR.addGauge("PFRHttp-Evicted " + entry.getKey(), BigDecimal.valueOf(entry.getValue().sum()));
+		}
+
+		for(Entry<String, LongAdder> entry : staleFailuresPerRoute.entrySet()) {
+			HSR.addGauge("PFRHttp-StaleFailures " + entry.getKey(), BigDecimal.valueOf(entry.getValue().sum()));
+		}
+	}
+}
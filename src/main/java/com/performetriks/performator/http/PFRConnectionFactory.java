@@ -0,0 +1,170 @@
+package com.performetriks.performator.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.hc.client5.http.RouteInfo;
+import org.apache.hc.client5.http.impl.io.ManagedHttpClientConnectionFactory;
+import org.apache.hc.client5.http.io.ManagedHttpClientConnection;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.EndpointDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http.io.HttpConnectionFactory;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.Timeout;
+
+/***************************************************************************
+ *
+ * Connection factory of the blocking connection manager. Decorates the
+ * connections to count the open connections per IP address and per source
+ * address in PFRAddressStats, from the moment the connection is bound to a
+ * connected socket until it is closed. The connections closed by
+ * PFRConnectionEvictor are counted per route.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRConnectionFactory implements HttpConnectionFactory<ManagedHttpClientConnection> {
+
+	public static final PFRConnectionFactory INSTANCE = new PFRConnectionFactory(ManagedHttpClientConnectionFactory.INSTANCE);
+
+	private final HttpConnectionFactory<ManagedHttpClientConnection> delegate;
+
+	public PFRConnectionFactory(HttpConnectionFactory<ManagedHttpClientConnection> delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public ManagedHttpClientConnection createConnection(Socket socket) throws IOException {
+		return new CountingConnection(delegate.createConnection(socket), PFRConnectionManager.leasingRoute());
+	}
+
+	/***************************************************************************
+	 *
+	 * Counts the connection once it is bound to a connected socket, until it
+	 * is closed.
+	 *
+	 ***************************************************************************/
+	static class CountingConnection implements ManagedHttpClientConnection {
+
+		private final ManagedHttpClientConnection delegate;
+		private final RouteInfo route;
+
+		private final AtomicBoolean counted = new AtomicBoolean(false);
+		private volatile PFRAddressStats stats = null;
+		private volatile PFRAddressStats sourceStats = null;
+
+		CountingConnection(ManagedHttpClientConnection delegate, RouteInfo route) {
+			this.delegate = delegate;
+			this.route = route;
+		}
+
+		/***************************************************************************
+		 *
+		 ***************************************************************************/
+		private void opened(Socket socket) {
+
+			if(socket == null || !socket.isConnected()) {
+				return;
+			}
+
+			String address = PFRAddressStats.getAddress(socket.getRemoteSocketAddress());
+
+			if(address != null && counted.compareAndSet(false, true)) {
+				stats = PFRAddressStats.of(address);
+				stats.connectionOpened();
+
+				InetAddress local = socket.getLocalAddress();
+				if(local != null && !local.isAnyLocalAddress()) {
+					sourceStats = PFRSourceAddresses.of(local);
+					sourceStats.connectionOpened();
+				}
+			}
+		}
+
+		/***************************************************************************
+		 *
+		 ***************************************************************************/
+		private void closed() {
+
+			if(counted.compareAndSet(true, false)) {
+				PFRAddressStats current = stats;
+				if(current != null) { current.connectionClosed(); }
+
+				PFRAddressStats currentSource = sourceStats;
+				if(currentSource != null) { currentSource.connectionClosed(); }
+			}
+		}
+
+		@Override
+		public void bind(Socket socket) throws IOException {
+			delegate.bind(socket);
+			opened(socket);
+		}
+
+		@Override
+		public void bind(SSLSocket sslSocket, Socket socket) throws IOException {
+			delegate.bind(sslSocket, socket);
+			opened(socket);
+		}
+
+		@Override
+		public void close() throws IOException {
+			boolean open = delegate.isOpen();
+			try {
+				delegate.close();
+			}finally {
+				closed();
+				if(open) { PFRConnectionEvictor.connectionClosed(route); }
+			}
+		}
+
+		@Override
+		public void close(CloseMode closeMode) {
+			boolean open = delegate.isOpen();
+			try {
+				delegate.close(closeMode);
+			}finally {
+				closed();
+				if(open) { PFRConnectionEvictor.connectionClosed(route); }
+			}
+		}
+
+		@Override public Socket getSocket() { return delegate.getSocket(); }
+		@Override public SSLSession getSSLSession() { return delegate.getSSLSession(); }
+		@Override public void passivate() { delegate.passivate(); }
+		@Override public void activate() { delegate.activate(); }
+
+		@Override public boolean isConsistent() { return delegate.isConsistent(); }
+		@Override public void sendRequestHeader(ClassicHttpRequest request) throws HttpException, IOException { delegate.sendRequestHeader(request); }
+		@Override public void terminateRequest(ClassicHttpRequest request) throws HttpException, IOException { delegate.terminateRequest(request); }
+		@Override public void sendRequestEntity(ClassicHttpRequest request) throws HttpException, IOException { delegate.sendRequestEntity(request); }
+		@Override public ClassicHttpResponse receiveResponseHeader() throws HttpException, IOException { return delegate.receiveResponseHeader(); }
+		@Override public void receiveResponseEntity(ClassicHttpResponse response) throws HttpException, IOException { delegate.receiveResponseEntity(response); }
+
+		@Override public boolean isDataAvailable(Timeout timeout) throws IOException { return delegate.isDataAvailable(timeout); }
+		@Override public boolean isStale() throws IOException { return delegate.isStale(); }
+		@Override public void flush() throws IOException { delegate.flush(); }
+
+		@Override public EndpointDetails getEndpointDetails() { return delegate.getEndpointDetails(); }
+		@Override public SocketAddress getLocalAddress() { return delegate.getLocalAddress(); }
+		@Override public SocketAddress getRemoteAddress() { return delegate.getRemoteAddress(); }
+		@Override public ProtocolVersion getProtocolVersion() { return delegate.getProtocolVersion(); }
+		@Override public boolean isOpen() { return delegate.isOpen(); }
+		@Override public Timeout getSocketTimeout() { return delegate.getSocketTimeout(); }
+		@Override public void setSocketTimeout(Timeout timeout) { delegate.setSocketTimeout(timeout); }
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+	}
+}
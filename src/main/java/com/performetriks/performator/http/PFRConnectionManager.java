@@ -0,0 +1,89 @@
+package com.performetriks.performator.http;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.io.ConnectionEndpoint;
+import org.apache.hc.client5.http.io.LeaseRequest;
+import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
+import org.apache.hc.core5.http.config.Registry;
+import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
+import org.apache.hc.core5.pool.PoolReusePolicy;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+/***************************************************************************
+ *
+ * Connection manager used by the blocking client, measures the time a
+ * request waits for a connection of the pool. The connect and TLS time is
+ * measured by PFRConnectionOperator, the connections are counted per IP
+ * address by PFRConnectionFactory.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRConnectionManager extends PoolingHttpClientConnectionManager {
+
+	// route of the connection leased by this thread
+	private static final ThreadLocal<HttpRoute> leasing = new ThreadLocal<>();
+
+	@SuppressWarnings("deprecation")
+	public PFRConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+		super(socketFactoryRegistry, PFRConnectionFactory.INSTANCE);
+	}
+
+	public PFRConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry, DnsResolver dnsResolver) {
+		super(new PFRConnectionOperator(socketFactoryRegistry, dnsResolver)
+			, PoolConcurrencyPolicy.STRICT
+			, PoolReusePolicy.LIFO
+			, TimeValue.NEG_ONE_MILLISECOND
+			, PFRConnectionFactory.INSTANCE
+			);
+	}
+
+	public PFRConnectionManager() {
+		super();
+	}
+
+	/***************************************************************************
+	 * Returns the route of the connection leased by the current thread, or
+	 * null. Used by PFRConnectionFactory to tag the connections it creates.
+	 ***************************************************************************/
+	static HttpRoute leasingRoute() {
+		return leasing.get();
+	}
+
+	@Override
+	public LeaseRequest lease(String id, HttpRoute route, Timeout requestTimeout, Object state) {
+
+		LeaseRequest lease = super.lease(id, route, requestTimeout, state);
+
+		PFRHttpTiming timing = PFRHttp.defaultMeasureLeaseWait() ? PFRHttpTiming.current() : null;
+
+		return new LeaseRequest() {
+
+			@Override
+			public ConnectionEndpoint get(Timeout timeout) throws InterruptedException, ExecutionException, TimeoutException {
+
+				// new connections are created while the lease completes
+				leasing.set(route);
+				try {
+					if(timing != null) { timing.leaseStarted(); }
+					ConnectionEndpoint endpoint = lease.get(timeout);
+					if(timing != null) { timing.leaseEnded(); }
+					return endpoint;
+				}finally {
+					leasing.remove();
+				}
+			}
+
+			@Override
+			public boolean cancel() {
+				return lease.cancel();
+			}
+		};
+	}
+}
@@ -0,0 +1,118 @@
+package com.performetriks.performator.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.client5.http.impl.io.DefaultHttpClientConnectionOperator;
+import org.apache.hc.client5.http.io.ManagedHttpClientConnection;
+import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.config.Lookup;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.util.Timeout;
+
+/***************************************************************************
+ *
+ * Connection operator of the blocking connection manager, records the
+ * connect and TLS handshake time in the PFRHttpTiming of the request that
+ * opens the connection, and binds the connections to the source addresses
+ * (see PFRSourceAddresses) once the target host is resolved.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRConnectionOperator extends DefaultHttpClientConnectionOperator {
+
+	private final DnsResolver dnsResolver;
+
+	/***************************************************************************
+	 * @param socketFactoryRegistry the factories of the layered sockets used
+	 * for TLS, plain sockets are created by the operator
+	 * @param dnsResolver the resolver, null for the system resolver
+	 ***************************************************************************/
+	@SuppressWarnings("deprecation")
+	public PFRConnectionOperator(Lookup<ConnectionSocketFactory> socketFactoryRegistry, DnsResolver dnsResolver) {
+		super(socketFactoryRegistry, null, dnsResolver);
+		this.dnsResolver = (dnsResolver != null) ? dnsResolver : SystemDefaultDnsResolver.INSTANCE;
+	}
+
+	/***************************************************************************
+	 * Resolves the host and connects to one address after the other like the
+	 * default operator, every attempt is bound to a source address of the
+	 * same family as the remote address.
+	 ***************************************************************************/
+	@Override
+	public void connect(ManagedHttpClientConnection conn, HttpHost endpointHost, NamedEndpoint endpointName,
+			InetSocketAddress localAddress, Timeout connectTimeout, SocketConfig socketConfig, Object attachment,
+			HttpContext context) throws IOException {
+
+		if(localAddress != null || !PFRSourceAddresses.isEnabled()) {
+			super.connect(conn, endpointHost, endpointName, localAddress, connectTimeout, socketConfig, attachment, context);
+			return;
+		}
+
+		//--------------------------
+		// Resolve
+		InetAddress[] remoteAddresses;
+		if(endpointHost.getAddress() != null) {
+			remoteAddresses = new InetAddress[] { endpointHost.getAddress() };
+		}else {
+			remoteAddresses = dnsResolver.resolve(endpointHost.getHostName());
+
+			if(remoteAddresses == null || remoteAddresses.length == 0) {
+				throw new UnknownHostException(endpointHost.getHostName());
+			}
+		}
+
+		//--------------------------
+		// Connect
+		NamedEndpoint tlsName = (endpointName != null) ? endpointName : endpointHost;
+
+		for(int i = 0; i < remoteAddresses.length; i++) {
+
+			HttpHost resolvedHost = new HttpHost(endpointHost.getSchemeName(), remoteAddresses[i], endpointHost.getHostName(), endpointHost.getPort());
+			InetSocketAddress source = PFRSourceAddresses.selectSocketAddress(remoteAddresses[i], context);
+
+			try {
+				super.connect(conn, resolvedHost, tlsName, source, connectTimeout, socketConfig, attachment, context);
+				return;
+			}catch(IOException e) {
+				PFRSourceAddresses.connectFailed(source);
+
+				if(i == remoteAddresses.length - 1) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void onBeforeSocketConnect(HttpContext context, HttpHost endpointHost) {
+		PFRHttpTiming timing = PFRHttpTiming.of(context);
+		if(timing != null) { timing.connectStarted(); }
+	}
+
+	@Override
+	protected void onAfterSocketConnect(HttpContext context, HttpHost endpointHost) {
+		PFRHttpTiming timing = PFRHttpTiming.of(context);
+		if(timing != null) { timing.connectEnded(); }
+	}
+
+	@Override
+	protected void onBeforeTlsHandshake(HttpContext context, HttpHost endpointHost) {
+		PFRHttpTiming timing = PFRHttpTiming.of(context);
+		if(timing != null) { timing.tlsStarted(); }
+	}
+
+	@Override
+	protected void onAfterTlsHandshake(HttpContext context, HttpHost endpointHost) {
+		PFRHttpTiming timing = PFRHttpTiming.of(context);
+		if(timing != null) { timing.tlsEnded(); }
+	}
+}
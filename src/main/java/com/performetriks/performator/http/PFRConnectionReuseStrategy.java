@@ -0,0 +1,60 @@
+package com.performetriks.performator.http;
+
+import org.apache.hc.core5.http.ConnectionReuseStrategy;
+import org.apache.hc.core5.http.EndpointDetails;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.net.URIAuthority;
+
+/***************************************************************************
+ *
+ * Decorator for ConnectionReuseStrategy that closes a connection once it
+ * has executed the maximum number of requests defined with
+ * PFRHttp.defaultMaxRequestsPerConnection() or
+ * PFRHttp.hostMaxRequestsPerConnection().
+ * Can be used to mimic load balancers recycling connections.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRConnectionReuseStrategy implements ConnectionReuseStrategy {
+
+	public static final PFRConnectionReuseStrategy INSTANCE = new PFRConnectionReuseStrategy();
+
+	private final ConnectionReuseStrategy delegate;
+
+	public PFRConnectionReuseStrategy() {
+		this(DefaultConnectionReuseStrategy.INSTANCE);
+	}
+
+	public PFRConnectionReuseStrategy(ConnectionReuseStrategy delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public boolean keepAlive(HttpRequest request, HttpResponse response, HttpContext context) {
+
+		if( !delegate.keepAlive(request, response, context) ) {
+			return false;
+		}
+
+		URIAuthority authority = (request != null) ? request.getAuthority() : null;
+		int maxRequests = PFRHttp.maxRequestsPerConnection( (authority != null) ? authority.getHostName() : null );
+
+		if(maxRequests <= 0) {
+			return true;
+		}
+
+		// request count of the connection, including the current request
+		EndpointDetails details = HttpCoreContext.cast(context).getEndpointDetails();
+
+		if(details != null) {
+			return details.getRequestCount() < maxRequests;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,429 @@
+package com.performetriks.performator.http;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hc.client5.http.RouteInfo;
+import org.apache.hc.client5.http.cookie.Cookie;
+import org.apache.hc.client5.http.cookie.CookieStore;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.net.URIAuthority;
+
+/***************************************************************************
+ *
+ * Cookie store of a single user, indexed by the cookie domain.
+ *
+ * The store is made to be used by the thread of its user and does not lock.
+ * Once it is used by multiple threads (asynchronous requests or child
+ * threads), it switches to locking with a ReentrantLock, which does not pin
+ * virtual threads.
+ *
+ * getCookies() returns a snapshot that is only rebuilt after a change.
+ * Bound to a context with bind(), the store only returns the cookies of the
+ * domains of the request, so the client does not have to match every cookie
+ * of the session on every request.
+ *
+ * Expired cookies are only searched for when the earliest expiry has passed.
+ *
+ * The seed cookies set with PFRHttp.seedCookies() are shared read-only by all
+ * stores. A cookie of the user with the same name, domain and path hides the
+ * seed cookie.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRCookieStore implements CookieStore {
+
+	// cookies per domain, per name and path
+	private final HashMap<String, LinkedHashMap<String, Cookie>> cookiesPerDomain = new HashMap<>();
+	private int size = 0;
+
+	private long nextExpiryMillis = Long.MAX_VALUE;
+
+	private List<Cookie> snapshot = null;
+	private Seeds snapshotSeeds = null;
+
+	private volatile boolean shared = false;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private static volatile Seeds seeds = new Seeds(Collections.emptyList());
+
+	/***************************************************************************
+	 * Immutable index of the seed cookies.
+	 ***************************************************************************/
+	private static class Seeds {
+
+		final List<Cookie> cookies;
+		final HashMap<String, LinkedHashMap<String, Cookie>> cookiesPerDomain = new HashMap<>();
+
+		Seeds(List<Cookie> seedCookies) {
+			
+			// a later cookie replaces an earlier one with the same name, domain and path
+			ArrayList<Cookie> unique = new ArrayList<>(seedCookies.size());
+			for(Cookie cookie : seedCookies) {
+				cookiesPerDomain.computeIfAbsent(domainKey(cookie.getDomain()), k -> new LinkedHashMap<>())
+								.put(identityKey(cookie), cookie);
+			}
+			
+			for(LinkedHashMap<String, Cookie> domainCookies : cookiesPerDomain.values()) {
+				unique.addAll(domainCookies.values());
+			}
+			
+			this.cookies = Collections.unmodifiableList(unique);
+		}
+	}
+
+	/***************************************************************************
+	 * Sets the seed cookies shared by all stores.
+	 ***************************************************************************/
+	static void setSeeds(List<Cookie> seedCookies) {
+		seeds = new Seeds( (seedCookies != null) ? seedCookies : Collections.emptyList() );
+	}
+
+	/***************************************************************************
+	 * Returns the seed cookies shared by all stores.
+	 ***************************************************************************/
+	static List<Cookie> getSeeds() {
+		return seeds.cookies;
+	}
+
+	/***************************************************************************
+	 * Makes the store lock on every access from now on. Called when the store
+	 * gets used by more than one thread.
+	 ***************************************************************************/
+	void markShared() {
+		shared = true;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static String domainKey(String domain) {
+
+		if(domain == null) { return ""; }
+
+		String key = domain.toLowerCase(Locale.ROOT);
+		return key.startsWith(".") ? key.substring(1) : key;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static String identityKey(Cookie cookie) {
+		String path = (cookie.getPath() != null) ? cookie.getPath() : "/";
+		return cookie.getName() + ";" + path;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private void lock() {
+		if(shared) { lock.lock(); }
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private void unlock() {
+		if(lock.isHeldByCurrentThread()) { lock.unlock(); }
+	}
+
+	@Override
+	public void addCookie(Cookie cookie) {
+
+		if(cookie == null) { return; }
+
+		lock();
+		try {
+			String domain = domainKey(cookie.getDomain());
+			String identity = identityKey(cookie);
+
+			LinkedHashMap<String, Cookie> domainCookies = cookiesPerDomain.get(domain);
+
+			//--------------------------
+			// Expired: remove
+			if(cookie.isExpired(Instant.now())) {
+				if(domainCookies != null && domainCookies.remove(identity) != null) {
+					size--;
+					if(domainCookies.isEmpty()) { cookiesPerDomain.remove(domain); }
+					snapshot = null;
+				}
+				return;
+			}
+
+			//--------------------------
+			// Add or replace
+			if(domainCookies == null) {
+				domainCookies = new LinkedHashMap<>();
+				cookiesPerDomain.put(domain, domainCookies);
+			}
+
+			if(domainCookies.put(identity, cookie) == null) {
+				size++;
+			}
+
+			Instant expiry = cookie.getExpiryInstant();
+			if(expiry != null) {
+				nextExpiryMillis = Math.min(nextExpiryMillis, expiry.toEpochMilli());
+			}
+
+			snapshot = null;
+		}finally {
+			unlock();
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the cookies of the user and the seed cookies that are not hidden
+	 * by a cookie of the user. The list is immutable.
+	 ***************************************************************************/
+	@Override
+	public List<Cookie> getCookies() {
+
+		lock();
+		try {
+			Seeds currentSeeds = seeds;
+
+			if(snapshot == null || snapshotSeeds != currentSeeds) {
+
+				ArrayList<Cookie> cookies = new ArrayList<>(size + currentSeeds.cookies.size());
+
+				for(LinkedHashMap<String, Cookie> domainCookies : cookiesPerDomain.values()) {
+					cookies.addAll(domainCookies.values());
+				}
+
+				for(Cookie seed : currentSeeds.cookies) {
+					if( !containsOwn(domainKey(seed.getDomain()), identityKey(seed)) ) {
+						cookies.add(seed);
+					}
+				}
+
+				snapshot = Collections.unmodifiableList(cookies);
+				snapshotSeeds = currentSeeds;
+			}
+
+			return snapshot;
+		}finally {
+			unlock();
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the cookies whose domain is the host or one of its parent
+	 * domains, and the cookies without domain. The client still checks the
+	 * path, the secure flag and the expiry.
+	 ***************************************************************************/
+	public List<Cookie> getCookies(String host) {
+
+		if(host == null) {
+			return getCookies();
+		}
+
+		lock();
+		try {
+			Seeds currentSeeds = seeds;
+			ArrayList<Cookie> cookies = new ArrayList<>();
+
+			String domain = host.toLowerCase(Locale.ROOT);
+			while(true) {
+				collect(domain, currentSeeds, cookies);
+
+				int dotIndex = domain.indexOf('.');
+				if(dotIndex < 0) { break; }
+				domain = domain.substring(dotIndex + 1);
+			}
+
+			collect("", currentSeeds, cookies);
+
+			return cookies;
+		}finally {
+			unlock();
+		}
+	}
+
+	/***************************************************************************
+	 * Adds the cookies of the user and the visible seed cookies of the domain.
+	 ***************************************************************************/
+	private void collect(String domain, Seeds currentSeeds, ArrayList<Cookie> cookies) {
+
+		LinkedHashMap<String, Cookie> domainCookies = cookiesPerDomain.get(domain);
+		if(domainCookies != null) {
+			cookies.addAll(domainCookies.values());
+		}
+
+		LinkedHashMap<String, Cookie> seedCookies = currentSeeds.cookiesPerDomain.get(domain);
+		if(seedCookies != null) {
+			for(Cookie seed : seedCookies.values()) {
+				if(domainCookies == null || !domainCookies.containsKey(identityKey(seed))) {
+					cookies.add(seed);
+				}
+			}
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private boolean containsOwn(String domain, String identity) {
+		LinkedHashMap<String, Cookie> domainCookies = cookiesPerDomain.get(domain);
+		return domainCookies != null && domainCookies.containsKey(identity);
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public boolean clearExpired(Date date) {
+		return (date != null) ? clearExpired(date.toInstant()) : false;
+	}
+
+	/***************************************************************************
+	 * Removes the expired cookies of the user. Does nothing until the earliest
+	 * expiry has passed.
+	 ***************************************************************************/
+	@Override
+	public boolean clearExpired(Instant instant) {
+
+		if(instant == null || instant.toEpochMilli() < nextExpiryMillis) {
+			return false;
+		}
+
+		lock();
+		try {
+			boolean removed = false;
+			long nextExpiry = Long.MAX_VALUE;
+
+			for(Iterator<LinkedHashMap<String, Cookie>> domainIterator = cookiesPerDomain.values().iterator(); domainIterator.hasNext(); ) {
+
+				LinkedHashMap<String, Cookie> domainCookies = domainIterator.next();
+
+				for(Iterator<Cookie> it = domainCookies.values().iterator(); it.hasNext(); ) {
+					Cookie cookie = it.next();
+					if(cookie.isExpired(instant)) {
+						it.remove();
+						size--;
+						removed = true;
+					}else if(cookie.getExpiryInstant() != null) {
+						nextExpiry = Math.min(nextExpiry, cookie.getExpiryInstant().toEpochMilli());
+					}
+				}
+
+				if(domainCookies.isEmpty()) {
+					domainIterator.remove();
+				}
+			}
+
+			nextExpiryMillis = nextExpiry;
+			if(removed) { snapshot = null; }
+
+			return removed;
+		}finally {
+			unlock();
+		}
+	}
+
+	/***************************************************************************
+	 * Removes all the cookies of the user, the seed cookies stay.
+	 ***************************************************************************/
+	@Override
+	public void clear() {
+
+		lock();
+		try {
+			cookiesPerDomain.clear();
+			size = 0;
+			nextExpiryMillis = Long.MAX_VALUE;
+			snapshot = null;
+		}finally {
+			unlock();
+		}
+	}
+
+	/***************************************************************************
+	 * Returns a store for the given context. A PFRCookieStore is wrapped to
+	 * only return the cookies of the host of the request in the context,
+	 * other stores are returned as is.
+	 ***************************************************************************/
+	static CookieStore bind(CookieStore store, HttpClientContext context) {
+
+		if(store instanceof ContextStore) {
+			store = ((ContextStore)store).store;
+		}
+
+		if(store instanceof PFRCookieStore) {
+			return new ContextStore((PFRCookieStore)store, context);
+		}
+
+		return store;
+	}
+
+	/***************************************************************************
+	 * Returns the store wrapped by bind(), or the given store.
+	 ***************************************************************************/
+	static CookieStore unwrap(CookieStore store) {
+		return (store instanceof ContextStore) ? ((ContextStore)store).store : store;
+	}
+
+	/***************************************************************************
+	 *
+	 * Store of a context, returns the cookies for the host of the request
+	 * that is currently executed with the context.
+	 *
+	 ***************************************************************************/
+	private static class ContextStore implements CookieStore {
+
+		private final PFRCookieStore store;
+		private final HttpClientContext context;
+
+		ContextStore(PFRCookieStore store, HttpClientContext context) {
+			this.store = store;
+			this.context = context;
+		}
+
+		@Override
+		public void addCookie(Cookie cookie) {
+			store.addCookie(cookie);
+		}
+
+		@Override
+		public List<Cookie> getCookies() {
+
+			HttpRequest request = context.getRequest();
+			URIAuthority authority = (request != null) ? request.getAuthority() : null;
+
+			if(authority != null) {
+				return store.getCookies(authority.getHostName());
+			}
+
+			RouteInfo route = context.getHttpRoute();
+			if(route != null) {
+				return store.getCookies(route.getTargetHost().getHostName());
+			}
+
+			return store.getCookies();
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public boolean clearExpired(Date date) {
+			return store.clearExpired(date);
+		}
+
+		@Override
+		public boolean clearExpired(Instant instant) {
+			return store.clearExpired(instant);
+		}
+
+		@Override
+		public void clear() {
+			store.clear();
+		}
+	}
+}
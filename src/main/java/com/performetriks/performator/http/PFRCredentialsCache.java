@@ -0,0 +1,206 @@
+package com.performetriks.performator.http;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.client5.http.auth.AuthSchemeFactory;
+import org.apache.hc.client5.http.auth.AuthScope;
+import org.apache.hc.client5.http.auth.CredentialsProvider;
+import org.apache.hc.client5.http.auth.KerberosConfig;
+import org.apache.hc.client5.http.auth.KerberosCredentials;
+import org.apache.hc.client5.http.auth.NTCredentials;
+import org.apache.hc.client5.http.auth.StandardAuthScheme;
+import org.apache.hc.client5.http.impl.auth.BasicSchemeFactory;
+import org.apache.hc.client5.http.impl.auth.CredentialsProviderBuilder;
+import org.apache.hc.client5.http.impl.auth.DigestSchemeFactory;
+import org.apache.hc.client5.http.impl.auth.KerberosSchemeFactory;
+import org.apache.hc.client5.http.impl.auth.NTLMSchemeFactory;
+import org.apache.hc.client5.http.impl.auth.SPNegoSchemeFactory;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.config.Lookup;
+import org.apache.hc.core5.http.config.RegistryBuilder;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+
+import com.performetriks.performator.http.PFRHttp.PFRHttpAuthMethod;
+
+/***************************************************************************
+ *
+ * Caches the credentials providers per auth method, host and user, so
+ * they are not built again for every request. The auth scheme registries
+ * are the same for all hosts and users of an auth method. Kerberos
+ * credentials are cached per user until their lifetime has expired.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+@SuppressWarnings("deprecation")
+public class PFRCredentialsCache {
+
+	private static final Lookup<AuthSchemeFactory> REGISTRY_BASIC = RegistryBuilder.<AuthSchemeFactory>create()
+			.register(StandardAuthScheme.BASIC, BasicSchemeFactory.INSTANCE)
+			.build();
+
+	private static final Lookup<AuthSchemeFactory> REGISTRY_DIGEST = RegistryBuilder.<AuthSchemeFactory>create()
+			.register(StandardAuthScheme.DIGEST, DigestSchemeFactory.INSTANCE)
+			.build();
+
+	private static final Lookup<AuthSchemeFactory> REGISTRY_NTLM = RegistryBuilder.<AuthSchemeFactory>create()
+			.register(StandardAuthScheme.NTLM, NTLMSchemeFactory.INSTANCE)
+			.build();
+
+	private static final Lookup<AuthSchemeFactory> REGISTRY_KERBEROS = RegistryBuilder.<AuthSchemeFactory>create()
+			.register(StandardAuthScheme.SPNEGO, new SPNegoSchemeFactory(
+					KerberosConfig.custom()
+						.setStripPort(KerberosConfig.Option.DEFAULT)
+						.setUseCanonicalHostname(KerberosConfig.Option.DEFAULT)
+						.build(),
+					SystemDefaultDnsResolver.INSTANCE))
+			.register(StandardAuthScheme.KERBEROS, KerberosSchemeFactory.DEFAULT)
+			.build();
+
+	private static final ConcurrentHashMap<String, CachedCredentials> credentialsCache = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, GSSCredential> gssCredentialsCache = new ConcurrentHashMap<>();
+
+	/***************************************************************************
+	 * Credentials provider and auth scheme registry of a user on a host.
+	 ***************************************************************************/
+	static class CachedCredentials {
+
+		final CredentialsProvider provider;
+		final Lookup<AuthSchemeFactory> registry;
+
+		private final char[] password;
+		private final GSSCredential gssCredential;
+
+		CachedCredentials(CredentialsProvider provider, Lookup<AuthSchemeFactory> registry, char[] password, GSSCredential gssCredential) {
+			this.provider = provider;
+			this.registry = registry;
+			this.password = password.clone();
+			this.gssCredential = gssCredential;
+		}
+
+		/***************************************************************************
+		 * Returns false if the password has changed or the Kerberos credential
+		 * has expired.
+		 ***************************************************************************/
+		boolean isValid(char[] currentPassword) {
+
+			if( !Arrays.equals(password, currentPassword) ) {
+				return false;
+			}
+
+			return gssCredential == null || isAlive(gssCredential);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the cached credentials for the user on the target host, creates
+	 * them if they are not cached or not valid anymore.
+	 *
+	 * @param authMethod any method except BASIC_HEADER
+	 ***************************************************************************/
+	static CachedCredentials get(PFRHttpAuthMethod authMethod, HttpHost targetHost, String username, char[] password) throws GSSException {
+
+		String key = authMethod + "|" + targetHost.toURI() + "|" + username;
+
+		CachedCredentials cached = credentialsCache.get(key);
+
+		if(cached == null || !cached.isValid(password)) {
+			cached = create(authMethod, targetHost, username, password);
+			credentialsCache.put(key, cached);
+		}
+
+		return cached;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static CachedCredentials create(PFRHttpAuthMethod authMethod, HttpHost targetHost, String username, char[] password) throws GSSException {
+
+		CredentialsProviderBuilder credProviderBuilder = CredentialsProviderBuilder.create();
+
+		switch(authMethod) {
+
+			//------------------------------
+			// Basic
+			case BASIC:
+				credProviderBuilder.add(new AuthScope(targetHost, null, StandardAuthScheme.BASIC), username, password);
+				return new CachedCredentials(credProviderBuilder.build(), REGISTRY_BASIC, password, null);
+
+			//------------------------------
+			// Digest
+			case DIGEST:
+				credProviderBuilder.add(new AuthScope(targetHost, null, StandardAuthScheme.DIGEST), username, password);
+				return new CachedCredentials(credProviderBuilder.build(), REGISTRY_DIGEST, password, null);
+
+			//------------------------------
+			// NTLM
+			case NTLM:
+				String ntlmUsername = username;
+				String ntlmDomain = null;
+				if(username.contains("@")) {
+					String[] splitted = username.split("@");
+					ntlmUsername = splitted[0];
+					ntlmDomain = splitted[1];
+				}
+
+				NTCredentials ntlmCreds = new NTCredentials(password, ntlmUsername, ntlmDomain, null);
+				credProviderBuilder.add(new AuthScope(targetHost, null, StandardAuthScheme.NTLM), ntlmCreds);
+				return new CachedCredentials(credProviderBuilder.build(), REGISTRY_NTLM, password, null);
+
+			//------------------------------
+			// KERBEROS (experimental)
+			case KERBEROS:
+				GSSCredential gssCred = getGssCredential(username);
+
+				credProviderBuilder.add(new AuthScope(targetHost, null, StandardAuthScheme.KERBEROS), new KerberosCredentials(gssCred));
+				return new CachedCredentials(credProviderBuilder.build(), REGISTRY_KERBEROS, password, gssCred);
+
+			default:
+				throw new IllegalArgumentException("Auth method is not handled by the credentials cache: "+authMethod);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the Kerberos credential of the user, creates a new one if the
+	 * cached one has expired.
+	 ***************************************************************************/
+	private static GSSCredential getGssCredential(String username) throws GSSException {
+
+		GSSCredential gssCred = gssCredentialsCache.get(username);
+
+		if(gssCred == null || !isAlive(gssCred)) {
+			GSSManager manager = GSSManager.getInstance();
+			GSSName name = manager.createName(username, GSSName.NT_USER_NAME);
+			gssCred = manager.createCredential(name, GSSCredential.DEFAULT_LIFETIME, (Oid) null, GSSCredential.INITIATE_AND_ACCEPT);
+			gssCredentialsCache.put(username, gssCred);
+		}
+
+		return gssCred;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static boolean isAlive(GSSCredential gssCred) {
+		try {
+			return gssCred.getRemainingLifetime() > 0;
+		} catch (GSSException e) {
+			return false;
+		}
+	}
+
+	/***************************************************************************
+	 * Removes all cached credentials.
+	 ***************************************************************************/
+	static void clear() {
+		credentialsCache.clear();
+		gssCredentialsCache.clear();
+	}
+}
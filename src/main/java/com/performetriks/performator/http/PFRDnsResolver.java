@@ -6,11 +6,10 @@ import java.net.UnknownHostException;
 import org.apache.hc.client5.http.DnsResolver;
 import org.apache.hc.client5.http.SystemDefaultDnsResolver;
 
-import com.xresch.hsr.base.HSR;
-
 /***************************************************************************
  * 
- * Decorator for DnsResolver to measure resolution time.
+ * Decorator for DnsResolver to record the resolution time in the
+ * PFRHttpTiming of the request.
  * 
  * @author Perfluencer
  * 
@@ -30,18 +29,22 @@ public class PFRDnsResolver implements DnsResolver {
 	@Override
 	public InetAddress[] resolve(String host) throws UnknownHostException {
 
-		String metric = HSR.currentMetricName();
-
-		if (metric != null && PFRHttp.defaultMeasureDns()) {
-			HSR.start(metric + "-DNS");
-			try {
-				return delegate.resolve(host);
-			} finally {
-				HSR.end();
+		PFRHttpTiming timing = PFRHttpTiming.current();
+		
+		// fixed addresses, no lookup and no DNS time to measure
+		InetAddress[] addresses = PFRHttp.getHostOverride(host);
+		
+		if(addresses == null) {
+			if (timing != null) {
+				timing.dnsStarted();
+				addresses = delegate.resolve(host);
+				timing.dnsEnded();
+			} else {
+				addresses = delegate.resolve(host);
 			}
-		} else {
-			return delegate.resolve(host);
 		}
+		
+		return addresses;
 	}
 
 	@Override
@@ -0,0 +1,284 @@
+package com.performetriks.performator.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.xresch.hsr.base.HSR;
+import com.xresch.xrutils.utils.XRText.CheckType;
+
+/***************************************************************************
+ *
+ * Extracts values from the body or a header of responses, for example to
+ * correlate tokens like CSRF tokens or a ViewState with the next request.
+ * Create it once and keep it, for example as a static constant:
+ *
+ * <pre>
+ * static final PFRExtractor CSRF = PFRExtractor.boundary("name=\"csrf\" value=\"", "\"");
+ * ...
+ * PFRHttp.create("login", url).GET().check(CSRF.storeAs("csrf")).send();
+ * PFRHttp.create("submit", url).POST().param("csrf", PFRHttp.correlationValue("csrf")).send();
+ * </pre>
+ *
+ * <ul>
+ * <li>regex: the pattern is compiled once with PFRPatternCache, the value
+ * is the first group of the match, or the whole match if the pattern has
+ * no group.</li>
+ * <li>boundary: the value between a left and a right boundary, found with
+ * indexOf() without regex.</li>
+ * </ul>
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRExtractor {
+
+	private final Pattern pattern;
+	private final int group;
+
+	private final String left;
+	private final String right;
+
+	private final String headerName;
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private PFRExtractor(Pattern pattern, int group, String left, String right, String headerName) {
+		this.pattern = pattern;
+		this.group = group;
+		this.left = left;
+		this.right = right;
+		this.headerName = headerName;
+	}
+
+	/***************************************************************************
+	 * Creates an extractor returning the first group of the regex, or the
+	 * whole match if the regex has no group.
+	 *
+	 * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+	 ***************************************************************************/
+	public static PFRExtractor regex(String regex) {
+		Pattern pattern = PFRPatternCache.get(regex);
+		return new PFRExtractor(pattern, Math.min(1, pattern.matcher("").groupCount()), null, null, null);
+	}
+
+	/***************************************************************************
+	 * Creates an extractor returning the given group of the regex.
+	 *
+	 * @param group the group number, 0 for the whole match
+	 * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+	 * @throws IllegalArgumentException if the regex has no such group
+	 ***************************************************************************/
+	public static PFRExtractor regex(String regex, int group) {
+
+		Pattern pattern = PFRPatternCache.get(regex);
+		int groupCount = pattern.matcher("").groupCount();
+
+		if(group < 0 || group > groupCount) {
+			throw new IllegalArgumentException("Group "+group+" does not exist, the regex has "+groupCount+" group(s): "+regex);
+		}
+
+		return new PFRExtractor(pattern, group, null, null, null);
+	}
+
+	/***************************************************************************
+	 * Creates an extractor returning the text between the left and the right
+	 * boundary.
+	 *
+	 * @param left the text before the value
+	 * @param right the text after the value, the end of the text if empty
+	 ***************************************************************************/
+	public static PFRExtractor boundary(String left, String right) {
+
+		if(left == null || right == null) {
+			throw new IllegalArgumentException("Boundaries cannot be null.");
+		}
+
+		return new PFRExtractor(null, 0, left, right, null);
+	}
+
+	/***************************************************************************
+	 * Returns a new extractor extracting from the value of the header instead
+	 * of the body. This extractor is not changed, so it can be shared.
+	 ***************************************************************************/
+	public PFRExtractor fromHeader(String headerName) {
+		return new PFRExtractor(pattern, group, left, right, headerName);
+	}
+
+	/***************************************************************************
+	 * Returns the first value found in the response.
+	 *
+	 * @return value or null if not found
+	 ***************************************************************************/
+	public String extract(PFRHttpResponse r) {
+		return extract(getText(r));
+	}
+
+	/***************************************************************************
+	 * Returns all the values found in the response.
+	 *
+	 * @return values, empty if not found
+	 ***************************************************************************/
+	public List<String> extractAll(PFRHttpResponse r) {
+		return extractAll(getText(r));
+	}
+
+	/***************************************************************************
+	 * Returns the first value found in the text.
+	 *
+	 * @return value or null if not found
+	 ***************************************************************************/
+	public String extract(String text) {
+
+		if(text == null) {
+			return null;
+		}
+
+		if(pattern != null) {
+			Matcher matcher = pattern.matcher(text);
+			return matcher.find() ? matcher.group(group) : null;
+		}
+
+		int start = text.indexOf(left);
+		if(start == -1) {
+			return null;
+		}
+
+		start += left.length();
+		if(right.isEmpty()) {
+			return text.substring(start);
+		}
+
+		int end = text.indexOf(right, start);
+		return (end != -1) ? text.substring(start, end) : null;
+	}
+
+	/***************************************************************************
+	 * Returns all the values found in the text.
+	 *
+	 * @return values, empty if not found
+	 ***************************************************************************/
+	public List<String> extractAll(String text) {
+
+		ArrayList<String> values = new ArrayList<>();
+
+		if(text == null) {
+			return values;
+		}
+
+		if(pattern != null) {
+			Matcher matcher = pattern.matcher(text);
+			while(matcher.find()) {
+				values.add(matcher.group(group));
+			}
+			return values;
+		}
+
+		int start = text.indexOf(left);
+		while(start != -1) {
+
+			start += left.length();
+			if(right.isEmpty()) {
+				values.add(text.substring(start));
+				break;
+			}
+
+			int end = text.indexOf(right, start);
+			if(end == -1) {
+				break;
+			}
+
+			values.add(text.substring(start, end));
+			start = text.indexOf(left, end + right.length());
+		}
+
+		return values;
+	}
+
+	/***************************************************************************
+	 * Creates a check that fails if no value is found.
+	 ***************************************************************************/
+	public PFRHttpCheck check() {
+
+		return new PFRHttpCheck( (check, r) -> extract(r) != null )
+				.messageOnFail("HTTP response check failed: No value found for extractor "+this+".")
+				;
+	}
+
+	/***************************************************************************
+	 * Creates a check on the first value found. The check fails if no value
+	 * is found, also for DOES_NOT_CONTAIN.
+	 *
+	 * @param checkType how the value is compared
+	 * @param valueToCheck the expected value
+	 ***************************************************************************/
+	public PFRHttpCheck check(CheckType checkType, String valueToCheck) {
+
+		return new PFRHttpCheck( (check, r) -> {
+					String value = extract(r);
+					return value != null && HSR.Text.checkTextForContent(checkType, value, valueToCheck);
+				})
+				.messageOnFail("HTTP response check failed: Extractor "+this+" "+checkType+" \""+valueToCheck+"\"")
+				;
+	}
+
+	/***************************************************************************
+	 * Creates a check that stores the first value found as a correlation
+	 * value of the session of the request, to be used by the next requests
+	 * with PFRHttp.correlationValue(name). The check fails if no value is
+	 * found, the stored value is kept in that case.
+	 *
+	 * @param name the name of the correlation value
+	 ***************************************************************************/
+	public PFRHttpCheck storeAs(String name) {
+
+		return new PFRHttpCheck( (check, r) -> {
+					String value = extract(r);
+					if(value == null) {
+						return false;
+					}
+					r.storeCorrelationValue(name, value);
+					return true;
+				})
+				.messageOnFail("HTTP response check failed: No value found for correlation value \""+name+"\", extractor "+this+".")
+				;
+	}
+
+	/***************************************************************************
+	 * Returns the body or the value of the header.
+	 ***************************************************************************/
+	private String getText(PFRHttpResponse r) {
+
+		if(r == null) {
+			return null;
+		}
+
+		if(headerName == null) {
+			return r.getBody();
+		}
+
+		JsonObject headers = r.getHeadersAsJson();
+		JsonElement value = headers.get(headerName);
+
+		return (value != null && !value.isJsonNull()) ? value.getAsString() : null;
+	}
+
+	/***************************************************************************
+	 * Returns a description for log messages.
+	 ***************************************************************************/
+	@Override
+	public String toString() {
+
+		String source = (headerName != null) ? " on header \""+headerName+"\"" : "";
+
+		if(pattern != null) {
+			return "regex \""+pattern.pattern()+"\" group "+group+source;
+		}
+
+		return "boundary \""+left+"\" ... \""+right+"\""+source;
+	}
+}
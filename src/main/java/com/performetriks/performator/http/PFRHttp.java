@@ -4,15 +4,25 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -23,47 +33,68 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
+import javax.net.ssl.SSLContext;
+
+import org.apache.hc.client5.http.ConnectionKeepAliveStrategy;
 import org.apache.hc.client5.http.HttpRoute;
 import org.apache.hc.client5.http.config.ConnectionConfig;
-import org.apache.hc.client5.http.cookie.BasicCookieStore;
+import org.apache.hc.client5.http.config.TlsConfig;
 import org.apache.hc.client5.http.cookie.Cookie;
+import org.apache.hc.client5.http.cookie.CookieStore;
 import org.apache.hc.client5.http.entity.InputStreamFactory;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.auth.BasicAuthCache;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.client5.http.impl.cookie.BasicClientCookie;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.client5.http.routing.HttpRoutePlanner;
 import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
 import org.apache.hc.client5.http.socket.PlainConnectionSocketFactory;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.client5.http.ssl.HostnameVerificationPolicy;
 import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
 import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
 import org.apache.hc.core5.http.HttpException;
 import org.apache.hc.core5.http.HttpHost;
 import org.apache.hc.core5.http.config.Registry;
 import org.apache.hc.core5.http.config.RegistryBuilder;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
 import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
 import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.pool.ConnPoolControl;
+import org.apache.hc.core5.pool.PoolStats;
 import org.apache.hc.core5.ssl.SSLContextBuilder;
 import org.apache.hc.core5.ssl.SSLContexts;
 import org.apache.hc.core5.ssl.TrustStrategy;
 import org.apache.hc.core5.util.TimeValue;
 import org.apache.hc.core5.util.Timeout;
 import org.brotli.dec.BrotliInputStream;
-import org.graalvm.polyglot.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Strings;
+import com.google.common.net.InetAddresses;
 import com.xresch.hsr.base.HSR;
-import com.xresch.xrscripting.XRScripting;
-import com.xresch.xrscripting.XRScriptingContext;
-import com.xresch.xrscripting.proxypac.HttpPacScriptMethods;
 import com.xresch.xrutils.utils.XRTimeUnit;
 
 /***************************************************************************
@@ -81,13 +112,19 @@ public class PFRHttp {
 	// only one static connection pool, avoid ephemeral port exhaustion
 	private static PoolingHttpClientConnectionManager connectionManager = null;
 	
-	//Use Threadlocal to avoid polyglot multi thread exceptions
-	private static ThreadLocal<XRScriptingContext> javascriptEngine = new ThreadLocal<XRScriptingContext>();
+	// separate pool for the non-blocking engine, shares the limits of the blocking pool
+	private static PoolingAsyncClientConnectionManager asyncConnectionManager = null;
 	
 	private static KeyStore cachedKeyStore = null;
 	
-	private static String proxyPAC = null;
-	private static HashMap<String, ArrayList<PFRProxy>> resolvedProxiesCache = new HashMap<>();
+	private static volatile String proxyPAC = null;
+	private static final Object SYNC_LOCK_PAC = new Object();
+	private static boolean pacLoading = false;
+	private static final PFRPacResolver pacResolver = new PFRPacResolver();
+	private static final PFRRouteCache routeCache = new PFRRouteCache();
+	private static final AtomicInteger pacContextPoolSize = new AtomicInteger(Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private static final AtomicLong pacCacheTtlMillis = new AtomicLong(300_000);
+	private static final AtomicLong pacRetryBackoffMillis = new AtomicLong(60_000);
 
 	private static PFRHttp instance = new PFRHttp();
 	
@@ -100,11 +137,69 @@ public class PFRHttp {
 
 	// Virtual thread support (global)
 	private static final AtomicBoolean useVirtualThreads = new AtomicBoolean(false);
+	
+	// Non-blocking async engine (global)
+	private static final AtomicBoolean useNonBlockingAsync = new AtomicBoolean(false);
+	private static final AtomicInteger ioReactorThreads = new AtomicInteger(Runtime.getRuntime().availableProcessors());
+	
+	// HTTP/2 Engine
+	private static final AtomicBoolean useHttp2 = new AtomicBoolean(false);
+	private static final AtomicInteger http2MaxConcurrentStreams = new AtomicInteger(100);
+	
+	// Executor for asynchronous tasks (global), created lazily or supplied by the caller
+	private static final Object SYNC_LOCK_EXECUTOR = new Object();
+	private static final MethodHandle virtualThreadExecutorFactory = findVirtualThreadExecutorFactory();
+	private static volatile ExecutorService asyncExecutor = null;
+	private static volatile ExecutorService asyncExecutorCustom = null;
+	private static final LongAdder asyncTasksSubmitted = new LongAdder();
+	private static final LongAdder asyncTasksInFlight = new LongAdder();
 
 	// Sub-request measurement flags (global, off by default)
 	private static final AtomicBoolean measureDns = new AtomicBoolean(false);
 	private static final AtomicBoolean measureTls = new AtomicBoolean(false);
 	private static final AtomicBoolean measureConnect = new AtomicBoolean(false);
+	private static final AtomicBoolean measureLeaseWait = new AtomicBoolean(false);
+	private static final AtomicBoolean measureSend = new AtomicBoolean(false);
+	private static final AtomicBoolean measureTtfb = new AtomicBoolean(false);
+	private static final AtomicBoolean measureDownload = new AtomicBoolean(false);
+	
+	// Authentication
+	private static final AtomicBoolean preemptiveAuth = new AtomicBoolean(false);
+	
+	// metric of the non-blocking request currently executed by the thread, no measurement is active for those
+	private static final ThreadLocal<String> asyncMetric = new ThreadLocal<>();
+	
+	// Connection Eviction and Validation
+	private static final AtomicLong connectionEvictionIntervalMillis = new AtomicLong(5000);
+	private static final AtomicLong connectionMaxIdleMillis = new AtomicLong(30000);
+	private static final AtomicLong connectionTimeToLiveMillis = new AtomicLong(-1);
+	private static final AtomicLong validateAfterInactivityMillis = new AtomicLong(-1);
+	
+	// Keep-Alive and Connection Reuse
+	private static final AtomicLong keepAliveMillis = new AtomicLong(60000);
+	private static final AtomicInteger maxRequestsPerConnection = new AtomicInteger(-1);
+	private static volatile ConnectionKeepAliveStrategy keepAliveStrategy = PFRKeepAliveStrategy.INSTANCE;
+	private static final ConcurrentHashMap<String, Long> hostTimeToLiveMillis = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Integer> hostMaxRequestsPerConnection = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, ConnectionConfig> connectionConfigCache = new ConcurrentHashMap<>();
+	
+	// DNS
+	private static final AtomicBoolean dnsCacheEnabled = new AtomicBoolean(true);
+	private static final AtomicLong dnsCacheTtlMillis = new AtomicLong(PFRCachingDnsResolver.getJvmTtlMillis());
+	private static final AtomicLong dnsCacheMinTtlMillis = new AtomicLong(0);
+	private static final AtomicLong dnsCacheMaxTtlMillis = new AtomicLong(Long.MAX_VALUE);
+	private static final AtomicLong dnsCacheRetryBackoffMillis = new AtomicLong(5_000);
+	private static final PFRCachingDnsResolver dnsCache = new PFRCachingDnsResolver();
+	private static final PFRDnsResolver dnsResolver = new PFRDnsResolver(new PFRAddressSpreader(dnsCache));
+	private static final ConcurrentHashMap<String, InetAddress[]> hostOverrides = new ConcurrentHashMap<>();
+	private static volatile PFRAddressSelection addressSelection = PFRAddressSelection.SYSTEM;
+	private static final ConcurrentHashMap<String, Integer> addressWeights = new ConcurrentHashMap<>();
+	private static final AtomicBoolean measurePerAddress = new AtomicBoolean(false);
+	private static volatile PFRSourceAddressSelection sourceAddressSelection = PFRSourceAddressSelection.ROUND_ROBIN;
+	
+	// Pool Sampler
+	private static final Object SYNC_LOCK_SAMPLER = new Object();
+	private static ScheduledExecutorService poolSampler = null;
 
 	// either a http URL or a resourcePath like "com/mycompany/files/script.pac"
 	private static InheritableThreadLocal<String> proxyPacFile = new InheritableThreadLocal<>();
@@ -116,24 +211,63 @@ public class PFRHttp {
 	private static InheritableThreadLocal<String> defaultUserAgent = new InheritableThreadLocal<>();
 
 
-	static InheritableThreadLocal<BasicCookieStore> cookieStore = new InheritableThreadLocal<>() { 
+	static InheritableThreadLocal<PFRCookieStore> cookieStore = new InheritableThreadLocal<>() { 
 		@Override
-	    protected BasicCookieStore initialValue() {
-	        return new BasicCookieStore();
+	    protected PFRCookieStore initialValue() {
+	        return new PFRCookieStore();
 	    }
+		
+		@Override
+		protected PFRCookieStore childValue(PFRCookieStore parentValue) {
+			// the child thread uses the same store
+			if(parentValue != null) { parentValue.markShared(); }
+			return parentValue;
+		}
+	};
+	
+	// the virtual user PFRSourceAddressSelection.PER_USER selects by, child threads belong to the same user
+	static InheritableThreadLocal<Integer> sourceAddressUser = new InheritableThreadLocal<>() { 
+		@Override
+		protected Integer initialValue() {
+			return PFRSourceAddresses.nextUser();
+		}
 	};
 	
 	static InheritableThreadLocal<HttpClientContext> httpContextStore = new InheritableThreadLocal<>() {
 		@Override
 		protected HttpClientContext initialValue() {
 			HttpClientContext context = HttpClientContext.create();
-			context.setCookieStore(cookieStore.get());
+			context.setCookieStore(PFRCookieStore.bind(cookieStore.get(), context));
+			context.setAuthCache(new BasicAuthCache());
+			return context;
+		}
+		
+		@Override
+		protected HttpClientContext childValue(HttpClientContext parentValue) {
+			// contexts are not thread safe, the child thread gets its own and only shares the cookies
+			if(parentValue == null) { return null; }
+			
+			CookieStore store = PFRCookieStore.unwrap(parentValue.getCookieStore());
+			if(store instanceof PFRCookieStore) { ((PFRCookieStore)store).markShared(); }
+			
+			HttpClientContext context = HttpClientContext.create();
+			context.setCookieStore(PFRCookieStore.bind(store, context));
+			context.setAuthCache(new BasicAuthCache());
 			return context;
 		}
 	};
 
 	private static InheritableThreadLocal<HashMap<String, String>> defaultHeaders =  new InheritableThreadLocal<>();
 	
+	static InheritableThreadLocal<ConcurrentHashMap<String, String>> correlationValues = new InheritableThreadLocal<>() { 
+		@Override
+		protected ConcurrentHashMap<String, String> initialValue() {
+			return new ConcurrentHashMap<>();
+		}
+	};
+	
+	private static InheritableThreadLocal<PFRHttpOAuth2> defaultOAuth2 =  new InheritableThreadLocal<>();
+	
 	private static InheritableThreadLocal<Charset> defaultBodyCharset =  new InheritableThreadLocal<>() { 
 		@Override
 		protected Charset initialValue() {
@@ -200,6 +334,19 @@ public class PFRHttp {
 	        return false;
 	    }
 	};
+	
+	// the per-user settings read while a request is executed, see withUserSettings()
+	private static final List<InheritableThreadLocal<?>> executionSettings = List.of(
+			  proxyPacFile
+			, sourceAddressUser
+			, keystorePath
+			, keystorePW
+			, keystoreManagerPW
+			, defaultUserAgent
+			, defaultConnectTimeoutMillis
+			, defaultSocketTimeoutMillis
+			, defaultResponseTimeoutMillis
+		);
 		
 	
 	public enum PFRHttpAuthMethod{
@@ -215,20 +362,46 @@ public class PFRHttp {
 		, KERBEROS 
 	}
 	
+	public enum PFRAddressSelection{
+		  /* use the addresses in the order returned by the resolver */
+		  SYSTEM
+		, ROUND_ROBIN
+		, LEAST_CONNECTIONS
+		  /* weights are set with PFRHttp.addressWeight() */
+		, WEIGHTED
+	}
+	
+	public enum PFRSourceAddressSelection{
+		  /* every new connection uses the next source address */
+		  ROUND_ROBIN
+		  /* every virtual user (thread and its child threads) keeps the same source address */
+		, PER_USER
+	}
+	
 	public enum PFRHttpSection{
 		  HEADER
 		, BODY
 		, STATUS
 	}
+	
+	public enum PFRBodyMode{
+		  /* read the whole body into a String */
+		  FULL
+		  /* read and count the bytes of the body, keep nothing */
+		, DISCARD
+		  /* keep the first bytes of the body, count the rest */
+		, CAPTURE_FIRST_N
+	}
 
 	/******************************************************************************************************
-	 * Clears the current thread's HTTP session state (cookies and HTTP context).
+	 * Clears the current thread's HTTP session state (cookies, HTTP context and correlation values).
 	 * This should be called by the scheduler at the end of a use case iteration
 	 * to prevent session leakage when threads are reused.
 	 ******************************************************************************************************/
 	public static void resetSession() {
 		cookieStore.remove();
 		httpContextStore.remove();
+		correlationValues.remove();
 	}
 
 	/******************************************************************************************************
@@ -239,10 +412,12 @@ public class PFRHttp {
 	public static void resetThreadState() {
 		resetSession();
 		proxyPacFile.remove();
+		sourceAddressUser.remove();
 		keystorePath.remove();
 		keystorePW.remove();
 		keystoreManagerPW.remove();
 		defaultHeaders.remove();
+		defaultOAuth2.remove();
 		defaultUserAgent.remove();
 		defaultBodyCharset.remove();
 		defaultResponseTimeoutMillis.remove();
@@ -255,6 +430,31 @@ public class PFRHttp {
 		defaultPauseMillisUpper.remove();
 	}
 
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Enable preemptive authentication for PFRHttpAuthMethod.BASIC. The Authorization header is sent with 
+	 * the first request to a host, without waiting for a 401 challenge of the server.
+	 * DIGEST, NTLM and KERBEROS need a challenge, their state is kept in the context of the user.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultPreemptiveAuth(boolean enable) {
+		PFRHttp.preemptiveAuth.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether BASIC authentication is sent preemptively.
+	 ******************************************************************************************************/
+	public static boolean defaultPreemptiveAuth() {
+		return PFRHttp.preemptiveAuth.get();
+	}
+	
+	/******************************************************************************************************
+	 * Removes the cached credentials providers and Kerberos credentials. 
+	 ******************************************************************************************************/
+	public static void clearCredentialsCache() {
+		PFRCredentialsCache.clear();
+	}
+	
 	/******************************************************************************************************
 	 * Returns the current thread's HTTP context.
 	 ******************************************************************************************************/
@@ -359,6 +559,51 @@ public class PFRHttp {
 	public static HashMap<String, String> defaultHeaders() {
 		return defaultHeaders.get();
 	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
+	 * Returns a correlation value of the session of the current thread, stored by a check created with
+	 * PFRExtractor.storeAs(name), or null if not stored. Cleared by resetSession().
+	 * 
+	 * @param name the name of the value
+	 ******************************************************************************************************/
+	public static String correlationValue(String name) {
+		return correlationValues.get().get(name);
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
+	 * Sets a correlation value of the session of the current thread. Use null to remove it.
+	 * 
+	 * @param name the name of the value
+	 * @param value the value
+	 ******************************************************************************************************/
+	public static void correlationValue(String name, String value) {
+		if(value == null) {
+			correlationValues.get().remove(name);
+		}else {
+			correlationValues.get().put(name, value);
+		}
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
+	 * Sets the OAuth2 token manager for all the requests of the current thread. The access token is sent 
+	 * as a bearer token in the Authorization header. Use null to remove it.
+	 * 
+	 * @param oauth2 the token manager, e.g. PFRHttpOAuth2.clientCredentials(tokenURL, clientId, secret)
+	 ******************************************************************************************************/
+	public static void defaultOAuth2(PFRHttpOAuth2 oauth2) {
+		defaultOAuth2.set(oauth2);
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
+	 * Returns the OAuth2 token manager for all the requests of the current thread, or null.
+	 ******************************************************************************************************/
+	public static PFRHttpOAuth2 defaultOAuth2() {
+		return defaultOAuth2.get();
+	}
 	/******************************************************************************************************
 	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
 	 * Set the default charset for all the request bodies of the current thread. This value will be ignored
@@ -457,6 +702,10 @@ public class PFRHttp {
 		if(connectionManager != null) {
 			connectionManager.setMaxTotal(max);
 		}
+		
+		if(asyncConnectionManager != null) {
+			asyncConnectionManager.setMaxTotal(max);
+		}
 	}
 
 	/******************************************************************************************************
@@ -480,6 +729,10 @@ public class PFRHttp {
 			connectionManager.setDefaultMaxPerRoute(max);
 		}
 		
+		if(asyncConnectionManager != null) {
+			asyncConnectionManager.setDefaultMaxPerRoute(max);
+		}
+		
 	}
 
 	/******************************************************************************************************
@@ -491,259 +744,1394 @@ public class PFRHttp {
 
 	/******************************************************************************************************
 	 * <b>Scope:</b> Global <br>
-	 * <b>IMPORTANT:</b> Must be called before the first request is sent.<br>
-	 * If true, all SSL/TLS certificates will be trusted (insecure, for testing
-	 * only).
-	 * Default: false (uses JVM default trust store).
+	 * Set the interval of the background thread that closes expired and idle connections of the pools.
+	 * The thread is started with the first connection pool. Set to 0 to stop the thread.
+	 * Default: 5000
 	 ******************************************************************************************************/
-	public static void defaultTrustAllCertificates(boolean trustAll) {
-		PFRHttp.trustAllCertificates.set(trustAll);
+	public static void defaultConnectionEvictionInterval(long millis) {
+		
+		PFRHttp.connectionEvictionIntervalMillis.set(millis);
+		
+		if(connectionManager != null || asyncConnectionManager != null) {
+			PFRConnectionEvictor.start();
+		}
 	}
-
+	
 	/******************************************************************************************************
-	 * Returns the current trust-all-certificates setting.
+	 * Returns the interval of the connection eviction thread in milliseconds.
 	 ******************************************************************************************************/
-	public static boolean defaultTrustAllCertificates() {
-		return PFRHttp.trustAllCertificates.get();
+	public static long defaultConnectionEvictionInterval() {
+		return PFRHttp.connectionEvictionIntervalMillis.get();
 	}
-
+	
 	/******************************************************************************************************
 	 * <b>Scope:</b> Global <br>
-	 * Enable virtual threads (JDK 21+) for HTTP request execution.
-	 * When enabled, blocking HTTP calls run on virtual threads, allowing
-	 * massive concurrency without OS thread overhead.
-	 * Default: false
+	 * Set the time after which idle connections are closed by the eviction thread. Set to 0 to only close 
+	 * expired connections.
+	 * Default: 30000
 	 ******************************************************************************************************/
-	public static void defaultUseVirtualThreads(boolean enable) {
-		PFRHttp.useVirtualThreads.set(enable);
+	public static void defaultConnectionMaxIdle(long millis) {
+		PFRHttp.connectionMaxIdleMillis.set(millis);
 	}
-
+	
 	/******************************************************************************************************
-	 * Returns whether virtual threads are enabled.
+	 * Returns the time in milliseconds after which idle connections are closed.
 	 ******************************************************************************************************/
-	public static boolean defaultUseVirtualThreads() {
-		return PFRHttp.useVirtualThreads.get();
+	public static long defaultConnectionMaxIdle() {
+		return PFRHttp.connectionMaxIdleMillis.get();
 	}
-
+	
 	/******************************************************************************************************
 	 * <b>Scope:</b> Global <br>
-	 * <b>IMPORTANT:</b> Must be called before the first request is sent.<br>
-	 * Enable DNS resolution time measurement as a separate HSR metric (suffix: -DNS).
-	 * Default: false
+	 * Set the maximum lifetime of a connection, expired connections are not reused and closed by the 
+	 * eviction thread. Set to -1 for no limit.
+	 * Default: -1
 	 ******************************************************************************************************/
-	public static void defaultMeasureDns(boolean enable) {
-		PFRHttp.measureDns.set(enable);
+	public static void defaultConnectionTimeToLive(long millis) {
+		PFRHttp.connectionTimeToLiveMillis.set(millis);
+		updateConnectionConfig();
 	}
-
+	
 	/******************************************************************************************************
-	 * Returns whether DNS measurement is enabled.
+	 * Returns the maximum lifetime of a connection in milliseconds, -1 for no limit.
 	 ******************************************************************************************************/
-	public static boolean defaultMeasureDns() {
-		return PFRHttp.measureDns.get();
+	public static long defaultConnectionTimeToLive() {
+		return PFRHttp.connectionTimeToLiveMillis.get();
 	}
-
+	
 	/******************************************************************************************************
 	 * <b>Scope:</b> Global <br>
-	 * <b>IMPORTANT:</b> Must be called before the first request is sent.<br>
-	 * Enable TLS handshake time measurement as a separate HSR metric (suffix: -TLS).
-	 * Default: false
+	 * Set the time of inactivity after which a pooled connection is checked before it is reused. This 
+	 * avoids failing requests and retries on connections that have been closed by the server.
+	 * Set to -1 to disable the check.
+	 * Default: -1
 	 ******************************************************************************************************/
-	public static void defaultMeasureTls(boolean enable) {
-		PFRHttp.measureTls.set(enable);
+	public static void defaultValidateAfterInactivity(long millis) {
+		PFRHttp.validateAfterInactivityMillis.set(millis);
+		updateConnectionConfig();
 	}
-
+	
 	/******************************************************************************************************
-	 * Returns whether TLS measurement is enabled.
+	 * Returns the time of inactivity after which connections are validated, -1 if disabled.
 	 ******************************************************************************************************/
-	public static boolean defaultMeasureTls() {
-		return PFRHttp.measureTls.get();
+	public static long defaultValidateAfterInactivity() {
+		return PFRHttp.validateAfterInactivityMillis.get();
 	}
-
+	
+	/******************************************************************************************************
+	 * Returns the number of connections closed by the eviction thread per route. The number is estimated
+	 * for the connections of the non-blocking engine, see PFRConnectionEvictor.
+	 ******************************************************************************************************/
+	public static HashMap<String, Long> getEvictedConnections() {
+		return PFRConnectionEvictor.getEvictedConnections();
+	}
+	
+	/******************************************************************************************************
+	 * Returns the number of requests per route that failed on a connection closed by the server.
+	 ******************************************************************************************************/
+	public static HashMap<String, Long> getStaleConnectionFailures() {
+		return PFRConnectionEvictor.getStaleConnectionFailures();
+	}
+	
 	/******************************************************************************************************
 	 * <b>Scope:</b> Global <br>
 	 * <b>IMPORTANT:</b> Must be called before the first request is sent.<br>
-	 * Enable TCP connect time measurement as a separate HSR metric (suffix: -Connect).
-	 * Default: false
+	 * Set the strategy deciding how long a connection is kept alive after a response.
+	 * Default: PFRKeepAliveStrategy, which honors the Keep-Alive header of the server.
 	 ******************************************************************************************************/
-	public static void defaultMeasureConnect(boolean enable) {
-		PFRHttp.measureConnect.set(enable);
+	public static void defaultKeepAliveStrategy(ConnectionKeepAliveStrategy strategy) {
+		PFRHttp.keepAliveStrategy = (strategy != null) ? strategy : PFRKeepAliveStrategy.INSTANCE;
 	}
-
+	
 	/******************************************************************************************************
-	 * Returns whether TCP connect measurement is enabled.
+	 * Returns the keep-alive strategy.
 	 ******************************************************************************************************/
-	public static boolean defaultMeasureConnect() {
-		return PFRHttp.measureConnect.get();
+	public static ConnectionKeepAliveStrategy defaultKeepAliveStrategy() {
+		return PFRHttp.keepAliveStrategy;
 	}
-
 	
 	/******************************************************************************************************
-	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
-	 * Set the default pause used for all the requests of the current user(thread).
+	 * <b>Scope:</b> Global <br>
+	 * Set the time a connection is kept alive if the server does not send a Keep-Alive header with a timeout.
+	 * Default: 60000
 	 ******************************************************************************************************/
-	public static void defaultPause(long millis) {
-		defaultPauseMillisLower.set(millis);
-		defaultPauseMillisUpper.set(millis);
+	public static void defaultKeepAlive(long millis) {
+		PFRHttp.keepAliveMillis.set(millis);
 	}
 	
 	/******************************************************************************************************
-	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
-	 * Set the default pause used for all the requests of the current user(thread).
+	 * Returns the time in milliseconds a connection is kept alive if the server does not define it.
 	 ******************************************************************************************************/
-	public static void defaultPause(long lowerMillis, long upperMillis) {
-		defaultPauseMillisLower.set(lowerMillis);
-		defaultPauseMillisUpper.set(upperMillis);
+	public static long defaultKeepAlive() {
+		return PFRHttp.keepAliveMillis.get();
 	}
 	
 	/******************************************************************************************************
-	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
-	 * Returns the default pause lower range.
+	 * <b>Scope:</b> Global <br>
+	 * Set the maximum number of requests executed over a single connection, after which the connection is 
+	 * closed and a new one is opened. Use this to mimic load balancers recycling connections or to test the
+	 * cost of connection churn. Set to -1 for no limit.
+	 * Default: -1
 	 ******************************************************************************************************/
-	public static long defaultPauseLower() {
-		return defaultPauseMillisLower.get();
+	public static void defaultMaxRequestsPerConnection(int max) {
+		PFRHttp.maxRequestsPerConnection.set(max);
 	}
 	
 	/******************************************************************************************************
-	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
-	 * Returns the default pause upper range.
+	 * Returns the maximum number of requests per connection, -1 for no limit.
 	 ******************************************************************************************************/
-	public static long defaultPauseUpper() {
-		return defaultPauseMillisUpper.get();
+	public static int defaultMaxRequestsPerConnection() {
+		return PFRHttp.maxRequestsPerConnection.get();
 	}
 	
 	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set the maximum number of requests per connection for a specific host, overrides the value of 
+	 * defaultMaxRequestsPerConnection(). Set to null to remove the override.
 	 * 
+	 * @param host the host name, e.g. "www.example.com"
 	 ******************************************************************************************************/
-	public static String encode(String toEncode) {
+	public static void hostMaxRequestsPerConnection(String host, Integer max) {
 		
-		if(toEncode == null) {
-			return null;
-		}
-		try {
-			return URLEncoder.encode(toEncode, StandardCharsets.UTF_8.toString());
-		} catch (UnsupportedEncodingException e) {
-			logger
-				.error("Exception while encoding: "+e.getMessage(), e);	
+		if(max == null) {
+			hostMaxRequestsPerConnection.remove(host.toLowerCase());
+		}else {
+			hostMaxRequestsPerConnection.put(host.toLowerCase(), max);
 		}
-		
-		return toEncode;
 	}
 	
 	/******************************************************************************************************
-	 * 
+	 * Returns the maximum number of requests per connection for the given host, -1 for no limit.
 	 ******************************************************************************************************/
-	public static String decode(String toDecode) {
+	static int maxRequestsPerConnection(String host) {
 		
-		if(toDecode == null) {
-			return null;
-		}
-		try {
-			return URLDecoder.decode(toDecode, StandardCharsets.UTF_8.toString());
-		} catch (UnsupportedEncodingException e) {
-			logger
-				.error("Exception while decoding: "+e.getMessage(), e);	
+		if(host != null && !hostMaxRequestsPerConnection.isEmpty()) {
+			Integer max = hostMaxRequestsPerConnection.get(host.toLowerCase());
+			if(max != null) { return max; }
 		}
 		
-		return toDecode;
+		return maxRequestsPerConnection.get();
 	}
 	
-	
 	/******************************************************************************************************
-	 * Returns an encoded parameter string with leading '&'.
+	 * <b>Scope:</b> Global <br>
+	 * Set the maximum lifetime of connections to a specific host, overrides the value of
+	 * defaultConnectionTimeToLive(). Set to null to remove the override.
+	 * 
+	 * @param host the host name, e.g. "www.example.com"
 	 ******************************************************************************************************/
-	public static String  encode(String paramName, String paramValue) {
+	public static void hostConnectionTimeToLive(String host, Long millis) {
 		
-		return "&" + encode(paramName) + "=" + encode(paramValue);
+		if(millis == null) {
+			hostTimeToLiveMillis.remove(host.toLowerCase());
+		}else {
+			hostTimeToLiveMillis.put(host.toLowerCase(), millis);
+		}
+		
+		updateConnectionConfig();
 	}
 	
-	
 	/******************************************************************************************************
-	 * Creates a query string from the given parameters.
+	 * Returns the connection config for connections to the given host. Used as connection config resolver
+	 * by the connection pools.
 	 ******************************************************************************************************/
-	public static String  buildQueryString(HashMap<String,String> params) {
-		
-		StringBuilder builder = new StringBuilder();
+	static ConnectionConfig getConnectionConfig(String host) {
 		
-		for(Entry<String,String> param : params.entrySet()) {
-			builder.append(encode(param.getKey(), param.getValue()));
-		}
+		String key = (host != null) ? host.toLowerCase() : "";
 		
-		//remove leading "&"
-		return builder.substring(1);
+		return connectionConfigCache.computeIfAbsent(key, k -> createConnectionConfig(k));
 	}
-			
 	
 	/******************************************************************************************************
-	 * Creates a url with the given parameters;
+	 * Creates the connection config used by the connection pools.
 	 ******************************************************************************************************/
-	public static String  buildURL(String urlWithPath, HashMap<String,String> params) {
+	private static ConnectionConfig createConnectionConfig(String host) {
 		
-		if(params != null && !params.isEmpty()) {
-			
-			StringBuilder builder = new StringBuilder(urlWithPath);
-			
-			if( !urlWithPath.endsWith("?") ) {
-				builder.append("?");
-			}
-			
-			for(Entry<String,String> param : params.entrySet()) {
-				builder.append(encode(param.getKey(), param.getValue()));
-			}
-			
-			// "?&" seems valid syntax, but some HTTP servers or apps might have troubles with that
-			return builder.toString().replace("?&", "?");
+		ConnectionConfig.Builder builder = ConnectionConfig.custom()
+		        .setConnectTimeout( Timeout.ofMilliseconds(PFRHttp.defaultConnectTimeout()) )
+		        .setSocketTimeout(Timeout.ofMilliseconds(PFRHttp.defaultSocketTimeout()) );
+		
+		Long timeToLive = hostTimeToLiveMillis.get(host);
+		if(timeToLive == null) {
+			timeToLive = connectionTimeToLiveMillis.get();
 		}
 		
-		return urlWithPath;
+		if(timeToLive > 0) {
+			builder.setTimeToLive(TimeValue.ofMilliseconds(timeToLive));
+		}
+		
+		if(validateAfterInactivityMillis.get() >= 0) {
+			builder.setValidateAfterInactivity(TimeValue.ofMilliseconds(validateAfterInactivityMillis.get()));
+		}
 		
+		return builder.build();
 	}
 	
-
 	/******************************************************************************************************
-	 * 
+	 * Discards the cached connection configs, the connection pools will use the new settings for the 
+	 * next connections.
 	 ******************************************************************************************************/
-	private static XRScriptingContext getScriptContext() {
-		
-		if(javascriptEngine.get() == null) {
-			javascriptEngine.set( XRScripting.createJavascriptContext().putMemberWithFunctions( new HttpPacScriptMethods()) );
-			
-			//------------------------------
-			// Add to engine if pac loaded
-			loadPacFile();
-			if(proxyPAC != null) {
-				//Prepend method calls with PRFHttpPacScriptMethods
-				proxyPAC = HttpPacScriptMethods.preparePacScript(proxyPAC);
-
-				XRScriptingContext polyglot = getScriptContext();
-
-			    polyglot.addScript("proxy.pac", proxyPAC);
-			    polyglot.executeScript("FindProxyForURL('localhost:9090/test', 'localhost');");
-
-			}
-		}
-		
-		return javascriptEngine.get();
+	private static void updateConnectionConfig() {
+		connectionConfigCache.clear();
 	}
-	
+
 	/******************************************************************************************************
-	 * 
+	 * <b>Scope:</b> Global <br>
+	 * <b>IMPORTANT:</b> Must be called before the first request is sent.<br>
+	 * If true, all SSL/TLS certificates will be trusted (insecure, for testing
+	 * only).
+	 * Default: false (uses JVM default trust store).
 	 ******************************************************************************************************/
-	private static void loadPacFile() {
-		
-		if(proxyPacFile.get() != null && proxyPAC == null) {
+	public static void defaultTrustAllCertificates(boolean trustAll) {
+		PFRHttp.trustAllCertificates.set(trustAll);
+	}
+
+	/******************************************************************************************************
+	 * Returns the current trust-all-certificates setting.
+	 ******************************************************************************************************/
+	public static boolean defaultTrustAllCertificates() {
+		return PFRHttp.trustAllCertificates.get();
+	}
+
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Enable virtual threads (JDK 21+) for HTTP request execution.
+	 * When enabled, blocking HTTP calls run on virtual threads, allowing
+	 * massive concurrency without OS thread overhead.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultUseVirtualThreads(boolean enable) {
+		PFRHttp.useVirtualThreads.set(enable);
+	}
+
+	/******************************************************************************************************
+	 * Returns whether virtual threads are enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultUseVirtualThreads() {
+		return PFRHttp.useVirtualThreads.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * If true, PFRHttpRequestBuilder.sendAsync() executes requests on the non-blocking engine based on
+	 * the Apache CloseableHttpAsyncClient. Requests do not park a thread while they are in flight, 
+	 * thousands of concurrent requests are handled by a few I/O reactor threads.
+	 * If false, sendAsync() executes the blocking send() on a separate thread.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultNonBlockingAsync(boolean enable) {
+		PFRHttp.useNonBlockingAsync.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether sendAsync() uses the non-blocking engine.
+	 ******************************************************************************************************/
+	public static boolean defaultNonBlockingAsync() {
+		return PFRHttp.useNonBlockingAsync.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * <b>IMPORTANT:</b> Must be called before the first asynchronous request is sent.<br>
+	 * Set the number of I/O reactor threads used by the non-blocking engine.
+	 * Default: number of available processors
+	 ******************************************************************************************************/
+	public static void defaultIOReactorThreads(int threads) {
+		PFRHttp.ioReactorThreads.set(Math.max(1, threads));
+	}
+	
+	/******************************************************************************************************
+	 * Returns the number of I/O reactor threads used by the non-blocking engine.
+	 ******************************************************************************************************/
+	public static int defaultIOReactorThreads() {
+		return PFRHttp.ioReactorThreads.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * If true, PFRHttpRequestBuilder.sendAsync() executes requests on the HTTP/2 engine. HTTP/2 is negotiated
+	 * with ALPN for https and used with prior knowledge for http. All requests to a host are multiplexed as 
+	 * streams over a single connection, instead of opening a connection per concurrent request.
+	 * The targets must support HTTP/2, proxies are not supported by the HTTP/2 engine.
+	 * The blocking send() keeps using HTTP/1.1.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultHttp2(boolean enable) {
+		PFRHttp.useHttp2.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether sendAsync() uses the HTTP/2 engine.
+	 ******************************************************************************************************/
+	public static boolean defaultHttp2() {
+		return PFRHttp.useHttp2.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set the maximum number of concurrent streams per HTTP/2 origin (scheme, host and port), counted over
+	 * all connections to the origin. Further requests to the same origin wait until a stream is closed. 
+	 * The server might allow less concurrent streams per connection, in which case the limit of the server 
+	 * applies.
+	 * Default: 100
+	 ******************************************************************************************************/
+	public static void defaultHttp2MaxConcurrentStreams(int max) {
+		PFRHttp.http2MaxConcurrentStreams.set(Math.max(1, max));
+	}
+	
+	/******************************************************************************************************
+	 * Returns the maximum number of concurrent streams per HTTP/2 origin.
+	 ******************************************************************************************************/
+	public static int defaultHttp2MaxConcurrentStreams() {
+		return PFRHttp.http2MaxConcurrentStreams.get();
+	}
+	
+	/******************************************************************************************************
+	 * Reports the number of open and waiting streams of every HTTP/2 origin as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportHttp2StreamGauges() {
+		PFRHttp2Streams.reportGauges();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set a custom executor used for asynchronous tasks, for example the execution of send() by 
+	 * sendAsync(). The executor is not shut down by PFRHttp. Set to null to use the default executor again.
+	 * Default: null (shared virtual thread executor if virtual threads are enabled, else ForkJoinPool)
+	 ******************************************************************************************************/
+	public static void defaultAsyncExecutor(ExecutorService executor) {
+		PFRHttp.asyncExecutorCustom = executor;
+	}
+	
+	/******************************************************************************************************
+	 * Returns the executor used for asynchronous tasks. In this order, this is:
+	 * <ul>
+	 * 	<li>the executor set with defaultAsyncExecutor()</li>
+	 * 	<li>a shared virtual thread executor, if virtual threads are enabled and supported by the JVM. 
+	 *      The executor is created on first use, and created again if it has been shut down.</li>
+	 * 	<li>the common ForkJoinPool</li>
+	 * </ul>
+	 ******************************************************************************************************/
+	public static Executor getAsyncExecutor() {
+		
+		ExecutorService custom = asyncExecutorCustom;
+		if(custom != null) {
+			return custom;
+		}
+		
+		if(!useVirtualThreads.get() || virtualThreadExecutorFactory == null) {
+			return ForkJoinPool.commonPool();
+		}
+		
+		ExecutorService executor = asyncExecutor;
+		if(executor != null && !executor.isShutdown()) {
+			return executor;
+		}
+		
+		synchronized (SYNC_LOCK_EXECUTOR) {
+			
+			if(asyncExecutor == null || asyncExecutor.isShutdown()) {
+				try {
+					asyncExecutor = (ExecutorService) virtualThreadExecutorFactory.invoke();
+				} catch (Throwable e) {
+					logger.warn("Could not create virtual thread executor. Falling back to standard ForkJoinPool.", e);
+					return ForkJoinPool.commonPool();
+				}
+			}
+			
+			return asyncExecutor;
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Shuts down the shared virtual thread executor. Tasks that have already been submitted will still 
+	 * be executed. A new executor is created when the next asynchronous task is submitted. 
+	 * An executor set with defaultAsyncExecutor() is not affected.
+	 ******************************************************************************************************/
+	public static void shutdownAsyncExecutor() {
+		
+		synchronized (SYNC_LOCK_EXECUTOR) {
+			if(asyncExecutor != null) {
+				asyncExecutor.shutdown();
+				asyncExecutor = null;
+			}
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Returns a task running the given task with the per-user settings of the calling thread that are read
+	 * while a request is executed, like the proxy PAC, the source address user, the keystore and the 
+	 * timeouts. Used for tasks that run later on another thread, like queued HTTP/2 exchanges, as the 
+	 * threads of the async executor do not inherit the settings of the user.
+	 * On the calling thread the task runs unchanged, other threads are cleared after the task.
+	 ******************************************************************************************************/
+	static Runnable withUserSettings(Runnable task) {
+		
+		Thread owner = Thread.currentThread();
+		Object[] values = new Object[executionSettings.size()];
+		for(int i = 0; i < values.length; i++) {
+			values[i] = executionSettings.get(i).get();
+		}
+		
+		return () -> {
+			
+			if(Thread.currentThread() == owner) {
+				task.run();
+				return;
+			}
+			
+			for(int i = 0; i < values.length; i++) {
+				setSetting(executionSettings.get(i), values[i]);
+			}
+			
+			try {
+				task.run();
+			}finally {
+				for(InheritableThreadLocal<?> setting : executionSettings) {
+					setting.remove();
+				}
+			}
+		};
+	}
+	
+	/******************************************************************************************************
+	 * 
+	 ******************************************************************************************************/
+	@SuppressWarnings("unchecked")
+	private static void setSetting(InheritableThreadLocal<?> setting, Object value) {
+		((InheritableThreadLocal<Object>)setting).set(value);
+	}
+	
+	/******************************************************************************************************
+	 * Executes the supplier on the executor returned by getAsyncExecutor() and counts the task.
+	 ******************************************************************************************************/
+	public static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+		
+		asyncTasksSubmitted.increment();
+		asyncTasksInFlight.increment();
+		
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+					try {
+						return supplier.get();
+					}finally {
+						asyncTasksInFlight.decrement();
+					}
+				}
+				, getAsyncExecutor()
+			);
+		}catch(RejectedExecutionException e) {
+			asyncTasksInFlight.decrement();
+			throw e;
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Executes the runnable on the executor returned by getAsyncExecutor() and counts the task.
+	 ******************************************************************************************************/
+	public static CompletableFuture<Void> runAsync(Runnable runnable) {
+		return supplyAsync( () -> { runnable.run(); return null; } );
+	}
+	
+	/******************************************************************************************************
+	 * Returns the total number of asynchronous tasks that have been submitted.
+	 ******************************************************************************************************/
+	public static long getAsyncTasksSubmitted() {
+		return asyncTasksSubmitted.sum();
+	}
+	
+	/******************************************************************************************************
+	 * Returns the number of asynchronous tasks that have been submitted and are not finished yet.
+	 ******************************************************************************************************/
+	public static long getAsyncTasksInFlight() {
+		return asyncTasksInFlight.sum();
+	}
+	
+	/******************************************************************************************************
+	 * Reports the number of submitted and in flight asynchronous tasks as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportAsyncExecutorGauges() {
+		HSR.addGauge("PFRHttp-AsyncTasksSubmitted", BigDecimal.valueOf(getAsyncTasksSubmitted()));
+		HSR.addGauge("PFRHttp-AsyncTasksInFlight", BigDecimal.valueOf(getAsyncTasksInFlight()));
+	}
+	
+	/******************************************************************************************************
+	 * Looks up Executors.newVirtualThreadPerTaskExecutor() once, as it is only available on JDK 21+.
+	 * Returns null if not available.
+	 ******************************************************************************************************/
+	private static MethodHandle findVirtualThreadExecutorFactory() {
+		
+		try {
+			return MethodHandles.publicLookup().findStatic(
+					  Executors.class
+					, "newVirtualThreadPerTaskExecutor"
+					, MethodType.methodType(ExecutorService.class)
+				);
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			logger.debug("Virtual Threads are not supported on this JVM. Asynchronous tasks will use the standard ForkJoinPool.");
+			return null;
+		}
+	}
+
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * If true, resolved addresses are cached. Expired entries are refreshed in the background while the 
+	 * cached addresses are still used.
+	 * Default: true
+	 ******************************************************************************************************/
+	public static void defaultDnsCache(boolean enable) {
+		PFRHttp.dnsCacheEnabled.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether the DNS cache is enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultDnsCache() {
+		return PFRHttp.dnsCacheEnabled.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set the time resolved addresses are cached. The TTL of the DNS records is not available from the
+	 * system resolver.
+	 * Default: the JVM security property "networkaddress.cache.ttl", or 30000 if not set
+	 ******************************************************************************************************/
+	public static void defaultDnsCacheTtl(long millis) {
+		PFRHttp.dnsCacheTtlMillis.set(millis);
+	}
+	
+	/******************************************************************************************************
+	 * Returns the time in milliseconds resolved addresses are cached.
+	 ******************************************************************************************************/
+	public static long defaultDnsCacheTtl() {
+		return PFRHttp.dnsCacheTtlMillis.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set the minimum time resolved addresses are cached, overrides a lower TTL.
+	 * Default: 0
+	 ******************************************************************************************************/
+	public static void defaultDnsCacheMinTtl(long millis) {
+		PFRHttp.dnsCacheMinTtlMillis.set(millis);
+	}
+	
+	/******************************************************************************************************
+	 * Returns the minimum time in milliseconds resolved addresses are cached.
+	 ******************************************************************************************************/
+	public static long defaultDnsCacheMinTtl() {
+		return PFRHttp.dnsCacheMinTtlMillis.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set the maximum time resolved addresses are cached, overrides a higher TTL.
+	 * Default: no maximum
+	 ******************************************************************************************************/
+	public static void defaultDnsCacheMaxTtl(long millis) {
+		PFRHttp.dnsCacheMaxTtlMillis.set(millis);
+	}
+	
+	/******************************************************************************************************
+	 * Returns the maximum time in milliseconds resolved addresses are cached.
+	 ******************************************************************************************************/
+	public static long defaultDnsCacheMaxTtl() {
+		return PFRHttp.dnsCacheMaxTtlMillis.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set how long no new attempt to refresh an expired entry is made after the refresh failed. The 
+	 * cached addresses are used in the meantime.
+	 * Default: 5 seconds
+	 ******************************************************************************************************/
+	public static void defaultDnsCacheRetryBackoff(long millis) {
+		PFRHttp.dnsCacheRetryBackoffMillis.set(Math.max(0, millis));
+	}
+	
+	/******************************************************************************************************
+	 * Returns how long no new attempt to refresh an expired entry is made after the refresh failed.
+	 ******************************************************************************************************/
+	public static long defaultDnsCacheRetryBackoff() {
+		return PFRHttp.dnsCacheRetryBackoffMillis.get();
+	}
+	
+	/******************************************************************************************************
+	 * Removes all entries from the DNS cache.
+	 ******************************************************************************************************/
+	public static void clearDnsCache() {
+		dnsCache.clear();
+	}
+	
+	/******************************************************************************************************
+	 * Returns the DNS cache, for example to read the hit and miss counters.
+	 ******************************************************************************************************/
+	public static PFRCachingDnsResolver getDnsCache() {
+		return dnsCache;
+	}
+	
+	/******************************************************************************************************
+	 * Returns the DNS resolver used by all the clients, measures the resolution time and uses the cache.
+	 ******************************************************************************************************/
+	public static PFRDnsResolver getDnsResolver() {
+		return dnsResolver;
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Maps a host name to fixed IP addresses, like an entry in the hosts file. The host name is not 
+	 * resolved by DNS anymore, the Host header and the TLS SNI still contain the host name.
+	 * Useful to test a specific node or a blue/green slot directly.
+	 * 
+	 * @param host the host name, e.g. "www.example.com"
+	 * @param addresses one or more IP addresses, e.g. "10.0.0.12". Remove the override if none is given.
+	 ******************************************************************************************************/
+	public static void hostOverride(String host, String... addresses) {
+		
+		String key = host.trim().toLowerCase();
+		
+		if(addresses == null || addresses.length == 0) {
+			hostOverrides.remove(key);
+			return;
+		}
+		
+		InetAddress[] resolved = new InetAddress[addresses.length];
+		for(int i = 0; i < addresses.length; i++) {
+			resolved[i] = toInetAddress(key, addresses[i]);
+		}
+		
+		hostOverrides.put(key, resolved);
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Maps host names to fixed IP addresses, see hostOverride(String, String...).
+	 * 
+	 * @param overrides map with host names as keys and IP addresses as values
+	 ******************************************************************************************************/
+	public static void hostOverrides(Map<String, String> overrides) {
+		for(Entry<String, String> entry : overrides.entrySet()) {
+			hostOverride(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Loads host overrides from a file in the format of the hosts file: an IP address followed by one or 
+	 * more host names per line, '#' starts a comment. A host name listed on multiple lines gets all the 
+	 * addresses. Invalid lines are logged and skipped.
+	 * 
+	 * @param path the path on disk or in the class path
+	 ******************************************************************************************************/
+	public static void loadHostOverrides(String path) {
+		
+		//------------------------------
+		// Read File
+		String contents = null;
+		try {
+			if(Files.isRegularFile(Path.of(path))) {
+				contents = Files.readString(Path.of(path));
+			}else {
+				InputStream in = PFRHttp.class.getClassLoader().getResourceAsStream(path);
+				if(in != null) {
+					contents = HSR.Files.readContentsFromInputStream(in);
+				}
+			}
+		}catch(IOException e) {
+			logger.error("Error while reading host overrides file '"+path+"': "+e.getMessage(), e);
+			return;
+		}
+		
+		if(contents == null) {
+			logger.error("Host overrides file not found: "+path);
+			return;
+		}
+		
+		//------------------------------
+		// Parse Lines
+		LinkedHashMap<String, ArrayList<String>> addressesPerHost = new LinkedHashMap<>();
+		
+		for(String line : contents.split("\\r?\\n")) {
+			
+			int commentIndex = line.indexOf('#');
+			if(commentIndex >= 0) { line = line.substring(0, commentIndex); }
+			
+			String[] tokens = line.trim().split("\\s+");
+			if(tokens.length < 2) { 
+				if( !tokens[0].isEmpty() ) { logger.warn("Host overrides: skipping invalid line '"+line+"'"); }
+				continue; 
+			}
+			
+			for(int i = 1; i < tokens.length; i++) {
+				addressesPerHost.computeIfAbsent(tokens[i], k -> new ArrayList<>()).add(tokens[0]);
+			}
+		}
+		
+		//------------------------------
+		// Add Overrides
+		for(Entry<String, ArrayList<String>> entry : addressesPerHost.entrySet()) {
+			try {
+				hostOverride(entry.getKey(), entry.getValue().toArray(new String[0]));
+			}catch(IllegalArgumentException e) {
+				logger.warn("Host overrides: skipping host '"+entry.getKey()+"': "+e.getMessage());
+			}
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Removes all host overrides.
+	 ******************************************************************************************************/
+	public static void clearHostOverrides() {
+		hostOverrides.clear();
+	}
+	
+	/******************************************************************************************************
+	 * Returns the fixed addresses of the host, or null if the host is not overridden.
+	 ******************************************************************************************************/
+	static InetAddress[] getHostOverride(String host) {
+		
+		if(host == null || hostOverrides.isEmpty()) {
+			return null;
+		}
+		
+		return hostOverrides.get(host.toLowerCase());
+	}
+	
+	/******************************************************************************************************
+	 * Creates an InetAddress with the host name from an IP address literal without doing a DNS lookup.
+	 * 
+	 * @throws IllegalArgumentException if the address is not an IP address
+	 ******************************************************************************************************/
+	private static InetAddress toInetAddress(String host, String address) {
+		
+		try {
+			InetAddress literal = InetAddresses.forString(address.trim());
+			return InetAddress.getByAddress(host, literal.getAddress());
+		} catch (UnknownHostException e) {
+			// only thrown for an illegal address length, which the parsed literal cannot have
+			throw new IllegalArgumentException("Not an IP address: "+address, e);
+		}
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set how new connections are spread across the IP addresses a host name resolves to.
+	 * Default: SYSTEM, the first address returned by the resolver is used
+	 ******************************************************************************************************/
+	public static void defaultAddressSelection(PFRAddressSelection selection) {
+		PFRHttp.addressSelection = (selection != null) ? selection : PFRAddressSelection.SYSTEM;
+	}
+	
+	/******************************************************************************************************
+	 * Returns how new connections are spread across the IP addresses of a host.
+	 ******************************************************************************************************/
+	public static PFRAddressSelection defaultAddressSelection() {
+		return PFRHttp.addressSelection;
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set the weight of an IP address for PFRAddressSelection.WEIGHTED. An address with weight 2 gets 
+	 * twice as many connections as an address with weight 1. 
+	 * 
+	 * @param address the IP address, e.g. "10.0.0.12"
+	 * @param weight the weight, addresses without a weight have weight 1
+	 ******************************************************************************************************/
+	public static void addressWeight(String address, int weight) {
+		addressWeights.put(address, Math.max(0, weight));
+	}
+	
+	/******************************************************************************************************
+	 * Returns the weight of the IP address, 1 if not set.
+	 ******************************************************************************************************/
+	public static int addressWeight(String address) {
+		return addressWeights.getOrDefault(address, 1);
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Enable measurement of every request per IP address of the server as a separate HSR metric
+	 * (suffix: -IP &lt;address&gt;). Useful to find a single misbehaving node behind a host name.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultMeasurePerAddress(boolean enable) {
+		PFRHttp.measurePerAddress.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether requests are measured per IP address.
+	 ******************************************************************************************************/
+	public static boolean defaultMeasurePerAddress() {
+		return PFRHttp.measurePerAddress.get();
+	}
+	
+	/******************************************************************************************************
+	 * Reports the open connections, opened connections and errors per IP address as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportAddressGauges() {
+		PFRAddressStats.reportGauges();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set the local IP addresses the outgoing connections are bound to. Every address has its own range 
+	 * of ephemeral ports, a load generator with multiple addresses can open far more connections to a 
+	 * single target IP and port than the roughly 28k a single address allows.
+	 * The address is selected for every new connection after the target host is resolved, only addresses
+	 * of the same family (IPv4/IPv6) as the resolved address are used. The pooled connections are shared
+	 * by all source addresses, the limit per route applies to the sum of them.
+	 * The HTTP/2 engine binds per route instead and opens a connection per host and source address.
+	 * Set the addresses before the first request.
+	 * 
+	 * @param addresses the local IP addresses, e.g. "10.0.0.21", "10.0.0.22". None to disable binding.
+	 ******************************************************************************************************/
+	public static void defaultSourceAddresses(String... addresses) {
+		
+		if(addresses == null || addresses.length == 0) {
+			PFRSourceAddresses.set(null);
+			return;
+		}
+		
+		InetAddress[] sources = new InetAddress[addresses.length];
+		for(int i = 0; i < addresses.length; i++) {
+			sources[i] = InetAddresses.forString(addresses[i].trim());
+			
+			try {
+				if(NetworkInterface.getByInetAddress(sources[i]) == null) {
+					logger.warn("The source address "+addresses[i]+" is not assigned to a local network interface, connects will fail.");
+				}
+			}catch(SocketException e) {
+				logger.warn("Could not check the source address "+addresses[i]+": "+e.getMessage());
+			}
+		}
+		
+		PFRSourceAddresses.set(sources);
+	}
+	
+	/******************************************************************************************************
+	 * Returns the local IP addresses the outgoing connections are bound to, empty if not set.
+	 ******************************************************************************************************/
+	public static InetAddress[] defaultSourceAddresses() {
+		return PFRSourceAddresses.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set how the source address of a new connection is selected.
+	 * Default: ROUND_ROBIN
+	 ******************************************************************************************************/
+	public static void defaultSourceAddressSelection(PFRSourceAddressSelection selection) {
+		PFRHttp.sourceAddressSelection = (selection != null) ? selection : PFRSourceAddressSelection.ROUND_ROBIN;
+	}
+	
+	/******************************************************************************************************
+	 * Returns how the source address of a new connection is selected.
+	 ******************************************************************************************************/
+	public static PFRSourceAddressSelection defaultSourceAddressSelection() {
+		return PFRHttp.sourceAddressSelection;
+	}
+	
+	/******************************************************************************************************
+	 * Reports the open connections, opened connections and errors per source IP address as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportSourceAddressGauges() {
+		PFRSourceAddresses.reportGauges();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set the maximum number of JavaScript contexts used to evaluate the proxy PAC script. The contexts are
+	 * shared by all threads. Applies when the PAC script is loaded.
+	 * Default: number of processors, max 4
+	 ******************************************************************************************************/
+	public static void defaultPacContextPoolSize(int size) {
+		PFRHttp.pacContextPoolSize.set(Math.max(1, size));
+	}
+	
+	/******************************************************************************************************
+	 * Returns the maximum number of JavaScript contexts used to evaluate the proxy PAC script.
+	 ******************************************************************************************************/
+	public static int defaultPacContextPoolSize() {
+		return PFRHttp.pacContextPoolSize.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set how long the proxies resolved with the PAC script are cached per scheme, host and port. The path 
+	 * of the URL is not part of the cache key, the PAC script must not return different proxies per path.
+	 * Default: 5 minutes
+	 ******************************************************************************************************/
+	public static void defaultPacCacheTtl(long millis) {
+		PFRHttp.pacCacheTtlMillis.set(Math.max(0, millis));
+	}
+	
+	/******************************************************************************************************
+	 * Returns how long the proxies resolved with the PAC script are cached per scheme, host and port.
+	 ******************************************************************************************************/
+	public static long defaultPacCacheTtl() {
+		return PFRHttp.pacCacheTtlMillis.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Set how long no new attempt to load the proxy PAC file is made after loading it failed. Requests are 
+	 * sent DIRECT in the meantime.
+	 * Default: 1 minute
+	 ******************************************************************************************************/
+	public static void defaultPacRetryBackoff(long millis) {
+		PFRHttp.pacRetryBackoffMillis.set(Math.max(0, millis));
+	}
+	
+	/******************************************************************************************************
+	 * Returns how long no new attempt to load the proxy PAC file is made after loading it failed.
+	 ******************************************************************************************************/
+	public static long defaultPacRetryBackoff() {
+		return PFRHttp.pacRetryBackoffMillis.get();
+	}
+	
+	/******************************************************************************************************
+	 * Removes the proxies resolved with the PAC script and the planned routes from the caches.
+	 ******************************************************************************************************/
+	public static void clearPacCache() {
+		pacResolver.clear();
+		routeCache.clear();
+	}
+	
+	/******************************************************************************************************
+	 * Reports the cache hits, script evaluations, script contexts and failed loads of the PAC resolution 
+	 * as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportPacGauges() {
+		pacResolver.reportGauges();
+	}
+	
+	/******************************************************************************************************
+	 * Reports the hits and misses of the route cache of the proxy route planner as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportRouteCacheGauges() {
+		routeCache.reportGauges();
+	}
+	
+	/******************************************************************************************************
+	 * Reports the hits and misses of the pools of read buffers and Inflaters as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportBufferPoolGauges() {
+		PFRBufferPool.reportGauges();
+	}
+	
+	/******************************************************************************************************
+	 * Reports the hits and misses of the cache of compiled regular expressions as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportPatternCacheGauges() {
+		PFRPatternCache.reportGauges();
+	}
+	
+	/******************************************************************************************************
+	 * Reports the hits, stale hits, misses and failed refreshes of the DNS cache as HSR gauges.
+	 ******************************************************************************************************/
+	public static void reportDnsCacheGauges() {
+		dnsCache.reportGauges();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * <b>IMPORTANT:</b> Must be called before the first request is sent.<br>
+	 * Enable DNS resolution time measurement as a separate HSR metric (suffix: -DNS).
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultMeasureDns(boolean enable) {
+		PFRHttp.measureDns.set(enable);
+	}
+
+	/******************************************************************************************************
+	 * Returns whether DNS measurement is enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultMeasureDns() {
+		return PFRHttp.measureDns.get();
+	}
+
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * <b>IMPORTANT:</b> Must be called before the first request is sent.<br>
+	 * Enable TLS handshake time measurement as a separate HSR metric (suffix: -TLS).
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultMeasureTls(boolean enable) {
+		PFRHttp.measureTls.set(enable);
+	}
+
+	/******************************************************************************************************
+	 * Returns whether TLS measurement is enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultMeasureTls() {
+		return PFRHttp.measureTls.get();
+	}
+
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * <b>IMPORTANT:</b> Must be called before the first request is sent.<br>
+	 * Enable TCP connect time measurement as a separate HSR metric (suffix: -Connect).
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultMeasureConnect(boolean enable) {
+		PFRHttp.measureConnect.set(enable);
+	}
+
+	/******************************************************************************************************
+	 * Returns whether TCP connect measurement is enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultMeasureConnect() {
+		return PFRHttp.measureConnect.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Enable measurement of the time a request waits for a connection of the pool as a separate HSR metric
+	 * (suffix: -LeaseWait). Useful to find out if the pool is starved at the max per route limit.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultMeasureLeaseWait(boolean enable) {
+		PFRHttp.measureLeaseWait.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether lease wait measurement is enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultMeasureLeaseWait() {
+		return PFRHttp.measureLeaseWait.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Enable measurement of the time to send the request headers and body as a separate HSR metric
+	 * (suffix: -Send). Starts when the request is written to the connection, after connecting.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultMeasureSend(boolean enable) {
+		PFRHttp.measureSend.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether send time measurement is enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultMeasureSend() {
+		return PFRHttp.measureSend.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Enable measurement of the time waiting for the server as a separate HSR metric (suffix: -TTFB).
+	 * Measured from the end of sending the request until the response headers are received.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultMeasureTtfb(boolean enable) {
+		PFRHttp.measureTtfb.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether time to first byte measurement is enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultMeasureTtfb() {
+		return PFRHttp.measureTtfb.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Enable measurement of the time to transfer the response body as a separate HSR metric 
+	 * (suffix: -Download). Measured from the receipt of the response headers until the body is read.
+	 * Default: false
+	 ******************************************************************************************************/
+	public static void defaultMeasureDownload(boolean enable) {
+		PFRHttp.measureDownload.set(enable);
+	}
+	
+	/******************************************************************************************************
+	 * Returns whether download time measurement is enabled.
+	 ******************************************************************************************************/
+	public static boolean defaultMeasureDownload() {
+		return PFRHttp.measureDownload.get();
+	}
+	
+	/******************************************************************************************************
+	 * Set the metric of the non-blocking request that is executed next by the current thread. Used by the
+	 * connection managers and the DNS resolver to report sub-metrics. Set to null to remove.
+	 ******************************************************************************************************/
+	static void asyncMetric(String metric) {
+		if(metric == null) {
+			asyncMetric.remove();
+		}else {
+			asyncMetric.set(metric);
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Returns the metric of the non-blocking request executed by the current thread, or null.
+	 ******************************************************************************************************/
+	static String asyncMetric() {
+		return asyncMetric.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Starts a background thread that regularly reports the state of the connection pools as HSR gauges,
+	 * see reportPoolGauges(). Also reports the gauges of the connection evictor, the DNS cache, the IP 
+	 * addresses, the async executor and the HTTP/2 streams.
+	 * Calling this method again restarts the sampler with the new interval.
+	 * 
+	 * @param intervalMillis the interval between two samples
+	 ******************************************************************************************************/
+	public static void startPoolSampler(long intervalMillis) {
+		
+		synchronized (SYNC_LOCK_SAMPLER) {
+			
+			stopPoolSampler();
+			
+			poolSampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "PFRHttp-PoolSampler");
+				thread.setDaemon(true);
+				return thread;
+			});
+			
+			long interval = Math.max(1, intervalMillis);
+			poolSampler.scheduleAtFixedRate(() -> {
+				try {
+					reportPoolGauges();
+					PFRConnectionEvictor.reportGauges();
+					reportDnsCacheGauges();
+					PFRAddressStats.reportGauges();
+					PFRSourceAddresses.reportGauges();
+					reportAsyncExecutorGauges();
+					reportHttp2StreamGauges();
+					reportPacGauges();
+					reportRouteCacheGauges();
+					reportBufferPoolGauges();
+					reportPatternCacheGauges();
+				}catch(Throwable e) {
+					logger.warn("Error while sampling the connection pools: "+e.getMessage(), e);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Stops the pool sampler if it is running.
+	 ******************************************************************************************************/
+	public static void stopPoolSampler() {
+		
+		synchronized (SYNC_LOCK_SAMPLER) {
+			if(poolSampler != null) {
+				poolSampler.shutdownNow();
+				poolSampler = null;
+			}
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Reports the number of leased, available, pending and max connections of the connection pools as HSR
+	 * gauges, in total and per route. Gauges of the blocking pool start with "PFRHttp-Pool", the ones of 
+	 * the non-blocking pool with "PFRHttp-AsyncPool". Pools that have not been created yet are skipped.
+	 ******************************************************************************************************/
+	public static void reportPoolGauges() {
+		
+		if(connectionManager != null) {
+			reportPoolGauges("PFRHttp-Pool", connectionManager);
+		}
+		
+		if(asyncConnectionManager != null) {
+			reportPoolGauges("PFRHttp-AsyncPool", asyncConnectionManager);
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Reports the gauges for a single connection pool.
+	 ******************************************************************************************************/
+	private static void reportPoolGauges(String prefix, ConnPoolControl<HttpRoute> pool) {
+		
+		reportPoolGauges(prefix, "", pool.getTotalStats());
+		
+		for(HttpRoute route : pool.getRoutes()) {
+			reportPoolGauges(prefix, " " + route.getTargetHost().toURI(), pool.getStats(route));
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Reports the gauges for the given pool stats.
+	 ******************************************************************************************************/
+	private static void reportPoolGauges(String prefix, String suffix, PoolStats stats) {
+		HSR.addGauge(prefix + "-Leased" + suffix, BigDecimal.valueOf(stats.getLeased()));
+		HSR.addGauge(prefix + "-Available" + suffix, BigDecimal.valueOf(stats.getAvailable()));
+		HSR.addGauge(prefix + "-Pending" + suffix, BigDecimal.valueOf(stats.getPending()));
+		HSR.addGauge(prefix + "-Max" + suffix, BigDecimal.valueOf(stats.getMax()));
+	}
+
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
+	 * Set the default pause used for all the requests of the current user(thread).
+	 ******************************************************************************************************/
+	public static void defaultPause(long millis) {
+		defaultPauseMillisLower.set(millis);
+		defaultPauseMillisUpper.set(millis);
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
+	 * Set the default pause used for all the requests of the current user(thread).
+	 ******************************************************************************************************/
+	public static void defaultPause(long lowerMillis, long upperMillis) {
+		defaultPauseMillisLower.set(lowerMillis);
+		defaultPauseMillisUpper.set(upperMillis);
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
+	 * Returns the default pause lower range.
+	 ******************************************************************************************************/
+	public static long defaultPauseLower() {
+		return defaultPauseMillisLower.get();
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Propagated (Inheritable Thread Local) <br>
+	 * Returns the default pause upper range.
+	 ******************************************************************************************************/
+	public static long defaultPauseUpper() {
+		return defaultPauseMillisUpper.get();
+	}
+	
+	/******************************************************************************************************
+	 * 
+	 ******************************************************************************************************/
+	public static String encode(String toEncode) {
+		
+		if(toEncode == null) {
+			return null;
+		}
+		try {
+			return URLEncoder.encode(toEncode, StandardCharsets.UTF_8.toString());
+		} catch (UnsupportedEncodingException e) {
+			logger
+				.error("Exception while encoding: "+e.getMessage(), e);	
+		}
+		
+		return toEncode;
+	}
+	
+	/******************************************************************************************************
+	 * 
+	 ******************************************************************************************************/
+	public static String decode(String toDecode) {
+		
+		if(toDecode == null) {
+			return null;
+		}
+		try {
+			return URLDecoder.decode(toDecode, StandardCharsets.UTF_8.toString());
+		} catch (UnsupportedEncodingException e) {
+			logger
+				.error("Exception while decoding: "+e.getMessage(), e);	
+		}
+		
+		return toDecode;
+	}
+	
+	
+	/******************************************************************************************************
+	 * Returns an encoded parameter string with leading '&'.
+	 ******************************************************************************************************/
+	public static String  encode(String paramName, String paramValue) {
+		
+		return "&" + encode(paramName) + "=" + encode(paramValue);
+	}
+	
+	
+	/******************************************************************************************************
+	 * Creates a query string from the given parameters.
+	 ******************************************************************************************************/
+	public static String  buildQueryString(HashMap<String,String> params) {
+		
+		StringBuilder builder = new StringBuilder();
+		
+		for(Entry<String,String> param : params.entrySet()) {
+			builder.append(encode(param.getKey(), param.getValue()));
+		}
+		
+		//remove leading "&"
+		return builder.substring(1);
+	}
+			
+	
+	/******************************************************************************************************
+	 * Creates a url with the given parameters;
+	 ******************************************************************************************************/
+	public static String  buildURL(String urlWithPath, HashMap<String,String> params) {
+		
+		if(params != null && !params.isEmpty()) {
+			
+			StringBuilder builder = new StringBuilder(urlWithPath);
+			
+			if( !urlWithPath.endsWith("?") ) {
+				builder.append("?");
+			}
+			
+			for(Entry<String,String> param : params.entrySet()) {
+				builder.append(encode(param.getKey(), param.getValue()));
+			}
+			
+			// "?&" seems valid syntax, but some HTTP servers or apps might have troubles with that
+			return builder.toString().replace("?&", "?");
+		}
+		
+		return urlWithPath;
+		
+	}
+	
+
+	/******************************************************************************************************
+	 * 
+	 ******************************************************************************************************/
+	private static void loadPacFile() {
+		
+		if(proxyPacFile.get() != null && proxyPAC == null && pacResolver.canLoad()) {
+			synchronized (SYNC_LOCK_PAC) {
+				// a PAC loaded from a URL is requested by this thread again through the route planner
+				if(proxyPAC == null && !pacLoading && pacResolver.canLoad()) {
+					pacLoading = true;
+					try {
+						readPacFile();
+						pacResolver.setScript(proxyPAC);
+						routeCache.clear();
+					}finally {
+						pacLoading = false;
+						
+						// DIRECT until the next attempt, instead of loading it again for every request
+						if(proxyPAC == null) {
+							pacResolver.loadFailed(pacRetryBackoffMillis.get());
+							logger.warn("The proxy .pac-File could not be loaded, requests are sent DIRECT for the next "+pacRetryBackoffMillis.get()+" ms.");
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Reads the PAC file from the URL or the class path into proxyPAC.
+	 ******************************************************************************************************/
+	private static void readPacFile() {
 		
-			String proxyPacPath = proxyPacFile.get();
-			if(proxyPacPath.toLowerCase().startsWith("http")) {
-				//------------------------------
-				// Get PAC from URL
-				PFRHttpResponse response = null;
+		String proxyPacPath = proxyPacFile.get();
+		if(proxyPacPath.toLowerCase().startsWith("http")) {
+			//------------------------------
+			// Get PAC from URL
+			PFRHttpResponse response = null;
+			
+			try {	
 				
-				try {	
-					
-					response = PFRHttp.create(proxyPacPath)
-							.GET()
-							.send()
-							;
+				response = PFRHttp.create(proxyPacPath)
+						.GET()
+						.send()
+						;
 //					HttpURLConnection connection = (HttpURLConnection)new URL(PRF.Properties.PROXY_PAC).openConnection();
 //					if(connection != null) {
 //						connection.setRequestMethod("GET");
@@ -751,34 +2139,40 @@ public class PFRHttp {
 //						
 //						response = instance.new PRFHttpResponse(connection);
 //					}
-			    
-				} catch (Exception e) {
-					logger
-						.error("Exception occured.", e);
-				} 
-				
-				//------------------------------
-				// Cache PAC Contents
-				if(response != null && response.getStatus() <= 299) {
-					proxyPAC = response.getBody();
-					
-					if(proxyPAC == null || !proxyPAC.contains("FindProxyForURL")) {
-						logger.error("The Proxy .pac-File seems not be in the expected format.");
-						proxyPAC = null;
-					}
-				}else {
-					logger.error("Error occured while retrieving .pac-File from URL. (HTTP Code: "+response.getStatus()+")");
-				}
-			}else {
-				//------------------------------
-				// Load from Disk
-				InputStream in = PFRHttp.class.getClassLoader().getResourceAsStream(proxyPacPath);
-				proxyPAC = HSR.Files.readContentsFromInputStream(in);
+		    
+			} catch (Exception e) {
+				logger
+					.error("Exception occured.", e);
+			} 
+			
+			//------------------------------
+			// Cache PAC Contents
+			if(response == null) {
+				logger.error("Error occured while retrieving .pac-File from URL. (No response)");
+			}else if(response.getStatus() <= 299) {
+				proxyPAC = response.getBody();
 				
 				if(proxyPAC == null || !proxyPAC.contains("FindProxyForURL")) {
 					logger.error("The Proxy .pac-File seems not be in the expected format.");
 					proxyPAC = null;
 				}
+			}else {
+				logger.error("Error occured while retrieving .pac-File from URL. (HTTP Code: "+response.getStatus()+")");
+			}
+		}else {
+			//------------------------------
+			// Load from Disk
+			InputStream in = PFRHttp.class.getClassLoader().getResourceAsStream(proxyPacPath);
+			if(in == null) {
+				logger.error("The Proxy .pac-File was not found: "+proxyPacPath);
+				return;
+			}
+			
+			proxyPAC = HSR.Files.readContentsFromInputStream(in);
+			
+			if(proxyPAC == null || !proxyPAC.contains("FindProxyForURL")) {
+				logger.error("The Proxy .pac-File seems not be in the expected format.");
+				proxyPAC = null;
 			}
 		}
 	}
@@ -805,54 +2199,11 @@ public class PFRHttp {
 		
 		ArrayList<PFRProxy> proxyArray = null;
 		
-		if(proxyPacFile.get() != null && proxyPAC != null) {
-			 URL tempURL;
+		if(proxyPacFile.get() != null && pacResolver.hasScript()) {
 			try {
-				tempURL = new URL(urlToCall);
-				String hostname = tempURL.getHost();
+				String hostname = new URL(urlToCall).getHost();
 				
-				if(! resolvedProxiesCache.containsKey(hostname)) {
-
-					ArrayList<PFRProxy> proxies = new ArrayList<PFRProxy>();
-					
-					Value result = getScriptContext().executeScript("FindProxyForURL('"+urlToCall+"', '"+hostname+"');");
-					if(result != null) {
-						String[] newProxyArray = result.asString().split(";");
-						
-						for(String proxyDef : newProxyArray) {
-							if(proxyDef.trim().isEmpty()) { continue; }
-							
-							String[] splitted = proxyDef.trim().split(" ");
-							
-							String host;
-							int port;
-							
-							String type = splitted[0];
-							if(splitted.length > 1) {
-								String hostport = splitted[1];
-								if(hostport.indexOf(":") != -1) {
-									host = hostport.substring(0, hostport.indexOf(":"));
-									String portStr = hostport.substring(hostport.indexOf(":")+1);
-									try {
-										port = Integer.parseInt(portStr);
-									} catch (NumberFormatException e) {
-										logger.error("Could not parse proxy port '{}', defaulting to 80.", portStr);
-										port = 80;
-									}
-								}else {
-									host = hostport;
-									port = 80;	
-								}
-								
-								proxies.add(new PFRProxy(type, host, port));
-							}
-						}							
-					}
-					resolvedProxiesCache.put(hostname, proxies);
-
-				}
-										
-				proxyArray = resolvedProxiesCache.get(hostname);
+				proxyArray = new ArrayList<>( pacResolver.resolve(urlToCall, hostname) );
 				
 			} catch (Throwable e) {
 				logger.error("Resolving proxies failed.", e);
@@ -961,96 +2312,151 @@ public class PFRHttp {
 	}
 	
 	/******************************************************************************************************
-	 * If proxy is enabled, adds a HttpHost to the client.
+	 * If proxy is enabled, adds a route planner to the blocking client.
 	 * 
 	 * @param clientBuilder the client that should get a proxy
-	 * @param targetURL the URL that should be called over a proxy (not the url of the proxy host)
 	 * 
 	 ******************************************************************************************************/
 	public static void httpClientAddProxy(HttpClientBuilder clientBuilder) {
 		
 		//--------------------------------
-		// Check Do nothing
+		// No Proxy
+		if(proxyPacFile.get() == null) {
+			return; 
+		}
+		
+	    clientBuilder.setRoutePlanner(createProxyRoutePlanner());
+	    
+	}
+	
+	/******************************************************************************************************
+	 * If proxy is enabled, adds a route planner to the non-blocking client.
+	 * 
+	 * @param clientBuilder the client that should get a proxy
+	 * 
+	 ******************************************************************************************************/
+	public static void httpClientAddProxy(HttpAsyncClientBuilder clientBuilder) {
+		
+		//--------------------------------
+		// No Proxy
 		if(proxyPacFile.get() == null) {
 			return; 
 		}
 		
-	    clientBuilder.setRoutePlanner(new HttpRoutePlanner() {
+		clientBuilder.setRoutePlanner(createProxyRoutePlanner());
+		
+	}
+	
+	/******************************************************************************************************
+	 * Creates the route planner that resolves the proxies for every request using the proxy PAC.
+	 * The planned routes are cached per target, see PFRRouteCache.
+	 ******************************************************************************************************/
+	private static HttpRoutePlanner createProxyRoutePlanner() {
+		
+	    return new HttpRoutePlanner() {
 			
 			@Override
 			public HttpRoute determineRoute(HttpHost target, HttpContext context) throws HttpException {
 				
-				//----------------------------------
-				// Build full target URL from HttpHost
-				String scheme = target.getSchemeName();
-				String host = target.getHostName();
-				int port = target.getPort();
-				boolean isSecure = "https".equalsIgnoreCase(scheme);
-				
-				StringBuilder urlBuilder = new StringBuilder();
-				urlBuilder.append(scheme).append("://").append(host);
-				
-				if (port > 0) {
-				    urlBuilder.append(":").append(port);
-				}
+				boolean pac = (proxyPacFile.get() != null);
 				
-				String url = urlBuilder.toString();
-                
 				//----------------------------------
-				// Doing this because someone had the
-				// grandiose idea to throw an exception
-				// when the port is not set(-1).
-				int finalPort = port;
-				if (port <= 0) {
-					if(isSecure) {	finalPort = 443; }
-					else		 {	finalPort = 80; }
-						
-				}
-				HttpHost finalTarget = new HttpHost(scheme, host, finalPort);
+				// Cached
+				HttpRoute route = routeCache.get(target, pac);
 				
-				//----------------------------------
-				// Check has Proxy PAC
-				if(proxyPacFile.get() == null) {
-					return new HttpRoute(finalTarget); 
+				if(route == null) {
+					route = planRoute(target, pac);
+					
+					if(route == null) {
+						// None of the addresses were resolved
+						logger.warn("The proxy addresses couldn't be resolved.");
+						return new HttpRoute(target);
+					}
+					
+					// do not cache the routes planned while the PAC is not available
+					if( !pac || pacResolver.hasScript() ) {
+						routeCache.put(target, pac, route);
+					}
 				}
 				
-				//----------------------------------
-				// Resolve proxies for THIS request
-				ArrayList<PFRProxy> proxiesArray = getProxies(url);
+				return route;
+			}
+		};
+	    
+	}
+	
+	/******************************************************************************************************
+	 * Plans the route to the target without local address.
+	 * 
+	 * @param pac true to resolve the proxies using the proxy PAC
+	 * @return route, or null if none of the proxies could be resolved
+	 ******************************************************************************************************/
+	private static HttpRoute planRoute(HttpHost target, boolean pac) {
+		
+		//----------------------------------
+		// Build full target URL from HttpHost
+		String scheme = target.getSchemeName();
+		String host = target.getHostName();
+		int port = target.getPort();
+		boolean isSecure = "https".equalsIgnoreCase(scheme);
+		
+		//----------------------------------
+		// Doing this because someone had the
+		// grandiose idea to throw an exception
+		// when the port is not set(-1).
+		int finalPort = port;
+		if (port <= 0) {
+			if(isSecure) {	finalPort = 443; }
+			else		 {	finalPort = 80; }
+				
+		}
+		HttpHost finalTarget = new HttpHost(scheme, host, finalPort);
+		
+		//----------------------------------
+		// Check has Proxy PAC
+		if(!pac) {
+			return new HttpRoute(finalTarget, null, isSecure); 
+		}
+		
+		StringBuilder urlBuilder = new StringBuilder();
+		urlBuilder.append(scheme).append("://").append(host);
+		
+		if (port > 0) {
+		    urlBuilder.append(":").append(port);
+		}
+		
+		String url = urlBuilder.toString();
+		
+		//----------------------------------
+		// Resolve proxies for THIS target
+		ArrayList<PFRProxy> proxiesArray = getProxies(url);
 
-				//----------------------------------
-				// No proxy &rarr; DIRECT
-				if (proxiesArray == null || proxiesArray.isEmpty()) {
-				    return new HttpRoute(finalTarget);
-				}
+		//----------------------------------
+		// No proxy &rarr; DIRECT
+		if (proxiesArray == null || proxiesArray.isEmpty()) {
+		    return new HttpRoute(finalTarget, null, isSecure);
+		}
+		
+		//--------------------------------------------------
+		// Iterate PAC Proxies until address is resolved
+		for(PFRProxy cfwProxy : proxiesArray) {
+			
+			if(cfwProxy.type().trim().toUpperCase().equals("DIRECT")) {
+				return new HttpRoute(finalTarget, null, isSecure); // no proxy required
+			}else {
 				
-				//--------------------------------------------------
-				// Iterate PAC Proxies until address is resolved
-				for(PFRProxy cfwProxy : proxiesArray) {
-					
-					if(cfwProxy.type().trim().toUpperCase().equals("DIRECT")) {
-						return new HttpRoute(finalTarget); // no proxy required
-					}else {
-						
-						InetSocketAddress address = new InetSocketAddress(cfwProxy.host(), cfwProxy.port());
-						if(address.isUnresolved()) { 
-							continue;
-						};
+				InetSocketAddress address = new InetSocketAddress(cfwProxy.host(), cfwProxy.port());
+				if(address.isUnresolved()) { 
+					continue;
+				};
 
-						HttpHost proxy = new HttpHost(cfwProxy.host(), cfwProxy.port());
+				HttpHost proxy = new HttpHost(cfwProxy.host(), cfwProxy.port());
 
-						return new HttpRoute(finalTarget, null, proxy, isSecure);
-					}
-				}
-				
-				//-------------------------------------
-				// None of the addresses were resolved
-				logger.warn("The proxy addresses couldn't be resolved.");
-				
-				return new HttpRoute(target);
+				return new HttpRoute(finalTarget, null, proxy, isSecure);
 			}
-		});
-	    
+		}
+		
+		return null;
 	}
 		
 	/******************************************************************************************************
@@ -1082,6 +2488,37 @@ public class PFRHttp {
 		return cookieStore.get().getCookies();
 	}
 	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Sets the seed cookies, which are sent by all users without being copied into the cookie store of 
+	 * every user. A cookie of a user with the same name, domain and path hides the seed cookie. 
+	 * Seed cookies are not removed by clearCookies().
+	 * 
+	 * @param cookies the seed cookies, null or empty to remove them
+	 ******************************************************************************************************/
+	public static void seedCookies(List<Cookie> cookies) {
+		PFRCookieStore.setSeeds(cookies);
+	}
+	
+	/******************************************************************************************************
+	 * <b>Scope:</b> Global <br>
+	 * Adds a seed cookie, see seedCookies().
+	 ******************************************************************************************************/
+	public static void addSeedCookie(BasicClientCookie cookie) {
+		
+		ArrayList<Cookie> cookies = new ArrayList<>(PFRCookieStore.getSeeds());
+		cookies.add(cookie);
+		
+		PFRCookieStore.setSeeds(cookies);
+	}
+	
+	/******************************************************************************************************
+	 * Returns the seed cookies shared by all users.
+	 ******************************************************************************************************/
+	public static List<Cookie> getSeedCookies() {
+		return PFRCookieStore.getSeeds();
+	}
+	
 	/******************************************************************************************************
 	 * Clears the cookies for the current user thread.
 	 ******************************************************************************************************/
@@ -1102,26 +2539,35 @@ public class PFRHttp {
 	 * 
 	 ******************************************************************************************************/
 	public static void addContentDecoders(HttpClientBuilder clientBuilder) {
+	    clientBuilder.setContentDecoderRegistry(getContentDecoders());
+	}
+	
+	/******************************************************************************************************
+	 * Returns the content decoders by content-encoding. The keys are lowercase and their order is the 
+	 * order of preference used for the Accept-Encoding header.
+	 * 
+	 ******************************************************************************************************/
+	public static LinkedHashMap<String, InputStreamFactory> getContentDecoders() {
 		
 		// The below "::new" syntax is a shorthand for basically the following:
 //		InputStreamFactory gzipFactory = new InputStreamFactory() {
 //		    @Override public InputStream create(InputStream inputStream) {
-//		       return new GZIPInputStream(inputStream);
+//		       return PFRInflaterInputStream.gzip(inputStream);
 //		    }
 //		};
-
+		
 		InputStreamFactory brotliFactory = BrotliInputStream::new;
-		InputStreamFactory gzipFactory = GZIPInputStream::new;
-		InputStreamFactory deflateFactory = InflaterInputStream::new;
-
-	    LinkedHashMap<String, InputStreamFactory> decoderMap = new LinkedHashMap<>();
-
-	    decoderMap.put("gzip", gzipFactory);
-	    decoderMap.put("x-gzip", gzipFactory);
-	    decoderMap.put("br", brotliFactory);
-	    decoderMap.put("deflate", deflateFactory);
-	    
-	    clientBuilder.setContentDecoderRegistry(decoderMap);
+		InputStreamFactory gzipFactory = PFRInflaterInputStream::gzip;
+		InputStreamFactory deflateFactory = PFRInflaterInputStream::deflate;
+		
+		LinkedHashMap<String, InputStreamFactory> decoderMap = new LinkedHashMap<>();
+		
+		decoderMap.put("gzip", gzipFactory);
+		decoderMap.put("x-gzip", gzipFactory);
+		decoderMap.put("br", brotliFactory);
+		decoderMap.put("deflate", deflateFactory);
+		
+		return decoderMap;
 	}
 	
 	/******************************************************************************************************
@@ -1136,22 +2582,17 @@ public class PFRHttp {
 			if(connectionManager == null) {
 
 				try{
-					connectionManager = new PoolingHttpClientConnectionManager(getSocketFactoryRegistry());
+					connectionManager = new PFRConnectionManager(getSocketFactoryRegistry(), getDnsResolver());
 				}catch(Exception e) {
 					logger.warn("Error initializing connection manager with SocketFactoryRegistry. Fallback to default factory(= no measurement of TLS, DNS or Connect metrics).", e);
-					connectionManager = new PoolingHttpClientConnectionManager();
+					connectionManager = new PFRConnectionManager();
 				}
 				
 				connectionManager.setMaxTotal(PFRHttp.maxTotalConnections.get());
 				connectionManager.setDefaultMaxPerRoute(PFRHttp.maxPerRouteConnections.get());
 
 				
-				connectionManager.setDefaultConnectionConfig(
-						ConnectionConfig.custom()
-					        .setConnectTimeout( Timeout.ofMilliseconds(PFRHttp.defaultConnectTimeout()) )
-					        .setSocketTimeout(Timeout.ofMilliseconds(PFRHttp.defaultSocketTimeout()) )
-					        .build()
-				        );
+				connectionManager.setConnectionConfigResolver(route -> getConnectionConfig(route.getTargetHost().getHostName()));
 				
 				connectionManager.setDefaultSocketConfig(SocketConfig.custom()
 						    .setSoKeepAlive(true)
@@ -1159,11 +2600,66 @@ public class PFRHttp {
 						    .setSoLinger(TimeValue.ofSeconds(5))
 						    .build()
 					    );
+				
+				if( !PFRConnectionEvictor.isRunning() ) {
+					PFRConnectionEvictor.start();
+				}
 			}
 		}
 		return connectionManager;
 	}
 	
+	/******************************************************************************************************
+	 * Returns the connection manager of the blocking client, or null if it has not been created yet.
+	 ******************************************************************************************************/
+	static PoolingHttpClientConnectionManager getConnectionManagerIfCreated() {
+		return connectionManager;
+	}
+	
+	/******************************************************************************************************
+	 * Returns the connection manager used for all the connections of the non-blocking engine.
+	 * Uses the same pool limits and timeouts as the blocking connection manager.
+	 * @return 
+	 * 
+	 ******************************************************************************************************/
+	public static PoolingAsyncClientConnectionManager getAsyncConnectionManager() {
+		
+		synchronized (logger) {
+			
+			if(asyncConnectionManager == null) {
+				
+				try{
+					asyncConnectionManager = new PFRAsyncConnectionManager(
+							RegistryBuilder.<TlsStrategy>create()
+								.register("https", new PFRTlsStrategy(getTlsStrategy()))
+								.build()
+							, getDnsResolver()
+						);
+				}catch(Exception e) {
+					logger.warn("Error initializing async connection manager with TLS strategy. Fallback to default TLS strategy.", e);
+					asyncConnectionManager = new PFRAsyncConnectionManager();
+				}
+				
+				asyncConnectionManager.setMaxTotal(PFRHttp.maxTotalConnections.get());
+				asyncConnectionManager.setDefaultMaxPerRoute(PFRHttp.maxPerRouteConnections.get());
+				asyncConnectionManager.setConnectionConfigResolver(route -> getConnectionConfig(route.getTargetHost().getHostName()));
+				
+				if( !PFRConnectionEvictor.isRunning() ) {
+					PFRConnectionEvictor.start();
+				}
+			}
+		}
+		
+		return asyncConnectionManager;
+	}
+	
+	/******************************************************************************************************
+	 * Returns the connection manager of the non-blocking engine, or null if it has not been created yet.
+	 ******************************************************************************************************/
+	static PoolingAsyncClientConnectionManager getAsyncConnectionManagerIfCreated() {
+		return asyncConnectionManager;
+	}
+	
 	/******************************************************************************************************
 	 * Creates a request builder for chained building of requests.
 	 * @param url used for the request.
@@ -1246,16 +2742,11 @@ public class PFRHttp {
     
     
 	/**************************************************************************************
-	 * Set SSL Context
+	 * Creates the SSL Context used by the blocking and the non-blocking connection managers.
 	 * 
 	 **************************************************************************************/
-	@SuppressWarnings("deprecation")
-	private static Registry<ConnectionSocketFactory> getSocketFactoryRegistry() throws Exception {
+	private static SSLContext createSSLContext() throws Exception {
 		
-		//=====================================================
-		// Initialize Connection Manager
-		//=====================================================
-
 		// -------------------------------
 		// Create SSL Context Builder
 		final SSLContextBuilder sslContextBuilder;
@@ -1270,20 +2761,66 @@ public class PFRHttp {
 		}
 
 		addKeyStore(sslContextBuilder);
+		
+		return sslContextBuilder.build();
+	}
+	
+	/**************************************************************************************
+	 * Create the TLS Strategy used by the non-blocking engine.
+	 * 
+	 **************************************************************************************/
+	private static TlsStrategy getTlsStrategy() throws Exception {
+		
+		ClientTlsStrategyBuilder tlsBuilder = ClientTlsStrategyBuilder.create()
+				.setSslContext(createSSLContext());
+		
+		if (trustAllCertificates.get()) {
+			tlsBuilder.setHostnameVerifier(NoopHostnameVerifier.INSTANCE);
+			tlsBuilder.setHostnameVerificationPolicy(HostnameVerificationPolicy.CLIENT);
+		}
+		
+		return tlsBuilder.build();
+	}
+	
+	/**************************************************************************************
+	 * Create the TLS Strategy used by the HTTP/2 engine. Only offers HTTP/2 with ALPN and 
+	 * measures the connect and TLS time of new connections.
+	 * 
+	 **************************************************************************************/
+	static TlsStrategy getHttp2TlsStrategy() throws Exception {
+		
+		return new PFRTlsStrategy(
+				  getTlsStrategy()
+				, TlsConfig.custom()
+					.setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+					.build()
+			);
+	}
+	
+	/**************************************************************************************
+	 * Creates the socket factories used by the blocking connection manager.
+	 * 
+	 **************************************************************************************/
+	@SuppressWarnings("deprecation")
+	private static Registry<ConnectionSocketFactory> getSocketFactoryRegistry() throws Exception {
+		
+		//=====================================================
+		// Initialize Connection Manager
+		//=====================================================
 
 		// -------------------------------
 		// Connection Factory
 		final SSLConnectionSocketFactory sslsf;
 		if (trustAllCertificates.get()) {
-			sslsf = new SSLConnectionSocketFactory(sslContextBuilder.build(), NoopHostnameVerifier.INSTANCE);
+			sslsf = new SSLConnectionSocketFactory(createSSLContext(), NoopHostnameVerifier.INSTANCE);
 		} else {
-			sslsf = new SSLConnectionSocketFactory(sslContextBuilder.build());
+			sslsf = new SSLConnectionSocketFactory(createSSLContext());
 		}
 
 		final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder
 				.<ConnectionSocketFactory>create()
-				.register("https", new PFRSocketFactory.PFRLayeredSocketFactory(sslsf))
-				.register("http", new PFRSocketFactory(new PlainConnectionSocketFactory()))
+				.register("https", sslsf)
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
 				.build();
 
 		return socketFactoryRegistry;
@@ -0,0 +1,150 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xresch.hsr.base.HSR;
+
+/***************************************************************************
+ *
+ * Keeps track of the streams opened to an HTTP/2 origin (scheme, host and
+ * port). Requests exceeding PFRHttp.defaultHttp2MaxConcurrentStreams() are
+ * queued until a stream to the origin is closed.
+ * The streams are counted per origin, not per connection. The HTTP/2
+ * engine usually opens a single connection per origin, but one per source
+ * address if PFRHttp.defaultSourceAddresses() are set. The limit applies
+ * to the sum of these connections.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRHttp2Streams {
+
+	private static final ConcurrentHashMap<String, PFRHttp2Streams> streamsPerOrigin = new ConcurrentHashMap<>();
+
+	private final String origin;
+	private final AtomicInteger openStreams = new AtomicInteger(0);
+	private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private PFRHttp2Streams(String origin) {
+		this.origin = origin;
+	}
+
+	/***************************************************************************
+	 * Returns the streams of the given origin.
+	 *
+	 * @param scheme the scheme, e.g. "https"
+	 * @param host the host name
+	 * @param port the port, -1 for the default port of the scheme
+	 ***************************************************************************/
+	static PFRHttp2Streams of(String scheme, String host, int port) {
+		String origin = scheme + "://" + host + ( (port > 0) ? ":"+port : "" );
+		return streamsPerOrigin.computeIfAbsent(origin, PFRHttp2Streams::new);
+	}
+
+	/***************************************************************************
+	 * Opens a stream and runs the exchange if the origin has a free stream,
+	 * else the exchange is queued until a stream is closed.
+	 * Every exchange must call close() once it is completed.
+	 ***************************************************************************/
+	void open(Runnable exchange) {
+
+		if(tryOpen()) {
+			exchange.run();
+			return;
+		}
+
+		waiting.add(exchange);
+
+		// a stream might have been closed in the meantime
+		drain();
+	}
+
+	/***************************************************************************
+	 * Closes a stream and starts the next queued exchange.
+	 ***************************************************************************/
+	void close() {
+		openStreams.decrementAndGet();
+		drain();
+	}
+
+	/***************************************************************************
+	 * Starts queued exchanges as long as there are free streams. Queued
+	 * exchanges are started on the async executor to not block the thread
+	 * that closed the stream, they have to carry the settings of their user,
+	 * see PFRHttp.withUserSettings().
+	 ***************************************************************************/
+	private void drain() {
+
+		while( !waiting.isEmpty() && tryOpen() ) {
+
+			Runnable exchange = waiting.poll();
+
+			if(exchange == null) {
+				openStreams.decrementAndGet();
+				break;
+			}
+
+			PFRHttp.runAsync(exchange);
+		}
+	}
+
+	/***************************************************************************
+	 * Opens a stream if the maximum is not reached.
+	 ***************************************************************************/
+	private boolean tryOpen() {
+
+		int max = PFRHttp.defaultHttp2MaxConcurrentStreams();
+
+		while(true) {
+			int current = openStreams.get();
+
+			if(current >= max) {
+				return false;
+			}
+
+			if(openStreams.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the number of streams currently open.
+	 ***************************************************************************/
+	public int getOpenStreams() {
+		return openStreams.get();
+	}
+
+	/***************************************************************************
+	 * Returns the number of exchanges waiting for a free stream.
+	 ***************************************************************************/
+	public int getWaitingStreams() {
+		return waiting.size();
+	}
+
+	/***************************************************************************
+	 * Returns the origin, e.g. "https://www.example.com".
+	 ***************************************************************************/
+	public String getOrigin() {
+		return origin;
+	}
+
+	/***************************************************************************
+	 * Reports the open and waiting streams of every HTTP/2 origin as gauges.
+	 ***************************************************************************/
+	public static void reportGauges() {
+
+		for(Entry<String, PFRHttp2Streams> entry : streamsPerOrigin.entrySet()) {
+			PFRHttp2Streams streams = entry.getValue();
+			HSR.addGauge("PFRHttp-H2OriginStreams " + entry.getKey(), BigDecimal.valueOf(streams.getOpenStreams()));
+			HSR.addGauge("PFRHttp-H2OriginStreamsWaiting " + entry.getKey(), BigDecimal.valueOf(streams.getWaitingStreams()));
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package com.performetriks.performator.http;
 
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 import com.google.gson.JsonObject;
 import com.performetriks.performator.base.PFRContext;
 import com.performetriks.performator.http.PFRHttp.PFRHttpSection;
@@ -16,6 +19,9 @@ import com.xresch.xrutils.utils.XRText.CheckType;
  ***************************************************************************/
 public class PFRHttpCheck {
 	
+	// the flags HSR.Text.checkTextForContent() compiles MATCH_REGEX with
+	static final int REGEX_FLAGS = Pattern.MULTILINE | Pattern.DOTALL;
+	
 	private CheckType checkType = null;
 	private PFRHttpSection section = PFRHttpSection.BODY;
 	private PFRHttpCheckCustom customCheck = null;
@@ -131,12 +137,31 @@ public class PFRHttpCheck {
 		
 		return success;
 	}
+	/***********************************************
+	 * Returns a matcher to evaluate this check while
+	 * the body is read, or null if the check needs 
+	 * the whole body.
+	 ***********************************************/
+	PFRBodyMatcher createBodyMatcher() {
+		
+		if(customCheck != null || section != PFRHttpSection.BODY) {
+			return null;
+		}
+		
+		return PFRBodyMatcher.create(checkType, valueToCheck);
+	}
+	
 	/***********************************************
 	 * 
 	 ***********************************************/
 	private boolean checkBody(PFRHttpResponse r) {
 		
-		boolean success = HSR.Text.checkTextForContent(checkType, r.body, valueToCheck);
+		// evaluated while the body was read
+		Boolean streamed = r.getStreamedCheckResult(this);
+		
+		boolean success = (streamed != null) 
+						? streamed 
+						: checkText(r.getBody());
 		
 		if(!success) { logMessage(r); }
 		
@@ -153,7 +178,7 @@ public class PFRHttpCheck {
 		boolean success = false;
 		if(headers.has(headerName)) {
 			String headerValue = r.getHeadersAsJson().get(headerName).getAsString();
-			success = HSR.Text.checkTextForContent(checkType, headerValue, valueToCheck);
+			success = checkText(headerValue);
 		}else {
 			messageOnFail = "HTTP response check failed: Header \""+headerName+"\" was not present.";
 			success = false;
@@ -169,13 +194,37 @@ public class PFRHttpCheck {
 	 ***********************************************/
 	private boolean checkStatus(PFRHttpResponse r) {
 		
-		boolean success = HSR.Text.checkTextForContent(checkType, r.getStatus()+"", valueToCheck);
+		boolean success = checkText(r.getStatus()+"");
 		
 		if(!success) { logMessage(r); }
 		
 		return success;
 	}
 	
+	/***********************************************
+	 * Regex checks are evaluated like HSR does, but
+	 * with the patterns compiled once by 
+	 * PFRPatternCache. Null values and the other 
+	 * check types are evaluated by HSR.
+	 * An invalid regex fails the check.
+	 ***********************************************/
+	private boolean checkText(String text) {
+		
+		if(checkType != CheckType.MATCH_REGEX
+		|| text == null 
+		|| valueToCheck == null
+		){
+			return HSR.Text.checkTextForContent(checkType, text, valueToCheck);
+		}
+		
+		try {
+			return PFRPatternCache.get(valueToCheck, REGEX_FLAGS).matcher(text).find();
+		}catch(PatternSyntaxException e) {
+			messageOnFail = "HTTP response check failed: Invalid regular expression \""+valueToCheck+"\": "+e.getDescription();
+			return false;
+		}
+	}
+	
 	/***********************************************
 	 * 
 	 ***********************************************/
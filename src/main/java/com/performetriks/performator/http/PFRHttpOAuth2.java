@@ -0,0 +1,387 @@
+package com.performetriks.performator.http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/***************************************************************************
+ *
+ * Fetches OAuth2 access tokens from a token endpoint and caches them.
+ * Tokens are refreshed in the background before they expire, concurrent
+ * refreshes are collapsed into a single call of the token endpoint.
+ *
+ * The token is either shared by all users (default) or fetched per user
+ * (thread). Attach it to requests with PFRHttpRequestBuilder.setAuthOAuth2()
+ * or to all requests of a user with PFRHttp.defaultOAuth2().
+ *
+ * <pre>
+ * PFRHttpOAuth2 oauth = PFRHttpOAuth2
+ * 		.clientCredentials("https://idp.example.com/oauth/token", "client", "secret")
+ * 		.scope("api.read");
+ *
+ * PFRHttp.create("getOrders", url).setAuthOAuth2(oauth).send();
+ * </pre>
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRHttpOAuth2 {
+
+	public enum PFRGrantType{
+		  CLIENT_CREDENTIALS
+		, PASSWORD
+	}
+
+	private final PFRGrantType grantType;
+	private final String tokenURL;
+	private final String clientId;
+	private final String clientSecret;
+	private final String username;
+	private final String password;
+
+	private String scope = null;
+	private String metricName = null;
+	private boolean shared = true;
+	private long refreshBeforeMillis = 60_000;
+	private long defaultLifetimeMillis = 300_000;
+	private long retryBackoffMillis = 5_000;
+	
+	// the backoff doubles with every failure, up to this factor
+	private static final int MAX_BACKOFF_FACTOR = 16;
+
+	private final TokenHolder sharedHolder = new TokenHolder();
+	private final InheritableThreadLocal<TokenHolder> userHolder = new InheritableThreadLocal<>() {
+		@Override
+		protected TokenHolder initialValue() {
+			return new TokenHolder();
+		}
+		
+		@Override
+		protected TokenHolder childValue(TokenHolder parentValue) {
+			// the child thread starts with the token of the parent, but refreshes on its own
+			TokenHolder holder = new TokenHolder();
+			if(parentValue != null) { holder.token = parentValue.token; }
+			return holder;
+		}
+	};
+
+	/***************************************************************************
+	 * A fetched token.
+	 ***************************************************************************/
+	private record Token(String accessToken, String refreshToken, long refreshAtMillis, long expiresAtMillis) {}
+
+	/***************************************************************************
+	 * The current token and the refresh in flight.
+	 ***************************************************************************/
+	private static class TokenHolder {
+		volatile Token token = null;
+		final AtomicReference<CompletableFuture<Token>> inFlight = new AtomicReference<>();
+		
+		// set after a failed fetch, no new fetch is started before
+		volatile long retryAtMillis = 0;
+		volatile int failures = 0;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private PFRHttpOAuth2(PFRGrantType grantType, String tokenURL, String clientId, String clientSecret, String username, String password) {
+		this.grantType = grantType;
+		this.tokenURL = tokenURL;
+		this.clientId = clientId;
+		this.clientSecret = clientSecret;
+		this.username = username;
+		this.password = password;
+	}
+
+	/***************************************************************************
+	 * Creates a token manager using the client credentials grant.
+	 ***************************************************************************/
+	public static PFRHttpOAuth2 clientCredentials(String tokenURL, String clientId, String clientSecret) {
+		return new PFRHttpOAuth2(PFRGrantType.CLIENT_CREDENTIALS, tokenURL, clientId, clientSecret, null, null);
+	}
+
+	/***************************************************************************
+	 * Creates a token manager using the resource owner password grant.
+	 * Use a separate instance per user, or perUser() if all users share the
+	 * same credentials but need their own token.
+	 ***************************************************************************/
+	public static PFRHttpOAuth2 password(String tokenURL, String clientId, String clientSecret, String username, String password) {
+		return new PFRHttpOAuth2(PFRGrantType.PASSWORD, tokenURL, clientId, clientSecret, username, password);
+	}
+
+	/***************************************************************************
+	 * Set the scope requested for the token.
+	 ***************************************************************************/
+	public PFRHttpOAuth2 scope(String scope) {
+		this.scope = scope;
+		return this;
+	}
+
+	/***************************************************************************
+	 * Set a metric name to measure the calls of the token endpoint.
+	 * Default: null, not measured
+	 ***************************************************************************/
+	public PFRHttpOAuth2 metric(String metricName) {
+		this.metricName = metricName;
+		return this;
+	}
+
+	/***************************************************************************
+	 * Every user (thread) fetches its own token. Child threads start with a
+	 * copy of the token of their parent. The refresh of each user is
+	 * randomly spread over the refresh period, so the users do not call the
+	 * token endpoint at the same time.
+	 * Default: the token is shared by all users
+	 ***************************************************************************/
+	public PFRHttpOAuth2 perUser() {
+		this.shared = false;
+		return this;
+	}
+
+	/***************************************************************************
+	 * Set how long before the expiry the token is refreshed. Limited to half
+	 * the lifetime of a token.
+	 * Default: 60 seconds
+	 ***************************************************************************/
+	public PFRHttpOAuth2 refreshBefore(long millis) {
+		this.refreshBeforeMillis = Math.max(0, millis);
+		return this;
+	}
+
+	/***************************************************************************
+	 * Set the lifetime of tokens returned without "expires_in".
+	 * Default: 5 minutes
+	 ***************************************************************************/
+	public PFRHttpOAuth2 defaultLifetime(long millis) {
+		this.defaultLifetimeMillis = Math.max(0, millis);
+		return this;
+	}
+
+	/***************************************************************************
+	 * Set how long no new fetch is started after a fetch of the token failed.
+	 * Doubles with every further failure, up to 16 times the value.
+	 * Default: 5 seconds
+	 ***************************************************************************/
+	public PFRHttpOAuth2 retryBackoff(long millis) {
+		this.retryBackoffMillis = Math.max(0, millis);
+		return this;
+	}
+
+	/***************************************************************************
+	 * Returns a valid access token, fetches one if there is none. Triggers a
+	 * refresh in the background if the token expires soon. After a failed
+	 * fetch, the still valid token is returned, or null without calling the
+	 * token endpoint, until the retry backoff has passed.
+	 *
+	 * @return the access token or null if none could be fetched
+	 ***************************************************************************/
+	public String getAccessToken() {
+
+		TokenHolder holder = shared ? sharedHolder : userHolder.get();
+		Token token = holder.token;
+		long now = System.currentTimeMillis();
+
+		//--------------------------
+		// Valid
+		if(token != null && now < token.refreshAtMillis()) {
+			return token.accessToken();
+		}
+
+		boolean backoff = now < holder.retryAtMillis;
+
+		//--------------------------
+		// Expires soon: refresh in background
+		if(token != null && now < token.expiresAtMillis()) {
+			if(!backoff) { refresh(holder, true); }
+			return token.accessToken();
+		}
+
+		//--------------------------
+		// Failed recently: fail fast
+		if(backoff) {
+			return null;
+		}
+
+		//--------------------------
+		// None or expired: wait
+		Token fetched = refresh(holder, false).join();
+
+		return (fetched != null) ? fetched.accessToken() : null;
+	}
+
+	/***************************************************************************
+	 * Removes the cached token of the current user, or the shared token.
+	 * Useful if the server has rejected the token.
+	 ***************************************************************************/
+	public void invalidate() {
+		TokenHolder holder = shared ? sharedHolder : userHolder.get();
+		holder.token = null;
+	}
+
+	/***************************************************************************
+	 * Returns the refresh in flight or starts a new one.
+	 *
+	 * @param background true to fetch on the async executor, false to fetch
+	 * on the calling thread
+	 ***************************************************************************/
+	private CompletableFuture<Token> refresh(TokenHolder holder, boolean background) {
+
+		while(true) {
+
+			CompletableFuture<Token> current = holder.inFlight.get();
+			if(current != null) {
+				return current;
+			}
+
+			CompletableFuture<Token> created = new CompletableFuture<>();
+			if( !holder.inFlight.compareAndSet(null, created) ) {
+				continue;
+			}
+
+			Runnable fetch = () -> {
+				Token token = null;
+				try {
+					token = fetchToken(holder.token);
+					if(token != null) {
+						holder.token = token;
+					}
+				} catch (Throwable e) {
+					PFRHttp.logger.error("OAuth2: error while fetching token from "+tokenURL+": "+e.getMessage(), e);
+				} finally {
+					backoff(holder, token != null);
+					holder.inFlight.set(null);
+					
+					// keep using the previous token until it expires
+					Token previous = holder.token;
+					if(token == null && previous != null && System.currentTimeMillis() < previous.expiresAtMillis()) {
+						token = previous;
+					}
+					created.complete(token);
+				}
+			};
+
+			if(background) {
+				try {
+					PFRHttp.runAsync(fetch);
+				}catch(RejectedExecutionException e) {
+					fetch.run();
+				}
+			}else {
+				fetch.run();
+			}
+
+			return created;
+		}
+	}
+
+	/***************************************************************************
+	 * Resets the backoff after a successful fetch, extends it after a failed
+	 * one.
+	 ***************************************************************************/
+	private void backoff(TokenHolder holder, boolean success) {
+
+		if(success) {
+			holder.failures = 0;
+			holder.retryAtMillis = 0;
+			return;
+		}
+
+		int failures = holder.failures + 1;
+		holder.failures = failures;
+
+		long factor = 1L << Math.min(failures - 1, Integer.numberOfTrailingZeros(MAX_BACKOFF_FACTOR));
+		holder.retryAtMillis = System.currentTimeMillis() + retryBackoffMillis * factor;
+	}
+
+	/***************************************************************************
+	 * Calls the token endpoint. Uses the refresh token of the previous token
+	 * if available, falls back to the grant of this manager.
+	 ***************************************************************************/
+	private Token fetchToken(Token previous) {
+
+		if(previous != null && previous.refreshToken() != null) {
+			Token token = requestToken("grant_type=refresh_token&refresh_token="+PFRHttp.encode(previous.refreshToken()));
+			if(token != null) {
+				return token;
+			}
+		}
+
+		StringBuilder form = new StringBuilder();
+		if(grantType == PFRGrantType.PASSWORD) {
+			form.append("grant_type=password")
+				.append("&username=").append(PFRHttp.encode(username))
+				.append("&password=").append(PFRHttp.encode(password));
+		}else {
+			form.append("grant_type=client_credentials");
+		}
+
+		if(scope != null) {
+			form.append("&scope=").append(PFRHttp.encode(scope));
+		}
+
+		return requestToken(form.toString());
+	}
+
+	/***************************************************************************
+	 * Posts the form to the token endpoint and parses the token.
+	 ***************************************************************************/
+	private Token requestToken(String form) {
+
+		if(clientId != null) {
+			form += "&client_id="+PFRHttp.encode(clientId);
+		}
+		if(clientSecret != null) {
+			form += "&client_secret="+PFRHttp.encode(clientSecret);
+		}
+
+		PFRHttpResponse response = PFRHttp.create(metricName, tokenURL)
+				.POST()
+				.setAuthOAuth2(null)
+				.header("Accept", "application/json")
+				.body("application/x-www-form-urlencoded", form)
+				.throwOnFail(false)
+				.pause(0)
+				.send();
+
+		if(response == null || !response.isSuccess()) {
+			PFRHttp.logger.error("OAuth2: token endpoint "+tokenURL+" returned an error: "
+					+ ((response != null) ? response.getStatusWithReason() : "no response"));
+			return null;
+		}
+
+		//--------------------------
+		// Parse
+		JsonObject json = response.getBodyAsJsonObject();
+		if(json == null || !json.has("access_token")) {
+			PFRHttp.logger.error("OAuth2: token endpoint "+tokenURL+" did not return an access_token.");
+			return null;
+		}
+
+		String accessToken = json.get("access_token").getAsString();
+
+		JsonElement refreshElement = json.get("refresh_token");
+		String refreshToken = (refreshElement != null && !refreshElement.isJsonNull()) ? refreshElement.getAsString() : null;
+
+		long lifetimeMillis = defaultLifetimeMillis;
+		JsonElement expiresElement = json.get("expires_in");
+		if(expiresElement != null && !expiresElement.isJsonNull()) {
+			lifetimeMillis = expiresElement.getAsLong() * 1000;
+		}
+
+		//--------------------------
+		// Refresh Time
+		long refreshBefore = Math.min(refreshBeforeMillis, lifetimeMillis / 2);
+		
+		// spread the refreshes of the users
+		long jitter = ( !shared && refreshBefore > 0 ) ? ThreadLocalRandom.current().nextLong(refreshBefore) : 0;
+
+		long now = System.currentTimeMillis();
+
+		return new Token(accessToken, refreshToken, now + lifetimeMillis - refreshBefore - jitter, now + lifetimeMillis);
+	}
+}
@@ -8,46 +8,46 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.hc.client5.http.SystemDefaultDnsResolver;
-import org.apache.hc.client5.http.auth.AuthSchemeFactory;
-import org.apache.hc.client5.http.auth.AuthScope;
-import org.apache.hc.client5.http.auth.KerberosConfig;
-import org.apache.hc.client5.http.auth.KerberosCredentials;
-import org.apache.hc.client5.http.auth.NTCredentials;
-import org.apache.hc.client5.http.auth.StandardAuthScheme;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
+import org.apache.hc.client5.http.auth.UsernamePasswordCredentials;
 import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
 import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.cookie.CookieStore;
+import org.apache.hc.client5.http.impl.auth.BasicAuthCache;
 import org.apache.hc.client5.http.impl.auth.BasicScheme;
-import org.apache.hc.client5.http.impl.auth.BasicSchemeFactory;
-import org.apache.hc.client5.http.impl.auth.CredentialsProviderBuilder;
-import org.apache.hc.client5.http.impl.auth.DigestScheme;
-import org.apache.hc.client5.http.impl.auth.DigestSchemeFactory;
-import org.apache.hc.client5.http.impl.auth.KerberosScheme;
-import org.apache.hc.client5.http.impl.auth.KerberosSchemeFactory;
-import org.apache.hc.client5.http.impl.auth.NTLMScheme;
-import org.apache.hc.client5.http.impl.auth.NTLMSchemeFactory;
-import org.apache.hc.client5.http.impl.auth.SPNegoSchemeFactory;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpRequest;
 import org.apache.hc.core5.http.Method;
-import org.apache.hc.core5.http.config.RegistryBuilder;
-import org.apache.hc.core5.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.reactor.IOReactorConfig;
 import org.apache.hc.core5.util.TimeValue;
 import org.apache.hc.core5.util.Timeout;
-import org.ietf.jgss.GSSCredential;
-import org.ietf.jgss.GSSManager;
-import org.ietf.jgss.GSSName;
-import org.ietf.jgss.Oid;
 
+import com.performetriks.performator.http.PFRCredentialsCache.CachedCredentials;
+import com.performetriks.performator.http.PFRHttp.PFRBodyMode;
 import com.performetriks.performator.http.PFRHttp.PFRHttpAuthMethod;
+import com.xresch.hsr.base.HSR;
 import com.xresch.hsr.stats.HSRExpression.Operator;
 import com.xresch.hsr.stats.HSRRecordStats.HSRMetric;
 import com.xresch.hsr.stats.HSRSLA;
@@ -70,17 +70,31 @@ public class PFRHttpRequestBuilder {
 	
 	private static final String HEADER_CONTENT_TYPE = "content-type";
 	
+	// marks a context that got the credentials of a request
+	private static final String CONTEXT_AUTH_APPLIED = "pfr.auth.applied";
+	
+	// the credentials the preemptive schemes in the auth cache were created from, per host
+	private static final String CONTEXT_PREEMPTIVE_CREDENTIALS = "pfr.auth.preemptive";
+	
 	private static CloseableHttpClient httpClientSingle;
+	private static CloseableHttpAsyncClient httpAsyncClientSingle;
+	private static CloseableHttpAsyncClient httpH2ClientSingle;
+	
+	private static final String ACCEPT_ENCODING = String.join(", ", PFRHttp.getContentDecoders().keySet());
 	
 	private PFRHttpAuthMethod authMethod = PFRHttpAuthMethod.BASIC;
 	private String username = null;
 	private char[] pwdArray = null;
+	private PFRHttpOAuth2 oauth2 = PFRHttp.defaultOAuth2();
 	
 	boolean autoFailOnHTTPErrors = true;
 	boolean disableFollowRedirects = false;
 	
 	ByteSize measuredSize = null;
 	
+	PFRBodyMode bodyMode = PFRBodyMode.FULL;
+	int bodyCaptureBytes = 0;
+	
 	String metricName = null;
 	Method method = Method.GET;
 	String URL = null;
@@ -91,6 +105,11 @@ public class PFRHttpRequestBuilder {
 	long pauseMillisLower 		= PFRHttp.defaultPauseLower(); 
 	long pauseMillisUpper 		= PFRHttp.defaultPauseUpper(); 
 	boolean throwOnFail 		= PFRHttp.defaultThrowOnFail();
+	boolean debugLogAll 		= PFRHttp.debugLogAll();
+	boolean debugLogFail 		= PFRHttp.debugLogFail();
+	
+	// the session of the calling thread, async responses can be handled by other threads
+	Map<String, String> correlationValues = PFRHttp.correlationValues.get();
 	
 	record Range (String suffix, int rangeValue, int rangeInitial) {};
 	ArrayList<Range> ranges;
@@ -339,7 +358,7 @@ public class PFRHttpRequestBuilder {
 	
 	/***************************************************************************
 	 * Toggles the measurement of response size after unzipping.
-	 * This will measure the actual size of the received content in UTF8 encoding. 
+	 * This will measure the number of bytes of the received content after decompression. 
 	 * 
 	 * @param size that should be reported
 	 ***************************************************************************/
@@ -348,6 +367,40 @@ public class PFRHttpRequestBuilder {
 		return this;
 	}
 	
+	/***************************************************************************
+	 * Set how the response body is read. Use DISCARD or CAPTURE_FIRST_N if
+	 * the body is not needed, to not keep large responses in memory.
+	 * The size of the body is measured in every mode. 
+	 * Body checks of type CONTAINS, DOES_NOT_CONTAIN, EQUALS and MATCH_REGEX
+	 * are evaluated on the whole body while it is read, other checks only see
+	 * the captured part.
+	 * Default: FULL
+	 * 
+	 * @param mode how to read the body
+	 * @param captureBytes the number of bytes kept for CAPTURE_FIRST_N
+	 ***************************************************************************/
+	public PFRHttpRequestBuilder bodyMode(PFRBodyMode mode, int captureBytes) {
+		this.bodyMode = (mode != null) ? mode : PFRBodyMode.FULL;
+		this.bodyCaptureBytes = Math.max(0, captureBytes);
+		return this;
+	}
+	
+	/***************************************************************************
+	 * Reads the response body without keeping it, only the size is measured.
+	 * Same as bodyMode(PFRBodyMode.DISCARD, 0).
+	 ***************************************************************************/
+	public PFRHttpRequestBuilder discardBody() {
+		return bodyMode(PFRBodyMode.DISCARD, 0);
+	}
+	
+	/***************************************************************************
+	 * Keeps only the first bytes of the response body, the rest is read and
+	 * counted. Same as bodyMode(PFRBodyMode.CAPTURE_FIRST_N, maxBytes).
+	 ***************************************************************************/
+	public PFRHttpRequestBuilder captureBody(int maxBytes) {
+		return bodyMode(PFRBodyMode.CAPTURE_FIRST_N, maxBytes);
+	}
+	
 	/***************************************************************************
 	 * Set an SLA for this request. You can only set one SLA per request.
 	 ***************************************************************************/
@@ -400,6 +453,16 @@ public class PFRHttpRequestBuilder {
 		return this;
 	}
 	
+	/***************************************************************************
+	 * Set an OAuth2 token manager, the access token is sent as a bearer 
+	 * token in the Authorization header. Overrides PFRHttp.defaultOAuth2(),
+	 * null to send no token.
+	 ***************************************************************************/
+	public PFRHttpRequestBuilder setAuthOAuth2(PFRHttpOAuth2 oauth2) {
+		this.oauth2 = oauth2;
+		return this;
+	}
+	
 	/***************************************************************************
 	 * Add a request Body
 	 ***************************************************************************/
@@ -950,20 +1013,25 @@ public class PFRHttpRequestBuilder {
 	/***************************************************************************
 	 * Build and send the request asynchronously. Returns a 
 	 * CompletableFuture<PRFHttpResponse>.
+	 * If PFRHttp.defaultHttp2() is enabled, the request is executed by the 
+	 * HTTP/2 engine. If PFRHttp.defaultNonBlockingAsync() is enabled, the 
+	 * request is executed by the non-blocking engine, else send() is executed
+	 * on a separate thread.
 	 ***************************************************************************/
 	public CompletableFuture<PFRHttpResponse> sendAsync() {
-		if (PFRHttp.defaultUseVirtualThreads()) {
-			try {
-				java.lang.reflect.Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
-				ExecutorService virtualExec = (ExecutorService) m.invoke(null);
-				return CompletableFuture.supplyAsync(this::send, virtualExec);
-			} catch (Exception e) {
-				PFRHttp.logger.warn("Virtual Threads are not supported on this JVM. Falling back to standard ForkJoinPool.", e);
-				return CompletableFuture.supplyAsync(this::send);
-			}
-		} else {
-			return CompletableFuture.supplyAsync(this::send);
+		
+		if (PFRHttp.defaultHttp2()) {
+			return sendNonBlocking(true);
+		}
+		
+		if (PFRHttp.defaultNonBlockingAsync()) {
+			return sendNonBlocking(false);
 		}
+		
+		// the context of the user has to be taken from the calling thread
+		HttpClientContext userContext = PFRHttp.getContext();
+		
+		return PFRHttp.supplyAsync(() -> send(createSharedContext(userContext)));
 	}
 	
 	/***************************************************************************
@@ -981,10 +1049,11 @@ public class PFRHttpRequestBuilder {
 								.setConnectionManagerShared(true)
 								.setUserAgent(PFRHttp.defaultUserAgent())
 								.setConnectionManager(PFRHttp.getConnectionManager())
-								.setKeepAliveStrategy( (response, context) -> { return TimeValue.ofSeconds(60); }) // avoid ephemeral port exhaustion
-								.setConnectionReuseStrategy(DefaultConnectionReuseStrategy.INSTANCE)
-								//.evictExpiredConnections()
-								//.evictIdleConnections(TimeValue.ofSeconds(30))
+								.setKeepAliveStrategy(PFRHttp.defaultKeepAliveStrategy())
+								.setConnectionReuseStrategy(PFRConnectionReuseStrategy.INSTANCE)
+								.setRetryStrategy(new PFRRetryStrategy())
+								.setRequestExecutor(new PFRHttpTiming.RequestExecutor())
+								// expired and idle connections are evicted by PFRConnectionEvictor
 								;
 			
 				PFRHttp.httpClientAddProxy(clientBuilder);
@@ -1000,12 +1069,161 @@ public class PFRHttpRequestBuilder {
 		//return httpClient.get();
 	}
 	
+	/***************************************************************************
+	 * Returns the started client of the non-blocking engine.
+	 ***************************************************************************/
+	private static CloseableHttpAsyncClient getAsyncClient() throws Exception {
+		
+		synchronized (SYNC_LOCK_CLIENT) {
+			
+			if(httpAsyncClientSingle == null) {
+				HttpAsyncClientBuilder clientBuilder = 
+						HttpAsyncClients.custom()
+								.setConnectionManagerShared(true)
+								.setUserAgent(PFRHttp.defaultUserAgent())
+								.setConnectionManager(PFRHttp.getAsyncConnectionManager())
+								.setIOReactorConfig(createIOReactorConfig())
+								.setIOSessionListener(new PFRAddressStats.SessionListener())
+								.setKeepAliveStrategy(PFRHttp.defaultKeepAliveStrategy())
+								.setConnectionReuseStrategy(PFRConnectionReuseStrategy.INSTANCE)
+								.setRetryStrategy(new PFRRetryStrategy())
+								;
+				
+				PFRHttp.httpClientAddProxy(clientBuilder);
+				
+				httpAsyncClientSingle = clientBuilder.build();
+				httpAsyncClientSingle.start();
+			}
+		}
+		
+		return httpAsyncClientSingle;
+	}
+	
+	/***************************************************************************
+	 * Returns the started client of the HTTP/2 engine. The client keeps a 
+	 * single connection per host and multiplexes the requests as streams.
+	 ***************************************************************************/
+	private static CloseableHttpAsyncClient getHttp2Client() throws Exception {
+		
+		synchronized (SYNC_LOCK_CLIENT) {
+			
+			if(httpH2ClientSingle == null) {
+				H2AsyncClientBuilder clientBuilder = 
+						HttpAsyncClients.customHttp2()
+								.setUserAgent(PFRHttp.defaultUserAgent())
+								.setIOReactorConfig(createIOReactorConfig())
+								.setIOSessionListener(new PFRAddressStats.SessionListener())
+								.setH2Config(
+										H2Config.custom()
+											.setPushEnabled(false)
+											.build()
+									)
+								.setTlsStrategy(PFRHttp.getHttp2TlsStrategy())
+								.setDnsResolver(PFRHttp.getDnsResolver())
+								.setConnectionConfigResolver(host -> PFRHttp.getConnectionConfig(host.getHostName()))
+								.setRetryStrategy(new PFRRetryStrategy())
+								.setRoutePlanner(PFRSourceAddresses.createHttp2RoutePlanner())
+								;
+				
+				// the HTTP/2 connections are not pooled by a connection manager, let the client evict them
+				if(PFRHttp.defaultConnectionMaxIdle() > 0) {
+					clientBuilder.evictIdleConnections(TimeValue.ofMilliseconds(PFRHttp.defaultConnectionMaxIdle()));
+				}
+				
+				httpH2ClientSingle = clientBuilder.build();
+				httpH2ClientSingle.start();
+			}
+		}
+		
+		return httpH2ClientSingle;
+	}
+	
+	/***************************************************************************
+	 * Creates the I/O reactor config for the non-blocking engines.
+	 ***************************************************************************/
+	private static IOReactorConfig createIOReactorConfig() {
+		return IOReactorConfig.custom()
+					.setIoThreadCount(PFRHttp.defaultIOReactorThreads())
+					.setSoKeepAlive(true)
+					.setTcpNoDelay(true)
+					.build();
+	}
+	
+	/***************************************************************************
+	 * Creates the request config for this request.
+	 ***************************************************************************/
+	private RequestConfig createRequestConfig() {
+		return RequestConfig
+				.custom()
+				.setResponseTimeout(Timeout.ofMilliseconds(responseTimeoutMillis) )
+				.setRedirectsEnabled( ! disableFollowRedirects )
+				.build();
+	}
+	
+	/***************************************************************************
+	 * Returns the content type of the request body, adds the body charset if
+	 * the content-type header does not define one.
+	 ***************************************************************************/
+	private ContentType createBodyContentType() {
+		
+		ContentType type;
+
+	    if (!lowercaseHeaders.containsKey(HEADER_CONTENT_TYPE)) {
+	        type = ContentType.create("text/plain", bodyCharset);
+	    } else {
+	        type = ContentType.parse(lowercaseHeaders.get(HEADER_CONTENT_TYPE));
+
+	        if (type.getCharset() == null) {
+	            type = type.withCharset(bodyCharset);
+	        }
+	    }
+	    
+	    return type;
+	}
+	
+	/***************************************************************************
+	 * Adds the headers of this builder to the given request, and the bearer
+	 * token of the OAuth2 token manager. The token is only set on the 
+	 * request, the builder can be sent again with a refreshed token.
+	 ***************************************************************************/
+	private void applyHeaders(HttpRequest request) {
+		
+		if(lowercaseHeaders != null ) {
+			for(Entry<String, String> header : lowercaseHeaders.entrySet()) {
+				// add all headers except pseudo headers and headers automatically handled by Apache HTTP Client
+				String name = header.getKey();
+				
+				if( isIncludedHeader(name) ){
+					request.addHeader(header.getKey(), header.getValue());
+				}
+			}
+		}
+		
+		//----------------------------------
+		// Bearer Token
+		if(oauth2 != null) {
+			String accessToken = oauth2.getAccessToken();
+			if(accessToken != null) {
+				request.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken);
+			}
+		}
+	}
+	
 	/***************************************************************************
 	 * Build and send the request. Returns a 
 	 * PRFHttpResponse or null in case of errors.
+	 * The request uses the HTTP context of the current thread, which keeps the
+	 * authentication state and the connection bound authentication (NTLM, 
+	 * Kerberos) across the requests of a user.
 	 ***************************************************************************/
-	@SuppressWarnings("deprecation")
 	public PFRHttpResponse send() {
+		return send(PFRHttp.getContext());
+	}
+	
+	/***************************************************************************
+	 * Build and send the request with the given HTTP context.
+	 ***************************************************************************/
+	private PFRHttpResponse send(HttpClientContext userContext) {
 		
 		try {
 			
@@ -1017,147 +1235,21 @@ public class PFRHttpRequestBuilder {
 			// Create Request Base
 			HttpUriRequestBase requestBase = new HttpUriRequestBase(method.toString(), URI.create(urlWithParams));
 			
-			requestBase.setConfig(
-					 RequestConfig
-							.custom()
-							.setResponseTimeout(Timeout.ofMilliseconds(responseTimeoutMillis) )
-							.setRedirectsEnabled( ! disableFollowRedirects )
-							.build()
-					);
+			requestBase.setConfig(createRequestConfig());
 			
 			//-----------------------------------
 			// Handle POST Body			
 			if (body != null) {
-
-			    ContentType type;
-
-			    if (!lowercaseHeaders.containsKey(HEADER_CONTENT_TYPE)) {
-			        type = ContentType.create("text/plain", bodyCharset);
-			    } else {
-			        type = ContentType.parse(lowercaseHeaders.get(HEADER_CONTENT_TYPE));
-
-			        if (type.getCharset() == null) {
-			            type = type.withCharset(bodyCharset);
-			        }
-			    }
-
-			    requestBase.setEntity( new StringEntity(body, type) );
+			    requestBase.setEntity( new StringEntity(body, createBodyContentType()) );
 			}
 			
 			//----------------------------------
-	        // Create HTTP Context (per request!)
-	        HttpClientContext context = HttpClientContext.create();
-
-	        //----------------------------------
-	        // Set Cookie Store (per request)
-	        if (PFRHttp.cookieStore.get() != null) {
-	            context.setCookieStore(PFRHttp.cookieStore.get());
-	        }
-			
-		    //----------------------------------
-			// Set Auth mechanism
-			if(username != null) {
-				
-				//---------------------------------
-				// Credential Provider
-				String scheme = requestBase.getUri().getScheme();
-				String hostname = requestBase.getUri().getHost();
-				int port = requestBase.getUri().getPort();
-				HttpHost targetHost = new HttpHost(scheme, hostname, port);
-
-				CredentialsProviderBuilder credProviderBuilder = CredentialsProviderBuilder.create();
-				
-				RegistryBuilder<AuthSchemeFactory> registryBuilder = RegistryBuilder.<AuthSchemeFactory>create();
-				
-				switch(this.authMethod) {
-				
-					//------------------------------
-					// Basic 
-					case BASIC:
-						//PRFHttp.addBasicAuthorizationHeader(headers, username, new String(pwdArray));
-						AuthScope authScopeBasic = new AuthScope(targetHost, null, new BasicScheme().getName());
-						credProviderBuilder.add(authScopeBasic, username, pwdArray);
-						registryBuilder.register(StandardAuthScheme.BASIC, BasicSchemeFactory.INSTANCE);
-					break;
-					
-					//------------------------------
-					// Basic 
-					case BASIC_HEADER:
-						PFRHttp.addBasicAuthorizationHeader(lowercaseHeaders, username, new String(pwdArray));
-					break;
-					
-					
-					//------------------------------
-					// Digest
-					case DIGEST:
-						AuthScope authScopeDigest = new AuthScope(targetHost, null, new DigestScheme().getName());
-						credProviderBuilder.add(authScopeDigest, username, pwdArray);
-						registryBuilder.register(StandardAuthScheme.DIGEST, DigestSchemeFactory.INSTANCE);
-					break;
-					
-					//------------------------------
-					// NTLM
-					case NTLM:
-						String ntlmUsername = username;
-						String ntlmDomain = null;
-						if(username.contains("@")) {
-							String[] splitted = username.split("@");
-							ntlmUsername = splitted[0];
-							ntlmDomain = splitted[1];
-						}
-						AuthScope authScopeNTLM = new AuthScope(targetHost, null, new NTLMScheme().getName());
-						
-						NTCredentials ntlmCreds = new NTCredentials(pwdArray, ntlmUsername, ntlmDomain, null);
-						credProviderBuilder.add(authScopeNTLM, ntlmCreds);
-						registryBuilder.register(StandardAuthScheme.NTLM, NTLMSchemeFactory.INSTANCE);
-					break;
-						
-					//------------------------------
-					// KERBEROS (experimental)
-					case KERBEROS:
-						GSSManager manager = GSSManager.getInstance();
-						GSSName name = manager.createName(username, GSSName.NT_USER_NAME);
-					    GSSCredential gssCred = manager.createCredential(name,GSSCredential.DEFAULT_LIFETIME, (Oid) null, GSSCredential.INITIATE_AND_ACCEPT);
-					    
-						AuthScope authScopeKerberos = new AuthScope(targetHost, null, new KerberosScheme().getName());
-					
-						KerberosCredentials kerbCred = new KerberosCredentials(gssCred);
-						credProviderBuilder.add(authScopeKerberos, kerbCred);
-						registryBuilder.register(StandardAuthScheme.SPNEGO, new SPNegoSchemeFactory(
-										                KerberosConfig.custom()
-								                        .setStripPort(KerberosConfig.Option.DEFAULT)
-								                        .setUseCanonicalHostname(KerberosConfig.Option.DEFAULT)
-								                        .build(),
-								                SystemDefaultDnsResolver.INSTANCE))
-								        .register(StandardAuthScheme.KERBEROS, KerberosSchemeFactory.DEFAULT);
-					break;
-					
-					default:
-					break;
-				
-				}
-				
-				//---------------------------------
-				// Credential Provider
-				if (this.authMethod != PFRHttpAuthMethod.BASIC_HEADER) {
-					context.setCredentialsProvider(credProviderBuilder.build());
-	                context.setAuthSchemeRegistry(registryBuilder.build());
-				}
-				
-			}
+			// Prepare HTTP Context (per user)
+			HttpClientContext context = prepareContext(userContext, requestBase.getUri());
 			
 			//-----------------------------------
 			// Handle headers
-			if(lowercaseHeaders != null ) {
-				for(Entry<String, String> header : lowercaseHeaders.entrySet()) {
-					// add all headers except pseudo headers and headers automatically handled by Apache HTTP Client
-					String name = header.getKey();
-					
-					if( isIncludedHeader(name) ){
-						requestBase.addHeader(header.getKey(), header.getValue());
-					}
-				}
-			}
+			applyHeaders(requestBase);
 
 			//-----------------------------------
 			// Connect and create response
@@ -1180,8 +1272,294 @@ public class PFRHttpRequestBuilder {
 		
 	}
 	
-
-
+	/***************************************************************************
+	 * Build and send the request with the non-blocking engine. The returned
+	 * future is completed with the response once it was received and the
+	 * checks have been evaluated. The future completes exceptionally with a
+	 * ResponseFailedException if throwOnFail is enabled and the request failed.
+	 * The pause of the request is applied before the future is completed.
+	 * 
+	 * Requests with a metric and an SLA are measured with HSR.start() and 
+	 * end() like send(), on an executor thread that waits for the exchange.
+	 * 
+	 * @param http2 true to use the HTTP/2 engine, the measured duration 
+	 * includes the time waiting for a free stream.
+	 ***************************************************************************/
+	private CompletableFuture<PFRHttpResponse> sendNonBlocking(boolean http2) {
+		
+		CompletableFuture<PFRHttpResponse> future = new CompletableFuture<>();
+		
+		try {
+			
+			//---------------------------------
+			// Create Request
+			URI uri = URI.create(buildURLwithParams());
+			SimpleHttpRequest request = SimpleHttpRequest.create(method, uri);
+			
+			request.setConfig(createRequestConfig());
+			
+			if (body != null) {
+				request.setBody(body, createBodyContentType());
+			}
+			
+			HttpClientContext context = prepareContext(createSharedContext(PFRHttp.getContext()), uri);
+			PFRHttpTiming timing = PFRHttpTiming.attach(context, metricName);
+			
+			applyHeaders(request);
+			
+			// the non-blocking client does not decompress by itself
+			if( !request.containsHeader(HttpHeaders.ACCEPT_ENCODING) ) {
+				request.addHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+			}
+			
+			//---------------------------------
+			// Execute
+			final CloseableHttpAsyncClient client = http2 ? getHttp2Client() : getAsyncClient();
+			final PFRHttp2Streams streams = http2 ? PFRHttp2Streams.of(uri.getScheme(), uri.getHost(), uri.getPort()) : null;
+			final CompletableFuture<SimpleHttpResponse> exchanged = new CompletableFuture<>();
+			
+			// queued and measured exchanges run on another thread
+			Runnable exchange = PFRHttp.withUserSettings(() -> {
+				
+				// used for sub-metrics measured on this thread
+				PFRHttp.asyncMetric(metricName);
+				PFRHttpTiming.current(timing);
+				
+				try {
+					AsyncRequestProducer producer = SimpleRequestProducer.create(request);
+					AsyncResponseConsumer<SimpleHttpResponse> consumer = SimpleResponseConsumer.create();
+					
+					if(timing != null) {
+						producer = timing.wrap(producer);
+						consumer = timing.wrap(consumer);
+					}
+					
+					client.execute(
+							  producer
+							, consumer
+							, context
+							, new FutureCallback<SimpleHttpResponse>() {
+								
+								@Override
+								public void completed(SimpleHttpResponse response) {
+									if(streams != null) { streams.close(); }
+									exchanged.complete(response);
+								}
+								
+								@Override
+								public void failed(Exception e) {
+									if(streams != null) { streams.close(); }
+									exchanged.completeExceptionally(e);
+								}
+								
+								@Override
+								public void cancelled() {
+									if(streams != null) { streams.close(); }
+									exchanged.completeExceptionally(new CancellationException("Request was cancelled."));
+								}
+							});
+				} catch (Exception e) {
+					if(streams != null) { streams.close(); }
+					exchanged.completeExceptionally(e);
+				} finally {
+					PFRHttp.asyncMetric(null);
+					PFRHttpTiming.current(null);
+				}
+			});
+			
+			if(metricName != null && sla != null) {
+				//---------------------------------
+				// Measure like send() to apply the SLA, 
+				// HSR.start() and end() need the same thread
+				PFRHttp.runAsync(() -> {
+					HSR.start(metricName, sla);
+					long startNanos = System.nanoTime();
+					startExchange(exchange, streams);
+					
+					SimpleHttpResponse response = null;
+					Exception exception = null;
+					try {
+						response = exchanged.join();
+					} catch (CancellationException e) {
+						exception = e;
+					} catch (CompletionException e) {
+						exception = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+					}
+					
+					completeNonBlocking(future, uri, response, exception, startNanos, context, true);
+				});
+			}else {
+				long startNanos = System.nanoTime();
+				exchanged.whenComplete((response, e) -> {
+					Exception exception = (e == null || e instanceof Exception) ? (Exception)e : new CompletionException(e);
+					PFRHttp.runAsync(() -> completeNonBlocking(future, uri, response, exception, startNanos, context, false));
+				});
+				startExchange(exchange, streams);
+			}
+			
+		} catch (Throwable e) { 
+			PFRHttp.logger.error("Exception while sending HTTP Request: "+e.getMessage(), e);
+			future.complete(new PFRHttpResponse(this));
+		} 
+		
+		return future;
+	}
 	
+	/***************************************************************************
+	 * Starts the exchange of a non-blocking request, or queues it until the
+	 * HTTP/2 origin has a free stream.
+	 ***************************************************************************/
+	private static void startExchange(Runnable exchange, PFRHttp2Streams streams) {
+		if(streams != null) {
+			streams.open(exchange);
+		}else {
+			exchange.run();
+		}
+	}
+	
+	/***************************************************************************
+	 * Creates the response of a non-blocking request. Called outside of the 
+	 * I/O reactor threads, so the checks, measurements and the pause do not 
+	 * delay other requests.
+	 * 
+	 * @param measuring true if the measurement was started with HSR.start() 
+	 * on the current thread
+	 ***************************************************************************/
+	private void completeNonBlocking(
+			  CompletableFuture<PFRHttpResponse> future
+			, URI uri
+			, SimpleHttpResponse response
+			, Exception exception
+			, long startNanos
+			, HttpClientContext context
+			, boolean measuring
+			) {
+		
+		long durationNanos = System.nanoTime() - startNanos;
+		
+		// the handshake of the HTTP/2 connection opened for the request
+		PFRTlsStrategy.claimHandshake(context, PFRHttpTiming.of(context));
+		
+		try {
+			future.complete( new PFRHttpResponse(this, uri, response, exception, durationNanos, context, measuring) );
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+	}
+	
+	/***************************************************************************
+	 * Creates a context for a request that runs concurrently to the other 
+	 * requests of the user. The context of a user cannot be used by multiple
+	 * requests at the same time, the new context shares its cookie store, 
+	 * auth cache and user token.
+	 ***************************************************************************/
+	private static HttpClientContext createSharedContext(HttpClientContext userContext) {
+		
+		// make sure all the requests of the user work with the same auth cache
+		if(userContext.getAuthCache() == null) {
+			userContext.setAuthCache(new BasicAuthCache());
+		}
+		
+		HttpClientContext context = HttpClientContext.create();
+		context.setAuthCache(userContext.getAuthCache());
+		context.setAttribute(CONTEXT_PREEMPTIVE_CREDENTIALS, getPreemptiveCredentials(userContext));
+		context.setUserToken(userContext.getUserToken());
+		
+		CookieStore cookieStore = PFRCookieStore.unwrap(userContext.getCookieStore());
+		if(cookieStore instanceof PFRCookieStore) {
+			// the requests might run concurrently to the thread of the user
+			((PFRCookieStore)cookieStore).markShared();
+		}
+		context.setCookieStore(PFRCookieStore.bind(cookieStore, context));
+		
+		return context;
+	}
+	
+	/***************************************************************************
+	 * Returns the map of the credentials the preemptive schemes in the auth
+	 * cache of the context were created from, creates it if not present.
+	 ***************************************************************************/
+	@SuppressWarnings("unchecked")
+	private static Map<HttpHost, CachedCredentials> getPreemptiveCredentials(HttpClientContext context) {
+		
+		Object applied = context.getAttribute(CONTEXT_PREEMPTIVE_CREDENTIALS);
+		if(applied == null) {
+			// shared with the concurrent requests of the user
+			applied = new ConcurrentHashMap<HttpHost, CachedCredentials>();
+			context.setAttribute(CONTEXT_PREEMPTIVE_CREDENTIALS, applied);
+		}
+		
+		return (Map<HttpHost, CachedCredentials>)applied;
+	}
+	
+	/***************************************************************************
+	 * Prepares the HTTP context for a request, including the cookie store and
+	 * the authentication.
+	 ***************************************************************************/
+	private HttpClientContext prepareContext(HttpClientContext context, URI uri) throws Exception {
+		
+		//----------------------------------
+		// Set Cookie Store (per user)
+		if (context.getCookieStore() == null && PFRHttp.cookieStore.get() != null) {
+			context.setCookieStore(PFRCookieStore.bind(PFRHttp.cookieStore.get(), context));
+		}
+		
+		//----------------------------------
+		// Source Address (per user)
+		PFRSourceAddresses.attachUser(context);
+		
+		//----------------------------------
+		// Remove Auth of previous request
+		if(username == null || this.authMethod == PFRHttpAuthMethod.BASIC_HEADER) {
+			if(context.removeAttribute(CONTEXT_AUTH_APPLIED) != null) {
+				// the client sets its defaults again
+				context.setCredentialsProvider(null);
+				context.setAuthSchemeRegistry(null);
+			}
+		}
+		
+		//----------------------------------
+		// Set Auth mechanism
+		if(username != null) {
+			
+			if(this.authMethod == PFRHttpAuthMethod.BASIC_HEADER) {
+				PFRHttp.addBasicAuthorizationHeader(lowercaseHeaders, username, new String(pwdArray));
+				return context;
+			}
+			
+			//---------------------------------
+			// Credential Provider (cached per host and user)
+			HttpHost targetHost = new HttpHost(uri.getScheme(), uri.getHost(), uri.getPort());
+			
+			CachedCredentials credentials = PFRCredentialsCache.get(authMethod, targetHost, username, pwdArray);
+			
+			context.setCredentialsProvider(credentials.provider);
+			context.setAuthSchemeRegistry(credentials.registry);
+			context.setAttribute(CONTEXT_AUTH_APPLIED, Boolean.TRUE);
+			
+			//---------------------------------
+			// Preemptive Basic, skips the challenge
+			if(this.authMethod == PFRHttpAuthMethod.BASIC && PFRHttp.defaultPreemptiveAuth()) {
+				
+				if(context.getAuthCache() == null) {
+					context.setAuthCache(new BasicAuthCache());
+				}
+				
+				// replace the scheme if the user or password changed, or if 
+				// the client removed it after a failed authentication
+				Map<HttpHost, CachedCredentials> applied = getPreemptiveCredentials(context);
+				
+				if(applied.get(targetHost) != credentials 
+				|| context.getAuthCache().get(targetHost) == null) {
+					BasicScheme basicScheme = new BasicScheme();
+					basicScheme.initPreemptive(new UsernamePasswordCredentials(username, pwdArray));
+					context.getAuthCache().put(targetHost, basicScheme);
+					applied.put(targetHost, credentials);
+				}
+			}
+		}
+		
+		return context;
+	}
 	
-}
\ No newline at end of file
+}
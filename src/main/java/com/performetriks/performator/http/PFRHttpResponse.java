@@ -1,34 +1,58 @@
 package com.performetriks.performator.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.math.BigDecimal;
+import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
 import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
 import org.apache.hc.client5.http.cookie.Cookie;
 import org.apache.hc.client5.http.cookie.CookieStore;
+import org.apache.hc.client5.http.entity.InputStreamFactory;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EndpointDetails;
 import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpException;
 import org.apache.hc.core5.http.impl.EnglishReasonPhraseCatalog;
 import org.apache.hc.core5.http.io.HttpClientResponseHandler;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
 import org.apache.hc.core5.io.CloseMode;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Joiner;
-import com.google.common.base.Strings;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import com.performetriks.performator.base.PFR;
 import com.performetriks.performator.base.PFRContext;
+import com.performetriks.performator.http.PFRHttp.PFRBodyMode;
 import com.performetriks.performator.http.PFRHttpRequestBuilder.Range;
 import com.xresch.hsr.base.HSR;
 import com.xresch.hsr.stats.HSRRecord;
@@ -49,14 +73,49 @@ public class PFRHttpResponse {
 	
 	Logger responseLogger = (Logger) LoggerFactory.getLogger(PFRHttpResponse.class.getName());
 	
+	private static final Map<String, InputStreamFactory> contentDecoders = PFRHttp.getContentDecoders();
+	
+	// soft limit of arrays in most JVMs
+	private static final int MAX_BODY_ARRAY = Integer.MAX_VALUE - 8;
+	
+	// largest array allocated before the body is read
+	private static final int MAX_INITIAL_BODY_ARRAY = 64 * 1024;
+	
+	// default charsets of the mime types, the same HttpCore uses for its predefined content types
+	private static final Map<String, Charset> mimeTypeCharsets = new HashMap<>();
+	static {
+		for(ContentType type : new ContentType[] {
+				  ContentType.APPLICATION_ATOM_XML
+				, ContentType.APPLICATION_FORM_URLENCODED
+				, ContentType.APPLICATION_JSON
+				, ContentType.APPLICATION_SVG_XML
+				, ContentType.APPLICATION_XHTML_XML
+				, ContentType.APPLICATION_XML
+				, ContentType.MULTIPART_FORM_DATA
+				, ContentType.TEXT_HTML
+				, ContentType.TEXT_PLAIN
+				, ContentType.TEXT_XML
+			}) {
+			mimeTypeCharsets.put(type.getMimeType(), type.getCharset());
+		}
+	}
+	
 	private PFRHttpRequestBuilder request;
 	CloseableHttpClient httpClient = null;
+	private CookieStore cookieStore = null;
 	private URL url;
-	String body;
+	private byte[] bodyBytes = null;	// decompressed bytes, can be longer than the body
+	private int bodyLength = 0;
+	private Charset bodyCharset = StandardCharsets.UTF_8;
+	private String body = null;			// decoded from the bytes on first access
+	private long bodySize = 0;			// bytes received after decompression
+	private IdentityHashMap<PFRHttpCheck, Boolean> streamedCheckResults = null;
 	private int status = -1;		// HTTP Status code like 200, 302 etc
 	
 	private Header[] headers;
 	private JsonObject headersAsJsonCached;
+	private JsonElement bodyJsonCached = null;
+	private boolean bodyJsonParsed = false;
 	private LinkedHashMap<String,String> headersAsMapCached;
 	
 	HSRRecord record = null;
@@ -80,6 +139,7 @@ public class PFRHttpResponse {
 		
 		this.request = request;
 		this.httpClient = httpClient;
+		this.cookieStore = HttpClientContext.castOrCreate(context).getCookieStore();
 		
 		String metric = request.metricName;
 		//----------------------------------
@@ -94,6 +154,9 @@ public class PFRHttpResponse {
 		
 		//----------------------------------
 		// Send Request and Read Response
+		PFRHttpTiming timing = PFRHttpTiming.attach(context, metric);
+		PFRHttpTiming.current(timing);
+		long startNanos = System.nanoTime();
 		try {
 			
 			//--------------------------
@@ -112,8 +175,19 @@ public class PFRHttpResponse {
 
 							HttpEntity entity = response.getEntity();
 							if(entity != null) {
-								body = EntityUtils.toString(entity);
+								Charset charset = resolveCharset(ContentType.parseLenient(entity.getContentType()));
+								try (InputStream in = entity.getContent()) {
+									if(in == null) {
+										// no content
+									}else if(request.bodyMode == PFRBodyMode.FULL) {
+										readBodyFull(in, entity.getContentLength(), charset);
+									}else {
+										readBody(in, charset);
+									}
+								}
 							}
+							
+							if(timing != null) { timing.bodyEnded(); }
 						}
 						return true;
 					}
@@ -126,39 +200,93 @@ public class PFRHttpResponse {
 			}
 			
 			//--------------------------
-			// Do Checks
-			for(PFRHttpCheck check : request.checksList) {
-				
-				checksSuccessful &= check.check(this);
+			// Checks and Measurements
+			doChecksAndMeasurements(metric);
 				
-				if(!checksSuccessful) { 
-					record.status(HSRRecordStatus.Failed); //override status
-					break;
-				}
+			
+		} catch (Throwable e) {
+			
+			hasError = true;
+			
+			errorMessage = "Exception during HTTP request: "+e.getMessage();
+			responseLogger.warn(errorMessage, e);
+			
+			if(metric != null) { 
+				record = HSR.end(false, ""+status);
 			}
+
+			
+		}finally {
+			
+			PFRHttpTiming.current(null);
+			measureAddress(metric, context, System.nanoTime() - startNanos);
+			if(timing != null) { timing.report(isSuccess()); }
+			finish();
+			
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Creates the response for a request executed by the non-blocking engine.
+	 * The request duration is measured by the engine and reported with HSR.addMetric(), unless the
+	 * measurement was started with HSR.start() to apply the SLA of the request.
+	 * 
+	 * @param response the received response, null if the exchange failed
+	 * @param exception the exception that occurred, null if a response was received
+	 * @param durationNanos the duration of the exchange including the reading of the body
+	 * @param measuring true if the measurement was started with HSR.start() on the current thread
+	 ******************************************************************************************************/
+	protected PFRHttpResponse(PFRHttpRequestBuilder request, URI uri, SimpleHttpResponse response, Exception exception, long durationNanos, HttpClientContext context, boolean measuring) {
+		
+		this.request = request;
+		this.cookieStore = context.getCookieStore();
+		
+		String metric = request.metricName;
+		
+		try {
+			
+			url = uri.toURL();
 			
 			//--------------------------
-			// Additional Measurements
-			if(metric != null) {
-				//--------------------------
-				// Measure Range
-				if(request.ranges != null) {
+			// Read Response
+			if(exception != null) {
+				throw exception;
+			}
+			
+			if(response != null) {
+				status = response.getCode();
+				headers = response.getHeaders();
+				
+				byte[] bytes = response.getBodyBytes();
+				if(bytes != null) {
+					Header contentEncoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
 					
-					for(Range range : request.ranges) {
-						this.measureRange(range.suffix(), range.rangeValue(), range.rangeInitial());
+					if(request.bodyMode == PFRBodyMode.FULL) {
+						bytes = decodeContent(bytes, contentEncoding);
+						bodyBytes = bytes;
+						bodyLength = bytes.length;
+						bodySize = bytes.length;
+						bodyCharset = resolveCharset(response.getContentType());
+					}else {
+						try (InputStream in = decodeStream(new ByteArrayInputStream(bytes), contentEncoding)) {
+							readBody(in, resolveCharset(response.getContentType()));
+						}
 					}
 				}
-				
-				//--------------------------
-				// Measure Size
-				if(request.measuredSize != null) {
-					BigDecimal bodySize = getBodySize(request.measuredSize);
-					String suffix = "-Size" + ( (request.measuredSize != ByteSize.B) ? request.measuredSize.toString() : "Bytes" );
-					HSR.addGauge(metric+suffix, bodySize)
-						.status(record.status());
-				}
 			}
-				
+			
+			//--------------------------
+			// Report Measurement	
+			if(measuring) {
+				record = HSR.end( isSuccess(), ""+status);
+			}else if(metric != null) {
+				record = HSR.addMetric(metric, BigDecimal.valueOf(durationNanos / 1_000_000L));
+				if( !isSuccess() ) { record.status(HSRRecordStatus.Failed); }
+			}
+			
+			//--------------------------
+			// Checks and Measurements
+			doChecksAndMeasurements(metric);
 			
 		} catch (Throwable e) {
 			
@@ -167,38 +295,396 @@ public class PFRHttpResponse {
 			errorMessage = "Exception during HTTP request: "+e.getMessage();
 			responseLogger.warn(errorMessage, e);
 			
-			if(metric != null) { 
-				record = HSR.end(false, ""+status);
+			if(measuring) {
+				if(record == null) { record = HSR.end(false, ""+status); }
+			}else if(metric != null) { 
+				record = HSR.addMetric(metric, BigDecimal.valueOf(durationNanos / 1_000_000L))
+							.status(HSRRecordStatus.Failed);
 			}
-
 			
 		}finally {
 			
-			//-----------------------------
-			// Write Debug Log
-			if( PFRHttp.debugLogAll()
-			|| (PFRHttp.debugLogFail() && !this.isSuccess())
-			){
-				printDebugLog();
+			measureAddress(metric, context, durationNanos);
+			
+			PFRHttpTiming timing = PFRHttpTiming.of(context);
+			if(timing != null) { timing.report(isSuccess()); }
+			
+			finish();
+			
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Executes the checks and the additional measurements defined on the request.
+	 ******************************************************************************************************/
+	private void doChecksAndMeasurements(String metric) {
+		
+		//--------------------------
+		// Do Checks
+		for(PFRHttpCheck check : request.checksList) {
+			
+			checksSuccessful &= check.check(this);
+			
+			if(!checksSuccessful) { 
+				record.status(HSRRecordStatus.Failed); //override status
+				break;
 			}
+		}
+		
+		//--------------------------
+		// Additional Measurements
+		if(metric != null) {
+			//--------------------------
+			// Measure Range
+			if(request.ranges != null) {
 				
-			//-----------------------------
-			// Pause before continuing
-			if(request.pauseMillisUpper > 0) {
-			
-				if(request.pauseMillisLower == request.pauseMillisUpper) {
-					HSR.pause(request.pauseMillisUpper);
-				}else {
-					HSR.pause(request.pauseMillisLower, request.pauseMillisUpper);
+				for(Range range : request.ranges) {
+					this.measureRange(range.suffix(), range.rangeValue(), range.rangeInitial());
 				}
-				
 			}
 			
-			//-----------------------------
-			// Default Throw on Fail
-			if(request.throwOnFail) { this.throwOnFail(); }
+			//--------------------------
+			// Measure Size
+			if(request.measuredSize != null) {
+				BigDecimal bodySize = getBodySize(request.measuredSize);
+				String suffix = "-Size" + ( (request.measuredSize != ByteSize.B) ? request.measuredSize.toString() : "Bytes" );
+				HSR.addGauge(metric+suffix, bodySize)
+					.status(record.status());
+			}
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Reports the request for the IP address of the server it was sent to, if enabled with 
+	 * PFRHttp.defaultMeasurePerAddress(). Failed requests are counted as errors of the address.
+	 * 
+	 * @param context the context of the request, contains the endpoint the request was sent to
+	 ******************************************************************************************************/
+	private void measureAddress(String metric, HttpContext context, long durationNanos) {
+		
+		if(context == null) {
+			return;
+		}
+		
+		EndpointDetails details = HttpCoreContext.cast(context).getEndpointDetails();
+		if(details == null) {
+			return;
+		}
+		
+		String address = PFRAddressStats.getAddress( details.getRemoteAddress() );
+		if(address == null) {
+			return;
+		}
+		
+		boolean success = isSuccess();
+		
+		if(!success) {
+			PFRAddressStats.of(address).error();
+		}
+		
+		if(metric != null && PFRHttp.defaultMeasurePerAddress()) {
+			HSRRecord addressRecord = HSR.addMetric(PFRHttpTiming.names(metric).address(address), BigDecimal.valueOf(durationNanos / 1_000_000L));
+			if(!success) { addressRecord.status(HSRRecordStatus.Failed); }
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Writes the debug log, pauses and throws on fail if the request is set to do so.
+	 ******************************************************************************************************/
+	private void finish() {
+		
+		//-----------------------------
+		// Write Debug Log
+		if( request.debugLogAll
+		|| (request.debugLogFail && !this.isSuccess())
+		){
+			printDebugLog();
+		}
+			
+		//-----------------------------
+		// Pause before continuing
+		if(request.pauseMillisUpper > 0) {
+		
+			if(request.pauseMillisLower == request.pauseMillisUpper) {
+				HSR.pause(request.pauseMillisUpper);
+			}else {
+				HSR.pause(request.pauseMillisLower, request.pauseMillisUpper);
+			}
 			
 		}
+		
+		//-----------------------------
+		// Default Throw on Fail
+		if(request.throwOnFail) { this.throwOnFail(); }
+	}
+	
+	/******************************************************************************************************
+	 * Decodes content that was compressed by the server. Used for the non-blocking engine, as the 
+	 * blocking client decodes the content by itself.
+	 * 
+	 * @param bytes the raw bytes of the body
+	 * @param contentEncoding the content-encoding header, can be null
+	 ******************************************************************************************************/
+	private static byte[] decodeContent(byte[] bytes, Header contentEncoding) throws IOException {
+		
+		if(contentEncoding == null || contentEncoding.getValue() == null) {
+			return bytes;
+		}
+		
+		try (InputStream in = decodeStream(new ByteArrayInputStream(bytes), contentEncoding)) {
+			return in.readAllBytes();
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Returns a stream decoding the content that was compressed by the server, or the stream itself if 
+	 * the content encoding is not set or unknown.
+	 * 
+	 * @param contentEncoding the content-encoding header, can be null
+	 ******************************************************************************************************/
+	private static InputStream decodeStream(InputStream in, Header contentEncoding) throws IOException {
+		
+		if(contentEncoding == null || contentEncoding.getValue() == null) {
+			return in;
+		}
+		
+		InputStreamFactory decoder = contentDecoders.get(contentEncoding.getValue().trim().toLowerCase());
+		if(decoder == null) {
+			return in;
+		}
+		
+		return decoder.create(in);
+	}
+	
+	/******************************************************************************************************
+	 * Reads the whole body as bytes, decoded to a String when first accessed. Reads directly into an 
+	 * array sized by the content length if known, which is grown as needed.
+	 ******************************************************************************************************/
+	private void readBodyFull(InputStream in, long contentLength, Charset charset) throws IOException {
+		
+		// the content length is not trusted for more than the initial size, the array grows while reading
+		int size = (contentLength >= 0) ? (int)Math.min(contentLength, MAX_INITIAL_BODY_ARRAY) : 8192;
+		byte[] bytes = new byte[Math.max(size, 1)];
+		int length = 0;
+		
+		while(true) {
+			
+			if(length == bytes.length) {
+				if(length >= MAX_BODY_ARRAY) {
+					throw new IOException("Response body is too large to be kept in memory, use PFRBodyMode.DISCARD or CAPTURE_FIRST_N.");
+				}
+				bytes = Arrays.copyOf(bytes, (int)Math.min((long)length * 2, MAX_BODY_ARRAY));
+			}
+			
+			int read = in.read(bytes, length, bytes.length - length);
+			if(read == -1) { break; }
+			length += read;
+		}
+		
+		bodyBytes = bytes;
+		bodyLength = length;
+		bodySize = length;
+		bodyCharset = charset;
+	}
+	
+	/******************************************************************************************************
+	 * Reads the body as defined by the body mode of the request. Keeps the first bytes for 
+	 * CAPTURE_FIRST_N, drains the rest with a pooled buffer and counts the bytes.
+	 * The body checks that can be evaluated on a stream are evaluated on the whole body while it is read, 
+	 * see PFRBodyMatcher.
+	 ******************************************************************************************************/
+	private void readBody(InputStream in, Charset charset) throws IOException {
+		
+		int captureBytes = (request.bodyMode == PFRBodyMode.CAPTURE_FIRST_N) ? request.bodyCaptureBytes : 0;
+		CapturingInputStream capturing = new CapturingInputStream(in, captureBytes);
+		
+		//--------------------------
+		// Streamed Checks
+		IdentityHashMap<PFRHttpCheck, PFRBodyMatcher> matchers = null;
+		for(PFRHttpCheck check : request.checksList) {
+			PFRBodyMatcher matcher = check.createBodyMatcher();
+			if(matcher != null) {
+				if(matchers == null) { matchers = new IdentityHashMap<>(); }
+				matchers.put(check, matcher);
+			}
+		}
+		
+		//--------------------------
+		// Read
+		if(matchers == null) {
+			byte[] buffer = PFRBufferPool.acquireBytes();
+			try {
+				while( capturing.read(buffer) != -1 ) {
+					// counted and captured by the stream
+				}
+			}finally {
+				PFRBufferPool.release(buffer);
+			}
+		}else {
+			
+			char[] buffer = PFRBufferPool.acquireChars();
+			try {
+				Reader reader = new InputStreamReader(capturing, charset);
+				int read;
+				while( (read = reader.read(buffer)) != -1 ) {
+					for(PFRBodyMatcher matcher : matchers.values()) {
+						if( !matcher.isDone() ) { matcher.feed(buffer, 0, read); }
+					}
+				}
+			}finally {
+				PFRBufferPool.release(buffer);
+			}
+			
+			streamedCheckResults = new IdentityHashMap<>();
+			for(Entry<PFRHttpCheck, PFRBodyMatcher> entry : matchers.entrySet()) {
+				entry.getValue().end();
+				streamedCheckResults.put(entry.getKey(), entry.getValue().result());
+			}
+		}
+		
+		if(captureBytes > 0) {
+			bodyBytes = capturing.captured;
+			bodyLength = (capturing.count > capturing.capturedCount)
+						? trimToCharBoundary(capturing.captured, capturing.capturedCount, charset)
+						: capturing.capturedCount;
+			bodyCharset = charset;
+		}
+		bodySize = capturing.count;
+	}
+	
+	/******************************************************************************************************
+	 * Stores a correlation value in the session of the thread that created the request.
+	 ******************************************************************************************************/
+	void storeCorrelationValue(String name, String value) {
+		request.correlationValues.put(name, value);
+	}
+	
+	/******************************************************************************************************
+	 * Returns the result of a check that was evaluated while the body was read, or null.
+	 ******************************************************************************************************/
+	Boolean getStreamedCheckResult(PFRHttpCheck check) {
+		return (streamedCheckResults != null) ? streamedCheckResults.get(check) : null;
+	}
+	
+	/******************************************************************************************************
+	 * Returns the length of the bytes without the character cut off at the end, if any. Used when the 
+	 * capture of a body ended in the middle of a multi-byte character, which would else be decoded as 
+	 * a replacement character.
+	 ******************************************************************************************************/
+	static int trimToCharBoundary(byte[] bytes, int length, Charset charset) {
+		
+		if(length == 0) {
+			return length;
+		}
+		
+		//--------------------------
+		// UTF-8: Check Last Character
+		if(charset.equals(StandardCharsets.UTF_8)) {
+			
+			int start = length - 1;
+			while(start > 0 && start > length - 4 && (bytes[start] & 0xC0) == 0x80) {
+				start--;
+			}
+			
+			int lead = bytes[start] & 0xFF;
+			int charLength = (lead >= 0xF0) ? 4 
+						   : (lead >= 0xE0) ? 3 
+						   : (lead >= 0xC0) ? 2 
+						   : 1;
+			
+			return (start + charLength > length) ? start : length;
+		}
+		
+		if(charset.canEncode() && charset.newEncoder().maxBytesPerChar() <= 1) {
+			return length;
+		}
+		
+		//--------------------------
+		// Other Charsets: Decode
+		// the decoder stops before an incomplete character if more input is expected
+		CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		
+		ByteBuffer in = ByteBuffer.wrap(bytes, 0, length);
+		CharBuffer out = CharBuffer.allocate(1024);
+		while( decoder.decode(in, out, false).isOverflow() ) {
+			out.clear();
+		}
+		
+		return in.position();
+	}
+	
+	/******************************************************************************************************
+	 * Counts the bytes read from a stream and keeps a copy of the first bytes. The copy grows with the
+	 * bytes read, up to the number of bytes to capture.
+	 ******************************************************************************************************/
+	private static class CapturingInputStream extends FilterInputStream {
+		
+		private static final byte[] EMPTY = new byte[0];
+		private static final int INITIAL_CAPTURE = 1024;
+		
+		private final int captureBytes;
+		private byte[] captured = EMPTY;
+		private int capturedCount = 0;
+		long count = 0;
+		
+		CapturingInputStream(InputStream in, int captureBytes) {
+			super(in);
+			this.captureBytes = captureBytes;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b != -1) { 
+				if(capturedCount < captureBytes) {
+					ensureCapacity(capturedCount + 1);
+					captured[capturedCount++] = (byte)b; 
+				}
+				count++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if(read > 0) {
+				int copy = Math.min(read, captureBytes - capturedCount);
+				if(copy > 0) {
+					ensureCapacity(capturedCount + copy);
+					System.arraycopy(b, off, captured, capturedCount, copy);
+					capturedCount += copy;
+				}
+				count += read;
+			}
+			return read;
+		}
+		
+		/***********************************************
+		 * Grows the copy by doubling, up to captureBytes.
+		 ***********************************************/
+		private void ensureCapacity(int needed) {
+			if(needed > captured.length) {
+				int size = Math.max(needed, Math.max(captured.length * 2, INITIAL_CAPTURE));
+				captured = Arrays.copyOf(captured, Math.min(size, captureBytes));
+			}
+		}
+	}
+	
+	/******************************************************************************************************
+	 * Returns the charset of the content type. Same rules as EntityUtils.toString(): If the content type
+	 * does not define a charset, the default of the mime type is used, else UTF-8.
+	 ******************************************************************************************************/
+	private static Charset resolveCharset(ContentType contentType) {
+		
+		Charset charset = null;
+		if(contentType != null) {
+			charset = ContentType.getCharset(contentType, mimeTypeCharsets.get(contentType.getMimeType()));
+		}
+		
+		return (charset != null) ? charset : StandardCharsets.UTF_8;
 	}
 	
 	/******************************************************************************************************
@@ -209,7 +695,7 @@ public class PFRHttpResponse {
 		String paramsString = (request.params == null) ? "null" : Joiner.on(" | ").withKeyValueSeparator("=").join(request.params);
 		String headersString = (request.lowercaseHeaders == null) ? "null" : Joiner.on(" | ").withKeyValueSeparator("=").join(request.lowercaseHeaders);
 		
-		CookieStore cookies = PFRHttp.cookieStore.get();
+		CookieStore cookies = (cookieStore != null) ? cookieStore : PFRHttp.cookieStore.get();
 		
 		StringBuilder sb = new StringBuilder();
 		for (Cookie c : cookies.getCookies()) {
@@ -242,7 +728,7 @@ public class PFRHttpResponse {
 			.append(p+"Checks OK:  " + this.checksSuccessful())
 			.append(p+"HasError:   " + this.hasError()).append( ( (errorMessage == null) ? "" : ", Error: " + errorMessage.replace("\n", p)) )
 			.append(p+"Headers:    " + this.getHeadersAsJson().toString())
-			.append(p+"Body:"+ ( (body == null) ? "" : p + body.replace("\n", p)) )
+			.append(p+"Body:"+ ( (getBody() == null) ? "" : p + getBody().replace("\n", p)) )
 			.append("\n###################################################################################")
 			.append("\n#########################################")
 			.append("\n##################")
@@ -359,31 +845,75 @@ public class PFRHttpResponse {
 	
 	
 	/******************************************************************************************************
-	 * Get the body content of the response.
-	 * @return String or null on error
+	 * Get the body content of the response. The body is decoded with the charset of the content type
+	 * when this method is called the first time.
+	 * @return String or null on error, or if the body was discarded
 	 ******************************************************************************************************/
 	public String getBody() {
+		
+		if(body == null && bodyBytes != null) {
+			body = new String(bodyBytes, 0, bodyLength, bodyCharset);
+		}
+		
 		return body;
 	}
 	
 	/******************************************************************************************************
-	 * Get the response size of the response body as bytes in UTF-8 encoding.
-	 * @return size in bytes
+	 * Get a copy of the bytes of the response body, after decompression.
+	 * @return bytes or null on error, or if the body was discarded
 	 ******************************************************************************************************/
-	public long getBodySize() {
+	public byte[] getBodyAsBytes() {
 		
-		if(body == null) { return 0L; }
+		if(bodyBytes == null) { return null; }
 		
-		return body.getBytes(StandardCharsets.UTF_8).length;
+		return Arrays.copyOf(bodyBytes, bodyLength);
 	}
+	
+	/******************************************************************************************************
+	 * Get the bytes of the response body as a read-only buffer, without copying them.
+	 * @return buffer or null on error, or if the body was discarded
+	 ******************************************************************************************************/
+	public ByteBuffer getBodyAsByteBuffer() {
 		
+		if(bodyBytes == null) { return null; }
+		
+		return ByteBuffer.wrap(bodyBytes, 0, bodyLength).asReadOnlyBuffer();
+	}
+	
+	/******************************************************************************************************
+	 * Get a stream reading the bytes of the response body, without copying them.
+	 * @return stream or null on error, or if the body was discarded
+	 ******************************************************************************************************/
+	public InputStream getBodyAsInputStream() {
+		
+		if(bodyBytes == null) { return null; }
+		
+		return new ByteArrayInputStream(bodyBytes, 0, bodyLength);
+	}
+	
 	/******************************************************************************************************
-	 * Get the response size of the response body in UTF-8 encoding.
+	 * Get the charset used to decode the body. Taken from the content type, UTF-8 if not defined.
+	 ******************************************************************************************************/
+	public Charset getBodyCharset() {
+		return bodyCharset;
+	}
+	
+	/******************************************************************************************************
+	 * Get the size of the response body in bytes, as received after decompression. Counted in all body
+	 * modes, also if the body was discarded.
+	 * @return size in bytes
+	 ******************************************************************************************************/
+	public long getBodySize() {
+		return bodySize;
+	}
+		
+	/******************************************************************************************************
+	 * Get the size of the response body, as received after decompression.
 	 * @return byteSize the byte size the result should represent 
 	 ******************************************************************************************************/
 	public BigDecimal getBodySize(ByteSize byteSize) {
 		
-		if(body == null) { return BigDecimal.ZERO; }
+		if(bodySize == 0) { return BigDecimal.ZERO; }
 
 		long contentLength = getBodySize();
 		BigDecimal converted = byteSize.convertBytes(contentLength, 1);
@@ -392,91 +922,119 @@ public class PFRHttpResponse {
 	}
 	
 	/******************************************************************************************************
-	 * Get the body content of the response as a JsonObject.
-	 * @param url used for the request.
-	 * @return JsonObject or null in case of issues
+	 * Get a JsonReader reading the response body straight from its bytes, without decoding the body to 
+	 * a String first. Use this to read a few values of a large JSON response without parsing all of it.
+	 * @return JsonReader or null on error, or if the body was discarded
 	 ******************************************************************************************************/
-	public JsonElement getBodyAsJsonElement(){
+	public JsonReader getBodyAsJsonReader() {
+		
+		if(bodyBytes == null) { return null; }
+		
+		return new JsonReader(new InputStreamReader(getBodyAsInputStream(), bodyCharset));
+	}
+	
+	/******************************************************************************************************
+	 * Parses the body when called the first time and caches the result, also if parsing failed.
+	 * Only objects and arrays are accepted.
+	 ******************************************************************************************************/
+	private JsonElement getBodyAsJsonCached() {
+		
+		if(bodyJsonParsed) {
+			return bodyJsonCached;
+		}
+		
+		bodyJsonParsed = true;
 		
 		//----------------------------------
 		// Check Body
-		if(Strings.isNullOrEmpty(body)) {
+		if(bodyBytes == null || bodyLength == 0) {
 			responseLogger.error("Http Response was empty, cannot convert to a JsonElement.", new Exception());
 			return null;
 		}
 		
-		if(!body.trim().startsWith("{")
-		&& !body.trim().startsWith("[")
-		) {
-			String messagePart = (body.length() <= 100) ? body : body.substring(0, 95)+"... (truncated)";
-			responseLogger.error("Http Response was not a JsonElement: "+messagePart, new Exception());
+		//----------------------------------
+		// Parse Stream
+		JsonElement jsonElement;
+		try (JsonReader reader = getBodyAsJsonReader()){
+			jsonElement = JsonParser.parseReader(reader);
+		}catch(JsonParseException | IOException e) {
+			responseLogger.error("Error occured while converting http response body to JSON Element.", e);
 			return null;
 		}
 		
-		//----------------------------------
-		// Create Object
-		JsonElement jsonElement = PFR.JSON.fromJson(body);
-
-		if(jsonElement == null) {
-			responseLogger.error("Error occured while converting http response body to JSON Element.", new Exception());
+		if(!jsonElement.isJsonObject()
+		&& !jsonElement.isJsonArray()
+		) {
+			responseLogger.error("Http Response was not a JsonElement: "+getBodyMessagePart(), new Exception());
+			return null;
 		}
 		
-		return jsonElement;
-
+		bodyJsonCached = jsonElement;
+		return bodyJsonCached;
+	}
+	
+	/******************************************************************************************************
+	 * Returns the parsed body if one of the getBodyAsJson*() methods was called before, else null.
+	 ******************************************************************************************************/
+	JsonElement getBodyAsJsonIfParsed() {
+		return bodyJsonCached;
+	}
+	
+	/******************************************************************************************************
+	 * Returns the start of the body for log messages.
+	 ******************************************************************************************************/
+	private String getBodyMessagePart() {
+		
+		String start = (body != null) 
+				? body 
+				: new String(bodyBytes, 0, Math.min(bodyLength, 400), bodyCharset)
+				;
+		
+		return (start.length() <= 100) ? start : start.substring(0, 95)+"... (truncated)";
+	}
+	
+	/******************************************************************************************************
+	 * Get the body content of the response as a JsonElement. The body is parsed on the first call of any
+	 * of the getBodyAsJson*() methods, later calls return the same instance. Changes made to it are seen
+	 * by later calls.
+	 * @return JsonElement or null in case of issues
+	 ******************************************************************************************************/
+	public JsonElement getBodyAsJsonElement(){
+		return getBodyAsJsonCached();
 	}
 	
 	/******************************************************************************************************
-	 * Get the body content of the response as a JsonObject.
-	 * @param url used for the request.
+	 * Get the body content of the response as a JsonObject. The body is parsed once, see 
+	 * getBodyAsJsonElement().
 	 * @return JsonObject or null in case of issues
 	 ******************************************************************************************************/
 	public JsonObject getBodyAsJsonObject(){
 		
-		//----------------------------------
-		// Check Body
-		if(Strings.isNullOrEmpty(body)) {
-			responseLogger.error("Http Response was empty, cannot convert to a JsonElement.", new Exception());
-			return null;
-		}
+		JsonElement jsonElement = getBodyAsJsonCached();
 		
-		if(!body.trim().startsWith("{")) {
-			String messagePart = (body.length() <= 100) ? body : body.substring(0, 95)+"... (truncated)";
-			responseLogger.error("Http Response was not a JsonObject: "+messagePart, new Exception());
+		if(jsonElement == null) {
 			return null;
 		}
 		
-		//----------------------------------
-		// Create Object
-		JsonElement jsonElement = PFR.JSON.fromJson(body);
-		JsonObject jsonObject = jsonElement.getAsJsonObject();
-		
-		if(jsonObject == null) {
-			responseLogger.error("Error occured while converting http response body to JSON Object.", new Exception());
+		if(!jsonElement.isJsonObject()) {
+			responseLogger.error("Http Response was not a JsonObject: "+getBodyMessagePart(), new Exception());
+			return null;
 		}
 		
-		return jsonObject;
+		return jsonElement.getAsJsonObject();
 
 	}
 	
 	/******************************************************************************************************
-	 * Get the body content of the response as a JsonArray.
-	 * @param url used for the request.
-	 * @return JsonArray never null, empty array on error
+	 * Get the body content of the response as a JsonArray. The body is parsed once, see 
+	 * getBodyAsJsonElement().
+	 * @return JsonArray, empty array if the body is an object, null if the body is not JSON
 	 ******************************************************************************************************/
 	public JsonArray getBodyAsJsonArray(){
 		
-		//----------------------------------
-		// Check Body
-		if(Strings.isNullOrEmpty(body)) {
-			responseLogger.error("Http Response was empty, cannot convert to JSON.", new Exception());
-			return null;
-		}
+		JsonElement jsonElement = getBodyAsJsonCached();
 		
-		if(!body.trim().startsWith("{")
-		&& !body.trim().startsWith("[")
-		) {
-			String messagePart = (body.length() <= 100) ? body : body.substring(0, 95)+"... (truncated)";
-			responseLogger.error("Http Response was not JSON: "+messagePart, new Exception());
+		if(jsonElement == null) {
 			return null;
 		}
 		
@@ -484,11 +1042,6 @@ public class PFRHttpResponse {
 		// CreateArray
 		JsonArray jsonArray = new JsonArray();
 		
-		JsonElement jsonElement = PFR.JSON.fromJson(body);
-		if(jsonElement == null || jsonElement.isJsonNull()) {
-			return jsonArray;
-		}
-		
 		if(jsonElement.isJsonArray()) {
 			jsonArray = jsonElement.getAsJsonArray();
 		}else if(jsonElement.isJsonObject()) {
@@ -0,0 +1,564 @@
+package com.performetriks.performator.http;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLSession;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.EndpointDetails;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http.config.Http1Config;
+import org.apache.hc.core5.http.impl.io.HttpRequestExecutor;
+import org.apache.hc.core5.http.io.HttpClientConnection;
+import org.apache.hc.core5.http.io.HttpResponseInformationCallback;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.RequestChannel;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.Timeout;
+
+import com.xresch.hsr.base.HSR;
+import com.xresch.hsr.stats.HSRRecord;
+import com.xresch.hsr.stats.HSRRecord.HSRRecordStatus;
+
+/***************************************************************************
+ *
+ * Timestamps of the phases of a request: lease wait, DNS, connect, TLS,
+ * send, waiting for the server (TTFB) and download. Each phase is reported
+ * as a sub-metric if enabled with the respective PFRHttp.defaultMeasure*()
+ * method.
+ *
+ * An instance is attached to the context of a request and set as current
+ * timing of the thread executing it. The phases are recorded in primitive
+ * fields and reported together with HSR.addMetric() once the response has
+ * been read. The names of the sub-metrics are created once per metric.
+ *
+ * The send and receive timestamps are set by the RequestExecutor for the
+ * blocking engine, and by wrapping the request producer and response
+ * consumer for the non-blocking engines.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRHttpTiming {
+
+	static final String CONTEXT_TIMING = "pfr.timing";
+
+	private static final long UNSET = Long.MIN_VALUE;
+
+	private static final ThreadLocal<PFRHttpTiming> current = new ThreadLocal<>();
+	private static final ConcurrentHashMap<String, MetricNames> metricNamesCache = new ConcurrentHashMap<>();
+
+	private final MetricNames names;
+
+	// written by the I/O threads of the non-blocking engines, read after the response completed
+	private volatile long leaseStartNanos = UNSET;
+	private volatile long leaseEndNanos = UNSET;
+	private volatile long dnsStartNanos = UNSET;
+	private volatile long dnsEndNanos = UNSET;
+	private volatile long connectStartNanos = UNSET;
+	private volatile long connectEndNanos = UNSET;
+	private volatile long tlsStartNanos = UNSET;
+	private volatile long tlsEndNanos = UNSET;
+	private volatile long sendStartNanos = UNSET;
+	private volatile long sendEndNanos = UNSET;
+	private volatile long firstByteNanos = UNSET;
+	private volatile long bodyEndNanos = UNSET;
+
+	private volatile boolean reported = false;
+
+	/***************************************************************************
+	 *
+	 * The names of the sub-metrics of a metric.
+	 *
+	 ***************************************************************************/
+	static class MetricNames {
+
+		final String leaseWait;
+		final String dns;
+		final String connect;
+		final String tls;
+		final String send;
+		final String ttfb;
+		final String download;
+
+		private final String addressPrefix;
+		private final ConcurrentHashMap<String, String> perAddress = new ConcurrentHashMap<>();
+
+		private MetricNames(String metric) {
+			leaseWait = metric + "-LeaseWait";
+			dns = metric + "-DNS";
+			connect = metric + "-Connect";
+			tls = metric + "-TLS";
+			send = metric + "-Send";
+			ttfb = metric + "-TTFB";
+			download = metric + "-Download";
+			addressPrefix = metric + "-IP ";
+		}
+
+		/***************************************************************************
+		 * Returns the name of the metric for the IP address.
+		 ***************************************************************************/
+		String address(String address) {
+			return perAddress.computeIfAbsent(address, k -> addressPrefix + k);
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private PFRHttpTiming(MetricNames names) {
+		this.names = names;
+	}
+
+	/***************************************************************************
+	 * Returns the names of the sub-metrics of the metric.
+	 ***************************************************************************/
+	static MetricNames names(String metric) {
+		return metricNamesCache.computeIfAbsent(metric, MetricNames::new);
+	}
+
+	/***************************************************************************
+	 * Returns true if any of the sub-metrics is enabled.
+	 ***************************************************************************/
+	static boolean isEnabled() {
+		return PFRHttp.defaultMeasureLeaseWait()
+			|| PFRHttp.defaultMeasureDns()
+			|| PFRHttp.defaultMeasureConnect()
+			|| PFRHttp.defaultMeasureTls()
+			|| PFRHttp.defaultMeasureSend()
+			|| PFRHttp.defaultMeasureTtfb()
+			|| PFRHttp.defaultMeasureDownload();
+	}
+
+	/***************************************************************************
+	 * Attaches a new timing to the context, replacing the one of a previous
+	 * request. Returns null and removes the timing if the request is not
+	 * measured or no sub-metric is enabled.
+	 ***************************************************************************/
+	static PFRHttpTiming attach(HttpContext context, String metric) {
+
+		if(metric == null || !isEnabled() ) {
+			context.removeAttribute(CONTEXT_TIMING);
+			return null;
+		}
+
+		PFRHttpTiming timing = new PFRHttpTiming(names(metric));
+		context.setAttribute(CONTEXT_TIMING, timing);
+		return timing;
+	}
+
+	/***************************************************************************
+	 * Returns the timing attached to the context, or null.
+	 ***************************************************************************/
+	static PFRHttpTiming of(HttpContext context) {
+
+		if(context == null) {
+			return null;
+		}
+
+		Object timing = context.getAttribute(CONTEXT_TIMING);
+		return (timing instanceof PFRHttpTiming) ? (PFRHttpTiming)timing : null;
+	}
+
+	/***************************************************************************
+	 * Set the timing of the request executed by the current thread. Used
+	 * where no context is available, like the DNS resolver and the lease of
+	 * connections. Set to null to remove.
+	 ***************************************************************************/
+	static void current(PFRHttpTiming timing) {
+		if(timing == null) {
+			current.remove();
+		}else {
+			current.set(timing);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the timing of the request executed by the current thread, or
+	 * null.
+	 ***************************************************************************/
+	static PFRHttpTiming current() {
+		return current.get();
+	}
+
+	//-----------------------------------------
+	// Connection Phases
+	//-----------------------------------------
+	void leaseStarted()		{ leaseStartNanos = System.nanoTime(); }
+	void leaseEnded()		{ leaseEndNanos = System.nanoTime(); }
+	void dnsStarted()		{ dnsStartNanos = System.nanoTime(); }
+	void dnsEnded()			{ dnsEndNanos = System.nanoTime(); }
+	void connectStarted()	{ connectStartNanos = System.nanoTime(); }
+	void tlsStarted()		{ tlsStartNanos = System.nanoTime(); }
+
+	/***************************************************************************
+	 * The connection has been established. Reported right away if the 
+	 * request has already been reported, which can happen with the 
+	 * non-blocking engines when another request took the connection.
+	 ***************************************************************************/
+	void connectEnded() {
+		connectEndNanos = System.nanoTime();
+		if(reported && PFRHttp.defaultMeasureConnect()) {
+			report(names.connect, connectStartNanos, connectEndNanos, true);
+		}
+	}
+
+	/***************************************************************************
+	 * The TLS handshake has completed. Reported right away if the request has
+	 * already been reported.
+	 ***************************************************************************/
+	void tlsEnded() {
+		tlsEndNanos = System.nanoTime();
+		if(reported && PFRHttp.defaultMeasureTls()) {
+			report(names.tls, tlsStartNanos, tlsEndNanos, true);
+		}
+	}
+
+	/***************************************************************************
+	 * The TLS handshake of a connection opened by the HTTP/2 engine for the 
+	 * request, see PFRTlsStrategy. The connection is opened after the host 
+	 * was resolved, the connect ends where the handshake starts. Not 
+	 * recorded if the connect was measured already.
+	 ***************************************************************************/
+	void handshake(long startNanos, long endNanos) {
+		
+		if(connectStartNanos == UNSET && dnsEndNanos != UNSET && dnsEndNanos <= startNanos) {
+			connectStartNanos = dnsEndNanos;
+			connectEndNanos = startNanos;
+		}
+		
+		if(tlsStartNanos == UNSET) {
+			tlsStartNanos = startNanos;
+			tlsEndNanos = endNanos;
+		}
+	}
+
+	//-----------------------------------------
+	// Exchange Phases
+	//-----------------------------------------
+	/***************************************************************************
+	 * The request is about to be written. Resets the timestamps of a
+	 * previous exchange, e.g. before a redirect or a retry.
+	 ***************************************************************************/
+	void sendStarted() {
+		sendEndNanos = UNSET;
+		firstByteNanos = UNSET;
+		bodyEndNanos = UNSET;
+		sendStartNanos = System.nanoTime();
+	}
+
+	/***************************************************************************
+	 * The request has been written completely.
+	 ***************************************************************************/
+	void sendEnded() {
+		sendEndNanos = System.nanoTime();
+	}
+
+	/***************************************************************************
+	 * The final response headers have been received.
+	 ***************************************************************************/
+	void firstByte() {
+		firstByteNanos = System.nanoTime();
+	}
+
+	/***************************************************************************
+	 * The response body has been read completely.
+	 ***************************************************************************/
+	void bodyEnded() {
+		if(firstByteNanos != UNSET) {
+			bodyEndNanos = System.nanoTime();
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the connect time in nanoseconds, or -1 if not measured.
+	 ***************************************************************************/
+	long connectNanos() {
+		return duration(connectStartNanos, connectEndNanos);
+	}
+
+	/***************************************************************************
+	 * Returns the TLS handshake time in nanoseconds, or -1 if not measured.
+	 ***************************************************************************/
+	long tlsNanos() {
+		return duration(tlsStartNanos, tlsEndNanos);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static long duration(long startNanos, long endNanos) {
+		
+		if(startNanos == UNSET || endNanos == UNSET || endNanos < startNanos) {
+			return -1;
+		}
+		
+		return endNanos - startNanos;
+	}
+
+	/***************************************************************************
+	 * Reports the enabled sub-metrics for the phases that have been measured.
+	 * The connection phases are reported as successful, the exchange phases
+	 * with the status of the request.
+	 ***************************************************************************/
+	void report(boolean success) {
+
+		reported = true;
+
+		if(PFRHttp.defaultMeasureLeaseWait())	{ report(names.leaseWait, leaseStartNanos, leaseEndNanos, true); }
+		if(PFRHttp.defaultMeasureDns())			{ report(names.dns, dnsStartNanos, dnsEndNanos, true); }
+		if(PFRHttp.defaultMeasureConnect())		{ report(names.connect, connectStartNanos, connectEndNanos, true); }
+		if(PFRHttp.defaultMeasureTls())			{ report(names.tls, tlsStartNanos, tlsEndNanos, true); }
+		if(PFRHttp.defaultMeasureSend())		{ report(names.send, sendStartNanos, sendEndNanos, success); }
+		if(PFRHttp.defaultMeasureTtfb())		{ report(names.ttfb, sendEndNanos, firstByteNanos, success); }
+		if(PFRHttp.defaultMeasureDownload())	{ report(names.download, firstByteNanos, bodyEndNanos, success); }
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static void report(String name, long startNanos, long endNanos, boolean success) {
+
+		long nanos = duration(startNanos, endNanos);
+		if(nanos < 0) {
+			return;
+		}
+
+		HSRRecord record = HSR.addMetric(name, BigDecimal.valueOf( nanos / 1_000_000L ));
+		if(!success) { record.status(HSRRecordStatus.Failed); }
+	}
+
+	/***************************************************************************
+	 * Wraps the producer of a non-blocking request to record the send time.
+	 ***************************************************************************/
+	AsyncRequestProducer wrap(AsyncRequestProducer producer) {
+		return new TimedRequestProducer(producer, this);
+	}
+
+	/***************************************************************************
+	 * Wraps the consumer of a non-blocking request to record the time to
+	 * first byte and the download time.
+	 ***************************************************************************/
+	<T> AsyncResponseConsumer<T> wrap(AsyncResponseConsumer<T> consumer) {
+		return new TimedResponseConsumer<T>(consumer, this);
+	}
+
+	/***************************************************************************
+	 *
+	 * Request executor of the blocking engine, records the timestamps if a
+	 * timing is attached to the context of the request.
+	 *
+	 ***************************************************************************/
+	public static class RequestExecutor extends HttpRequestExecutor {
+
+		public RequestExecutor() {
+			super(Http1Config.DEFAULT, PFRConnectionReuseStrategy.INSTANCE, null);
+		}
+
+		@Override
+		public ClassicHttpResponse execute(ClassicHttpRequest request, HttpClientConnection conn,
+				HttpResponseInformationCallback informationCallback, HttpContext context) throws IOException, HttpException {
+
+			PFRHttpTiming timing = of(context);
+
+			if(timing == null) {
+				return super.execute(request, conn, informationCallback, context);
+			}
+
+			return super.execute(request, new TimedConnection(conn, timing), informationCallback, context);
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 * Decorator for the connection used by the RequestExecutor.
+	 * The send ends with the last flush before the response is read.
+	 *
+	 ***************************************************************************/
+	private static class TimedConnection implements HttpClientConnection {
+
+		private final HttpClientConnection delegate;
+		private final PFRHttpTiming timing;
+
+		TimedConnection(HttpClientConnection delegate, PFRHttpTiming timing) {
+			this.delegate = delegate;
+			this.timing = timing;
+		}
+
+		@Override
+		public void sendRequestHeader(ClassicHttpRequest request) throws HttpException, IOException {
+			timing.sendStarted();
+			delegate.sendRequestHeader(request);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+			timing.sendEnded();
+		}
+
+		@Override
+		public ClassicHttpResponse receiveResponseHeader() throws HttpException, IOException {
+
+			ClassicHttpResponse response = delegate.receiveResponseHeader();
+
+			// informational responses are followed by the final response
+			if(response != null && response.getCode() >= 200) {
+				timing.firstByte();
+			}
+
+			return response;
+		}
+
+		@Override public boolean isConsistent() { return delegate.isConsistent(); }
+		@Override public void terminateRequest(ClassicHttpRequest request) throws HttpException, IOException { delegate.terminateRequest(request); }
+		@Override public void sendRequestEntity(ClassicHttpRequest request) throws HttpException, IOException { delegate.sendRequestEntity(request); }
+		@Override public void receiveResponseEntity(ClassicHttpResponse response) throws HttpException, IOException { delegate.receiveResponseEntity(response); }
+		@Override public boolean isDataAvailable(Timeout timeout) throws IOException { return delegate.isDataAvailable(timeout); }
+		@Override public boolean isStale() throws IOException { return delegate.isStale(); }
+		@Override public void close() throws IOException { delegate.close(); }
+		@Override public void close(CloseMode closeMode) { delegate.close(closeMode); }
+		@Override public EndpointDetails getEndpointDetails() { return delegate.getEndpointDetails(); }
+		@Override public SocketAddress getLocalAddress() { return delegate.getLocalAddress(); }
+		@Override public SocketAddress getRemoteAddress() { return delegate.getRemoteAddress(); }
+		@Override public ProtocolVersion getProtocolVersion() { return delegate.getProtocolVersion(); }
+		@Override public SSLSession getSSLSession() { return delegate.getSSLSession(); }
+		@Override public boolean isOpen() { return delegate.isOpen(); }
+		@Override public Timeout getSocketTimeout() { return delegate.getSocketTimeout(); }
+		@Override public void setSocketTimeout(Timeout timeout) { delegate.setSocketTimeout(timeout); }
+	}
+
+	/***************************************************************************
+	 *
+	 * Decorator for the producer of a non-blocking request. The send ends
+	 * when the request head without body, or the end of the body has been
+	 * handed to the connection.
+	 *
+	 ***************************************************************************/
+	private static class TimedRequestProducer implements AsyncRequestProducer {
+
+		private final AsyncRequestProducer delegate;
+		private final PFRHttpTiming timing;
+
+		TimedRequestProducer(AsyncRequestProducer delegate, PFRHttpTiming timing) {
+			this.delegate = delegate;
+			this.timing = timing;
+		}
+
+		@Override
+		public void sendRequest(RequestChannel channel, HttpContext context) throws HttpException, IOException {
+
+			timing.sendStarted();
+
+			delegate.sendRequest(new RequestChannel() {
+				@Override
+				public void sendRequest(HttpRequest request, EntityDetails entityDetails, HttpContext context) throws HttpException, IOException {
+					channel.sendRequest(request, entityDetails, context);
+					if(entityDetails == null) {
+						timing.sendEnded();
+					}
+				}
+			}, context);
+		}
+
+		@Override
+		public void produce(DataStreamChannel channel) throws IOException {
+
+			delegate.produce(new DataStreamChannel() {
+
+				@Override
+				public void requestOutput() {
+					channel.requestOutput();
+				}
+
+				@Override
+				public int write(ByteBuffer src) throws IOException {
+					return channel.write(src);
+				}
+
+				@Override
+				public void endStream() throws IOException {
+					channel.endStream();
+					timing.sendEnded();
+				}
+
+				@Override
+				public void endStream(List<? extends Header> trailers) throws IOException {
+					channel.endStream(trailers);
+					timing.sendEnded();
+				}
+			});
+		}
+
+		@Override public boolean isRepeatable() { return delegate.isRepeatable(); }
+		@Override public void failed(Exception cause) { delegate.failed(cause); }
+		@Override public int available() { return delegate.available(); }
+		@Override public void releaseResources() { delegate.releaseResources(); }
+	}
+
+	/***************************************************************************
+	 *
+	 * Decorator for the consumer of a non-blocking request. The download ends
+	 * when the consumer has completed the response.
+	 *
+	 ***************************************************************************/
+	private static class TimedResponseConsumer<T> implements AsyncResponseConsumer<T> {
+
+		private final AsyncResponseConsumer<T> delegate;
+		private final PFRHttpTiming timing;
+
+		TimedResponseConsumer(AsyncResponseConsumer<T> delegate, PFRHttpTiming timing) {
+			this.delegate = delegate;
+			this.timing = timing;
+		}
+
+		@Override
+		public void consumeResponse(HttpResponse response, EntityDetails entityDetails, HttpContext context,
+				FutureCallback<T> resultCallback) throws HttpException, IOException {
+
+			timing.firstByte();
+
+			delegate.consumeResponse(response, entityDetails, context, new FutureCallback<T>() {
+
+				@Override
+				public void completed(T result) {
+					timing.bodyEnded();
+					if(resultCallback != null) { resultCallback.completed(result); }
+				}
+
+				@Override
+				public void failed(Exception e) {
+					if(resultCallback != null) { resultCallback.failed(e); }
+				}
+
+				@Override
+				public void cancelled() {
+					if(resultCallback != null) { resultCallback.cancelled(); }
+				}
+			});
+		}
+
+		@Override public void informationResponse(HttpResponse response, HttpContext context) throws HttpException, IOException { delegate.informationResponse(response, context); }
+		@Override public void failed(Exception cause) { delegate.failed(cause); }
+		@Override public void updateCapacity(CapacityChannel capacityChannel) throws IOException { delegate.updateCapacity(capacityChannel); }
+		@Override public void consume(ByteBuffer src) throws IOException { delegate.consume(src); }
+		@Override public void streamEnd(List<? extends Header> trailers) throws HttpException, IOException { delegate.streamEnd(trailers); }
+		@Override public void releaseResources() { delegate.releaseResources(); }
+	}
+}
@@ -0,0 +1,251 @@
+package com.performetriks.performator.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/***************************************************************************
+ *
+ * Decompresses gzip or deflate content with an Inflater and an input buffer
+ * taken from PFRBufferPool. Both are returned to the pool when the stream is
+ * closed.
+ *
+ * The gzip format is read like java.util.zip.GZIPInputStream does: the
+ * header is skipped, the CRC and size of the trailer are verified and
+ * concatenated members are read one after the other. The header is read on
+ * the first read, an empty stream is read as empty content.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRInflaterInputStream extends InflaterInputStream {
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final boolean gzip;
+	private final CRC32 crc;
+
+	private boolean headerRead = false;
+	private boolean eos = false;
+	private boolean released = false;
+
+	/***************************************************************************
+	 * Creates a stream for deflate content (zlib format).
+	 ***************************************************************************/
+	public static PFRInflaterInputStream deflate(InputStream in) {
+		return new PFRInflaterInputStream(in, false);
+	}
+
+	/***************************************************************************
+	 * Creates a stream for gzip content.
+	 ***************************************************************************/
+	public static PFRInflaterInputStream gzip(InputStream in) {
+		return new PFRInflaterInputStream(in, true);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private PFRInflaterInputStream(InputStream in, boolean gzip) {
+		// the buffer allocated by the super constructor is replaced with a pooled one
+		super(in, PFRBufferPool.acquireInflater(gzip), 1);
+		this.buf = PFRBufferPool.acquireBytes();
+		this.gzip = gzip;
+		this.crc = gzip ? new CRC32() : null;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		if(released) {
+			throw new IOException("Stream closed");
+		}
+
+		if(eos) {
+			return -1;
+		}
+
+		if(gzip && !headerRead) {
+			int first = in.read();
+			if(first == -1) {
+				eos = true;
+				return -1;
+			}
+			readHeader(in, first);
+			headerRead = true;
+		}
+
+		int read = super.read(b, off, len);
+
+		if(read == -1) {
+			if( !gzip || readTrailer() ) {
+				eos = true;
+				return -1;
+			}
+			// next member
+			return this.read(b, off, len);
+		}
+
+		if(gzip) {
+			crc.update(b, off, read);
+		}
+
+		return read;
+	}
+
+	/***************************************************************************
+	 * Returns the Inflater and the buffer to the pool.
+	 ***************************************************************************/
+	@Override
+	public void close() throws IOException {
+
+		if(released) {
+			return;
+		}
+
+		released = true;
+		try {
+			// does not end the Inflater, as it was not created by the super class
+			super.close();
+		}finally {
+			PFRBufferPool.release(inf, gzip);
+			PFRBufferPool.release(buf);
+		}
+	}
+
+	/***************************************************************************
+	 * Reads a gzip member header and returns its length in bytes.
+	 ***************************************************************************/
+	private int readHeader(InputStream source, int first) throws IOException {
+
+		if( (first | (readUByte(source) << 8)) != GZIP_MAGIC) {
+			throw new ZipException("Not in GZIP format");
+		}
+
+		if(readUByte(source) != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+
+		int flags = readUByte(source);
+
+		// modification time, extra flags and OS
+		skipBytes(source, 6);
+		int length = 10;
+
+		if( (flags & FEXTRA) == FEXTRA ) {
+			int extraLength = readUByte(source) | (readUByte(source) << 8);
+			skipBytes(source, extraLength);
+			length += extraLength + 2;
+		}
+
+		if( (flags & FNAME) == FNAME ) {
+			do { length++; } while (readUByte(source) != 0);
+		}
+
+		if( (flags & FCOMMENT) == FCOMMENT ) {
+			do { length++; } while (readUByte(source) != 0);
+		}
+
+		if( (flags & FHCRC) == FHCRC ) {
+			skipBytes(source, 2);
+			length += 2;
+		}
+
+		crc.reset();
+		return length;
+	}
+
+	/***************************************************************************
+	 * Verifies the trailer of a gzip member. Returns true if this was the last
+	 * member, false if the Inflater was reset to read the next member.
+	 ***************************************************************************/
+	private boolean readTrailer() throws IOException {
+
+		// the trailer might be partially in the input buffer
+		int remaining = inf.getRemaining();
+		InputStream source = (remaining > 0)
+				? new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining), in)
+				: in
+				;
+
+		long expectedCrc = readUInt(source);
+		long expectedSize = readUInt(source);
+
+		if(expectedCrc != crc.getValue()) {
+			throw new ZipException("Corrupt GZIP trailer");
+		}
+
+		if(expectedSize != (inf.getBytesWritten() & 0xffffffffL)) {
+			throw new ZipException("Corrupt GZIP trailer");
+		}
+
+		//--------------------------
+		// Concatenated Members
+		remaining -= 8;
+		if(remaining <= 0 && in.available() <= 0) {
+			return true;
+		}
+
+		int first = source.read();
+		if(first == -1) {
+			return true;
+		}
+
+		int headerLength;
+		try {
+			headerLength = readHeader(source, first);
+		}catch(IOException e) {
+			// trailing garbage is ignored
+			return true;
+		}
+
+		inf.reset();
+		if(remaining > headerLength) {
+			inf.setInput(buf, len - remaining + headerLength, remaining - headerLength);
+		}
+
+		return false;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static long readUInt(InputStream source) throws IOException {
+		long low = readUByte(source) | (readUByte(source) << 8);
+		long high = readUByte(source) | (readUByte(source) << 8);
+		return (high << 16) | low;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static int readUByte(InputStream source) throws IOException {
+		int b = source.read();
+		if(b == -1) {
+			throw new EOFException("Unexpected end of GZIP input stream");
+		}
+		return b;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static void skipBytes(InputStream source, int count) throws IOException {
+		for(int i = 0; i < count; i++) {
+			readUByte(source);
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package com.performetriks.performator.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.xresch.hsr.base.HSR;
+import com.xresch.xrutils.utils.XRText.CheckType;
+
+/***************************************************************************
+ *
+ * A JSONPath expression compiled once, to extract values from the JSON body
+ * of responses or to create checks on them. Compile it once and keep it,
+ * for example as a static constant:
+ *
+ * <pre>
+ * static final PFRJsonPath FIRST_ID = PFRJsonPath.compile("$.items[0].id");
+ * ...
+ * String id = FIRST_ID.extractString(response);
+ * </pre>
+ *
+ * Supported are the root "$", member names ".name" and "['name']", array
+ * indexes "[0]" and the wildcard ".*" or "[*]".
+ *
+ * The body is read with a JsonReader, only the values on the path are
+ * parsed, the others are skipped, and reading stops when the first value
+ * is found. If the body was already parsed with one of the
+ * getBodyAsJson*() methods of the response, the parsed body is used.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRJsonPath {
+
+	private final String path;
+	private final Step[] steps;
+
+	/***************************************************************************
+	 * A member name, an array index or a wildcard.
+	 ***************************************************************************/
+	private record Step(String name, int index) {
+
+		boolean isWildcard() { return name == null && index < 0; }
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private PFRJsonPath(String path, Step[] steps) {
+		this.path = path;
+		this.steps = steps;
+	}
+
+	/***************************************************************************
+	 * Compiles the expression.
+	 *
+	 * @param path the expression, e.g. "$.items[0].id"
+	 * @throws IllegalArgumentException if the expression is not supported
+	 ***************************************************************************/
+	public static PFRJsonPath compile(String path) {
+
+		if(path == null || !path.startsWith("$")) {
+			throw new IllegalArgumentException("JSON path must start with '$': "+path);
+		}
+
+		ArrayList<Step> steps = new ArrayList<>();
+
+		int i = 1;
+		while(i < path.length()) {
+
+			char c = path.charAt(i);
+
+			//--------------------------
+			// Dot Notation
+			if(c == '.') {
+				i++;
+				if(i >= path.length() || path.charAt(i) == '.') {
+					throw new IllegalArgumentException("Unsupported JSON path, deep scan or trailing dot: "+path);
+				}
+
+				if(path.charAt(i) == '*') {
+					steps.add(new Step(null, -1));
+					i++;
+					continue;
+				}
+
+				int end = i;
+				while(end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+					end++;
+				}
+
+				steps.add(new Step(path.substring(i, end), -1));
+				i = end;
+
+			//--------------------------
+			// Bracket Notation
+			}else if(c == '[') {
+				int close = path.indexOf(']', i);
+				if(close == -1) {
+					throw new IllegalArgumentException("Unclosed bracket in JSON path: "+path);
+				}
+
+				String inner = path.substring(i + 1, close).trim();
+
+				if(inner.equals("*")) {
+					steps.add(new Step(null, -1));
+				}else if(inner.length() >= 2
+					&& (inner.charAt(0) == '\'' || inner.charAt(0) == '"')
+					&& inner.charAt(inner.length() - 1) == inner.charAt(0)
+				) {
+					// names containing ']' are not supported
+					steps.add(new Step(inner.substring(1, inner.length() - 1), -1));
+				}else {
+					try {
+						int index = Integer.parseInt(inner);
+						if(index < 0) {
+							throw new IllegalArgumentException("Negative array index in JSON path: "+path);
+						}
+						steps.add(new Step(null, index));
+					}catch(NumberFormatException e) {
+						throw new IllegalArgumentException("Unsupported JSON path, filters and slices are not supported: "+path, e);
+					}
+				}
+
+				i = close + 1;
+
+			}else {
+				throw new IllegalArgumentException("Unexpected character '"+c+"' at position "+i+" in JSON path: "+path);
+			}
+		}
+
+		return new PFRJsonPath(path, steps.toArray(new Step[0]));
+	}
+
+	/***************************************************************************
+	 * Returns the first value of the path in the body of the response.
+	 *
+	 * @return value or null if not found or if the body is not JSON
+	 ***************************************************************************/
+	public JsonElement extract(PFRHttpResponse r) {
+		List<JsonElement> results = evaluate(r, true);
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	/***************************************************************************
+	 * Returns the first value of the path in the body of the response as a
+	 * string. Objects and arrays are returned as JSON.
+	 *
+	 * @return value or null if not found, if it is null or if the body is not
+	 * JSON
+	 ***************************************************************************/
+	public String extractString(PFRHttpResponse r) {
+		return asString(extract(r));
+	}
+
+	/***************************************************************************
+	 * Returns all the values of the path in the body of the response, more
+	 * than one if the path contains a wildcard.
+	 *
+	 * @return values, empty if not found or if the body is not JSON
+	 ***************************************************************************/
+	public List<JsonElement> extractAll(PFRHttpResponse r) {
+		return evaluate(r, false);
+	}
+
+	/***************************************************************************
+	 * Returns the first value of the path in a parsed element.
+	 *
+	 * @return value or null if not found
+	 ***************************************************************************/
+	public JsonElement extract(JsonElement element) {
+		ArrayList<JsonElement> results = new ArrayList<>();
+		evaluate(element, 0, results, true);
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	/***************************************************************************
+	 * Returns all the values of the path in a parsed element.
+	 ***************************************************************************/
+	public List<JsonElement> extractAll(JsonElement element) {
+		ArrayList<JsonElement> results = new ArrayList<>();
+		evaluate(element, 0, results, false);
+		return results;
+	}
+
+	/***************************************************************************
+	 * Creates a check on the first value of the path. The check fails if the
+	 * path is not found, also for DOES_NOT_CONTAIN.
+	 *
+	 * @param checkType how the value is compared
+	 * @param valueToCheck the expected value
+	 ***************************************************************************/
+	public PFRHttpCheck check(CheckType checkType, String valueToCheck) {
+
+		return new PFRHttpCheck( (check, r) -> {
+					String value = extractString(r);
+					return value != null && HSR.Text.checkTextForContent(checkType, value, valueToCheck);
+				})
+				.messageOnFail("HTTP response check failed: JSON path \""+path+"\" "+checkType+" \""+valueToCheck+"\"")
+				;
+	}
+
+	/***************************************************************************
+	 * Creates a check that fails if the path is not found in the body.
+	 ***************************************************************************/
+	public PFRHttpCheck checkExists() {
+
+		return new PFRHttpCheck( (check, r) -> extract(r) != null )
+				.messageOnFail("HTTP response check failed: JSON path \""+path+"\" was not found.")
+				;
+	}
+
+	/***************************************************************************
+	 * Returns the expression.
+	 ***************************************************************************/
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static String asString(JsonElement element) {
+
+		if(element == null || element.isJsonNull()) {
+			return null;
+		}
+
+		return element.isJsonPrimitive() ? element.getAsString() : element.toString();
+	}
+
+	/***************************************************************************
+	 * Uses the parsed body if available, else reads the body.
+	 ***************************************************************************/
+	private List<JsonElement> evaluate(PFRHttpResponse r, boolean firstOnly) {
+
+		ArrayList<JsonElement> results = new ArrayList<>();
+
+		if(r == null) {
+			return results;
+		}
+
+		JsonElement parsed = r.getBodyAsJsonIfParsed();
+		if(parsed != null) {
+			evaluate(parsed, 0, results, firstOnly);
+			return results;
+		}
+
+		JsonReader reader = r.getBodyAsJsonReader();
+		if(reader == null) {
+			return results;
+		}
+
+		try (reader){
+			evaluate(reader, 0, results, firstOnly);
+		}catch(JsonParseException | IOException | IllegalStateException e) {
+			r.responseLogger.error("Error occured while reading JSON path \""+path+"\" from http response body: "+e.getMessage());
+			results.clear();
+		}
+
+		return results;
+	}
+
+	/***************************************************************************
+	 * Reads the values of the path from the reader, skips all other values.
+	 * Returns true when reading can stop.
+	 ***************************************************************************/
+	private boolean evaluate(JsonReader reader, int stepIndex, List<JsonElement> results, boolean firstOnly) throws IOException {
+
+		if(stepIndex == steps.length) {
+			// throws at the end of a truncated body, parseReader() would return JsonNull
+			reader.peek();
+			results.add(JsonParser.parseReader(reader));
+			return firstOnly;
+		}
+
+		Step step = steps[stepIndex];
+		JsonToken token = reader.peek();
+
+		//--------------------------
+		// Object Members
+		if(token == JsonToken.BEGIN_OBJECT && step.index() < 0) {
+
+			reader.beginObject();
+			while(reader.hasNext()) {
+				String name = reader.nextName();
+				if(step.isWildcard() || name.equals(step.name())) {
+					if(evaluate(reader, stepIndex + 1, results, firstOnly)) { return true; }
+				}else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return false;
+		}
+
+		//--------------------------
+		// Array Elements
+		if(token == JsonToken.BEGIN_ARRAY && step.name() == null) {
+
+			reader.beginArray();
+			for(int i = 0; reader.hasNext(); i++) {
+				if(step.isWildcard() || i == step.index()) {
+					if(evaluate(reader, stepIndex + 1, results, firstOnly)) { return true; }
+				}else {
+					reader.skipValue();
+				}
+			}
+			reader.endArray();
+			return false;
+		}
+
+		reader.skipValue();
+		return false;
+	}
+
+	/***************************************************************************
+	 * Collects the values of the path in a parsed element.
+	 * Returns true when the search can stop.
+	 ***************************************************************************/
+	private boolean evaluate(JsonElement element, int stepIndex, List<JsonElement> results, boolean firstOnly) {
+
+		if(element == null) {
+			return false;
+		}
+
+		if(stepIndex == steps.length) {
+			results.add(element);
+			return firstOnly;
+		}
+
+		Step step = steps[stepIndex];
+
+		//--------------------------
+		// Object Members
+		if(element.isJsonObject() && step.index() < 0) {
+
+			JsonObject object = element.getAsJsonObject();
+			if(!step.isWildcard()) {
+				return evaluate(object.get(step.name()), stepIndex + 1, results, firstOnly);
+			}
+
+			for(Entry<String, JsonElement> member : object.entrySet()) {
+				if(evaluate(member.getValue(), stepIndex + 1, results, firstOnly)) { return true; }
+			}
+			return false;
+		}
+
+		//--------------------------
+		// Array Elements
+		if(element.isJsonArray() && step.name() == null) {
+
+			JsonArray array = element.getAsJsonArray();
+			if(!step.isWildcard()) {
+				return step.index() < array.size()
+						&& evaluate(array.get(step.index()), stepIndex + 1, results, firstOnly);
+			}
+
+			for(JsonElement item : array) {
+				if(evaluate(item, stepIndex + 1, results, firstOnly)) { return true; }
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,55 @@
+package com.performetriks.performator.http;
+
+import java.util.Iterator;
+
+import org.apache.hc.client5.http.ConnectionKeepAliveStrategy;
+import org.apache.hc.core5.http.HeaderElement;
+import org.apache.hc.core5.http.HeaderElements;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.message.MessageSupport;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.util.TimeValue;
+
+/***************************************************************************
+ *
+ * Keep-alive strategy honoring the timeout of the Keep-Alive header sent
+ * by the server. To not reuse a connection the server is about to close,
+ * the connection is kept one second shorter than the server timeout.
+ * If the server does not send a timeout, PFRHttp.defaultKeepAlive() is used.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+	public static final PFRKeepAliveStrategy INSTANCE = new PFRKeepAliveStrategy();
+
+	private static final long SAFETY_MARGIN_MILLIS = 1000;
+
+	@Override
+	public TimeValue getKeepAliveDuration(HttpResponse response, HttpContext context) {
+
+		Iterator<HeaderElement> it = MessageSupport.iterate(response, HeaderElements.KEEP_ALIVE);
+
+		while (it.hasNext()) {
+			HeaderElement element = it.next();
+
+			if (element.getValue() != null && element.getName().equalsIgnoreCase("timeout")) {
+				try {
+					long serverMillis = Long.parseLong(element.getValue().trim()) * 1000;
+
+					if(serverMillis > SAFETY_MARGIN_MILLIS) {
+						return TimeValue.ofMilliseconds(serverMillis - SAFETY_MARGIN_MILLIS);
+					}
+
+					return TimeValue.ofMilliseconds(serverMillis / 2);
+
+				} catch (NumberFormatException ignore) {
+					// use default
+				}
+			}
+		}
+
+		return TimeValue.ofMilliseconds(PFRHttp.defaultKeepAlive());
+	}
+}
@@ -0,0 +1,420 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Value;
+
+import com.performetriks.performator.http.PFRHttp.PFRProxy;
+import com.xresch.hsr.base.HSR;
+import com.xresch.xrscripting.XRScripting;
+import com.xresch.xrscripting.XRScriptingContext;
+import com.xresch.xrscripting.proxypac.HttpPacScriptMethods;
+
+/***************************************************************************
+ *
+ * Resolves the proxies of a URL with the proxy PAC script, shared by all
+ * threads.
+ *
+ * The script is evaluated in a small pool of script contexts, instead of a
+ * context per thread. Results are cached per scheme, host and port for a
+ * TTL and concurrent lookups of the same key wait for a single evaluation.
+ * The path of the URL is not part of the key, PAC scripts returning
+ * different proxies per path are not supported.
+ *
+ * The pool size and the TTL are set with PFRHttp.defaultPacContextPoolSize()
+ * and PFRHttp.defaultPacCacheTtl().
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRPacResolver {
+
+	private volatile Generation generation = null;
+
+	private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, CompletableFuture<List<PFRProxy>>> inFlight = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder evaluations = new LongAdder();
+	private final LongAdder loadFailures = new LongAdder();
+
+	// set after the script failed to load, no new attempt before
+	private volatile long retryAtMillis = 0;
+
+	/***************************************************************************
+	 * A loaded script and its pool of contexts. Replaced as a whole when the
+	 * script is reloaded, the contexts of a retired generation are closed
+	 * once the lookups using them are done.
+	 ***************************************************************************/
+	private static class Generation {
+
+		final String script;
+		final ArrayBlockingQueue<PacContext> idle;
+		final int maxContexts;
+		final AtomicInteger created = new AtomicInteger(0);
+		volatile boolean retired = false;
+
+		Generation(String script, int maxContexts) {
+			this.script = script;
+			this.maxContexts = maxContexts;
+			this.idle = new ArrayBlockingQueue<>(maxContexts);
+		}
+
+		/***************************************************************************
+		 * Closes the idle contexts, the borrowed ones are closed on release.
+		 ***************************************************************************/
+		void retire() {
+			retired = true;
+			closeIdle();
+		}
+
+		/***************************************************************************
+		 * Returns a borrowed context to the pool, or closes it if the generation
+		 * was retired in the meantime.
+		 ***************************************************************************/
+		void release(PacContext context) {
+			idle.offer(context);
+
+			// retired while the context was borrowed
+			if(retired) {
+				closeIdle();
+			}
+		}
+
+		/***************************************************************************
+		 *
+		 ***************************************************************************/
+		private void closeIdle() {
+			PacContext context;
+			while( (context = idle.poll()) != null ) {
+				context.close();
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * A script context and the GraalVM context it runs in, taken from the
+	 * result of the first evaluation. Null if the result had no context.
+	 ***************************************************************************/
+	private record PacContext(XRScriptingContext scripting, Context polyglot) {
+
+		/***************************************************************************
+		 * Closes the GraalVM context and releases its resources.
+		 ***************************************************************************/
+		void close() {
+
+			if(polyglot == null) {
+				return;
+			}
+
+			try {
+				polyglot.close();
+			}catch(RuntimeException e) {
+				PFRHttp.logger.warn("Error while closing a PAC script context: "+e.getMessage(), e);
+			}
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private record CacheEntry(List<PFRProxy> proxies, long expiresAtMillis) {}
+
+	/***************************************************************************
+	 * Sets the PAC script, removes the cached results of the previous script
+	 * and closes its contexts after the running lookups.
+	 *
+	 * @param pacScript the contents of the PAC file, null to unset
+	 ***************************************************************************/
+	public void setScript(String pacScript) {
+
+		Generation previous = generation;
+
+		if(pacScript == null) {
+			generation = null;
+		}else {
+			generation = new Generation(
+					  HttpPacScriptMethods.preparePacScript(pacScript)
+					, Math.max(1, PFRHttp.defaultPacContextPoolSize())
+				);
+			retryAtMillis = 0;
+		}
+
+		cache.clear();
+
+		if(previous != null) {
+			previous.retire();
+		}
+	}
+
+	/***************************************************************************
+	 * Returns false while loading the script is backed off after a failure.
+	 ***************************************************************************/
+	boolean canLoad() {
+		return System.currentTimeMillis() >= retryAtMillis;
+	}
+
+	/***************************************************************************
+	 * Counts a failed load of the script. No new attempt is made until the
+	 * backoff has passed, lookups return no proxies (DIRECT) in the meantime.
+	 ***************************************************************************/
+	void loadFailed(long backoffMillis) {
+		loadFailures.increment();
+		retryAtMillis = expiresAt(backoffMillis);
+	}
+
+	/***************************************************************************
+	 * Returns true if a PAC script is set.
+	 ***************************************************************************/
+	public boolean hasScript() {
+		return generation != null;
+	}
+
+	/***************************************************************************
+	 * Returns the proxies for the URL as defined by the PAC script. Returns an
+	 * empty list if no script is set.
+	 *
+	 * @param url the URL to call, its scheme, host and port are the cache key
+	 * @param host the host of the URL
+	 ***************************************************************************/
+	public List<PFRProxy> resolve(String url, String host) {
+
+		Generation current = generation;
+		if(current == null) {
+			return List.of();
+		}
+
+		String key = cacheKey(url, host);
+
+		//--------------------------
+		// Cached
+		CacheEntry entry = cache.get(key);
+		if(entry != null && System.currentTimeMillis() < entry.expiresAtMillis()) {
+			hits.increment();
+			return entry.proxies();
+		}
+
+		//--------------------------
+		// Evaluate once for all waiting threads
+		CompletableFuture<List<PFRProxy>> created = new CompletableFuture<>();
+		CompletableFuture<List<PFRProxy>> running = inFlight.putIfAbsent(key, created);
+
+		if(running != null) {
+			return running.join();
+		}
+
+		try {
+			List<PFRProxy> proxies = evaluate(current, url, host);
+
+			// do not cache results of a replaced script
+			if(current == generation) {
+				cache.put(key, new CacheEntry(proxies, expiresAt(PFRHttp.defaultPacCacheTtl())));
+			}
+
+			created.complete(proxies);
+			return proxies;
+
+		}catch(Throwable e) {
+			created.completeExceptionally(e);
+			throw e;
+		}finally {
+			inFlight.remove(key, created);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the cache key of the URL, e.g. "https://www.example.com:8443".
+	 * Falls back to the host if the URL cannot be parsed.
+	 ***************************************************************************/
+	static String cacheKey(String url, String host) {
+
+		try {
+			URI uri = URI.create(url);
+			if(uri.getScheme() != null && uri.getHost() != null) {
+				return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase() + ( (uri.getPort() > 0) ? ":"+uri.getPort() : "" );
+			}
+		}catch(IllegalArgumentException e) {
+			// not a valid URI
+		}
+
+		return host;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static long expiresAt(long ttlMillis) {
+		long now = System.currentTimeMillis();
+		return (ttlMillis >= Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + ttlMillis;
+	}
+
+	/***************************************************************************
+	 * Executes FindProxyForURL() with a context of the pool.
+	 ***************************************************************************/
+	private List<PFRProxy> evaluate(Generation current, String url, String host) {
+
+		evaluations.increment();
+
+		PacContext context = borrow(current);
+		try {
+			Value result = context.scripting().executeScript("FindProxyForURL('"+url+"', '"+host+"');");
+			return parseProxies( (result != null) ? result.asString() : null );
+		}finally {
+			current.release(context);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns an idle context, creates one if the pool is not full, else
+	 * waits for a context to be released. A lookup still running on a retired
+	 * generation gets a new context, which is closed on release.
+	 ***************************************************************************/
+	private static PacContext borrow(Generation current) {
+
+		PacContext context = current.idle.poll();
+		if(context != null) {
+			return context;
+		}
+
+		while(true) {
+			int count = current.created.get();
+
+			if(count >= current.maxContexts && !current.retired) {
+				try {
+					// the released contexts of a retired generation are closed, check again
+					context = current.idle.poll(100, TimeUnit.MILLISECONDS);
+					if(context != null) {
+						return context;
+					}
+					continue;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for a PAC script context.", e);
+				}
+			}
+
+			if(current.created.compareAndSet(count, count + 1)) {
+				try {
+					return createContext(current.script);
+				}catch(RuntimeException e) {
+					current.created.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static PacContext createContext(String script) {
+
+		XRScriptingContext context = XRScripting.createJavascriptContext().putMemberWithFunctions( new HttpPacScriptMethods() );
+
+		context.addScript("proxy.pac", script);
+		Value warmup = context.executeScript("FindProxyForURL('localhost:9090/test', 'localhost');");
+
+		return new PacContext(context, (warmup != null) ? warmup.getContext() : null);
+	}
+
+	/***************************************************************************
+	 * Parses the result of FindProxyForURL(), e.g. "PROXY proxy:8080; DIRECT".
+	 * Entries without host are skipped.
+	 ***************************************************************************/
+	static List<PFRProxy> parseProxies(String pacResult) {
+
+		ArrayList<PFRProxy> proxies = new ArrayList<PFRProxy>();
+
+		if(pacResult == null) {
+			return proxies;
+		}
+
+		for(String proxyDef : pacResult.split(";")) {
+			if(proxyDef.trim().isEmpty()) { continue; }
+
+			String[] splitted = proxyDef.trim().split(" ");
+
+			String host;
+			int port;
+
+			String type = splitted[0];
+			if(splitted.length > 1) {
+				String hostport = splitted[1];
+				if(hostport.indexOf(":") != -1) {
+					host = hostport.substring(0, hostport.indexOf(":"));
+					String portStr = hostport.substring(hostport.indexOf(":")+1);
+					try {
+						port = Integer.parseInt(portStr);
+					} catch (NumberFormatException e) {
+						PFRHttp.logger.error("Could not parse proxy port '{}', defaulting to 80.", portStr);
+						port = 80;
+					}
+				}else {
+					host = hostport;
+					port = 80;
+				}
+
+				proxies.add(new PFRProxy(type, host, port));
+			}
+		}
+
+		return List.copyOf(proxies);
+	}
+
+	/***************************************************************************
+	 * Removes all cached results.
+	 ***************************************************************************/
+	public void clear() {
+		cache.clear();
+	}
+
+	/***************************************************************************
+	 * Returns the number of lookups answered from the cache.
+	 ***************************************************************************/
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of evaluations of the PAC script.
+	 ***************************************************************************/
+	public long getEvaluations() {
+		return evaluations.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of failed loads of the script.
+	 ***************************************************************************/
+	public long getLoadFailures() {
+		return loadFailures.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of script contexts created for the current script.
+	 ***************************************************************************/
+	public int getContexts() {
+		Generation current = generation;
+		return (current != null) ? current.created.get() : 0;
+	}
+
+	/***************************************************************************
+	 * Reports the cache hits, evaluations, script contexts and failed loads as
+	 * HSR gauges.
+	 ***************************************************************************/
+	public void reportGauges() {
+		HSR.addGauge("PFRHttp-Pac-Hits", BigDecimal.valueOf(getHits()));
+		HSR.addGauge("PFRHttp-Pac-Evaluations", BigDecimal.valueOf(getEvaluations()));
+		HSR.addGauge("PFRHttp-Pac-Contexts", BigDecimal.valueOf(getContexts()));
+		HSR.addGauge("PFRHttp-Pac-LoadFailures", BigDecimal.valueOf(getLoadFailures()));
+	}
+}
@@ -0,0 +1,100 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.xresch.hsr.base.HSR;
+
+/***************************************************************************
+ *
+ * Caches compiled regular expressions, shared by all threads, so the regex
+ * checks and extractors compile each pattern once instead of on every
+ * evaluation.
+ *
+ * The cache is cleared when it holds more than MAX_PATTERNS patterns, to
+ * not grow without bounds if scripts build patterns from dynamic values.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRPatternCache {
+
+	private static final int MAX_PATTERNS = 10_000;
+
+	private static final ConcurrentHashMap<Key, Pattern> patterns = new ConcurrentHashMap<>();
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	/***************************************************************************
+	 * A regex and the flags it is compiled with.
+	 ***************************************************************************/
+	private record Key(String regex, int flags) {}
+
+	/***************************************************************************
+	 * Returns the compiled pattern of the regex.
+	 *
+	 * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+	 ***************************************************************************/
+	public static Pattern get(String regex) {
+		return get(regex, 0);
+	}
+
+	/***************************************************************************
+	 * Returns the pattern of the regex compiled with the given flags.
+	 *
+	 * @param flags the flags of Pattern.compile(), e.g. Pattern.DOTALL
+	 * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+	 ***************************************************************************/
+	public static Pattern get(String regex, int flags) {
+
+		Key key = new Key(regex, flags);
+
+		Pattern pattern = patterns.get(key);
+		if(pattern != null) {
+			hits.increment();
+			return pattern;
+		}
+
+		misses.increment();
+		pattern = Pattern.compile(regex, flags);
+
+		if(patterns.size() >= MAX_PATTERNS) {
+			patterns.clear();
+		}
+
+		patterns.put(key, pattern);
+		return pattern;
+	}
+
+	/***************************************************************************
+	 * Removes all cached patterns.
+	 ***************************************************************************/
+	public static void clear() {
+		patterns.clear();
+	}
+
+	/***************************************************************************
+	 * Returns the number of patterns taken from the cache.
+	 ***************************************************************************/
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of patterns that had to be compiled.
+	 ***************************************************************************/
+	public static long getMisses() {
+		return misses.sum();
+	}
+
+	/***************************************************************************
+	 * Reports the hit and miss counters as HSR gauges.
+	 ***************************************************************************/
+	public static void reportGauges() {
+		HSR.addGauge("PFRHttp-PatternCache-Hits", BigDecimal.valueOf(getHits()));
+		HSR.addGauge("PFRHttp-PatternCache-Misses", BigDecimal.valueOf(getMisses()));
+	}
+}
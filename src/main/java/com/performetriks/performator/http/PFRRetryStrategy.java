@@ -0,0 +1,72 @@
+package com.performetriks.performator.http;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+
+import org.apache.hc.client5.http.HttpRequestRetryStrategy;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ConnectionClosedException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.NoHttpResponseException;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.util.TimeValue;
+
+/***************************************************************************
+ *
+ * Decorator for HttpRequestRetryStrategy to count stale connection failures,
+ * which happen when the server closed a pooled connection before it was
+ * reused.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRRetryStrategy implements HttpRequestRetryStrategy {
+
+	private final HttpRequestRetryStrategy delegate;
+
+	public PFRRetryStrategy() {
+		this(DefaultHttpRequestRetryStrategy.INSTANCE);
+	}
+
+	public PFRRetryStrategy(HttpRequestRetryStrategy delegate) {
+		this.delegate = delegate;
+	}
+
+	/***************************************************************************
+	 * Returns true if the exception indicates that the connection was closed
+	 * by the server.
+	 ***************************************************************************/
+	private static boolean isStaleConnection(IOException exception) {
+		return exception instanceof NoHttpResponseException
+			|| exception instanceof ConnectionClosedException
+			|| (exception instanceof SocketException && !(exception instanceof ConnectException));
+	}
+
+	@Override
+	public boolean retryRequest(HttpRequest request, IOException exception, int execCount, HttpContext context) {
+
+		if(isStaleConnection(exception)) {
+			PFRConnectionEvictor.countStaleFailure(HttpClientContext.castOrCreate(context).getHttpRoute());
+		}
+
+		return delegate.retryRequest(request, exception, execCount, context);
+	}
+
+	@Override
+	public boolean retryRequest(HttpResponse response, int execCount, HttpContext context) {
+		return delegate.retryRequest(response, execCount, context);
+	}
+
+	@Override
+	public TimeValue getRetryInterval(HttpRequest request, IOException exception, int execCount, HttpContext context) {
+		return delegate.getRetryInterval(request, exception, execCount, context);
+	}
+
+	@Override
+	public TimeValue getRetryInterval(HttpResponse response, int execCount, HttpContext context) {
+		return delegate.getRetryInterval(response, execCount, context);
+	}
+}
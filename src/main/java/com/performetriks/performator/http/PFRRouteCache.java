@@ -0,0 +1,102 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.core5.http.HttpHost;
+
+import com.xresch.hsr.base.HSR;
+
+/***************************************************************************
+ *
+ * Caches the routes planned by the proxy route planner per target host
+ * (scheme, host and port). Routes resolved with the PAC script expire with
+ * the TTL of PFRHttp.defaultPacCacheTtl(), and all routes are removed when
+ * the PAC script is reloaded.
+ *
+ * The routes are cached without local address, the source address is
+ * added per request.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRRouteCache {
+
+	private final ConcurrentHashMap<HttpHost, CacheEntry> directRoutes = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<HttpHost, CacheEntry> pacRoutes = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private record CacheEntry(HttpRoute route, long expiresAtMillis) {}
+
+	/***************************************************************************
+	 * Returns the cached route of the target, or null.
+	 *
+	 * @param pac true for the routes resolved with the PAC script
+	 ***************************************************************************/
+	HttpRoute get(HttpHost target, boolean pac) {
+
+		CacheEntry entry = (pac ? pacRoutes : directRoutes).get(target);
+
+		if(entry != null && System.currentTimeMillis() < entry.expiresAtMillis()) {
+			hits.increment();
+			return entry.route();
+		}
+
+		misses.increment();
+		return null;
+	}
+
+	/***************************************************************************
+	 * Caches the route of the target.
+	 *
+	 * @param pac true for the routes resolved with the PAC script
+	 ***************************************************************************/
+	void put(HttpHost target, boolean pac, HttpRoute route) {
+
+		if(pac) {
+			long now = System.currentTimeMillis();
+			long ttl = PFRHttp.defaultPacCacheTtl();
+			long expiresAt = (ttl >= Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + ttl;
+			pacRoutes.put(target, new CacheEntry(route, expiresAt));
+		}else {
+			directRoutes.put(target, new CacheEntry(route, Long.MAX_VALUE));
+		}
+	}
+
+	/***************************************************************************
+	 * Removes all cached routes.
+	 ***************************************************************************/
+	public void clear() {
+		directRoutes.clear();
+		pacRoutes.clear();
+	}
+
+	/***************************************************************************
+	 * Returns the number of routes taken from the cache.
+	 ***************************************************************************/
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/***************************************************************************
+	 * Returns the number of routes that had to be planned.
+	 ***************************************************************************/
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/***************************************************************************
+	 * Reports the hit and miss counters as HSR gauges.
+	 ***************************************************************************/
+	public void reportGauges() {
+		HSR.addGauge("PFRHttp-RouteCache-Hits", BigDecimal.valueOf(getHits()));
+		HSR.addGauge("PFRHttp-RouteCache-Misses", BigDecimal.valueOf(getMisses()));
+	}
+}
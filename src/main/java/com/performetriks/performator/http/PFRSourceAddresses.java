@@ -0,0 +1,231 @@
+package com.performetriks.performator.http;
+
+import java.math.BigDecimal;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.client5.http.impl.DefaultSchemePortResolver;
+import org.apache.hc.client5.http.impl.routing.DefaultRoutePlanner;
+import org.apache.hc.client5.http.routing.HttpRoutePlanner;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.protocol.HttpContext;
+
+import com.performetriks.performator.http.PFRHttp.PFRSourceAddressSelection;
+import com.xresch.hsr.base.HSR;
+
+/***************************************************************************
+ *
+ * Selects the local address outgoing connections are bound to. Every
+ * local address has its own range of ephemeral ports, binding to multiple
+ * addresses raises the limit of concurrent connections to a single
+ * target IP and port.
+ *
+ * The address is selected per connection after the target host was
+ * resolved, from the addresses of the same family as the remote address.
+ * The addresses are set with PFRHttp.defaultSourceAddresses(), the
+ * selection with PFRHttp.defaultSourceAddressSelection().
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRSourceAddresses {
+
+	private static final InetAddress[] NONE = new InetAddress[0];
+
+	// the virtual user of the request, see PFRHttp.sourceAddressUser
+	private static final String CONTEXT_USER = "pfr.source.user";
+
+	private static volatile InetAddress[] addresses = NONE;
+
+	private static final AtomicInteger roundRobin = new AtomicInteger(0);
+	private static final AtomicInteger nextUser = new AtomicInteger(0);
+
+	private static final ConcurrentHashMap<String, PFRAddressStats> statsPerSource = new ConcurrentHashMap<>();
+
+	/***************************************************************************
+	 * Sets the local addresses, an empty array disables the binding.
+	 ***************************************************************************/
+	static void set(InetAddress[] sourceAddresses) {
+		addresses = (sourceAddresses != null) ? sourceAddresses.clone() : NONE;
+	}
+
+	/***************************************************************************
+	 * Returns a copy of the local addresses.
+	 ***************************************************************************/
+	static InetAddress[] get() {
+		return addresses.clone();
+	}
+
+	/***************************************************************************
+	 * Returns true if local addresses are set.
+	 ***************************************************************************/
+	static boolean isEnabled() {
+		return addresses.length > 0;
+	}
+
+	/***************************************************************************
+	 * Returns the number of the next virtual user.
+	 ***************************************************************************/
+	static int nextUser() {
+		return nextUser.getAndIncrement();
+	}
+
+	/***************************************************************************
+	 * Stores the virtual user of the calling thread in the context of a
+	 * request. The connection might be opened on another thread.
+	 ***************************************************************************/
+	static void attachUser(HttpContext context) {
+		context.setAttribute(CONTEXT_USER, PFRHttp.sourceAddressUser.get());
+	}
+
+	/***************************************************************************
+	 * Returns the virtual user stored in the context, or the one of the
+	 * calling thread if none is stored.
+	 ***************************************************************************/
+	private static int getUser(HttpContext context) {
+
+		Object user = (context != null) ? context.getAttribute(CONTEXT_USER) : null;
+
+		if(user instanceof Integer) {
+			return (Integer)user;
+		}
+
+		return PFRHttp.sourceAddressUser.get();
+	}
+
+	/***************************************************************************
+	 * Returns the local address a new connection to the remote address should
+	 * be bound to, or null to let the system choose.
+	 *
+	 * @param remote the resolved remote address, only local addresses of the
+	 *        same family are selected
+	 * @param context the context of the request, contains the virtual user
+	 ***************************************************************************/
+	static InetAddress select(InetAddress remote, HttpContext context) {
+
+		InetAddress[] current = addresses;
+
+		if(current.length == 0 || remote == null) {
+			return null;
+		}
+
+		//--------------------------
+		// Filter Address Family
+		boolean remoteIsV4 = remote instanceof Inet4Address;
+
+		ArrayList<InetAddress> candidates = new ArrayList<>(current.length);
+		for(InetAddress address : current) {
+			if( (address instanceof Inet4Address) == remoteIsV4 ) {
+				candidates.add(address);
+			}
+		}
+
+		if(candidates.isEmpty()) {
+			return null;
+		}
+
+		//--------------------------
+		// Select
+		int index;
+		if(PFRHttp.defaultSourceAddressSelection() == PFRSourceAddressSelection.PER_USER) {
+			index = getUser(context);
+		}else {
+			index = roundRobin.getAndIncrement();
+		}
+
+		return candidates.get(Math.floorMod(index, candidates.size()));
+	}
+
+	/***************************************************************************
+	 * Returns the local socket address for select(), or null to let the
+	 * system choose.
+	 ***************************************************************************/
+	static InetSocketAddress selectSocketAddress(InetAddress remote, HttpContext context) {
+		InetAddress source = select(remote, context);
+		return (source != null) ? new InetSocketAddress(source, 0) : null;
+	}
+
+	/***************************************************************************
+	 * Returns a route planner binding the routes to the selected local
+	 * address, used by the HTTP/2 engine only. The HTTP/2 client has no
+	 * connection manager, its connections can only be bound by the route,
+	 * every local address gets a separate connection per host.
+	 * The blocking and the non-blocking engine bind the connections in
+	 * PFRConnectionOperator and PFRAsyncConnectionManager.
+	 ***************************************************************************/
+	static HttpRoutePlanner createHttp2RoutePlanner() {
+
+		return new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE) {
+
+			@Override
+			protected InetAddress determineLocalAddress(HttpHost firstHop, HttpContext context) throws HttpException {
+
+				if( !isEnabled() ) {
+					return null;
+				}
+
+				// only the family is needed, resolved without measuring and without
+				// moving the address spreading of the connect
+				InetAddress remote = firstHop.getAddress();
+				if(remote == null) {
+					try {
+						InetAddress[] resolved = PFRHttp.getHostOverride(firstHop.getHostName());
+						if(resolved == null) {
+							resolved = PFRHttp.getDnsCache().resolve(firstHop.getHostName());
+						}
+						remote = (resolved != null && resolved.length > 0) ? resolved[0] : null;
+					}catch(UnknownHostException e) {
+						// the connect reports the error
+						return null;
+					}
+				}
+
+				return select(remote, context);
+			}
+		};
+	}
+
+	/***************************************************************************
+	 * Counts a failed connect from the given local address.
+	 ***************************************************************************/
+	static void connectFailed(InetSocketAddress local) {
+		if(local != null) {
+			of(local.getAddress()).error();
+		}
+	}
+
+	/***************************************************************************
+	 * Returns the stats of the given local address.
+	 ***************************************************************************/
+	static PFRAddressStats of(String address) {
+		return statsPerSource.computeIfAbsent(address, k -> new PFRAddressStats());
+	}
+
+	/***************************************************************************
+	 * Returns the stats of the given local address.
+	 ***************************************************************************/
+	static PFRAddressStats of(InetAddress address) {
+		return of(address.getHostAddress());
+	}
+
+	/***************************************************************************
+	 * Reports the open connections, opened connections and errors per local
+	 * address as HSR gauges.
+	 ***************************************************************************/
+	public static void reportGauges() {
+
+		for(Entry<String, PFRAddressStats> entry : statsPerSource.entrySet()) {
+			PFRAddressStats stats = entry.getValue();
+			HSR.addGauge("PFRHttp-SourceIP-OpenConnections " + entry.getKey(), BigDecimal.valueOf(stats.getOpenConnections()));
+			HSR.addGauge("PFRHttp-SourceIP-OpenedConnections " + entry.getKey(), BigDecimal.valueOf(stats.getOpenedConnections()));
+			HSR.addGauge("PFRHttp-SourceIP-Errors " + entry.getKey(), BigDecimal.valueOf(stats.getErrors()));
+		}
+	}
+}
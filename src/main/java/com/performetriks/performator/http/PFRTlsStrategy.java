@@ -0,0 +1,171 @@
+package com.performetriks.performator.http;
+
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.reactor.ssl.TlsDetails;
+import org.apache.hc.core5.reactor.ssl.TransportSecurityLayer;
+import org.apache.hc.core5.util.Timeout;
+
+/***************************************************************************
+ *
+ * Decorator for TlsStrategy to measure the TLS handshake time of
+ * connections opened by the non-blocking engines.
+ *
+ * Connections are opened by the I/O reactor threads, where no measurement
+ * is active. For the HTTP/1 engine, PFRAsyncConnectionManager sets the
+ * PFRHttpTiming of the connect attempt on the I/O reactor thread while the
+ * connected session is handed over, which is when the handshake is started.
+ *
+ * The HTTP/2 engine opens its connections without a connection manager and
+ * without a context. There the handshake is stored in the SSLSession of the
+ * connection, and taken by the first request completing on the connection
+ * with claimHandshake().
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRTlsStrategy implements TlsStrategy {
+
+	static final String SESSION_HANDSHAKE = "pfr.handshake";
+
+	// timing of the connect attempt handing over its session on this thread
+	private static final ThreadLocal<PFRHttpTiming> connecting = new ThreadLocal<>();
+
+	private final TlsStrategy delegate;
+	private final Object defaultAttachment;
+
+	/***************************************************************************
+	 *
+	 * Start and end of a handshake not measured for a request.
+	 *
+	 ***************************************************************************/
+	record Handshake(long startNanos, long endNanos) {}
+
+	public PFRTlsStrategy(TlsStrategy delegate) {
+		this(delegate, null);
+	}
+
+	/***************************************************************************
+	 * @param delegate the strategy doing the TLS upgrade
+	 * @param defaultAttachment used if the upgrade does not provide an
+	 * attachment, e.g. a TlsConfig defining the protocols offered with ALPN.
+	 ***************************************************************************/
+	public PFRTlsStrategy(TlsStrategy delegate, Object defaultAttachment) {
+		this.delegate = delegate;
+		this.defaultAttachment = defaultAttachment;
+	}
+
+	/***************************************************************************
+	 * Set the timing of the connect attempt whose session is handed over by
+	 * the current thread. Set to null to remove.
+	 ***************************************************************************/
+	static void connecting(PFRHttpTiming timing) {
+		if(timing == null) {
+			connecting.remove();
+		}else {
+			connecting.set(timing);
+		}
+	}
+
+	/***************************************************************************
+	 * Stores the handshake in the session of the connection.
+	 ***************************************************************************/
+	static void storeHandshake(SSLSession session, Handshake handshake) {
+		if(session != null) {
+			session.putValue(SESSION_HANDSHAKE, handshake);
+		}
+	}
+
+	/***************************************************************************
+	 * Takes the handshake stored in the session of the connection used by
+	 * the request and records it in the timing. Only the first request on
+	 * the connection gets the handshake.
+	 ***************************************************************************/
+	static void claimHandshake(HttpClientContext context, PFRHttpTiming timing) {
+
+		if(context == null || timing == null) {
+			return;
+		}
+
+		SSLSession session = context.getSSLSession();
+		if(session == null) {
+			return;
+		}
+
+		Object handshake;
+		synchronized(session) {
+			handshake = session.getValue(SESSION_HANDSHAKE);
+			if(handshake != null) {
+				session.removeValue(SESSION_HANDSHAKE);
+			}
+		}
+
+		if(handshake instanceof Handshake) {
+			timing.handshake( ((Handshake)handshake).startNanos(), ((Handshake)handshake).endNanos() );
+		}
+	}
+
+	@Override
+	public void upgrade(TransportSecurityLayer sessionLayer, NamedEndpoint endpoint, Object attachment,
+			Timeout handshakeTimeout, FutureCallback<TransportSecurityLayer> callback) {
+
+		Object finalAttachment = (attachment != null) ? attachment : defaultAttachment;
+
+		PFRHttpTiming timing = connecting.get();
+
+		if( !PFRHttp.defaultMeasureTls() && !(timing == null && PFRHttp.defaultMeasureConnect()) ) {
+			delegate.upgrade(sessionLayer, endpoint, finalAttachment, handshakeTimeout, callback);
+			return;
+		}
+
+		//--------------------------
+		// Measure Handshake
+		long startNanos = System.nanoTime();
+		if(timing != null) { timing.tlsStarted(); }
+
+		delegate.upgrade(sessionLayer, endpoint, finalAttachment, handshakeTimeout, new FutureCallback<TransportSecurityLayer>() {
+
+			@Override
+			public void completed(TransportSecurityLayer result) {
+
+				if(timing != null) {
+					timing.tlsEnded();
+				}else {
+					// the connection of the HTTP/2 engine, the connect ended where TLS started
+					TlsDetails details = result.getTlsDetails();
+					if(details != null) {
+						storeHandshake(details.getSSLSession(), new Handshake(startNanos, System.nanoTime()));
+					}
+				}
+
+				if(callback != null) { callback.completed(result); }
+			}
+
+			@Override
+			public void failed(Exception e) {
+				if(callback != null) { callback.failed(e); }
+			}
+
+			@Override
+			public void cancelled() {
+				if(callback != null) { callback.cancelled(); }
+			}
+		});
+	}
+
+	@Override
+	@Deprecated
+	public boolean upgrade(TransportSecurityLayer sessionLayer, HttpHost host, SocketAddress localAddress,
+			SocketAddress remoteAddress, Object attachment, Timeout handshakeTimeout) {
+
+		Object finalAttachment = (attachment != null) ? attachment : defaultAttachment;
+		return delegate.upgrade(sessionLayer, host, localAddress, remoteAddress, finalAttachment, handshakeTimeout);
+	}
+}
@@ -0,0 +1,204 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.xresch.xrutils.utils.XRText.CheckType;
+
+/***************************************************************************
+ *
+ * Tests the streamed body checks of PFRBodyMatcher, especially values and
+ * matches that span chunk boundaries and the regex window.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRBodyMatcherTest {
+
+	private static final int WINDOW = PFRBodyMatcher.REGEX_WINDOW;
+	private static final int CONTEXT = PFRBodyMatcher.REGEX_CONTEXT;
+
+	/***************************************************************************
+	 * Feeds the body in chunks of the given size, stops when the matcher is
+	 * done like PFRHttpResponse does, and returns the result.
+	 ***************************************************************************/
+	private static boolean evaluate(CheckType type, String value, String body, int chunkSize) {
+
+		PFRBodyMatcher matcher = PFRBodyMatcher.create(type, value);
+		assertNotNull(matcher, "matcher for "+type);
+
+		char[] chars = body.toCharArray();
+		for(int offset = 0; offset < chars.length && !matcher.isDone(); offset += chunkSize) {
+			matcher.feed(chars, offset, Math.min(chunkSize, chars.length - offset));
+		}
+
+		matcher.end();
+		return matcher.result();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static String repeat(char c, int count) {
+		return String.valueOf(c).repeat(count);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testCreate() {
+		assertNull(PFRBodyMatcher.create(null, "a"));
+		assertNull(PFRBodyMatcher.create(CheckType.CONTAINS, null));
+		assertNull(PFRBodyMatcher.create(CheckType.STARTS_WITH, "a"));
+		assertNull(PFRBodyMatcher.create(CheckType.MATCH_REGEX, "(unclosed"), "invalid regex");
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testContainsAcrossChunks() {
+
+		String body = "<html><input name=\"csrf\" value=\"123\"></html>";
+
+		for(int chunkSize = 1; chunkSize <= body.length(); chunkSize++) {
+			assertTrue(evaluate(CheckType.CONTAINS, "name=\"csrf\"", body, chunkSize), "chunk size "+chunkSize);
+			assertFalse(evaluate(CheckType.CONTAINS, "name=\"token\"", body, chunkSize), "chunk size "+chunkSize);
+		}
+	}
+
+	/***************************************************************************
+	 * The value starts inside a partial match, which the failure function of
+	 * the matcher has to fall back to.
+	 ***************************************************************************/
+	@Test
+	public void testContainsPartialMatch() {
+		assertTrue(evaluate(CheckType.CONTAINS, "aab", "aaab", 1));
+		assertTrue(evaluate(CheckType.CONTAINS, "abab", "abaabab", 2));
+		assertTrue(evaluate(CheckType.CONTAINS, "", "anything", 1));
+		assertFalse(evaluate(CheckType.CONTAINS, "abc", "ababab", 1));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testDoesNotContain() {
+		assertTrue(evaluate(CheckType.DOES_NOT_CONTAIN, "error", "all good", 3));
+		assertFalse(evaluate(CheckType.DOES_NOT_CONTAIN, "error", "an error occured", 3));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testEquals() {
+		assertTrue(evaluate(CheckType.EQUALS, "OK", "OK", 1));
+		assertTrue(evaluate(CheckType.EQUALS, "", "", 1));
+		assertFalse(evaluate(CheckType.EQUALS, "OK", "O", 1));
+		assertFalse(evaluate(CheckType.EQUALS, "OK", "OKAY", 1));
+		assertFalse(evaluate(CheckType.EQUALS, "OK", "NO", 1));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testRegexAcrossChunks() {
+
+		String body = "{\"id\": 12345, \"status\": \"done\"}";
+
+		for(int chunkSize = 1; chunkSize <= body.length(); chunkSize++) {
+			assertTrue(evaluate(CheckType.MATCH_REGEX, "\"id\": \\d{5},", body, chunkSize), "chunk size "+chunkSize);
+			assertFalse(evaluate(CheckType.MATCH_REGEX, "\"id\": \\d{6}", body, chunkSize), "chunk size "+chunkSize);
+		}
+	}
+
+	/***************************************************************************
+	 * A match that reaches the end of the characters read so far is only
+	 * accepted once the next characters are known.
+	 ***************************************************************************/
+	@Test
+	public void testRegexMatchAtEndOfChunk() {
+
+		// "$" matches at the end of the first chunk, but not in the whole body
+		assertFalse(evaluate(CheckType.MATCH_REGEX, "abc$", "abcd", 3));
+		assertTrue(evaluate(CheckType.MATCH_REGEX, "abc$", "xabc", 2));
+
+		// greedy quantifier must see all the digits
+		assertTrue(evaluate(CheckType.MATCH_REGEX, "^\\d+x", "123x", 2));
+		assertFalse(evaluate(CheckType.MATCH_REGEX, "^\\d{2}$", "123", 2));
+	}
+
+	/***************************************************************************
+	 * The regex is compiled with the flags of PFRHttpCheck.
+	 ***************************************************************************/
+	@Test
+	public void testRegexFlags() {
+		assertTrue(evaluate(CheckType.MATCH_REGEX, "^second$", "first\nsecond\nthird", 4));
+		assertTrue(evaluate(CheckType.MATCH_REGEX, "start.*end", "start\nend", 4));
+	}
+
+	/***************************************************************************
+	 * In multiline mode "^" does not match at the end of the input, also not
+	 * on an empty body, therefore "\\A\\z" is used.
+	 ***************************************************************************/
+	@Test
+	public void testRegexEmptyBody() {
+		assertTrue(evaluate(CheckType.MATCH_REGEX, "\\A\\z", "", 1));
+		assertFalse(evaluate(CheckType.MATCH_REGEX, "a", "", 1));
+	}
+
+	/***************************************************************************
+	 * Matches far behind the first window are found, also if they span the
+	 * point where the window is trimmed.
+	 ***************************************************************************/
+	@Test
+	public void testRegexBeyondWindow() {
+
+		String value = "token=\"abc123\"";
+
+		for(int filler : new int[] {WINDOW * 3, WINDOW * 3 - 5, WINDOW + CONTEXT - 7, WINDOW * 4 + 1}) {
+			String body = repeat('x', filler) + value + repeat('y', 100);
+
+			for(int chunkSize : new int[] {1000, 4096, WINDOW, WINDOW + 1, WINDOW * 2}) {
+				assertTrue(evaluate(CheckType.MATCH_REGEX, "token=\"[a-z0-9]+\"", body, chunkSize), "filler "+filler+" chunk size "+chunkSize);
+				assertFalse(evaluate(CheckType.MATCH_REGEX, "token=\"[a-z]+\"", body, chunkSize), "filler "+filler+" chunk size "+chunkSize);
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * The characters before the window are visible to lookbehinds.
+	 ***************************************************************************/
+	@Test
+	public void testRegexLookbehindInContext() {
+
+		String body = repeat('x', WINDOW * 2 - 3) + "id=42" + repeat('y', 10);
+
+		for(int chunkSize : new int[] {1000, WINDOW}) {
+			assertTrue(evaluate(CheckType.MATCH_REGEX, "(?<=id=)\\d+", body, chunkSize), "chunk size "+chunkSize);
+			assertFalse(evaluate(CheckType.MATCH_REGEX, "(?<=ids=)\\d+", body, chunkSize), "chunk size "+chunkSize);
+		}
+	}
+
+	/***************************************************************************
+	 * The start of the window is not the start of the body.
+	 ***************************************************************************/
+	@Test
+	public void testRegexWindowStartIsNotBodyStart() {
+
+		String body = "x" + repeat('q', WINDOW * 3);
+
+		for(int chunkSize : new int[] {1000, 4096, WINDOW}) {
+			assertTrue(evaluate(CheckType.MATCH_REGEX, "^x", body, chunkSize), "chunk size "+chunkSize);
+			assertFalse(evaluate(CheckType.MATCH_REGEX, "^q", body, chunkSize), "chunk size "+chunkSize);
+			assertFalse(evaluate(CheckType.MATCH_REGEX, "\\bq", body, chunkSize), "chunk size "+chunkSize);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/***************************************************************************
+ *
+ * Tests the single lookup of concurrent cache misses and the backoff after
+ * a failed refresh of the DNS cache.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRCachingDnsResolverTest {
+
+	private static final InetAddress[] ADDRESSES = { address("10.0.0.1") };
+
+	private long ttl;
+	private long retryBackoff;
+	private boolean enabled;
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static InetAddress address(String address) {
+		try {
+			return InetAddress.getByName(address);
+		}catch(Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 * Resolver counting its calls, waits for the gate and fails while
+	 * failing is set.
+	 *
+	 ***************************************************************************/
+	private static class CountingResolver implements DnsResolver {
+
+		final AtomicInteger calls = new AtomicInteger(0);
+		final AtomicBoolean failing = new AtomicBoolean(false);
+		volatile CountDownLatch gate = new CountDownLatch(0);
+
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+
+			calls.incrementAndGet();
+
+			try {
+				gate.await(10, TimeUnit.SECONDS);
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			if(failing.get()) {
+				throw new UnknownHostException(host);
+			}
+
+			return ADDRESSES;
+		}
+
+		@Override
+		public String resolveCanonicalHostname(String host) {
+			return host;
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@BeforeEach
+	public void keepSettings() {
+		ttl = PFRHttp.defaultDnsCacheTtl();
+		retryBackoff = PFRHttp.defaultDnsCacheRetryBackoff();
+		enabled = PFRHttp.defaultDnsCache();
+
+		PFRHttp.defaultDnsCache(true);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@AfterEach
+	public void restoreSettings() {
+		PFRHttp.defaultDnsCacheTtl(ttl);
+		PFRHttp.defaultDnsCacheRetryBackoff(retryBackoff);
+		PFRHttp.defaultDnsCache(enabled);
+	}
+
+	/***************************************************************************
+	 * Starts the threads resolving the host and waits until all of them
+	 * called the cache.
+	 ***************************************************************************/
+	private static List<Thread> resolveConcurrently(PFRCachingDnsResolver cache, CountingResolver resolver, int count, List<Object> results) throws InterruptedException {
+
+		List<Thread> threads = new ArrayList<>();
+
+		for(int i = 0; i < count; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					results.add(cache.resolve("www.example.com"));
+				}catch(Exception e) {
+					results.add(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+
+		// the first thread is in the resolver, the others wait for it
+		long deadline = System.currentTimeMillis() + 10_000;
+		while(resolver.calls.get() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Thread.sleep(100);
+
+		return threads;
+	}
+
+	/***************************************************************************
+	 * Concurrent misses of the same host call the resolver once.
+	 ***************************************************************************/
+	@Test
+	public void testMissSingleFlight() throws InterruptedException {
+
+		PFRHttp.defaultDnsCacheTtl(60_000);
+
+		CountingResolver resolver = new CountingResolver();
+		resolver.gate = new CountDownLatch(1);
+		PFRCachingDnsResolver cache = new PFRCachingDnsResolver(resolver);
+
+		List<Object> results = new CopyOnWriteArrayList<>();
+		List<Thread> threads = resolveConcurrently(cache, resolver, 8, results);
+
+		resolver.gate.countDown();
+		for(Thread thread : threads) { thread.join(); }
+
+		assertEquals(1, resolver.calls.get());
+		assertEquals(8, results.size());
+		for(Object result : results) {
+			assertArrayEquals(ADDRESSES, (InetAddress[])result);
+		}
+		assertEquals(8, cache.getMisses());
+	}
+
+	/***************************************************************************
+	 * The threads waiting for a failed lookup get the failure, the next miss
+	 * calls the resolver again.
+	 ***************************************************************************/
+	@Test
+	public void testMissFailed() throws Exception {
+
+		CountingResolver resolver = new CountingResolver();
+		resolver.gate = new CountDownLatch(1);
+		resolver.failing.set(true);
+		PFRCachingDnsResolver cache = new PFRCachingDnsResolver(resolver);
+
+		List<Object> results = new CopyOnWriteArrayList<>();
+		List<Thread> threads = resolveConcurrently(cache, resolver, 4, results);
+
+		resolver.gate.countDown();
+		for(Thread thread : threads) { thread.join(); }
+
+		assertEquals(1, resolver.calls.get());
+		assertEquals(4, results.size());
+		for(Object result : results) {
+			assertTrue(result instanceof UnknownHostException, "result: "+result);
+		}
+
+		assertThrows(UnknownHostException.class, () -> cache.resolve("www.example.com"));
+		assertEquals(2, resolver.calls.get());
+
+		resolver.failing.set(false);
+		assertArrayEquals(ADDRESSES, cache.resolve("www.example.com"));
+	}
+
+	/***************************************************************************
+	 * After a failed refresh the cached addresses are served without a new
+	 * refresh until the backoff has passed.
+	 ***************************************************************************/
+	@Test
+	public void testRefreshBackoff() throws Exception {
+
+		PFRHttp.defaultDnsCacheTtl(0);
+		PFRHttp.defaultDnsCacheRetryBackoff(60_000);
+
+		CountingResolver resolver = new CountingResolver();
+		PFRCachingDnsResolver cache = new PFRCachingDnsResolver(resolver);
+
+		assertArrayEquals(ADDRESSES, cache.resolve("www.example.com"));
+		assertEquals(1, resolver.calls.get());
+
+		// the refresh fails in the background
+		resolver.failing.set(true);
+		assertArrayEquals(ADDRESSES, cache.resolve("www.example.com"));
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while(cache.getRefreshFailures() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, cache.getRefreshFailures());
+		assertEquals(2, resolver.calls.get());
+
+		// within the backoff
+		for(int i = 0; i < 10; i++) {
+			assertArrayEquals(ADDRESSES, cache.resolve("www.example.com"));
+		}
+		Thread.sleep(100);
+
+		assertEquals(2, resolver.calls.get());
+		assertEquals(11, cache.getStaleHits());
+	}
+}
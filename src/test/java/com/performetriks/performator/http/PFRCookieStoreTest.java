@@ -0,0 +1,261 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hc.client5.http.cookie.BasicCookieStore;
+import org.apache.hc.client5.http.cookie.Cookie;
+import org.apache.hc.client5.http.cookie.CookieStore;
+import org.apache.hc.client5.http.impl.cookie.BasicClientCookie;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/***************************************************************************
+ *
+ * Tests the domain index, the snapshots, the expiry and the seed cookies of
+ * PFRCookieStore.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRCookieStoreTest {
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@AfterEach
+	public void removeSeeds() {
+		PFRCookieStore.setSeeds(null);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static BasicClientCookie cookie(String name, String value, String domain) {
+		BasicClientCookie cookie = new BasicClientCookie(name, value);
+		cookie.setDomain(domain);
+		cookie.setPath("/");
+		return cookie;
+	}
+
+	/***************************************************************************
+	 * Returns the cookies as "name=value" sorted by name.
+	 ***************************************************************************/
+	private static Set<String> names(List<Cookie> cookies) {
+		TreeSet<String> names = new TreeSet<>();
+		for(Cookie cookie : cookies) {
+			names.add(cookie.getName()+"="+cookie.getValue());
+		}
+		return names;
+	}
+
+	/***************************************************************************
+	 * A cookie with the same name, domain and path replaces the existing one.
+	 ***************************************************************************/
+	@Test
+	public void testAddAndReplace() {
+
+		PFRCookieStore store = new PFRCookieStore();
+		store.addCookie(cookie("session", "1", "example.com"));
+		store.addCookie(cookie("session", "2", ".EXAMPLE.com"));
+		store.addCookie(cookie("other", "x", "example.com"));
+
+		BasicClientCookie otherPath = cookie("session", "3", "example.com");
+		otherPath.setPath("/app");
+		store.addCookie(otherPath);
+
+		assertEquals(Set.of("session=2", "other=x", "session=3"), names(store.getCookies()));
+		assertEquals(3, store.getCookies().size());
+	}
+
+	/***************************************************************************
+	 * The snapshot is kept until the store changes, and cannot be modified.
+	 ***************************************************************************/
+	@Test
+	public void testSnapshot() {
+
+		PFRCookieStore store = new PFRCookieStore();
+		store.addCookie(cookie("a", "1", "example.com"));
+
+		List<Cookie> first = store.getCookies();
+		assertSame(first, store.getCookies());
+		assertThrows(UnsupportedOperationException.class, () -> first.add(cookie("b", "2", "example.com")));
+
+		store.addCookie(cookie("b", "2", "example.com"));
+		List<Cookie> second = store.getCookies();
+		assertNotSame(first, second);
+		assertEquals(1, first.size(), "earlier snapshot is not changed");
+		assertEquals(2, second.size());
+	}
+
+	/***************************************************************************
+	 * The cookies of the host, of its parent domains and without domain.
+	 ***************************************************************************/
+	@Test
+	public void testCookiesOfHost() {
+
+		PFRCookieStore store = new PFRCookieStore();
+		store.addCookie(cookie("host", "1", "www.example.com"));
+		store.addCookie(cookie("parent", "2", ".example.com"));
+		store.addCookie(cookie("sibling", "3", "api.example.com"));
+		store.addCookie(cookie("foreign", "4", "example.org"));
+		store.addCookie(cookie("nodomain", "5", null));
+
+		assertEquals(Set.of("host=1", "parent=2", "nodomain=5"), names(store.getCookies("WWW.Example.com")));
+		assertEquals(Set.of("sibling=3", "parent=2", "nodomain=5"), names(store.getCookies("api.example.com")));
+		assertEquals(Set.of("foreign=4", "nodomain=5"), names(store.getCookies("example.org")));
+		assertEquals(Set.of("nodomain=5"), names(store.getCookies("localhost")));
+		assertEquals(5, store.getCookies(null).size());
+	}
+
+	/***************************************************************************
+	 * An expired cookie removes the cookie it would replace.
+	 ***************************************************************************/
+	@Test
+	public void testAddExpired() {
+
+		PFRCookieStore store = new PFRCookieStore();
+		store.addCookie(cookie("session", "1", "example.com"));
+
+		BasicClientCookie expired = cookie("session", "", "example.com");
+		expired.setExpiryDate(Instant.now().minus(1, ChronoUnit.DAYS));
+		store.addCookie(expired);
+
+		assertTrue(store.getCookies().isEmpty());
+		assertTrue(store.getCookies("example.com").isEmpty());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testClearExpired() {
+
+		Instant now = Instant.now();
+
+		PFRCookieStore store = new PFRCookieStore();
+		BasicClientCookie soon = cookie("soon", "1", "example.com");
+		soon.setExpiryDate(now.plus(1, ChronoUnit.HOURS));
+		BasicClientCookie later = cookie("later", "2", "example.org");
+		later.setExpiryDate(now.plus(2, ChronoUnit.HOURS));
+
+		store.addCookie(soon);
+		store.addCookie(later);
+		store.addCookie(cookie("session", "3", "example.com"));
+
+		assertFalse(store.clearExpired(now), "nothing expired yet");
+		assertFalse(store.clearExpired((Instant)null));
+
+		assertTrue(store.clearExpired(now.plus(90, ChronoUnit.MINUTES)));
+		assertEquals(Set.of("later=2", "session=3"), names(store.getCookies()));
+
+		assertFalse(store.clearExpired(now.plus(100, ChronoUnit.MINUTES)), "next expiry not reached");
+
+		assertTrue(store.clearExpired(now.plus(3, ChronoUnit.HOURS)));
+		assertEquals(Set.of("session=3"), names(store.getCookies()));
+	}
+
+	/***************************************************************************
+	 * Seed cookies are visible to every store unless hidden by a cookie of
+	 * the user, and stay when the store is cleared.
+	 ***************************************************************************/
+	@Test
+	public void testSeeds() {
+
+		PFRCookieStore store = new PFRCookieStore();
+		store.addCookie(cookie("own", "1", "example.com"));
+		List<Cookie> before = store.getCookies();
+
+		PFRCookieStore.setSeeds(List.of(
+				  cookie("consent", "seed", "example.com")
+				, cookie("tracking", "seed", "example.com")
+				, cookie("tracking", "seed2", "example.com")
+			));
+
+		assertEquals(2, PFRCookieStore.getSeeds().size(), "later seed replaces earlier");
+		assertNotSame(before, store.getCookies(), "snapshot rebuilt for new seeds");
+		assertEquals(Set.of("own=1", "consent=seed", "tracking=seed2"), names(store.getCookies()));
+
+		store.addCookie(cookie("consent", "user", "example.com"));
+		assertEquals(Set.of("own=1", "consent=user", "tracking=seed2"), names(store.getCookies()));
+		assertEquals(Set.of("own=1", "consent=user", "tracking=seed2"), names(store.getCookies("www.example.com")));
+
+		store.clear();
+		assertEquals(Set.of("consent=seed", "tracking=seed2"), names(store.getCookies()));
+		assertEquals(Set.of("consent=seed", "tracking=seed2"), names(new PFRCookieStore().getCookies("example.com")));
+	}
+
+	/***************************************************************************
+	 * A bound store returns the cookies of the host of the request in the
+	 * context, and adds to the store it wraps.
+	 ***************************************************************************/
+	@Test
+	public void testBind() {
+
+		PFRCookieStore store = new PFRCookieStore();
+		store.addCookie(cookie("com", "1", "example.com"));
+		store.addCookie(cookie("org", "2", "example.org"));
+
+		HttpClientContext context = HttpClientContext.create();
+		CookieStore bound = PFRCookieStore.bind(store, context);
+
+		assertSame(store, PFRCookieStore.unwrap(bound));
+		assertSame(store, PFRCookieStore.unwrap(PFRCookieStore.bind(bound, context)), "not wrapped twice");
+		assertEquals(2, bound.getCookies().size(), "all cookies without request");
+
+		context.setRequest(new BasicHttpRequest("GET", new HttpHost("https", "www.example.com", 443), "/"));
+		assertEquals(Set.of("com=1"), names(bound.getCookies()));
+
+		bound.addCookie(cookie("added", "3", "example.com"));
+		assertEquals(Set.of("com=1", "added=3"), names(bound.getCookies()));
+		assertEquals(3, store.getCookies().size());
+
+		BasicCookieStore other = new BasicCookieStore();
+		assertSame(other, PFRCookieStore.bind(other, context), "other stores are not wrapped");
+	}
+
+	/***************************************************************************
+	 * A shared store can be changed by multiple threads.
+	 ***************************************************************************/
+	@Test
+	public void testShared() throws InterruptedException {
+
+		PFRCookieStore store = new PFRCookieStore();
+		store.markShared();
+
+		ArrayList<Thread> threads = new ArrayList<>();
+		for(int t = 0; t < 8; t++) {
+			int thread = t;
+			threads.add(new Thread(() -> {
+				for(int i = 0; i < 500; i++) {
+					store.addCookie(cookie("c"+thread+"-"+i, "v", "d"+(i % 10)+".example.com"));
+					store.getCookies("d"+(i % 10)+".example.com");
+				}
+			}));
+		}
+
+		for(Thread thread : threads) {
+			thread.start();
+		}
+
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(8 * 500, store.getCookies().size());
+	}
+}
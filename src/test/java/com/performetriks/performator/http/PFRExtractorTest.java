@@ -0,0 +1,227 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/***************************************************************************
+ *
+ * Tests the regex and boundary extractors of PFRExtractor.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRExtractorTest {
+
+	private static final String HTML = "<form>"
+			+ "<input name=\"csrf\" value=\"tok-1\">"
+			+ "<input name=\"id\" value=\"42\">"
+			+ "<input name=\"csrf\" value=\"tok-2\">"
+		+ "</form>";
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@AfterEach
+	public void removeCorrelationValues() {
+		PFRHttp.correlationValue("csrf", null);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testRegex() {
+
+		assertEquals("tok-1", PFRExtractor.regex("name=\"csrf\" value=\"([^\"]*)\"").extract(HTML));
+		assertEquals("name=\"id\"", PFRExtractor.regex("name=\"id\"").extract(HTML), "whole match without group");
+		assertEquals("42", PFRExtractor.regex("name=\"(\\w+)\" value=\"(\\d+)\"", 2).extract(HTML));
+		assertEquals("id", PFRExtractor.regex("name=\"(\\w+)\" value=\"(\\d+)\"").extract(HTML), "first group");
+		assertNull(PFRExtractor.regex("name=\"missing\" value=\"([^\"]*)\"").extract(HTML));
+		assertNull(PFRExtractor.regex("(.*)").extract((String)null));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testRegexAll() {
+
+		PFRExtractor extractor = PFRExtractor.regex("name=\"csrf\" value=\"([^\"]*)\"");
+
+		assertEquals(List.of("tok-1", "tok-2"), extractor.extractAll(HTML));
+		assertEquals(List.of(), extractor.extractAll("nothing"));
+		assertEquals(List.of(), extractor.extractAll((String)null));
+	}
+
+	/***************************************************************************
+	 * The patterns are shared by all extractors through the cache.
+	 ***************************************************************************/
+	@Test
+	public void testRegexCached() {
+
+		String regex = "value=\"(cached)\"";
+		PFRExtractor.regex(regex);
+
+		long hits = PFRPatternCache.getHits();
+		PFRExtractor.regex(regex);
+
+		assertEquals(hits + 1, PFRPatternCache.getHits());
+		assertSame(PFRPatternCache.get(regex), PFRPatternCache.get(regex));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testRegexInvalid() {
+		assertThrows(PatternSyntaxException.class, () -> PFRExtractor.regex("(unclosed"));
+	}
+
+	/***************************************************************************
+	 * A group the regex does not have is rejected when the extractor is
+	 * created, not when a value is extracted.
+	 ***************************************************************************/
+	@Test
+	public void testRegexGroupInvalid() {
+		assertThrows(IllegalArgumentException.class, () -> PFRExtractor.regex("a(b)", 2));
+		assertThrows(IllegalArgumentException.class, () -> PFRExtractor.regex("ab", 1));
+		assertThrows(IllegalArgumentException.class, () -> PFRExtractor.regex("a(b)", -1));
+
+		assertEquals("ab", PFRExtractor.regex("ab", 0).extract("xaby"));
+		assertEquals("b", PFRExtractor.regex("a(b)", 1).extract("xaby"));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testBoundary() {
+
+		PFRExtractor extractor = PFRExtractor.boundary("name=\"csrf\" value=\"", "\"");
+
+		assertEquals("tok-1", extractor.extract(HTML));
+		assertEquals(List.of("tok-1", "tok-2"), extractor.extractAll(HTML));
+
+		assertNull(PFRExtractor.boundary("name=\"missing\"", "\"").extract(HTML));
+		assertNull(PFRExtractor.boundary("<form>", "never").extract(HTML), "right boundary not found");
+		assertEquals("", PFRExtractor.boundary("<form>", "<").extract(HTML), "empty value");
+	}
+
+	/***************************************************************************
+	 * An empty right boundary extracts until the end of the text.
+	 ***************************************************************************/
+	@Test
+	public void testBoundaryToEnd() {
+
+		PFRExtractor extractor = PFRExtractor.boundary("token=", "");
+
+		assertEquals("abc&x=1", extractor.extract("a=1&token=abc&x=1"));
+		assertEquals(List.of("abc&x=1"), extractor.extractAll("a=1&token=abc&x=1"));
+	}
+
+	/***************************************************************************
+	 * The search for the next value starts after the right boundary.
+	 ***************************************************************************/
+	@Test
+	public void testBoundaryAllAdjacent() {
+		assertEquals(List.of("1", "2", "3"), PFRExtractor.boundary("[", "]").extractAll("[1][2][3]"));
+		assertEquals(List.of("a", "b"), PFRExtractor.boundary("|", "|").extractAll("|a||b|"));
+		assertEquals(List.of("1"), PFRExtractor.boundary("[", "]").extractAll("[1][2"));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testBoundaryNull() {
+		assertThrows(IllegalArgumentException.class, () -> PFRExtractor.boundary(null, "\""));
+		assertThrows(IllegalArgumentException.class, () -> PFRExtractor.boundary("\"", null));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testResponse() {
+
+		PFRHttpResponse r = PFRTestResponses.create(HTML, ContentType.TEXT_HTML);
+
+		assertEquals("42", PFRExtractor.boundary("name=\"id\" value=\"", "\"").extract(r));
+		assertEquals(List.of("tok-1", "tok-2"), PFRExtractor.regex("value=\"(tok-\\d)\"").extractAll(r));
+		assertNull(PFRExtractor.regex("x").extract((PFRHttpResponse)null));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testHeader() {
+
+		SimpleHttpResponse response = SimpleHttpResponse.create(200, HTML, ContentType.TEXT_HTML);
+		response.addHeader("Location", "/next?session=s-123&step=2");
+		PFRHttpResponse r = PFRTestResponses.create(PFRHttp.create(PFRTestResponses.URL), response);
+
+		assertEquals("s-123", PFRExtractor.boundary("session=", "&").fromHeader("Location").extract(r));
+		assertEquals("2", PFRExtractor.regex("step=(\\d+)").fromHeader("Location").extract(r));
+		assertNull(PFRExtractor.regex("tok-(\\d)").fromHeader("Location").extract(r), "body is not searched");
+		assertNull(PFRExtractor.regex("(.*)").fromHeader("X-Missing").extract(r));
+
+		// a shared extractor is not changed
+		PFRExtractor step = PFRExtractor.regex("step=(\\d+)");
+		PFRExtractor stepFromHeader = step.fromHeader("Location");
+
+		assertNotSame(step, stepFromHeader);
+		assertEquals("2", stepFromHeader.extract(r));
+		assertNull(step.extract(r), "body is searched");
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testStoreAs() {
+
+		PFRHttpResponse r = PFRTestResponses.create(HTML, ContentType.TEXT_HTML);
+
+		assertTrue(PFRExtractor.regex("name=\"csrf\" value=\"([^\"]*)\"").storeAs("csrf").check(r));
+		assertEquals("tok-1", PFRHttp.correlationValue("csrf"));
+
+		// the stored value is kept if no value is found
+		assertFalse(PFRExtractor.regex("name=\"missing\" value=\"([^\"]*)\"").storeAs("csrf").check(r));
+		assertEquals("tok-1", PFRHttp.correlationValue("csrf"));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testCheck() {
+
+		PFRHttpResponse r = PFRTestResponses.create(HTML, ContentType.TEXT_HTML);
+
+		assertTrue(PFRExtractor.boundary("name=\"id\" value=\"", "\"").check().check(r));
+		assertFalse(PFRExtractor.boundary("name=\"missing\" value=\"", "\"").check().check(r));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testToString() {
+		assertEquals("regex \"a(b)\" group 1", PFRExtractor.regex("a(b)").toString());
+		assertEquals("boundary \"[\" ... \"]\" on header \"Location\"", PFRExtractor.boundary("[", "]").fromHeader("Location").toString());
+	}
+}
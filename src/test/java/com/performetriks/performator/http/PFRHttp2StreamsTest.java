@@ -0,0 +1,154 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/***************************************************************************
+ *
+ * Tests the stream limit per HTTP/2 origin and the settings carried by
+ * queued exchanges.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRHttp2StreamsTest {
+
+	private static final AtomicInteger origins = new AtomicInteger(0);
+
+	private int maxStreams;
+
+	/***************************************************************************
+	 * Returns the streams of an origin not used by other tests.
+	 ***************************************************************************/
+	private static PFRHttp2Streams newOrigin() {
+		return PFRHttp2Streams.of("https", "h2-"+origins.incrementAndGet()+".example.com", -1);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@BeforeEach
+	public void keepSettings() {
+		maxStreams = PFRHttp.defaultHttp2MaxConcurrentStreams();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@AfterEach
+	public void restoreSettings() {
+		PFRHttp.defaultHttp2MaxConcurrentStreams(maxStreams);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testOrigin() {
+
+		assertSame(PFRHttp2Streams.of("https", "www.example.com", 8443), PFRHttp2Streams.of("https", "www.example.com", 8443));
+		assertEquals("https://www.example.com:8443", PFRHttp2Streams.of("https", "www.example.com", 8443).getOrigin());
+		assertEquals("https://www.example.com", PFRHttp2Streams.of("https", "www.example.com", -1).getOrigin());
+	}
+
+	/***************************************************************************
+	 * Exchanges exceeding the limit are queued and started when a stream is
+	 * closed.
+	 ***************************************************************************/
+	@Test
+	public void testThrottled() throws InterruptedException {
+
+		PFRHttp.defaultHttp2MaxConcurrentStreams(2);
+		PFRHttp2Streams streams = newOrigin();
+
+		List<String> started = new CopyOnWriteArrayList<>();
+		CountDownLatch queuedStarted = new CountDownLatch(2);
+
+		streams.open(() -> started.add("a"));
+		streams.open(() -> started.add("b"));
+		streams.open(() -> { started.add("c"); queuedStarted.countDown(); });
+		streams.open(() -> { started.add("d"); queuedStarted.countDown(); });
+
+		assertEquals(List.of("a", "b"), started);
+		assertEquals(2, streams.getOpenStreams());
+		assertEquals(2, streams.getWaitingStreams());
+
+		streams.close();
+		streams.close();
+
+		// started on the async executor, in any order
+		assertTrue(queuedStarted.await(10, TimeUnit.SECONDS));
+		assertEquals(4, started.size());
+		assertTrue(started.containsAll(List.of("c", "d")), "started: "+started);
+		assertEquals(2, streams.getOpenStreams());
+		assertEquals(0, streams.getWaitingStreams());
+
+		streams.close();
+		streams.close();
+		assertEquals(0, streams.getOpenStreams());
+	}
+
+	/***************************************************************************
+	 * A queued exchange runs with the settings of the user that sent it.
+	 ***************************************************************************/
+	@Test
+	public void testQueuedKeepsUserSettings() throws InterruptedException {
+
+		PFRHttp.defaultHttp2MaxConcurrentStreams(1);
+		PFRHttp2Streams streams = newOrigin();
+
+		// another user, as the threads of the executor might be children of this one
+		AtomicReference<Integer> sendingUser = new AtomicReference<>();
+		AtomicReference<Integer> executingUser = new AtomicReference<>();
+		CountDownLatch executed = new CountDownLatch(1);
+
+		streams.open(() -> {});
+
+		Thread sender = new Thread(() -> {
+			PFRHttp.sourceAddressUser.set(PFRHttp.sourceAddressUser.get() + 1000);
+			sendingUser.set(PFRHttp.sourceAddressUser.get());
+
+			streams.open(PFRHttp.withUserSettings(() -> {
+				executingUser.set(PFRHttp.sourceAddressUser.get());
+				executed.countDown();
+			}));
+		});
+		sender.start();
+		sender.join();
+
+		assertEquals(1, streams.getWaitingStreams());
+		streams.close();
+
+		assertTrue(executed.await(10, TimeUnit.SECONDS));
+		assertEquals(sendingUser.get(), executingUser.get());
+
+		streams.close();
+	}
+
+	/***************************************************************************
+	 * On the calling thread the settings are left as they are.
+	 ***************************************************************************/
+	@Test
+	public void testUserSettingsOnCallingThread() {
+
+		Integer user = PFRHttp.sourceAddressUser.get();
+		AtomicReference<Integer> executingUser = new AtomicReference<>();
+
+		PFRHttp.withUserSettings(() -> executingUser.set(PFRHttp.sourceAddressUser.get())).run();
+
+		assertEquals(user, executingUser.get());
+		assertEquals(user, PFRHttp.sourceAddressUser.get());
+	}
+}
@@ -0,0 +1,145 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hc.core5.http.ContentType;
+import org.junit.jupiter.api.Test;
+
+import com.performetriks.performator.http.PFRHttp.PFRBodyMode;
+import com.xresch.xrutils.utils.XRText.CheckType;
+
+/***************************************************************************
+ *
+ * Tests the body mode CAPTURE_FIRST_N: the captured bytes end on a whole
+ * character and the streamed checks see the whole body.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRHttpResponseCaptureTest {
+
+	private static final String TEXT = "aé€😀z";
+
+	/***************************************************************************
+	 * Trims the encoded text at every length and checks the result is the
+	 * longest prefix of whole characters.
+	 ***************************************************************************/
+	private static void checkTrim(Charset charset) {
+
+		byte[] bytes = TEXT.getBytes(charset);
+
+		for(int length = 0; length <= bytes.length; length++) {
+
+			int trimmed = PFRHttpResponse.trimToCharBoundary(bytes, length, charset);
+			assertTrue(trimmed <= length, charset+" length "+length);
+
+			String decoded = new String(bytes, 0, trimmed, charset);
+			assertTrue(TEXT.startsWith(decoded), charset+" length "+length+": "+decoded);
+
+			// no further whole character would have fitted
+			int longest = 0;
+			for(int chars = 0; chars <= TEXT.length(); chars = TEXT.offsetByCodePoints(chars, 1)) {
+				int encoded = TEXT.substring(0, chars).getBytes(charset).length;
+				if(encoded <= length) { longest = encoded; }
+				if(chars == TEXT.length()) { break; }
+			}
+			assertEquals(longest, trimmed, charset+" length "+length);
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testTrimUtf8() {
+		checkTrim(StandardCharsets.UTF_8);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testTrimUtf16() {
+		checkTrim(StandardCharsets.UTF_16BE);
+		checkTrim(StandardCharsets.UTF_16LE);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testTrimMultiByte() {
+		checkTrim(Charset.forName("GB18030"));
+	}
+
+	/***************************************************************************
+	 * Single byte charsets are not trimmed.
+	 ***************************************************************************/
+	@Test
+	public void testTrimSingleByte() {
+
+		byte[] bytes = "abcdef".getBytes(StandardCharsets.ISO_8859_1);
+
+		assertEquals(4, PFRHttpResponse.trimToCharBoundary(bytes, 4, StandardCharsets.ISO_8859_1));
+		assertEquals(4, PFRHttpResponse.trimToCharBoundary(bytes, 4, StandardCharsets.US_ASCII));
+	}
+
+	/***************************************************************************
+	 * The captured body ends on a whole character, the size is the size of
+	 * the whole body.
+	 ***************************************************************************/
+	@Test
+	public void testCapture() {
+
+		String body = "€€€€" + "x".repeat(5000);
+
+		PFRHttpRequestBuilder request = PFRHttp.create(PFRTestResponses.URL).bodyMode(PFRBodyMode.CAPTURE_FIRST_N, 10);
+		PFRHttpResponse r = PFRTestResponses.create(request, body, ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8));
+
+		assertFalse(r.hasError());
+		assertEquals("€€€", r.getBody());
+		assertEquals(body.getBytes(StandardCharsets.UTF_8).length, r.getBodySize());
+	}
+
+	/***************************************************************************
+	 * A body shorter than the capture size is kept whole.
+	 ***************************************************************************/
+	@Test
+	public void testCaptureShortBody() {
+
+		PFRHttpRequestBuilder request = PFRHttp.create(PFRTestResponses.URL).bodyMode(PFRBodyMode.CAPTURE_FIRST_N, 1024);
+		PFRHttpResponse r = PFRTestResponses.create(request, "short €", ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8));
+
+		assertEquals("short €", r.getBody());
+	}
+
+	/***************************************************************************
+	 * The body checks are evaluated on the whole body while it is read.
+	 ***************************************************************************/
+	@Test
+	public void testStreamedChecks() {
+
+		String body = "x".repeat(100_000) + "<done/>";
+
+		PFRHttpCheck contains = new PFRHttpCheck(CheckType.CONTAINS).checkBody("<done/>");
+		PFRHttpCheck regex = new PFRHttpCheck(CheckType.MATCH_REGEX).checkBody("x<done/>$");
+
+		PFRHttpRequestBuilder request = PFRHttp.create(PFRTestResponses.URL)
+				.bodyMode(PFRBodyMode.CAPTURE_FIRST_N, 100)
+				.check(contains)
+				.check(regex)
+				;
+
+		PFRHttpResponse r = PFRTestResponses.create(request, body, ContentType.TEXT_PLAIN);
+
+		assertEquals(100, r.getBody().length());
+		assertEquals(Boolean.TRUE, r.getStreamedCheckResult(contains));
+		assertEquals(Boolean.TRUE, r.getStreamedCheckResult(regex));
+		assertTrue(r.checksSuccessful());
+	}
+}
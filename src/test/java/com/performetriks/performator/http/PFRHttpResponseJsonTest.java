@@ -0,0 +1,191 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hc.core5.http.ContentType;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+
+/***************************************************************************
+ *
+ * Tests that the JSON body of a response is parsed once and cached, and the
+ * streaming JsonReader on the body bytes.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRHttpResponseJsonTest {
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testParsedOnce() {
+
+		PFRHttpResponse r = PFRTestResponses.create("{\"id\": 1, \"items\": [1, 2]}", ContentType.APPLICATION_JSON);
+
+		assertFalse(r.hasError());
+		assertNull(r.getBodyAsJsonIfParsed(), "not parsed before first access");
+
+		JsonElement element = r.getBodyAsJsonElement();
+		assertNotNull(element);
+		assertSame(element, r.getBodyAsJsonIfParsed());
+		assertSame(element, r.getBodyAsJsonElement());
+		assertSame(element, r.getBodyAsJsonObject());
+	}
+
+	/***************************************************************************
+	 * Changes to the parsed body are seen by later calls.
+	 ***************************************************************************/
+	@Test
+	public void testChangesAreShared() {
+
+		PFRHttpResponse r = PFRTestResponses.create("{\"id\": 1}", ContentType.APPLICATION_JSON);
+
+		r.getBodyAsJsonObject().addProperty("added", "yes");
+
+		assertEquals("yes", r.getBodyAsJsonObject().get("added").getAsString());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testArray() {
+
+		PFRHttpResponse r = PFRTestResponses.create("[{\"id\": 1}, {\"id\": 2}]", ContentType.APPLICATION_JSON);
+
+		JsonArray array = r.getBodyAsJsonArray();
+		assertEquals(2, array.size());
+		assertSame(array, r.getBodyAsJsonArray());
+		assertNull(r.getBodyAsJsonObject(), "array is not an object");
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testObjectAsArray() {
+
+		PFRHttpResponse r = PFRTestResponses.create("{\"id\": 1}", ContentType.APPLICATION_JSON);
+
+		JsonArray array = r.getBodyAsJsonArray();
+		assertNotNull(array);
+		assertEquals(0, array.size());
+	}
+
+	/***************************************************************************
+	 * A failed parse is cached as well and returns null on every call.
+	 ***************************************************************************/
+	@Test
+	public void testInvalidBody() {
+
+		PFRHttpResponse r = PFRTestResponses.create("<html>not json</html>", ContentType.TEXT_HTML);
+
+		assertNull(r.getBodyAsJsonElement());
+		assertNull(r.getBodyAsJsonObject());
+		assertNull(r.getBodyAsJsonArray());
+		assertNull(r.getBodyAsJsonIfParsed());
+
+		// the body itself is still available
+		assertEquals("<html>not json</html>", r.getBody());
+	}
+
+	/***************************************************************************
+	 * Only objects and arrays are accepted.
+	 ***************************************************************************/
+	@Test
+	public void testPrimitiveBody() {
+
+		PFRHttpResponse r = PFRTestResponses.create("42", ContentType.APPLICATION_JSON);
+
+		assertNull(r.getBodyAsJsonElement());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testEmptyBody() {
+
+		PFRHttpResponse r = PFRTestResponses.create("", ContentType.APPLICATION_JSON);
+
+		assertNull(r.getBodyAsJsonElement());
+	}
+
+	/***************************************************************************
+	 * The body is parsed from its bytes with the charset of the content type,
+	 * without decoding it to a string.
+	 ***************************************************************************/
+	@Test
+	public void testCharset() {
+
+		String json = "{\"name\": \"Zürich\"}";
+
+		PFRHttpResponse latin = PFRTestResponses.create(json, ContentType.create("application/json", StandardCharsets.ISO_8859_1));
+		assertEquals(StandardCharsets.ISO_8859_1, latin.getBodyCharset());
+		assertEquals("Zürich", latin.getBodyAsJsonObject().get("name").getAsString());
+
+		PFRHttpResponse utf16 = PFRTestResponses.create(json, ContentType.create("application/json", StandardCharsets.UTF_16));
+		assertEquals("Zürich", utf16.getBodyAsJsonObject().get("name").getAsString());
+
+		PFRHttpResponse utf8 = PFRTestResponses.create(json, ContentType.APPLICATION_JSON);
+		assertEquals("Zürich", utf8.getBodyAsJsonObject().get("name").getAsString());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testJsonReader() throws IOException {
+
+		PFRHttpResponse r = PFRTestResponses.create("{\"skip\": {\"a\": [1, 2]}, \"token\": \"abc\"}", ContentType.APPLICATION_JSON);
+
+		String token = null;
+		try (JsonReader reader = r.getBodyAsJsonReader()){
+			reader.beginObject();
+			while(reader.hasNext()) {
+				if(reader.nextName().equals("token")) {
+					token = reader.nextString();
+				}else {
+					reader.skipValue();
+				}
+			}
+		}
+
+		assertEquals("abc", token);
+		assertNull(r.getBodyAsJsonIfParsed(), "reading does not parse the body");
+
+		// every call returns a new reader from the start of the body
+		try (JsonReader reader = r.getBodyAsJsonReader()){
+			reader.beginObject();
+			assertEquals("skip", reader.nextName());
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testDiscardedBody() {
+
+		PFRHttpRequestBuilder request = PFRHttp.create(PFRTestResponses.URL).discardBody();
+		PFRHttpResponse r = PFRTestResponses.create(request, "{\"id\": 1}", ContentType.APPLICATION_JSON);
+
+		assertTrue(r.getBodySize() > 0);
+		assertNull(r.getBodyAsJsonReader());
+		assertNull(r.getBodyAsJsonElement());
+	}
+}
@@ -0,0 +1,326 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.junit.jupiter.api.Test;
+
+/***************************************************************************
+ *
+ * Tests PFRInflaterInputStream against the content written by the JDK
+ * compressors, and the pooling of the buffers and Inflaters in
+ * PFRBufferPool.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRInflaterInputStreamTest {
+
+	/***************************************************************************
+	 * Returns at most one byte per read, to have the gzip header, the
+	 * trailer and the member boundaries split across reads.
+	 ***************************************************************************/
+	private static class TrickleInputStream extends ByteArrayInputStream {
+
+		TrickleInputStream(byte[] bytes) {
+			super(bytes);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, 1));
+		}
+	}
+
+	/***************************************************************************
+	 * Text that compresses well, followed by random bytes that do not, so
+	 * the content spans several input buffers.
+	 ***************************************************************************/
+	private static byte[] content(int textLength, int randomLength) {
+
+		byte[] text = "<item id=\"1\">value</item>\n".repeat(textLength / 26 + 1).substring(0, textLength).getBytes(StandardCharsets.UTF_8);
+		byte[] random = new byte[randomLength];
+		new Random(42).nextBytes(random);
+
+		byte[] content = new byte[textLength + randomLength];
+		System.arraycopy(text, 0, content, 0, textLength);
+		System.arraycopy(random, 0, content, textLength, randomLength);
+		return content;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)){
+			gzip.write(content);
+		}
+		return out.toByteArray();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static byte[] deflate(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (DeflaterOutputStream deflate = new DeflaterOutputStream(out)){
+			deflate.write(content);
+		}
+		return out.toByteArray();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static byte[] concat(byte[]... arrays) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(byte[] array : arrays) {
+			out.writeBytes(array);
+		}
+		return out.toByteArray();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static byte[] readAll(InputStream in) throws IOException {
+		try (in){
+			return in.readAllBytes();
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testGzip() throws IOException {
+
+		for(byte[] content : new byte[][] { new byte[0], content(10, 0), content(100_000, 0), content(1000, 50_000) }) {
+			byte[] compressed = gzip(content);
+
+			assertArrayEquals(content, readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(compressed))));
+			assertArrayEquals(content, readAll(PFRInflaterInputStream.gzip(new TrickleInputStream(compressed))));
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testDeflate() throws IOException {
+
+		for(byte[] content : new byte[][] { new byte[0], content(10, 0), content(100_000, 0), content(1000, 50_000) }) {
+			byte[] compressed = deflate(content);
+
+			assertArrayEquals(content, readAll(PFRInflaterInputStream.deflate(new ByteArrayInputStream(compressed))));
+			assertArrayEquals(content, readAll(PFRInflaterInputStream.deflate(new TrickleInputStream(compressed))));
+		}
+	}
+
+	/***************************************************************************
+	 * An empty stream is read as empty content.
+	 ***************************************************************************/
+	@Test
+	public void testEmptyStream() throws IOException {
+		assertArrayEquals(new byte[0], readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(new byte[0]))));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testConcatenatedMembers() throws IOException {
+
+		byte[] first = content(5000, 100);
+		byte[] second = content(10, 20_000);
+		byte[] third = content(7, 0);
+		byte[] compressed = concat(gzip(first), gzip(second), gzip(third));
+
+		byte[] expected = concat(first, second, third);
+
+		assertArrayEquals(expected, readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(compressed))));
+		assertArrayEquals(expected, readAll(PFRInflaterInputStream.gzip(new TrickleInputStream(compressed))));
+	}
+
+	/***************************************************************************
+	 * Trailing bytes that are not a gzip member are ignored.
+	 ***************************************************************************/
+	@Test
+	public void testTrailingGarbage() throws IOException {
+
+		byte[] content = content(500, 0);
+		byte[] compressed = concat(gzip(content), "garbage".getBytes(StandardCharsets.US_ASCII));
+
+		assertArrayEquals(content, readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(compressed))));
+	}
+
+	/***************************************************************************
+	 * The optional fields of the header are skipped.
+	 ***************************************************************************/
+	@Test
+	public void testHeaderFields() throws IOException {
+
+		byte[] content = content(3000, 0);
+
+		ByteArrayOutputStream member = new ByteArrayOutputStream();
+		member.writeBytes(new byte[] {
+				0x1f, (byte)0x8b, 8, 4 | 8 | 16 | 2,	// magic, method, FEXTRA FNAME FCOMMENT FHCRC
+				0, 0, 0, 0, 0, 3,						// modification time, extra flags, OS
+				3, 0, 'a', 'b', 'c'						// extra field
+			});
+		member.writeBytes("file.xml\0".getBytes(StandardCharsets.US_ASCII));
+		member.writeBytes("a comment\0".getBytes(StandardCharsets.US_ASCII));
+		member.writeBytes(new byte[] {0x12, 0x34});		// header CRC, not verified
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try (DeflaterOutputStream out = new DeflaterOutputStream(member, deflater)){
+			out.write(content);
+			out.finish();
+
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			writeUInt(member, crc.getValue());
+			writeUInt(member, content.length);
+		}finally {
+			deflater.end();
+		}
+
+		byte[] compressed = member.toByteArray();
+
+		assertArrayEquals(content, readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(compressed))));
+		assertArrayEquals(content, readAll(PFRInflaterInputStream.gzip(new TrickleInputStream(compressed))));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static void writeUInt(ByteArrayOutputStream out, long value) {
+		for(int i = 0; i < 4; i++) {
+			out.write( (int)(value >>> (8 * i)) & 0xff);
+		}
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testCorruptTrailer() throws IOException {
+
+		byte[] compressed = gzip(content(1000, 0));
+		compressed[compressed.length - 8] ^= 0x01;		// CRC
+
+		assertThrows(ZipException.class, () -> readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(compressed))));
+
+		byte[] wrongSize = gzip(content(1000, 0));
+		wrongSize[wrongSize.length - 4] ^= 0x01;		// size
+
+		assertThrows(ZipException.class, () -> readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(wrongSize))));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testNotGzip() {
+
+		byte[] plain = "plain text".getBytes(StandardCharsets.US_ASCII);
+
+		assertThrows(ZipException.class, () -> readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(plain))));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testTruncated() throws IOException {
+
+		byte[] compressed = gzip(content(1000, 0));
+		byte[] truncated = new byte[compressed.length - 3];
+		System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+
+		assertThrows(IOException.class, () -> readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(truncated))));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testReadAfterClose() throws IOException {
+
+		PFRInflaterInputStream in = PFRInflaterInputStream.gzip(new ByteArrayInputStream(gzip(content(10, 0))));
+		in.close();
+		in.close();
+
+		assertThrows(IOException.class, () -> in.read(new byte[10], 0, 10));
+	}
+
+	/***************************************************************************
+	 * The Inflaters are reset when released, and kept apart by format.
+	 ***************************************************************************/
+	@Test
+	public void testInflaterPool() throws IOException {
+
+		Inflater gzip = PFRBufferPool.acquireInflater(true);
+		gzip.setInput(gzip(content(10, 0)), 10, 5);
+		PFRBufferPool.release(gzip, true);
+
+		long hits = PFRBufferPool.getInflaterHits();
+
+		Inflater reused = PFRBufferPool.acquireInflater(true);
+		assertSame(gzip, reused);
+		assertEquals(0, reused.getRemaining(), "reset when released");
+		assertEquals(hits + 1, PFRBufferPool.getInflaterHits());
+
+		Inflater deflate = PFRBufferPool.acquireInflater(false);
+		assertNotSame(gzip, deflate);
+
+		PFRBufferPool.release(deflate, false);
+		PFRBufferPool.release(reused, true);
+
+		// streams return theirs when closed
+		assertArrayEquals(content(10, 0), readAll(PFRInflaterInputStream.gzip(new ByteArrayInputStream(gzip(content(10, 0))))));
+		assertSame(reused, PFRBufferPool.acquireInflater(true));
+		PFRBufferPool.release(reused, true);
+	}
+
+	/***************************************************************************
+	 * Only buffers of the pooled size are kept.
+	 ***************************************************************************/
+	@Test
+	public void testBufferPool() {
+
+		byte[] bytes = PFRBufferPool.acquireBytes();
+		assertEquals(PFRBufferPool.BUFFER_SIZE, bytes.length);
+		PFRBufferPool.release(bytes);
+
+		long hits = PFRBufferPool.getBufferHits();
+		assertSame(bytes, PFRBufferPool.acquireBytes());
+		assertEquals(hits + 1, PFRBufferPool.getBufferHits());
+
+		char[] chars = PFRBufferPool.acquireChars();
+		assertEquals(PFRBufferPool.BUFFER_SIZE, chars.length);
+		PFRBufferPool.release(chars);
+		assertSame(chars, PFRBufferPool.acquireChars());
+
+		byte[] other = new byte[100];
+		PFRBufferPool.release(other);
+		assertNotSame(other, PFRBufferPool.acquireBytes());
+	}
+}
@@ -0,0 +1,199 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.apache.hc.core5.http.ContentType;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.xresch.xrutils.utils.XRText.CheckType;
+
+/***************************************************************************
+ *
+ * Tests PFRJsonPath, on the streamed body as well as on a parsed body.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRJsonPathTest {
+
+	private static final String JSON = "{"
+			+ "\"meta\": {\"count\": 3, \"next\": null},"
+			+ "\"items\": ["
+				+ "{\"id\": \"a1\", \"tags\": [\"x\", \"y\"]},"
+				+ "{\"id\": \"b2\", \"tags\": []},"
+				+ "{\"id\": \"c3\", \"name.with.dots\": \"dotted\"}"
+			+ "],"
+			+ "\"odd key\": true"
+		+ "}";
+
+	/***************************************************************************
+	 * Evaluates the path on the streamed body and on the parsed body, checks
+	 * both return the same and returns the values as strings.
+	 ***************************************************************************/
+	private static List<String> extractAll(String path) {
+
+		PFRJsonPath jsonPath = PFRJsonPath.compile(path);
+
+		PFRHttpResponse streamed = PFRTestResponses.create(JSON, ContentType.APPLICATION_JSON);
+		List<String> fromStream = jsonPath.extractAll(streamed).stream().map(JsonElement::toString).toList();
+		assertNull(streamed.getBodyAsJsonIfParsed(), "streamed evaluation does not parse the body");
+
+		PFRHttpResponse parsed = PFRTestResponses.create(JSON, ContentType.APPLICATION_JSON);
+		parsed.getBodyAsJsonElement();
+		List<String> fromParsed = jsonPath.extractAll(parsed).stream().map(JsonElement::toString).toList();
+
+		assertEquals(fromParsed, fromStream, path);
+		return fromStream;
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testMembersAndIndexes() {
+		assertEquals(List.of("3"), extractAll("$.meta.count"));
+		assertEquals(List.of("null"), extractAll("$.meta.next"));
+		assertEquals(List.of("\"b2\""), extractAll("$.items[1].id"));
+		assertEquals(List.of("\"y\""), extractAll("$.items[0].tags[1]"));
+		assertEquals(List.of("\"dotted\""), extractAll("$.items[2]['name.with.dots']"));
+		assertEquals(List.of("true"), extractAll("$[\"odd key\"]"));
+		assertEquals(List.of("[]"), extractAll("$.items[1].tags"));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testRoot() {
+		assertEquals(List.of(JsonParser.parseString(JSON).toString()), extractAll("$"));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testWildcards() {
+		assertEquals(List.of("\"a1\"", "\"b2\"", "\"c3\""), extractAll("$.items[*].id"));
+		assertEquals(List.of("\"a1\"", "\"b2\"", "\"c3\""), extractAll("$.items.*.id"));
+		assertEquals(List.of("\"x\"", "\"y\""), extractAll("$.items[*].tags[*]"));
+		assertEquals(List.of("3", "null"), extractAll("$.meta.*"));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testNotFound() {
+		assertEquals(List.of(), extractAll("$.missing"));
+		assertEquals(List.of(), extractAll("$.items[3].id"));
+		assertEquals(List.of(), extractAll("$.meta[0]"));
+		assertEquals(List.of(), extractAll("$.items.id"));
+		assertEquals(List.of(), extractAll("$.meta.count.deeper"));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testExtractFirst() {
+
+		PFRHttpResponse r = PFRTestResponses.create(JSON, ContentType.APPLICATION_JSON);
+
+		assertEquals("a1", PFRJsonPath.compile("$.items[*].id").extractString(r));
+		assertEquals("{\"count\":3,\"next\":null}", PFRJsonPath.compile("$.meta").extractString(r));
+		assertNull(PFRJsonPath.compile("$.meta.next").extractString(r));
+		assertNull(PFRJsonPath.compile("$.missing").extract(r));
+	}
+
+	/***************************************************************************
+	 * The parsed body is used if available, the values are its instances.
+	 ***************************************************************************/
+	@Test
+	public void testUsesParsedBody() {
+
+		PFRHttpResponse r = PFRTestResponses.create(JSON, ContentType.APPLICATION_JSON);
+		JsonElement meta = r.getBodyAsJsonObject().get("meta");
+
+		assertSame(meta, PFRJsonPath.compile("$.meta").extract(r));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testParsedElement() {
+
+		JsonElement element = JsonParser.parseString(JSON);
+
+		assertEquals("\"c3\"", PFRJsonPath.compile("$.items[2].id").extract(element).toString());
+		assertEquals(2, PFRJsonPath.compile("$.items[*].tags[*]").extractAll(element).size());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testInvalidBody() {
+
+		PFRHttpResponse r = PFRTestResponses.create("{\"id\": ", ContentType.APPLICATION_JSON);
+
+		assertNull(PFRJsonPath.compile("$.id").extract(r));
+		assertTrue(PFRJsonPath.compile("$.id").extractAll(r).isEmpty());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testCompileErrors() {
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile(null));
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile("items"));
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile("$..id"));
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile("$.items."));
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile("$.items[0"));
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile("$.items[-1]"));
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile("$.items[0:2]"));
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile("$.items[?(@.id)]"));
+		assertThrows(IllegalArgumentException.class, () -> PFRJsonPath.compile("$items"));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testCheckExists() {
+
+		PFRHttpResponse r = PFRTestResponses.create(JSON, ContentType.APPLICATION_JSON);
+
+		assertTrue(PFRJsonPath.compile("$.items[0].id").checkExists().check(r));
+		assertFalse(PFRJsonPath.compile("$.items[5].id").checkExists().check(r));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testToString() {
+		assertEquals("$.items[0].id", PFRJsonPath.compile("$.items[0].id").toString());
+	}
+
+	/***************************************************************************
+	 * The check fails if the path is not found, also for DOES_NOT_CONTAIN.
+	 ***************************************************************************/
+	@Test
+	public void testCheckMissingValue() {
+
+		PFRHttpResponse r = PFRTestResponses.create(JSON, ContentType.APPLICATION_JSON);
+
+		assertFalse(PFRJsonPath.compile("$.missing").check(CheckType.DOES_NOT_CONTAIN, "x").check(r));
+	}
+}
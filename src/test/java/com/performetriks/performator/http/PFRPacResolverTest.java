@@ -0,0 +1,249 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.performetriks.performator.http.PFRHttp.PFRProxy;
+
+/***************************************************************************
+ *
+ * Tests the parsing of the PAC results, the TTL cache, the context pool and
+ * the load backoff of PFRPacResolver.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRPacResolverTest {
+
+	private static final String PAC_SCRIPT = "function FindProxyForURL(url, host) {"
+			+ " if (host == 'direct.example.com') { return 'DIRECT'; }"
+			+ " return 'PROXY proxy-' + host + ':8080; DIRECT';"
+		+ " }";
+
+	private long pacCacheTtl;
+	private int pacContextPoolSize;
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@BeforeEach
+	public void keepSettings() {
+		pacCacheTtl = PFRHttp.defaultPacCacheTtl();
+		pacContextPoolSize = PFRHttp.defaultPacContextPoolSize();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@AfterEach
+	public void restoreSettings() {
+		PFRHttp.defaultPacCacheTtl(pacCacheTtl);
+		PFRHttp.defaultPacContextPoolSize(pacContextPoolSize);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testParseProxies() {
+
+		assertEquals(
+				  List.of(new PFRProxy("PROXY", "proxy", 8080), new PFRProxy("SOCKS", "socks", 1080))
+				, PFRPacResolver.parseProxies("PROXY proxy:8080; SOCKS socks:1080; DIRECT")
+			);
+
+		assertEquals(List.of(new PFRProxy("PROXY", "proxy", 80)), PFRPacResolver.parseProxies("PROXY proxy"));
+		assertEquals(List.of(new PFRProxy("PROXY", "proxy", 80)), PFRPacResolver.parseProxies("PROXY proxy:port"), "invalid port");
+		assertEquals(List.of(new PFRProxy("PROXY", "proxy", 3128)), PFRPacResolver.parseProxies("  ;PROXY proxy:3128;  "));
+
+		assertTrue(PFRPacResolver.parseProxies("DIRECT").isEmpty());
+		assertTrue(PFRPacResolver.parseProxies("").isEmpty());
+		assertTrue(PFRPacResolver.parseProxies(null).isEmpty());
+	}
+
+	/***************************************************************************
+	 * The results are shared by the threads and cannot be changed.
+	 ***************************************************************************/
+	@Test
+	public void testParseProxiesImmutable() {
+
+		List<PFRProxy> proxies = PFRPacResolver.parseProxies("PROXY proxy:8080");
+
+		assertThrows(UnsupportedOperationException.class, () -> proxies.add(new PFRProxy("PROXY", "other", 80)));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testNoScript() {
+
+		PFRPacResolver resolver = new PFRPacResolver();
+
+		assertFalse(resolver.hasScript());
+		assertTrue(resolver.resolve("http://www.example.com/", "www.example.com").isEmpty());
+		assertEquals(0, resolver.getEvaluations());
+		assertEquals(0, resolver.getContexts());
+	}
+
+	/***************************************************************************
+	 * The results are cached per scheme, host and port.
+	 ***************************************************************************/
+	@Test
+	public void testCacheKey() {
+
+		assertEquals("http://www.example.com", PFRPacResolver.cacheKey("http://www.example.com/a?b=c", "www.example.com"));
+		assertEquals("https://www.example.com", PFRPacResolver.cacheKey("HTTPS://WWW.Example.com/", "www.example.com"));
+		assertEquals("https://www.example.com:8443", PFRPacResolver.cacheKey("https://www.example.com:8443/path", "www.example.com"));
+		assertEquals("www.example.com", PFRPacResolver.cacheKey("not a url", "www.example.com"));
+	}
+
+	/***************************************************************************
+	 * After a failed load no new attempt is made until the backoff has
+	 * passed, lookups return no proxies (DIRECT) in the meantime.
+	 ***************************************************************************/
+	@Test
+	public void testLoadFailed() {
+
+		PFRPacResolver resolver = new PFRPacResolver();
+		assertTrue(resolver.canLoad());
+
+		resolver.loadFailed(60_000);
+
+		assertFalse(resolver.canLoad());
+		assertEquals(1, resolver.getLoadFailures());
+		assertTrue(resolver.resolve("http://www.example.com/", "www.example.com").isEmpty());
+		assertEquals(0, resolver.getEvaluations());
+
+		// a loaded script ends the backoff
+		resolver.setScript(PAC_SCRIPT);
+		assertTrue(resolver.canLoad());
+
+		resolver.setScript(null);
+		resolver.loadFailed(0);
+		assertTrue(resolver.canLoad());
+		assertEquals(2, resolver.getLoadFailures());
+	}
+
+	/***************************************************************************
+	 * The script is evaluated once per host within the TTL.
+	 ***************************************************************************/
+	@Test
+	public void testCached() {
+
+		PFRHttp.defaultPacCacheTtl(60_000);
+
+		PFRPacResolver resolver = new PFRPacResolver();
+		resolver.setScript(PAC_SCRIPT);
+		assertTrue(resolver.hasScript());
+
+		List<PFRProxy> expected = List.of(new PFRProxy("PROXY", "proxy-www.example.com", 8080));
+
+		assertEquals(expected, resolver.resolve("http://www.example.com/a", "www.example.com"));
+		assertEquals(expected, resolver.resolve("http://www.example.com/b", "www.example.com"));
+		assertTrue(resolver.resolve("http://direct.example.com/", "direct.example.com").isEmpty());
+		assertTrue(resolver.resolve("http://direct.example.com/", "direct.example.com").isEmpty());
+
+		assertEquals(2, resolver.getEvaluations());
+		assertEquals(2, resolver.getHits());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testTtlExpired() {
+
+		PFRHttp.defaultPacCacheTtl(0);
+
+		PFRPacResolver resolver = new PFRPacResolver();
+		resolver.setScript(PAC_SCRIPT);
+
+		resolver.resolve("http://www.example.com/", "www.example.com");
+		resolver.resolve("http://www.example.com/", "www.example.com");
+
+		assertEquals(2, resolver.getEvaluations());
+		assertEquals(0, resolver.getHits());
+	}
+
+	/***************************************************************************
+	 * Clearing or replacing the script removes the cached results.
+	 ***************************************************************************/
+	@Test
+	public void testClearAndReload() {
+
+		PFRHttp.defaultPacCacheTtl(60_000);
+
+		PFRPacResolver resolver = new PFRPacResolver();
+		resolver.setScript(PAC_SCRIPT);
+
+		resolver.resolve("http://www.example.com/", "www.example.com");
+		resolver.clear();
+		resolver.resolve("http://www.example.com/", "www.example.com");
+		assertEquals(2, resolver.getEvaluations());
+
+		resolver.setScript("function FindProxyForURL(url, host) { return 'PROXY reloaded:3128'; }");
+		assertEquals(0, resolver.getContexts(), "contexts of the previous script are dropped");
+		assertEquals(List.of(new PFRProxy("PROXY", "reloaded", 3128)), resolver.resolve("http://www.example.com/", "www.example.com"));
+		assertEquals(3, resolver.getEvaluations());
+
+		resolver.setScript(null);
+		assertFalse(resolver.hasScript());
+		assertTrue(resolver.resolve("http://www.example.com/", "www.example.com").isEmpty());
+	}
+
+	/***************************************************************************
+	 * Concurrent lookups do not create more contexts than the pool size.
+	 ***************************************************************************/
+	@Test
+	public void testContextPool() throws InterruptedException {
+
+		PFRHttp.defaultPacCacheTtl(0);
+		PFRHttp.defaultPacContextPoolSize(2);
+
+		PFRPacResolver resolver = new PFRPacResolver();
+		resolver.setScript(PAC_SCRIPT);
+
+		CountDownLatch start = new CountDownLatch(1);
+		ArrayList<Thread> threads = new ArrayList<>();
+		List<Throwable> errors = new ArrayList<>();
+
+		for(int t = 0; t < 8; t++) {
+			int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+					for(int i = 0; i < 20; i++) {
+						String host = "host"+thread+"-"+i+".example.com";
+						List<PFRProxy> proxies = resolver.resolve("http://"+host+"/", host);
+						assertEquals(List.of(new PFRProxy("PROXY", "proxy-"+host, 8080)), proxies);
+					}
+				}catch(Throwable e) {
+					synchronized(errors) { errors.add(e); }
+				}
+			}));
+		}
+
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(errors.isEmpty(), "errors: "+errors);
+		assertEquals(8 * 20, resolver.getEvaluations());
+		assertTrue(resolver.getContexts() <= 2, "contexts: "+resolver.getContexts());
+	}
+}
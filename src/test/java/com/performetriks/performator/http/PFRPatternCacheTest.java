@@ -0,0 +1,109 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.hc.core5.http.ContentType;
+import org.junit.jupiter.api.Test;
+
+import com.xresch.xrutils.utils.XRText.CheckType;
+
+/***************************************************************************
+ *
+ * Tests PFRPatternCache and the regex body checks of PFRHttpCheck using it.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRPatternCacheTest {
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testCached() {
+
+		PFRPatternCache.clear();
+		long misses = PFRPatternCache.getMisses();
+		long hits = PFRPatternCache.getHits();
+
+		Pattern first = PFRPatternCache.get("id=(\\d+)");
+		Pattern second = PFRPatternCache.get("id=(\\d+)");
+
+		assertSame(first, second);
+		assertEquals(misses + 1, PFRPatternCache.getMisses());
+		assertEquals(hits + 1, PFRPatternCache.getHits());
+	}
+
+	/***************************************************************************
+	 * The same regex with other flags is another pattern.
+	 ***************************************************************************/
+	@Test
+	public void testFlags() {
+
+		Pattern plain = PFRPatternCache.get("^a.b$");
+		Pattern flagged = PFRPatternCache.get("^a.b$", Pattern.MULTILINE | Pattern.DOTALL);
+
+		assertNotSame(plain, flagged);
+		assertEquals(0, plain.flags());
+		assertEquals(Pattern.MULTILINE | Pattern.DOTALL, flagged.flags());
+		assertSame(flagged, PFRPatternCache.get("^a.b$", Pattern.MULTILINE | Pattern.DOTALL));
+
+		assertFalse(plain.matcher("x\na\nb").find());
+		assertTrue(flagged.matcher("x\na\nb").find());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testClear() {
+
+		Pattern before = PFRPatternCache.get("cleared");
+		PFRPatternCache.clear();
+
+		long misses = PFRPatternCache.getMisses();
+		assertNotSame(before, PFRPatternCache.get("cleared"));
+		assertEquals(misses + 1, PFRPatternCache.getMisses());
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testInvalid() {
+		assertThrows(PatternSyntaxException.class, () -> PFRPatternCache.get("(unclosed"));
+		assertThrows(PatternSyntaxException.class, () -> PFRPatternCache.get("(unclosed"));
+	}
+
+	/***************************************************************************
+	 * The regex checks match across lines like the checks of HSR.
+	 ***************************************************************************/
+	@Test
+	public void testCheckBodyRegex() {
+
+		PFRHttpResponse r = PFRTestResponses.create("<html>\n<title>Home</title>\n</html>", ContentType.TEXT_HTML);
+
+		assertTrue(new PFRHttpCheck(CheckType.MATCH_REGEX).checkBody("^<title>\\w+</title>$").check(r));
+		assertTrue(new PFRHttpCheck(CheckType.MATCH_REGEX).checkBody("<html>.*</html>").check(r));
+		assertFalse(new PFRHttpCheck(CheckType.MATCH_REGEX).checkBody("<title>\\d+</title>").check(r));
+	}
+
+	/***************************************************************************
+	 * An invalid regex fails the check instead of throwing.
+	 ***************************************************************************/
+	@Test
+	public void testCheckBodyInvalidRegex() {
+
+		PFRHttpResponse r = PFRTestResponses.create("body", ContentType.TEXT_PLAIN);
+
+		assertFalse(new PFRHttpCheck(CheckType.MATCH_REGEX).checkBody("(unclosed").check(r));
+	}
+}
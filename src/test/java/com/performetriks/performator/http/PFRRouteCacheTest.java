@@ -0,0 +1,102 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.core5.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/***************************************************************************
+ *
+ * Tests the routes cached by PFRRouteCache and their expiry.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRRouteCacheTest {
+
+	private static final HttpHost TARGET = new HttpHost("https", "www.example.com", 443);
+	private static final HttpHost PROXY = new HttpHost("http", "proxy.example.com", 8080);
+
+	private long pacCacheTtl;
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@BeforeEach
+	public void keepTtl() {
+		pacCacheTtl = PFRHttp.defaultPacCacheTtl();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@AfterEach
+	public void restoreTtl() {
+		PFRHttp.defaultPacCacheTtl(pacCacheTtl);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testDirect() {
+
+		PFRRouteCache cache = new PFRRouteCache();
+		HttpRoute route = new HttpRoute(TARGET, null, true);
+
+		assertNull(cache.get(TARGET, false));
+		cache.put(TARGET, false, route);
+
+		assertSame(route, cache.get(TARGET, false));
+		assertSame(route, cache.get(new HttpHost("https", "www.example.com", 443), false), "equal host");
+		assertNull(cache.get(TARGET, true), "PAC routes are cached apart");
+		assertNull(cache.get(new HttpHost("http", "www.example.com", 80), false));
+
+		assertEquals(2, cache.getHits());
+		assertEquals(3, cache.getMisses());
+	}
+
+	/***************************************************************************
+	 * The routes of the PAC script expire with the TTL.
+	 ***************************************************************************/
+	@Test
+	public void testPacTtl() {
+
+		PFRRouteCache cache = new PFRRouteCache();
+		HttpRoute route = new HttpRoute(TARGET, null, PROXY, true);
+
+		PFRHttp.defaultPacCacheTtl(60_000);
+		cache.put(TARGET, true, route);
+		assertSame(route, cache.get(TARGET, true));
+
+		PFRHttp.defaultPacCacheTtl(0);
+		cache.put(TARGET, true, route);
+		assertNull(cache.get(TARGET, true), "expired");
+
+		// no overflow of the expiry
+		PFRHttp.defaultPacCacheTtl(Long.MAX_VALUE);
+		cache.put(TARGET, true, route);
+		assertSame(route, cache.get(TARGET, true));
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testClear() {
+
+		PFRRouteCache cache = new PFRRouteCache();
+		cache.put(TARGET, false, new HttpRoute(TARGET, null, true));
+		cache.put(TARGET, true, new HttpRoute(TARGET, null, PROXY, true));
+
+		cache.clear();
+
+		assertNull(cache.get(TARGET, false));
+		assertNull(cache.get(TARGET, true));
+	}
+}
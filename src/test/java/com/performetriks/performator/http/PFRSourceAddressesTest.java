@@ -0,0 +1,308 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.impl.io.ManagedHttpClientConnectionFactory;
+import org.apache.hc.client5.http.io.ManagedHttpClientConnection;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.config.RegistryBuilder;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.reactor.ConnectionInitiator;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.util.Timeout;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.performetriks.performator.http.PFRHttp.PFRSourceAddressSelection;
+
+/***************************************************************************
+ *
+ * Tests the selection of the source addresses and the binding of new
+ * connections after the target host was resolved.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRSourceAddressesTest {
+
+	private static final InetAddress V4_REMOTE = address("10.0.0.1");
+	private static final InetAddress V6_REMOTE = address("fd00::1");
+
+	private InetAddress[] sourceAddresses;
+	private PFRSourceAddressSelection selection;
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	private static InetAddress address(String address) {
+		try {
+			return InetAddress.getByName(address);
+		}catch(Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/***************************************************************************
+	 * Returns a resolver resolving every host to the given address.
+	 ***************************************************************************/
+	private static DnsResolver resolveTo(InetAddress address) {
+		return new DnsResolver() {
+
+			@Override
+			public InetAddress[] resolve(String host) {
+				return new InetAddress[] { address };
+			}
+
+			@Override
+			public String resolveCanonicalHostname(String host) {
+				return host;
+			}
+		};
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@BeforeEach
+	public void keepSettings() {
+		sourceAddresses = PFRHttp.defaultSourceAddresses();
+		selection = PFRHttp.defaultSourceAddressSelection();
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@AfterEach
+	public void restoreSettings() {
+		PFRSourceAddresses.set(sourceAddresses);
+		PFRHttp.defaultSourceAddressSelection(selection);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testDisabled() {
+
+		PFRSourceAddresses.set(null);
+
+		assertFalse(PFRSourceAddresses.isEnabled());
+		assertNull(PFRSourceAddresses.select(V4_REMOTE, HttpClientContext.create()));
+		assertNull(PFRSourceAddresses.selectSocketAddress(V4_REMOTE, HttpClientContext.create()));
+	}
+
+	/***************************************************************************
+	 * Only addresses of the family of the resolved remote address are used.
+	 ***************************************************************************/
+	@Test
+	public void testFamilyFilter() {
+
+		PFRSourceAddresses.set(new InetAddress[] { address("10.0.0.21"), address("fd00::21"), address("10.0.0.22") });
+
+		for(int i = 0; i < 10; i++) {
+			InetAddress v4 = PFRSourceAddresses.select(V4_REMOTE, null);
+			assertTrue(v4.equals(address("10.0.0.21")) || v4.equals(address("10.0.0.22")), "v4: "+v4);
+
+			assertEquals(address("fd00::21"), PFRSourceAddresses.select(V6_REMOTE, null));
+		}
+
+		PFRSourceAddresses.set(new InetAddress[] { address("10.0.0.21") });
+		assertNull(PFRSourceAddresses.select(V6_REMOTE, null), "no address of the same family");
+		assertNull(PFRSourceAddresses.select(null, null), "not resolved");
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@Test
+	public void testRoundRobin() {
+
+		PFRHttp.defaultSourceAddressSelection(PFRSourceAddressSelection.ROUND_ROBIN);
+		PFRSourceAddresses.set(new InetAddress[] { address("10.0.0.21"), address("10.0.0.22"), address("10.0.0.23") });
+
+		HashSet<InetAddress> selected = new HashSet<>();
+		for(int i = 0; i < 3; i++) {
+			selected.add(PFRSourceAddresses.select(V4_REMOTE, HttpClientContext.create()));
+		}
+
+		assertEquals(3, selected.size());
+	}
+
+	/***************************************************************************
+	 * PER_USER selects by the user stored in the context, the connect can
+	 * run on any thread.
+	 ***************************************************************************/
+	@Test
+	public void testPerUserFromContext() throws InterruptedException {
+
+		PFRHttp.defaultSourceAddressSelection(PFRSourceAddressSelection.PER_USER);
+		PFRSourceAddresses.set(new InetAddress[] { address("10.0.0.21"), address("10.0.0.22") });
+
+		HttpClientContext context = HttpClientContext.create();
+		PFRSourceAddresses.attachUser(context);
+		InetAddress expected = PFRSourceAddresses.select(V4_REMOTE, context);
+
+		// another user on the connecting thread
+		AtomicReference<InetAddress> selected = new AtomicReference<>();
+		Thread ioThread = new Thread(() -> {
+			PFRHttp.sourceAddressUser.set(PFRHttp.sourceAddressUser.get() + 1);
+			selected.set(PFRSourceAddresses.select(V4_REMOTE, context));
+		});
+		ioThread.start();
+		ioThread.join();
+
+		assertEquals(expected, selected.get());
+	}
+
+	/***************************************************************************
+	 * Child threads belong to the same user, other users get another address.
+	 ***************************************************************************/
+	@Test
+	public void testPerUserInherited() throws InterruptedException {
+
+		PFRHttp.defaultSourceAddressSelection(PFRSourceAddressSelection.PER_USER);
+		PFRSourceAddresses.set(new InetAddress[] { address("10.0.0.21"), address("10.0.0.22") });
+
+		InetAddress parent = PFRSourceAddresses.select(V4_REMOTE, null);
+
+		List<InetAddress> children = new ArrayList<>();
+		Thread child = new Thread(() -> {
+			children.add(PFRSourceAddresses.select(V4_REMOTE, null));
+			children.add(PFRSourceAddresses.select(V4_REMOTE, null));
+		});
+		child.start();
+		child.join();
+
+		assertEquals(List.of(parent, parent), children);
+
+		// users are numbered one after the other
+		AtomicReference<InetAddress> other = new AtomicReference<>();
+		Thread otherUser = new Thread(() -> {
+			PFRHttp.sourceAddressUser.set(PFRHttp.sourceAddressUser.get() + 1);
+			other.set(PFRSourceAddresses.select(V4_REMOTE, null));
+		});
+		otherUser.start();
+		otherUser.join();
+
+		assertFalse(parent.equals(other.get()), "other user: "+other.get());
+	}
+
+	/***************************************************************************
+	 * The blocking operator binds the socket after resolving the host, to an
+	 * address of the same family.
+	 ***************************************************************************/
+	@Test
+	public void testBlockingConnectBound() throws Exception {
+
+		PFRHttp.defaultSourceAddressSelection(PFRSourceAddressSelection.ROUND_ROBIN);
+		PFRSourceAddresses.set(new InetAddress[] { address("::1"), address("127.0.0.2") });
+
+		try(ServerSocket server = new ServerSocket(0, 10, address("127.0.0.1"))) {
+
+			PFRConnectionOperator operator = new PFRConnectionOperator(RegistryBuilder.<ConnectionSocketFactory>create().build(), resolveTo(address("127.0.0.1")));
+			ManagedHttpClientConnection conn = ManagedHttpClientConnectionFactory.INSTANCE.createConnection(null);
+
+			try {
+				operator.connect(conn, new HttpHost("http", "target.example.com", server.getLocalPort()), null, null
+						, Timeout.ofSeconds(5), SocketConfig.DEFAULT, null, HttpClientContext.create());
+
+				try(Socket accepted = server.accept()) {
+					assertEquals(address("127.0.0.2"), accepted.getInetAddress());
+				}
+			}finally {
+				conn.close(CloseMode.IMMEDIATE);
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * A failed connect is counted as an error of the source address.
+	 ***************************************************************************/
+	@Test
+	public void testBlockingConnectFailed() throws Exception {
+
+		PFRSourceAddresses.set(new InetAddress[] { address("127.0.0.3") });
+
+		int port;
+		try(ServerSocket closed = new ServerSocket(0, 10, address("127.0.0.1"))) {
+			port = closed.getLocalPort();
+		}
+
+		long errors = PFRSourceAddresses.of("127.0.0.3").getErrors();
+
+		PFRConnectionOperator operator = new PFRConnectionOperator(RegistryBuilder.<ConnectionSocketFactory>create().build(), resolveTo(address("127.0.0.1")));
+		ManagedHttpClientConnection conn = ManagedHttpClientConnectionFactory.INSTANCE.createConnection(null);
+
+		try {
+			operator.connect(conn, new HttpHost("http", "target.example.com", port), null, null
+					, Timeout.ofSeconds(5), SocketConfig.DEFAULT, null, HttpClientContext.create());
+			assertTrue(false, "connect should fail");
+		}catch(IOException e) {
+			assertEquals(errors + 1, PFRSourceAddresses.of("127.0.0.3").getErrors());
+		}finally {
+			conn.close(CloseMode.IMMEDIATE);
+		}
+	}
+
+	/***************************************************************************
+	 * The non-blocking initiator binds every resolved remote address and
+	 * keeps a local address that was set by the route.
+	 ***************************************************************************/
+	@Test
+	public void testAsyncInitiatorBound() {
+
+		PFRHttp.defaultSourceAddressSelection(PFRSourceAddressSelection.ROUND_ROBIN);
+		PFRSourceAddresses.set(new InetAddress[] { address("10.0.0.21"), address("fd00::21") });
+
+		AtomicReference<SocketAddress> local = new AtomicReference<>();
+		AtomicInteger connects = new AtomicInteger(0);
+
+		ConnectionInitiator recording = new ConnectionInitiator() {
+			@Override
+			public Future<IOSession> connect(NamedEndpoint remoteEndpoint, SocketAddress remoteAddress, SocketAddress localAddress,
+					Timeout timeout, Object attachment, FutureCallback<IOSession> callback) {
+				connects.incrementAndGet();
+				local.set(localAddress);
+				return null;
+			}
+		};
+
+		ConnectionInitiator initiator = new PFRAsyncConnectionManager.SourceConnectionInitiator(recording, HttpClientContext.create());
+		HttpHost target = new HttpHost("https", "target.example.com", 443);
+
+		initiator.connect(target, new InetSocketAddress(V6_REMOTE, 443), null, Timeout.ofSeconds(5), null, null);
+		assertEquals(new InetSocketAddress(address("fd00::21"), 0), local.get());
+
+		initiator.connect(target, new InetSocketAddress(V4_REMOTE, 443), null, Timeout.ofSeconds(5), null, null);
+		assertEquals(new InetSocketAddress(address("10.0.0.21"), 0), local.get());
+
+		InetSocketAddress routeLocal = new InetSocketAddress(address("10.0.0.99"), 0);
+		initiator.connect(target, new InetSocketAddress(V4_REMOTE, 443), routeLocal, Timeout.ofSeconds(5), null, null);
+		assertEquals(routeLocal, local.get());
+
+		assertEquals(3, connects.get());
+	}
+}
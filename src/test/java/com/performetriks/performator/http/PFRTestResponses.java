@@ -0,0 +1,42 @@
+package com.performetriks.performator.http;
+
+import java.net.URI;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ContentType;
+
+/***************************************************************************
+ *
+ * Creates responses for the tests without sending a request, the way the
+ * non-blocking engine creates them from a received response.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+class PFRTestResponses {
+
+	static final String URL = "http://localhost/test";
+
+	/***************************************************************************
+	 * Creates a response with status 200 and the given body.
+	 ***************************************************************************/
+	static PFRHttpResponse create(String body, ContentType contentType) {
+		return create(PFRHttp.create(URL), body, contentType);
+	}
+
+	/***************************************************************************
+	 * Creates a response with status 200 and the given body, read as defined
+	 * by the request, e.g. its body mode and checks.
+	 ***************************************************************************/
+	static PFRHttpResponse create(PFRHttpRequestBuilder request, String body, ContentType contentType) {
+		return create(request, SimpleHttpResponse.create(200, body, contentType));
+	}
+
+	/***************************************************************************
+	 * Creates a response from the given response of the client.
+	 ***************************************************************************/
+	static PFRHttpResponse create(PFRHttpRequestBuilder request, SimpleHttpResponse response) {
+		return new PFRHttpResponse(request, URI.create(URL), response, null, 0, HttpClientContext.create(), false);
+	}
+}
@@ -0,0 +1,216 @@
+package com.performetriks.performator.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLSession;
+
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.reactor.ssl.TlsDetails;
+import org.apache.hc.core5.reactor.ssl.TransportSecurityLayer;
+import org.apache.hc.core5.util.Timeout;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/***************************************************************************
+ *
+ * Tests the handshake timing of the non-blocking engines: HTTP/1 connects
+ * record into the timing of the connect attempt, HTTP/2 connections carry
+ * the handshake in their SSLSession until a request claims it.
+ *
+ * @author Perfluencer
+ *
+ ***************************************************************************/
+public class PFRTlsStrategyTest {
+
+	private static final HttpHost TARGET = new HttpHost("https", "h2.example.com", 443);
+
+	private boolean measureTls;
+	private boolean measureConnect;
+
+	/***************************************************************************
+	 * Returns a session keeping the application values in a map.
+	 ***************************************************************************/
+	private static SSLSession newSession() {
+
+		HashMap<String, Object> values = new HashMap<>();
+
+		return (SSLSession)Proxy.newProxyInstance(SSLSession.class.getClassLoader(), new Class<?>[] { SSLSession.class }, (proxy, method, args) -> {
+			switch(method.getName()) {
+				case "putValue":	values.put((String)args[0], args[1]); return null;
+				case "getValue":	return values.get(args[0]);
+				case "removeValue":	values.remove(args[0]); return null;
+				case "hashCode":	return System.identityHashCode(proxy);
+				case "equals":		return proxy == args[0];
+				default:			return null;
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Returns a session layer with the given TLS session.
+	 ***************************************************************************/
+	private static TransportSecurityLayer newLayer(SSLSession session) {
+
+		TlsDetails details = new TlsDetails(session, "h2");
+
+		return (TransportSecurityLayer)Proxy.newProxyInstance(TransportSecurityLayer.class.getClassLoader(), new Class<?>[] { TransportSecurityLayer.class }, (proxy, method, args) -> {
+			return method.getName().equals("getTlsDetails") ? details : null;
+		});
+	}
+
+	/***************************************************************************
+	 * Returns a strategy completing every handshake right away.
+	 ***************************************************************************/
+	private static PFRTlsStrategy newStrategy() {
+
+		return new PFRTlsStrategy(new TlsStrategy() {
+
+			@Override
+			public void upgrade(TransportSecurityLayer sessionLayer, NamedEndpoint endpoint, Object attachment,
+					Timeout handshakeTimeout, FutureCallback<TransportSecurityLayer> callback) {
+				callback.completed(sessionLayer);
+			}
+
+			@Override
+			public boolean upgrade(TransportSecurityLayer sessionLayer, HttpHost host, SocketAddress localAddress,
+					SocketAddress remoteAddress, Object attachment, Timeout handshakeTimeout) {
+				return true;
+			}
+		});
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@BeforeEach
+	public void keepSettings() {
+		measureTls = PFRHttp.defaultMeasureTls();
+		measureConnect = PFRHttp.defaultMeasureConnect();
+
+		PFRHttp.defaultMeasureTls(true);
+		PFRHttp.defaultMeasureConnect(true);
+	}
+
+	/***************************************************************************
+	 *
+	 ***************************************************************************/
+	@AfterEach
+	public void restoreSettings() {
+		PFRHttp.defaultMeasureTls(measureTls);
+		PFRHttp.defaultMeasureConnect(measureConnect);
+	}
+
+	/***************************************************************************
+	 * Without a connect attempt on the thread, the handshake is stored in the
+	 * session and claimed by the first request on the connection.
+	 ***************************************************************************/
+	@Test
+	public void testHttp2HandshakeClaimed() {
+
+		HttpClientContext context = HttpClientContext.create();
+		PFRHttpTiming timing = PFRHttpTiming.attach(context, "h2-claimed");
+		timing.dnsStarted();
+		timing.dnsEnded();
+
+		SSLSession session = newSession();
+		newStrategy().upgrade(newLayer(session), TARGET, null, Timeout.ofSeconds(5), null);
+		assertNotNull(session.getValue(PFRTlsStrategy.SESSION_HANDSHAKE));
+
+		context.setSSLSession(session);
+		PFRTlsStrategy.claimHandshake(context, timing);
+
+		assertTrue(timing.tlsNanos() >= 0, "tls: "+timing.tlsNanos());
+		assertTrue(timing.connectNanos() >= 0, "connect: "+timing.connectNanos());
+		assertNull(session.getValue(PFRTlsStrategy.SESSION_HANDSHAKE));
+
+		// the next request on the connection did not open it
+		HttpClientContext next = HttpClientContext.create();
+		PFRHttpTiming nextTiming = PFRHttpTiming.attach(next, "h2-claimed");
+		next.setSSLSession(session);
+		PFRTlsStrategy.claimHandshake(next, nextTiming);
+
+		assertEquals(-1, nextTiming.tlsNanos());
+		assertEquals(-1, nextTiming.connectNanos());
+	}
+
+	/***************************************************************************
+	 * Requests on other connections, or on a plain connection, do not get
+	 * the handshake.
+	 ***************************************************************************/
+	@Test
+	public void testHttp2HandshakePerConnection() {
+
+		SSLSession opened = newSession();
+		newStrategy().upgrade(newLayer(opened), TARGET, null, Timeout.ofSeconds(5), null);
+
+		HttpClientContext other = HttpClientContext.create();
+		PFRHttpTiming otherTiming = PFRHttpTiming.attach(other, "h2-other");
+		other.setSSLSession(newSession());
+		PFRTlsStrategy.claimHandshake(other, otherTiming);
+
+		HttpClientContext plain = HttpClientContext.create();
+		PFRHttpTiming plainTiming = PFRHttpTiming.attach(plain, "h2-other");
+		PFRTlsStrategy.claimHandshake(plain, plainTiming);
+
+		assertEquals(-1, otherTiming.tlsNanos());
+		assertEquals(-1, plainTiming.tlsNanos());
+		assertNotNull(opened.getValue(PFRTlsStrategy.SESSION_HANDSHAKE));
+	}
+
+	/***************************************************************************
+	 * The handshake of an HTTP/1 connect attempt is recorded in its timing.
+	 ***************************************************************************/
+	@Test
+	public void testHttp1HandshakeOfConnect() {
+
+		PFRHttpTiming timing = PFRHttpTiming.attach(HttpClientContext.create(), "h1-connect");
+		SSLSession session = newSession();
+
+		PFRTlsStrategy.connecting(timing);
+		try {
+			newStrategy().upgrade(newLayer(session), TARGET, null, Timeout.ofSeconds(5), null);
+		}finally {
+			PFRTlsStrategy.connecting(null);
+		}
+
+		assertTrue(timing.tlsNanos() >= 0, "tls: "+timing.tlsNanos());
+		assertNull(session.getValue(PFRTlsStrategy.SESSION_HANDSHAKE));
+	}
+
+	/***************************************************************************
+	 * Nothing is stored if neither TLS nor connect are measured.
+	 ***************************************************************************/
+	@Test
+	public void testNotMeasured() {
+
+		PFRHttp.defaultMeasureTls(false);
+		PFRHttp.defaultMeasureConnect(false);
+
+		AtomicReference<TransportSecurityLayer> upgraded = new AtomicReference<>();
+		SSLSession session = newSession();
+		TransportSecurityLayer layer = newLayer(session);
+
+		newStrategy().upgrade(layer, TARGET, null, Timeout.ofSeconds(5), new FutureCallback<TransportSecurityLayer>() {
+			@Override public void completed(TransportSecurityLayer result) { upgraded.set(result); }
+			@Override public void failed(Exception e) {}
+			@Override public void cancelled() {}
+		});
+
+		assertSame(layer, upgraded.get());
+		assertNull(session.getValue(PFRTlsStrategy.SESSION_HANDSHAKE));
+	}
+}